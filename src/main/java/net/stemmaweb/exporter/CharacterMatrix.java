@@ -0,0 +1,122 @@
+package net.stemmaweb.exporter;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.ReadingModel;
+import net.stemmaweb.model.WitnessTokensModel;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The character matrix of an alignment, with a row for each witness and a column for each
+ * rank at which the witnesses diverge. The readings at each rank are lettered from 'A' in
+ * the order in which they appear; a witness that is lacunose has '?', and one that omits
+ * the text has 'X'. Ranks with more than the given number of readings are left out.
+ *
+ * @author tla
+ */
+class CharacterMatrix {
+
+    static final char LACUNA = '?';
+    static final char OMISSION = 'X';
+
+    private final List<String> sigla;
+    private final char[][] rows;
+
+    CharacterMatrix(AlignmentModel alignment, int maxVars) {
+        // We will count on the order of the witness columns remaining constant.
+        sigla = alignment.getAlignment().stream()
+                .map(WitnessTokensModel::constructSigil).collect(Collectors.toList());
+        int witnesses = sigla.size();
+        StringBuilder[] built = new StringBuilder[witnesses];
+        for (int w = 0; w < witnesses; w++)
+            built[w] = new StringBuilder();
+        // Go rank by rank through all the lists of tokens, converting them into chars
+        for (int i = 0; i < alignment.getLength(); i++) {
+            ReadingModel[] row = new ReadingModel[witnesses];
+            for (int w = 0; w < witnesses; w++)
+                row[w] = alignment.getAlignment().get(w).getTokens().get(i);
+            // Make reading-to-character lookup
+            HashMap<String, Character> charMap = new HashMap<>();
+            char curr = 'A';
+            boolean row_has_null = false;
+            boolean row_has_lacuna = false;
+            for (ReadingModel rm : row) {
+                if (rm == null) {
+                    row_has_null = true;
+                    continue;
+                } else if (rm.getIs_lacuna()) {
+                    row_has_lacuna = true;
+                    continue;
+                }
+                if (!charMap.containsKey(rm.getId())) {
+                    charMap.put(rm.getId(), curr);
+                    curr++;
+                }
+            }
+            // Skip rows that don't diverge
+            if (curr == 'B' && !row_has_null && !row_has_lacuna)
+                continue;
+            // Check that we aren't over the max-character limit; an omission counts as a character
+            if (curr > 'A' + maxVars || row_has_null && curr > 'A' + (maxVars - 1))
+                continue;
+
+            // Employ it
+            for (int w = 0; w < witnesses; w++) {
+                if (row[w] == null)
+                    built[w].append(OMISSION);
+                else if (row[w].getIs_lacuna())
+                    built[w].append(LACUNA);
+                else
+                    built[w].append(charMap.get(row[w].getId()));
+            }
+        }
+        rows = new char[witnesses][];
+        for (int w = 0; w < witnesses; w++)
+            rows[w] = built[w].toString().toCharArray();
+    }
+
+    /**
+     * @return the sigla of the witnesses, in the order of the rows
+     */
+    List<String> getSigla() { return sigla; }
+
+    /**
+     * @return the number of characters in each row
+     */
+    int getLength() { return rows.length == 0 ? 0 : rows[0].length; }
+
+    /**
+     * Returns the row of characters for a witness.
+     *
+     * @param sigil - the witness sigil
+     * @return the characters, or null if the matrix has no such witness
+     */
+    char[] getRow(String sigil) {
+        int w = sigla.indexOf(sigil);
+        return w < 0 ? null : rows[w];
+    }
+
+    /**
+     * @return the matrix in the plain text form that e.g. Phylip Pars reads
+     */
+    String toPhylip() {
+        StringBuilder charMatrix = new StringBuilder();
+        charMatrix.append(String.format("\t%d\t%d\n", sigla.size(), getLength()));
+        for (int w = 0; w < sigla.size(); w++) {
+            charMatrix.append(String.format("%-10s", shortenSigil(sigla.get(w))));
+            charMatrix.append(rows[w]);
+            charMatrix.append("\n");
+        }
+        return charMatrix.toString();
+    }
+
+    private static String shortenSigil(String sigil) {
+        String shortened = sigil.replaceAll("\\s+", "_")
+                .replaceAll("\\W+", "");
+        if (shortened.length() > 10)
+            shortened = shortened.substring(0, 10);
+        return shortened;
+    }
+}
@@ -1,29 +1,36 @@
 package net.stemmaweb.exporter;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.stream.Collectors;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 
 import net.stemmaweb.model.DisplayOptionModel;
-import net.stemmaweb.printer.GraphViz;
+import net.stemmaweb.printer.SvgRenderer;
 import net.stemmaweb.rest.ERelations;
 
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Section;
 
-import static net.stemmaweb.parser.Util.getExpander;
 import static org.apache.commons.text.StringEscapeUtils.escapeHtml4;
 
+import net.stemmaweb.services.CacheService;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.NormalizedSection;
+import net.stemmaweb.services.SequenceEdge;
+import net.stemmaweb.services.StemmaGraph;
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.traversal.Uniqueness;
@@ -42,6 +49,9 @@ public class DotExporter
 
     private static DecimalFormat df2 = new DecimalFormat(".##");
 
+    // Dot that runs to more than this many bytes is streamed out without being cached
+    private static final int CACHE_LIMIT = Integer.getInteger("stemmarest.dot.cache.limit", 4 << 20);
+
     public DotExporter(GraphDatabaseService db){
         this.db = db;
     }
@@ -50,7 +60,24 @@ public class DotExporter
         return writeNeo4J(tradId, null, dm);
     }
 
-    public Response writeNeo4J(String tradId, String sectionId, DisplayOptionModel dm)
+    public Response writeNeo4J(String tradId, String sectionId, DisplayOptionModel dm) {
+        return writeNeo4J(tradId, sectionId, dm, false);
+    }
+
+    /**
+     * Renders the dot for the tradition, or the given section of it, as SVG. The
+     * rendering is done by the SvgRenderer, which caches it by the dot source.
+     *
+     * @param tradId    - the ID of the tradition
+     * @param sectionId - the ID of the section, or null for the whole tradition
+     * @param dm        - the display options
+     * @return a Response with the SVG document, or SERVICE_UNAVAILABLE if the renderer is too busy
+     */
+    public Response writeNeo4JAsSvg(String tradId, String sectionId, DisplayOptionModel dm) {
+        return writeNeo4J(tradId, sectionId, dm, true);
+    }
+
+    private Response writeNeo4J(String tradId, String sectionId, DisplayOptionModel dm, boolean asSvg)
     {
         // Get the start and end node of the whole tradition
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
@@ -66,23 +93,148 @@ public class DotExporter
             return Response.status(Status.NOT_FOUND).build();
         }
 
-        File output;
-        String result;
-        try (Transaction tx = db.beginTx()) {
-            output = File.createTempFile("graph_", ".dot");
-            out = new FileOutputStream(output);
-
-            Node requestedSection = null;
-            if (sectionId != null)
+        Node requestedSection = null;
+        if (sectionId != null) {
+            try (Transaction tx = db.beginTx()) {
                 requestedSection = db.getNodeById(Long.valueOf(sectionId));
-            if (requestedSection != null) {
-                if (!sections.contains(requestedSection))
-                    return Response.status(Status.BAD_REQUEST)
-                            .entity(String.format("Section %s not found in tradition %s", sectionId, tradId))
-                            .build();
-                sections.clear();
-                sections.add(requestedSection);
+                tx.success();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Response.serverError().entity(e.getMessage()).build();
             }
+            if (!sections.contains(requestedSection))
+                return Response.status(Status.BAD_REQUEST)
+                        .entity(String.format("Section %s not found in tradition %s", sectionId, tradId))
+                        .build();
+            sections.clear();
+            sections.add(requestedSection);
+        }
+
+        // Fetch the dot from the cache if the sections haven't changed since it was last generated
+        // with these options, or else generate it straight into the response, and keep it if it
+        // is small enough. The SVG renderer needs the whole of the dot, to look up its rendering,
+        // and renders it before we answer, so that a busy renderer can be reported as such.
+        Node graphSection = requestedSection;
+        if (asSvg) {
+            try {
+                CacheService.Slot<String> slot = CacheService.slot(sectionIds(sections), "dot",
+                        cacheKey(traditionNode, graphSection, dm));
+                String dot = slot.get();
+                if (dot == null) {
+                    dot = renderGraph(tradId, traditionNode, sections, graphSection, startNode, endNode, dm);
+                    if (dot.length() <= CACHE_LIMIT)
+                        slot.put(dot, dot.length());
+                }
+                return Response.ok(SvgRenderer.render(dot)).build();
+            } catch (RejectedExecutionException e) {
+                return Response.status(Status.SERVICE_UNAVAILABLE).entity(e.getMessage()).build();
+            } catch (Exception e) {
+                e.printStackTrace();
+                return Response.serverError().entity(e.getMessage()).build();
+            }
+        }
+        StreamingOutput stream = output -> {
+            try {
+                CacheService.Slot<String> slot = CacheService.slot(sectionIds(sections), "dot",
+                        cacheKey(traditionNode, graphSection, dm));
+                String dot = slot.get();
+                if (dot != null) {
+                    Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+                    writer.write(dot);
+                    writer.flush();
+                } else {
+                    CachingStream tee = new CachingStream(output);
+                    out = tee;
+                    writeGraph(tradId, traditionNode, sections, graphSection, startNode, endNode, dm);
+                    tee.flush();
+                    String copy = tee.getCopy();
+                    if (copy != null)
+                        slot.put(copy, copy.length());
+                }
+                output.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new WebApplicationException(e);
+            }
+        };
+        return Response.ok(stream).build();
+    }
+
+    private List<Long> sectionIds(List<Node> sections) {
+        List<Long> ids = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            sections.forEach(x -> ids.add(x.getId()));
+            tx.success();
+        }
+        return ids;
+    }
+
+    // The dot depends on the display options, on the tradition's name and direction, which
+    // are not part of any section, and on whether it is for the tradition or for a section,
+    // whose name it then takes.
+    private String cacheKey(Node traditionNode, Node requestedSection, DisplayOptionModel dm) {
+        List<String> excluded = new ArrayList<>(dm.getExcludeWitnesses());
+        Collections.sort(excluded);
+        try (Transaction tx = db.beginTx()) {
+            String graph = requestedSection == null
+                    ? "tradition" : "section " + requestedSection.getProperty("name", "");
+            String key = String.format("%s|%s|%s|%b|%b|%b|%b|%s|%s", graph,
+                    traditionNode.getProperty("name", ""), traditionNode.getProperty("direction", ""),
+                    dm.getIncludeRelated(), dm.getShowNormalForm(), dm.getShowRank(), dm.getDisplayAllSigla(),
+                    dm.getNormaliseOn(), excluded);
+            tx.success();
+            return key;
+        }
+    }
+
+    private String renderGraph(String tradId, Node traditionNode, ArrayList<Node> sections, Node requestedSection,
+                               Node startNode, Node endNode, DisplayOptionModel dm) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        out = buffer;
+        writeGraph(tradId, traditionNode, sections, requestedSection, startNode, endNode, dm);
+        return buffer.toString(StandardCharsets.UTF_8.name());
+    }
+
+    // Passes the dot through to the response, keeping a copy of it for as long as it stays
+    // small enough to cache
+    private static class CachingStream extends OutputStream {
+        private final OutputStream target;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        CachingStream(OutputStream target) {
+            this.target = new BufferedOutputStream(target);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target.write(b, off, len);
+            if (copy == null) return;
+            if (copy.size() + len > CACHE_LIMIT)
+                copy = null;
+            else
+                copy.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target.flush();
+        }
+
+        // The whole of the dot, or null if it was too big to keep
+        String getCopy() throws IOException {
+            return copy == null ? null : copy.toString(StandardCharsets.UTF_8.name());
+        }
+    }
+
+    private void writeGraph(String tradId, Node traditionNode, ArrayList<Node> sections, Node requestedSection,
+                            Node startNode, Node endNode, DisplayOptionModel dm) throws Exception {
+        String sectionId = requestedSection == null ? null : String.valueOf(requestedSection.getId());
+        try (Transaction tx = db.beginTx()) {
             // Get the graph name - either the requested section name, or the tradition name
             // if all sections were requested
             String graphName = (requestedSection != null) ? requestedSection.getProperty("name").toString()
@@ -107,7 +259,7 @@ public class DotExporter
             // Keep track of which nodes were written out (modulo witness filter) and which
             // relations should therefore be written out
             HashSet<Node> writtenNodes = new HashSet<>();
-            ArrayList<Relationship> relsToWrite = new ArrayList<>();
+            ArrayList<RelatedEdge> relsToWrite = new ArrayList<>();
 
             for (Node sectionNode: sections) {
                 // Get the number of witnesses we have
@@ -134,52 +286,15 @@ public class DotExporter
                     subgraphWritten = true;
                 }
 
-                // Remove existing 'token-normal-form' relations (to avoid adding them each time the graph is displayed)
-                db.traversalDescription().breadthFirst()
-                        .relationships(ERelations.RELATED,Direction.OUTGOING)
-                        .uniqueness(Uniqueness.NODE_GLOBAL)
-                        .traverse(sectionStartNode).relationships()
-                        .forEach(r -> {
-                            if ( r.getProperty("type").toString() == "token-normal-form" ) {
-                                r.delete();
-                            }
-                        });
-
-                // Add specific relation ('token-normal-form') for collated readings sharing the same normal_form
-                for (Node node :  db.traversalDescription().breadthFirst()
-                        .relationships(ERelations.SEQUENCE,Direction.OUTGOING)
-                        .relationships(ERelations.LEMMA_TEXT,Direction.OUTGOING)
-                        .uniqueness(Uniqueness.NODE_GLOBAL)
-                        .traverse(sectionStartNode)
-                        .nodes()) {
-                            for (Node collatedNode :  db.traversalDescription().breadthFirst()
-                              .relationships(ERelations.COLLATED,Direction.OUTGOING)
-                              .uniqueness(Uniqueness.NODE_GLOBAL)
-                              .traverse(node)
-                              .nodes()) {
-                                  if ((node == collatedNode) ||
-                                      (! node.hasRelationship(ERelations.COLLATED,Direction.OUTGOING)) ||
-                                      (node.getId() > collatedNode.getId())) { // avoid double
-                                      continue;
-                                  }
-                                  if (node.getProperty("normal_form").equals(collatedNode.getProperty("normal_form"))) {
-                                      Relationship newRelation = node.createRelationshipTo(collatedNode, ERelations.RELATED);
-                                      newRelation.setProperty("type", "token-normal-form");
-                                      newRelation.setProperty("scope", "local");
-                                  }
-                                  //delete COLLATED relation, no longer needed
-                                  for ( Relationship r: node.getRelationships(ERelations.COLLATED,Direction.OUTGOING) ) {
-                                      if ( r.getEndNode().getId() == collatedNode.getId() ) {
-                                        r.delete();
-                                      }
-                                  }
-                            }
-                }
-                tx.success();
-
                 // Find our representative nodes, in case we are producing a normalised form of the graph
-                HashMap<Node, Node> representatives = getRepresentatives(sectionNode, dm.getNormaliseOn());
-                RelationshipType seqLabel = dm.getNormaliseOn() == null ? ERelations.SEQUENCE : ERelations.NSEQUENCE;
+                NormalizedSection normalized = dm.getNormaliseOn() == null
+                        ? null : VariantGraphService.normalizeGraph(sectionNode, dm.getNormaliseOn());
+                Map<Node, Node> representatives = normalized == null
+                        ? getRepresentatives(sectionNode) : normalized.getRepresentatives();
+
+                // Collated readings that share a normal form are shown as related, by their end node
+                Map<Node, List<RelatedEdge>> collatedLinks = dm.getIncludeRelated()
+                        ? getCollatedLinks(representatives.keySet()) : new HashMap<>();
 
                 // Collect any lemma edge pairs
                 HashMap<Node, Node> lemmaLinks = new HashMap<>();
@@ -213,9 +328,8 @@ public class DotExporter
                     // This node is automatically in a requested witness if it is the start node, or if there
                     // is no witness filter.
                     boolean inRequestedWitness = node.equals(sectionStartNode) || dm.getExcludeWitnesses().size() == 0;
-                    for (Relationship rel : node.getRelationships(Direction.INCOMING, seqLabel)) {
-                        if (rel == null)
-                            continue;
+                    for (SequenceEdge rel : normalized == null
+                            ? SequenceEdge.incoming(node) : normalized.getIncoming(node)) {
                         Node relStartNode = rel.getStartNode();
                         Long relStartNodeId = relStartNode.getId();
 
@@ -223,8 +337,8 @@ public class DotExporter
                         if (node.equals(sectionStartNode) || dm.getExcludeWitnesses().size() == 0)
                             witnessLink = true;
                         else
-                            for (Object v : rel.getAllProperties().values())
-                                for (String s : (String[]) v)
+                            for (String witClass : rel.getWitnessClasses())
+                                for (String s : rel.getWitnesses(witClass))
                                     if (!dm.getExcludeWitnesses().contains(s))
                                         witnessLink = true;
 
@@ -244,10 +358,10 @@ public class DotExporter
                             lemmaLinks.remove(relStartNode);
                         }
                         // Get the label
-                        String label = sequenceLabel(convertProps(rel), numWits, dm);
+                        String label = sequenceLabel(rel.getProperties(), numWits, dm);
                         Long rankDiff = (Long) node.getProperty("rank") - (Long) relStartNode.getProperty("rank");
                         seqSpecs.add(relshipText(relStartNodeId, node.getId(), label, edgeId++,
-                                calcPenWidth(convertProps(rel)), rankDiff, edge_is_lemma));
+                                calcPenWidth(rel.getProperties()), rankDiff, edge_is_lemma));
 
                     }
 
@@ -261,11 +375,16 @@ public class DotExporter
 
                         // Retrieve reading relations, if requested
                         if (dm.getIncludeRelated()) {
-                            for (Relationship relatedRel : node.getRelationships(Direction.INCOMING, ERelations.RELATED)) {
+                            List<RelatedEdge> incoming = new ArrayList<>();
+                            for (Relationship relatedRel : node.getRelationships(Direction.INCOMING, ERelations.RELATED))
+                                incoming.add(new RelatedEdge(relatedRel.getStartNode(), relatedRel.getEndNode(),
+                                        relatedRel.getProperty("type").toString()));
+                            incoming.addAll(collatedLinks.getOrDefault(node, Collections.emptyList()));
+                            for (RelatedEdge relatedRel : incoming) {
                                 // Only include the relations that are on our representative nodes
                                 if (dm.getNormaliseOn() != null) {
-                                    if (!representatives.getOrDefault(relatedRel.getStartNode(), relatedRel.getStartNode())
-                                            .equals(relatedRel.getStartNode()))
+                                    if (!representatives.getOrDefault(relatedRel.start, relatedRel.start)
+                                            .equals(relatedRel.start))
                                         continue;
                                 }
                                 relsToWrite.add(relatedRel);
@@ -279,12 +398,11 @@ public class DotExporter
 
                 // Write out reading relationships that survived the node filter
                 if (dm.getIncludeRelated())
-                    for (Relationship relatedRel : relsToWrite) {
-                        if (writtenNodes.contains(relatedRel.getStartNode())
-                                && writtenNodes.contains(relatedRel.getEndNode()))
-                            write("\t" + relatedRel.getStartNode().getId() + "->" +
-                                    relatedRel.getEndNode().getId() + " [style=dotted, constraint=false, arrowhead=none, " +
-                                    "label=\"" + relatedRel.getProperty("type").toString() + "\", id=\"e" +
+                    for (RelatedEdge relatedRel : relsToWrite) {
+                        if (writtenNodes.contains(relatedRel.start) && writtenNodes.contains(relatedRel.end))
+                            write("\t" + relatedRel.start.getId() + "->" +
+                                    relatedRel.end.getId() + " [style=dotted, constraint=false, arrowhead=none, " +
+                                    "label=\"" + relatedRel.type + "\", id=\"e" +
                                     edgeId++ + "\"];\n");
                     }
 
@@ -293,58 +411,70 @@ public class DotExporter
                     write(String.format("\t%d->%d [ id=l%d ];\n",
                             n.getId(), lemmaLinks.get(n).getId(), edgeId++));
                 }
-
-                // Clean up after ourselves
-                if (seqLabel.equals(ERelations.NSEQUENCE))
-                    VariantGraphService.clearNormalization(sectionNode);
             }
 
             write("}\n");
 
-            out.flush();
-            out.close();
-
-            // Now pull the string back out of the output file.
-            byte[] encDot = Files.readAllBytes(output.toPath());
-            result = new String(encDot, Charset.forName("utf-8"));
-
-            // Remove the following line, if you want to keep the created file
-            Files.deleteIfExists(output.toPath());
-
             tx.success();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return Response.serverError().entity("Could not write file for export").build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
         }
-
-        // Here is where to generate pictures from the file for debugging.
-        // writeFromDot(output, "svg");
-
-        return Response.ok().entity(result).build();
     }
 
     /*
      * Helper functions for variant graph production
      */
 
-    private static HashMap<Node, Node> getRepresentatives(Node sectionNode, List<String> normaliseOn)
-            throws Exception {
-        if (normaliseOn == null) {
-            HashMap<Node, Node> representatives = new HashMap<>();
-            List<Node> sectionNodes = VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
-                    .filter(x -> x.hasLabel(Label.label("READING")))
-                    .filter(x -> ! x.hasLabel(Label.label("HYPERREADING")))
-                    .collect(Collectors.toList());
-            for (Node n: sectionNodes) {
-                representatives.put(n, n);
+    // A reading relation to be drawn, which may or may not exist in the database
+    private static class RelatedEdge {
+        final Node start;
+        final Node end;
+        final String type;
+
+        RelatedEdge(Node start, Node end, String type) {
+            this.start = start;
+            this.end = end;
+            this.type = type;
+        }
+    }
+
+    // Readings that were collated together by CollateX, and that have the same normal form,
+    // are displayed with a 'token-normal-form' relation between them. These are worked out
+    // here rather than stored, so that displaying the graph doesn't change it.
+    private static Map<Node, List<RelatedEdge>> getCollatedLinks(Collection<Node> readings) {
+        Map<Node, List<RelatedEdge>> links = new HashMap<>();
+        for (Node node : readings) {
+            if (!node.hasRelationship(Direction.OUTGOING, ERelations.COLLATED)) continue;
+            Object normalForm = node.getProperty("normal_form", null);
+            if (normalForm == null) continue;
+            ArrayDeque<Node> queue = new ArrayDeque<>();
+            HashSet<Node> seen = new HashSet<>();
+            queue.add(node);
+            seen.add(node);
+            while (!queue.isEmpty()) {
+                Node current = queue.poll();
+                for (Relationship r : current.getRelationships(Direction.OUTGOING, ERelations.COLLATED)) {
+                    Node collated = r.getEndNode();
+                    if (!seen.add(collated)) continue;
+                    queue.add(collated);
+                    // Link each pair only once
+                    if (node.getId() < collated.getId() && normalForm.equals(collated.getProperty("normal_form", null)))
+                        links.computeIfAbsent(collated, k -> new ArrayList<>())
+                                .add(new RelatedEdge(node, collated, "token-normal-form"));
+                }
             }
-            return representatives;
-        } else {
-            return VariantGraphService.normalizeGraph(sectionNode, normaliseOn);
         }
+        return links;
+    }
+
+    private static HashMap<Node, Node> getRepresentatives(Node sectionNode) {
+        HashMap<Node, Node> representatives = new HashMap<>();
+        List<Node> sectionNodes = VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
+                .filter(x -> x.hasLabel(Label.label("READING")))
+                .filter(x -> ! x.hasLabel(Label.label("HYPERREADING")))
+                .collect(Collectors.toList());
+        for (Node n: sectionNodes) {
+            representatives.put(n, n);
+        }
+        return representatives;
     }
 
     private static String nodeSpec(Node node, DisplayOptionModel dm) {
@@ -487,15 +617,6 @@ public class DotExporter
         return text;
     }
 
-    private static Map<String, String[]> convertProps(Relationship rel) {
-        Map<String, String[]> result = new HashMap<>();
-        for (String prop : rel.getPropertyKeys()) {
-            String[] witList = (String[]) rel.getProperty(prop);
-            result.put(prop, witList);
-        }
-        return result;
-    }
-
     /**
      *
      * Parses a Stemma of a tradition in a JSON string in DOT format
@@ -513,79 +634,41 @@ public class DotExporter
 
         try (Transaction tx = db.beginTx()) {
             Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
-            Node startNodeStemma = null;
-            for (Node stemma : DatabaseService.getRelated(traditionNode, ERelations.HAS_STEMMA)) {
-                if (stemma.getProperty("name").equals(stemmaTitle)) {
-                    startNodeStemma = stemma;
-                    break;
-                }
-            }
+            Node startNodeStemma = traditionNode == null ? null : StemmaGraph.findStemma(traditionNode, stemmaTitle);
             if(startNodeStemma == null) {
                 return Response.status(Status.NOT_FOUND).build();
             }
+            StemmaGraph stemma = StemmaGraph.forStemma(startNodeStemma);
 
-            String stemmaType = (Boolean) startNodeStemma.getProperty("directed") ? "digraph" : "graph";
-            String edgeGlyph = (Boolean) startNodeStemma.getProperty("directed") ? "->" : "--";
+            String stemmaType = stemma.isDirected() ? "digraph" : "graph";
+            String edgeGlyph = stemma.isDirected() ? "->" : "--";
             outputLines.add(String.format("%s \"%s\" {", stemmaType, stemmaTitle));
 
             // Output all the nodes associated with this stemma.
-            for (Node witness : DatabaseService.getRelated(startNodeStemma, ERelations.HAS_WITNESS)) {
-                String witnessSigil = sigilDotString(witness);
-                Boolean hypothetical = (Boolean) witness.getProperty("hypothetical");
-
+            for (StemmaGraph.Witness witness : stemma.getWitnesses()) {
                 // Get the witness class and, if it exists, label.
-                String witnessAttr = hypothetical ? "[class=hypothetical" : "[class=extant";
-                if (witness.hasProperty("label")) {
-                    witnessAttr += " label=\"" + witness.getProperty("label") + '"';
+                String witnessAttr = witness.isHypothetical() ? "[class=hypothetical" : "[class=extant";
+                if (witness.getLabel() != null) {
+                    witnessAttr += " label=\"" + witness.getLabel() + '"';
                 }
                 witnessAttr += "]";
-                outputLines.add(String.format("\t%s %s;", witnessSigil, witnessAttr));
+                outputLines.add(String.format("\t%s %s;", witness.dotSigil(), witnessAttr));
             }
 
             // Now output all the edges associated with this stemma, starting with the
             // archetype if we have one.
-            ArrayList<Node> foundRoots = DatabaseService.getRelated(startNodeStemma, ERelations.HAS_ARCHETYPE);
-            if (foundRoots.isEmpty()) {
-                // No archetype; just output the list of edges in any order.
-                Result txEdges = db.execute("MATCH (a:WITNESS)-[:TRANSMITTED {hypothesis:'" +
-                        stemmaTitle + "'}]->(b:WITNESS) RETURN a, b");
-                while (txEdges.hasNext()) {
-                    Map<String, Object> vector = txEdges.next();
-                    String source = sigilDotString((Node) vector.get("a"));
-                    String target = sigilDotString((Node) vector.get("b"));
-                    outputLines.add(String.format("\t%s %s %s;", source, edgeGlyph, target));
-                }
-            } else {
-                // We have an archetype; start there and traverse the graph.
-                Node stemmaRoot = foundRoots.get(0);  // There should be only one.
-                for (String edge : traverseStemma(startNodeStemma, stemmaRoot)) {
-                    String[] v = edge.split(" : ");
-                    outputLines.add(String.format("\t%s %s %s;", v[0], edgeGlyph, v[1]));
-                }
-            }
+            for (StemmaGraph.Witness[] edge : stemma.getEdges())
+                outputLines.add(String.format("\t%s %s %s;", edge[0].dotSigil(), edgeGlyph, edge[1].dotSigil()));
             outputLines.add("}");
             tx.success();
         }
 
         String joinString = singleLine ? "  " : "\n";
         String output = String.join(joinString, outputLines);
-        writeFromDot(output);
 
         return Response.ok(output).build();
     }
 
-    /*
-     * Helper functions for stemma graph production
-     */
-
-    // Helper function to get the correctly-quote sigil for a Witness node.
-    private static String sigilDotString(Node witness) {
-        String witnessSigil = witness.getProperty("sigil").toString();
-        if (witness.getProperty("quotesigil", false).equals(true))
-            witnessSigil = String.format("\"%s\"", witnessSigil);
-        return witnessSigil;
-    }
-
     /**
      * Returns all the stemmata associated with a tradition, in a format
      * suitable for inclusion in an XML file.
@@ -597,14 +680,10 @@ public class DotExporter
         ArrayList<String> stemmaList = new ArrayList<>();
 
         try(Transaction tx = db.beginTx()) {
-            //ExecutionEngine engine = new ExecutionEngine(db);
             // find all Stemmata associated with this tradition
-            Result result = db.execute("match (t:TRADITION {id:'"+ tradId +
-                    "'})-[:HAS_STEMMA]->(s:STEMMA) return s");
-
-            Iterator<Node> stemmata = result.columnAs("s");
-            while(stemmata.hasNext()) {
-                String stemma = stemmata.next().getProperty("name").toString();
+            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
+            for (Node stemmaNode : DatabaseService.getRelated(traditionNode, ERelations.HAS_STEMMA)) {
+                String stemma = stemmaNode.getProperty("name").toString();
                 Response resp = writeNeo4JStemma(tradId, stemma, true);
 
                 stemmaList.add(resp.getEntity().toString());
@@ -615,52 +694,9 @@ public class DotExporter
         return String.join("\n", stemmaList);
     }
 
-    private Set<String> traverseStemma(Node stemma, Node archetype) {
-        String stemmaName = (String) stemma.getProperty("name");
-        Set<String> allPaths = new HashSet<>();
-
-        // If the stemma is contaminated then we must pay attention to direction of link;
-        // it isn't deterministic from archetype identification.
-        Direction useDir = stemma.hasProperty("is_contaminated") ? Direction.OUTGOING : Direction.BOTH;
-
-        // We need to traverse only those paths that belong to this stemma.
-        PathExpander e = getExpander(useDir, stemmaName);
-        for (Path nodePath: db.traversalDescription().breadthFirst()
-                .expand(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(archetype)) {
-            Iterator<Node> orderedNodes = nodePath.nodes().iterator();
-            Node sourceNode = orderedNodes.next();
-            while (orderedNodes.hasNext()) {
-                Node targetNode = orderedNodes.next();
-                String source = sigilDotString(sourceNode);
-                String target = sigilDotString(targetNode);
-                allPaths.add(String.format("%s : %s", source, target));
-                sourceNode = targetNode;
-            }
-        }
-        return allPaths;
-    }
-
-
     private void write(String str) throws IOException
     {
-        out.write(str.getBytes());
-    }
-
-
-    private void writeFromDot(String dot)
-    {
-        GraphViz gv = new GraphViz();
-        gv.add(dot);
-        File result;
-        try {
-            result = File.createTempFile("graph_", ".svg");
-        } catch (Exception e) {
-            System.out.println("Could not write " + "svg" + " to temporary file");
-            return;
-        }
-        gv.writeGraphToFile(gv.getGraph(gv.getDotSource(), "svg"), result);
+        out.write(str.getBytes(StandardCharsets.UTF_8));
     }
 
 }
@@ -0,0 +1,239 @@
+package net.stemmaweb.exporter;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.stemmaweb.model.*;
+import net.stemmaweb.services.StemmaGraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.util.*;
+
+/**
+ * Checks the variant locations of a set of sections against a stemma. For each location the
+ * witnesses are grouped by reading, and the smallest number of changes that the stemma needs
+ * to produce those groups is counted with Fitch's algorithm (in Hartigan's form, so that a
+ * node may have any number of children, and an extant witness in the middle of the stemma
+ * keeps its own reading). A location is genealogical if each of its readings need only have
+ * arisen once. Sections are analysed in parallel, and the results are streamed out as a JSON
+ * array in section order as they become available.
+ *
+ * The stemma must be a tree; its direction, if any, makes no difference to the count.
+ *
+ * @author tla
+ */
+public class GenealogicalAnalysis {
+
+    /**
+     * Produces the variant list that is to be analysed for a section.
+     */
+    @FunctionalInterface
+    public interface VariantSource {
+        VariantListModel variantsFor(Node sectionNode) throws Exception;
+    }
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final GraphDatabaseService db;
+    private final VariantSource source;
+    private final Set<String> excluded;
+    // The stemma witnesses, numbered in the order of the stemma's own witness list
+    private final List<String> sigla = new ArrayList<>();
+    private final Map<String, Integer> index = new HashMap<>();
+    // The tree, rooted at the archetype if there is one, with each node listed after its children
+    private final int[][] children;
+    private final int[] postOrder;
+
+    /**
+     * Sets up an analysis against the given stemma.
+     *
+     * @param db               - the GraphDatabaseService to use
+     * @param stemma           - the stemma, which must be a tree
+     * @param excludeWitnesses - witnesses that are left out of the variant lists, or null
+     * @param source           - produces the variant list for each section
+     */
+    public GenealogicalAnalysis(GraphDatabaseService db, StemmaGraph stemma, List<String> excludeWitnesses,
+                                VariantSource source) {
+        if (!stemma.isTree())
+            throw new IllegalArgumentException(String.format("Stemma %s is not a tree", stemma.getName()));
+        this.db = db;
+        this.source = source;
+        this.excluded = excludeWitnesses == null ? new HashSet<>() : new HashSet<>(excludeWitnesses);
+        for (StemmaGraph.Witness w : stemma.getWitnesses()) {
+            index.put(w.getSigil(), sigla.size());
+            sigla.add(w.getSigil());
+        }
+        int n = sigla.size();
+        List<List<Integer>> neighbours = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            neighbours.add(new ArrayList<>());
+        for (StemmaGraph.Witness[] e : stemma.getEdges()) {
+            int a = index.get(e[0].getSigil());
+            int b = index.get(e[1].getSigil());
+            neighbours.get(a).add(b);
+            neighbours.get(b).add(a);
+        }
+
+        // Hang the tree from its root, noting the order in which the nodes were reached
+        int root = stemma.getArchetype() == null ? 0 : index.get(stemma.getArchetype().getSigil());
+        List<List<Integer>> kids = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            kids.add(new ArrayList<>());
+        boolean[] seen = new boolean[n];
+        int[] reached = new int[n];
+        int count = 0;
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(root);
+        seen[root] = true;
+        while (!stack.isEmpty()) {
+            int v = stack.pop();
+            reached[count++] = v;
+            for (int u : neighbours.get(v))
+                if (!seen[u]) {
+                    seen[u] = true;
+                    kids.get(v).add(u);
+                    stack.push(u);
+                }
+        }
+        children = new int[n][];
+        for (int i = 0; i < n; i++)
+            children[i] = kids.get(i).stream().mapToInt(Integer::intValue).toArray();
+        // Every node is reached after its parent, so the reverse order puts the children first
+        postOrder = new int[n];
+        for (int i = 0; i < n; i++)
+            postOrder[i] = reached[n - 1 - i];
+    }
+
+    /**
+     * Returns the analysis of the given sections, to be written out as a JSON array of
+     * VariantAnalysisModels.
+     *
+     * @param sections - the section nodes to analyse, in order
+     * @return a StreamingOutput that computes and writes the result
+     */
+    public StreamingOutput stream(List<Node> sections) {
+        return out -> {
+            try (SectionPipeline<List<VariantAnalysisModel>> results = new SectionPipeline<>(db, sections,
+                    this::analyseSection)) {
+                JsonGenerator json = mapper.getFactory().createGenerator(out);
+                json.writeStartArray();
+                while (results.hasNext()) {
+                    for (VariantAnalysisModel vam : results.next())
+                        json.writeObject(vam);
+                    json.flush();
+                }
+                json.writeEndArray();
+                json.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new WebApplicationException(e);
+            }
+        };
+    }
+
+    // Analyse every variant location in the section. For use in a transaction!
+    List<VariantAnalysisModel> analyseSection(Node sectionNode) throws Exception {
+        VariantListModel variants = source.variantsFor(sectionNode);
+        // Stemma witnesses that are in the section and not mentioned in a variant have the base reading
+        List<String> present = new ArrayList<>();
+        for (String sigil : AlignmentModel.getRowSigla(sectionNode, false))
+            if (index.containsKey(sigil) && !excluded.contains(sigil))
+                present.add(sigil);
+        String sectionId = String.valueOf(sectionNode.getId());
+
+        List<VariantAnalysisModel> result = new ArrayList<>();
+        for (VariantLocationModel vlm : variants.getVariantlist()) {
+            int[] state = new int[sigla.size()];
+            Arrays.fill(state, -1);
+            List<List<String>> groups = new ArrayList<>();
+            groups.add(new ArrayList<>());
+            Set<String> mentioned = new HashSet<>();
+            for (VariantModel vm : vlm.getVariants()) {
+                List<String> witnesses = witnessSigla(vm);
+                mentioned.addAll(witnesses);
+                // A lacuna is no reading at all
+                if (!vm.getReadings().isEmpty() && vm.getReadings().stream()
+                        .allMatch(x -> Boolean.TRUE.equals(x.getIs_lacuna())))
+                    continue;
+                List<String> group = new ArrayList<>();
+                for (String sigil : witnesses) {
+                    Integer i = index.get(sigil);
+                    if (i != null && state[i] < 0) {
+                        state[i] = groups.size();
+                        group.add(sigil);
+                    }
+                }
+                if (!group.isEmpty())
+                    groups.add(group);
+            }
+            for (String sigil : present)
+                if (!mentioned.contains(sigil)) {
+                    state[index.get(sigil)] = 0;
+                    groups.get(0).add(sigil);
+                }
+            if (groups.get(0).isEmpty())
+                groups.remove(0);
+
+            VariantAnalysisModel vam = new VariantAnalysisModel();
+            vam.setSection(sectionId);
+            vam.setRankIndex(vlm.getRankIndex());
+            vam.setGroups(groups);
+            vam.setChanges(changes(state));
+            vam.setGenealogical(vam.getChanges() == Math.max(0, groups.size() - 1));
+            result.add(vam);
+        }
+        return result;
+    }
+
+    /**
+     * Counts the changes that the tree needs, given the reading of each witness.
+     *
+     * @param state - the reading number of each stemma witness, or -1 if it has none
+     * @return the smallest number of changes
+     */
+    int changes(int[] state) {
+        int n = sigla.size();
+        // The readings that each subtree's root could have at the least cost, or null if
+        // nothing in the subtree has a reading
+        BitSet[] best = new BitSet[n];
+        int changes = 0;
+        for (int v : postOrder) {
+            List<BitSet> known = new ArrayList<>();
+            for (int c : children[v])
+                if (best[c] != null)
+                    known.add(best[c]);
+            if (state[v] >= 0) {
+                // The witness's own reading is fixed; each child that can't share it needs a change
+                for (BitSet k : known)
+                    if (!k.get(state[v]))
+                        changes++;
+                best[v] = new BitSet();
+                best[v].set(state[v]);
+            } else if (!known.isEmpty()) {
+                // Keep the readings that the most children can have, and change the rest
+                Map<Integer, Integer> votes = new HashMap<>();
+                for (BitSet k : known)
+                    for (int r = k.nextSetBit(0); r >= 0; r = k.nextSetBit(r + 1))
+                        votes.merge(r, 1, Integer::sum);
+                int most = Collections.max(votes.values());
+                best[v] = new BitSet();
+                for (Map.Entry<Integer, Integer> e : votes.entrySet())
+                    if (e.getValue() == most)
+                        best[v].set(e.getKey());
+                changes += known.size() - most;
+            }
+        }
+        return changes;
+    }
+
+    // The sigla of the witnesses that have the variant, with any layer in the usual form
+    private static List<String> witnessSigla(VariantModel vm) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<String>> e : vm.getWitnesses().entrySet())
+            for (String sigil : e.getValue())
+                result.add(e.getKey().equals("witnesses") ? sigil : String.format("%s (%s)", sigil, e.getKey()));
+        return result;
+    }
+}
@@ -1,11 +1,13 @@
 package net.stemmaweb.exporter;
 
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.util.*;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -14,6 +16,7 @@ import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Section;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessStorage;
 import org.neo4j.graphdb.*;
 
 import com.sun.xml.txw2.output.IndentingXMLStreamWriter;
@@ -95,7 +98,7 @@ public class GraphMLExporter {
                 writer.writeAttribute("key", prefix + collection.get(prop)[0]);
                 String propValue;
                 if (collection.get(prop)[1].equals("stringarray"))
-                    propValue = new ArrayList<>(Arrays.asList((String[]) ent.getProperty(prop))).toString();
+                    propValue = new ArrayList<>(Arrays.asList((String[]) exportValue(ent, prop))).toString();
                 else
                     propValue = ent.getProperty(prop).toString();
                 writer.writeCharacters(propValue);
@@ -111,7 +114,7 @@ public class GraphMLExporter {
         int ctr = collection.size();
         for (String p : ent.getPropertyKeys()) {
             String type = "string";
-            Object prop = ent.getProperty(p);
+            Object prop = exportValue(ent, p);
             if (prop instanceof Long) type = "long";
             else if (prop instanceof Boolean) type = "boolean";
             else if (prop instanceof String[]) type = "stringarray";
@@ -121,6 +124,19 @@ public class GraphMLExporter {
         }
     }
 
+    // Witness bitsets are written out as the sigla that they stand for, so that the export
+    // doesn't depend on the tradition's sigil dictionary
+    private static Object exportValue(PropertyContainer ent, String p) {
+        Object value = ent.getProperty(p);
+        if (value instanceof long[] && ent instanceof Relationship
+                && ((Relationship) ent).isType(ERelations.SEQUENCE)) {
+            List<String> sigla = new ArrayList<>(WitnessStorage.getWitnesses((Relationship) ent, p));
+            Collections.sort(sigla);
+            return sigla.toArray(new String[0]);
+        }
+        return value;
+    }
+
     public Response writeNeo4J(String tradId) {
         return writeNeo4J(tradId, null, false);
     }
@@ -132,22 +148,6 @@ public class GraphMLExporter {
         if (traditionNode == null)
             return Response.status(Status.NOT_FOUND).build();
 
-        StringWriter result = new StringWriter();
-        XMLOutputFactory output = XMLOutputFactory.newInstance();
-        XMLStreamWriter writer;
-        try {
-            writer = new IndentingXMLStreamWriter(output.createXMLStreamWriter(result));
-        } catch (XMLStreamException e) {
-            e.printStackTrace();
-            return Response.serverError().build();
-        }
-        ResourceIterable<Node> traditionNodes = sectionId == null ?
-                VariantGraphService.returnEntireTradition(traditionNode).nodes() :
-                VariantGraphService.returnTraditionSection(sectionId, db).nodes();
-        ResourceIterable<Relationship> traditionEdges = sectionId == null ?
-                VariantGraphService.returnEntireTradition(traditionNode).relationships() :
-                VariantGraphService.returnTraditionSection(sectionId, db).relationships();
-
         // Collect any extra nodes that should go into the list for whatever reason.
         // So far this only applies if we are requesting a single section.
 
@@ -185,7 +185,32 @@ public class GraphMLExporter {
         }
 
 
+        // The document is written straight to the response as we go. The traversals are lazy, so
+        // the tradition is walked once to collect the property keys and once to write it out, and
+        // the document as a whole is never held in memory.
+        StreamingOutput stream = out -> {
+            try {
+                writeGraph(out, traditionNode, sectionId, extraNodes, extraRels);
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new WebApplicationException(e);
+            }
+        };
+        return Response.ok(stream, MediaType.APPLICATION_XML).build();
+    }
+
+    private void writeGraph(OutputStream out, Node traditionNode, String sectionId,
+                            List<Node> extraNodes, List<Relationship> extraRels) throws XMLStreamException {
+        XMLStreamWriter writer = new IndentingXMLStreamWriter(
+                XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8"));
         try (Transaction tx = db.beginTx()) {
+            ResourceIterable<Node> traditionNodes = sectionId == null ?
+                    VariantGraphService.returnEntireTradition(traditionNode).nodes() :
+                    VariantGraphService.returnTraditionSection(sectionId, db).nodes();
+            ResourceIterable<Relationship> traditionEdges = sectionId == null ?
+                    VariantGraphService.returnEntireTradition(traditionNode).relationships() :
+                    VariantGraphService.returnTraditionSection(sectionId, db).relationships();
+
             // First we have to go through all nodes and edges in the tradition or section we want,
             // compiling a list of node and edge attributes.
             nodeMap = new HashMap<>();
@@ -214,7 +239,7 @@ public class GraphMLExporter {
                 edgeCount++;
             }
 
-            writer.writeStartDocument();
+            writer.writeStartDocument("UTF-8", "1.0");
 
             writer.writeStartElement("graphml");
             writer.writeAttribute("xmlns", "http://graphml.graphdrawing.org/xmlns");
@@ -260,16 +285,10 @@ public class GraphMLExporter {
 
             writer.writeEndElement(); // graph
             writer.writeEndElement(); // end graphml
+            writer.writeEndDocument();
             writer.flush();
 
             tx.success();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response
-                    .status(Response.Status.INTERNAL_SERVER_ERROR)
-                    .entity("Error: Tradition could not be exported!")
-                    .build();
         }
-        return Response.ok(result.toString(), MediaType.APPLICATION_XML).build();
     }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package net.stemmaweb.exporter;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes a model for each of a list of sections on a shared pool of worker threads, and
+ * hands the results back in section order. Each section is read in its own transaction.
+ * Only a limited number of sections are computed ahead of the one being consumed, so that
+ * a single export can neither hold every section's model in memory at once nor take over
+ * the whole pool.
+ *
+ * The size of the shared pool is set with the system property stemmarest.export.threads,
+ * and the number of sections that one export may compute at once with
+ * stemmarest.export.parallelism. A consumer that stops before the last section must close
+ * the pipeline, so that the sections still in progress are cancelled.
+ *
+ * @author tla
+ */
+class SectionPipeline<T> implements AutoCloseable {
+
+    private static final int POOL_SIZE = Integer.getInteger("stemmarest.export.threads",
+            Runtime.getRuntime().availableProcessors());
+    private static final int PARALLELISM = Math.max(1, Integer.getInteger("stemmarest.export.parallelism",
+            POOL_SIZE / 2));
+
+    private static final ExecutorService pool = Executors.newFixedThreadPool(POOL_SIZE, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "section-export-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * The computation to run for each section.
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    interface SectionTask<T> {
+        T compute(Node sectionNode) throws Exception;
+    }
+
+    private final GraphDatabaseService db;
+    private final List<Node> sections;
+    private final SectionTask<T> task;
+    private final ArrayDeque<Future<T>> pending = new ArrayDeque<>();
+    private int submitted = 0;
+
+    SectionPipeline(GraphDatabaseService db, List<Node> sections, SectionTask<T> task) {
+        this.db = db;
+        this.sections = sections;
+        this.task = task;
+        fill();
+    }
+
+    /**
+     * Returns whether there are any sections left to consume.
+     *
+     * @return true if next() will return another result
+     */
+    boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+    /**
+     * Returns the result for the next section in order, waiting for it if necessary.
+     *
+     * @return the result of the task for the next section
+     * @throws Exception if the task failed for that section
+     */
+    T next() throws Exception {
+        Future<T> result = pending.poll();
+        if (result == null)
+            throw new NoSuchElementException();
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            // Don't bother computing the rest
+            close();
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            fill();
+        }
+    }
+
+    /**
+     * Cancels the sections that are still waiting or in progress, and submits no more.
+     */
+    @Override
+    public void close() {
+        pending.forEach(x -> x.cancel(true));
+        pending.clear();
+        submitted = sections.size();
+    }
+
+    // Keep the allowed number of sections in progress
+    private void fill() {
+        while (pending.size() < PARALLELISM && submitted < sections.size()) {
+            Node sectionNode = sections.get(submitted++);
+            pending.add(pool.submit(() -> {
+                try (Transaction tx = db.beginTx()) {
+                    T result = task.compute(sectionNode);
+                    tx.success();
+                    return result;
+                }
+            }));
+        }
+    }
+}
@@ -0,0 +1,393 @@
+package net.stemmaweb.exporter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.stemmaweb.model.StemmaJobModel;
+import net.stemmaweb.model.StemmaModel;
+import net.stemmaweb.model.WitnessDistanceModel;
+import net.stemmaweb.parser.DotParser;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.StemmaGraph;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import javax.ws.rs.core.Response;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Infers a stemma for a tradition from its collation, in place of a round trip to Stemweb.
+ * The witnesses are joined into an unrooted tree by neighbour-joining on their distance
+ * matrix; a parsimony search may then rearrange the tree by nearest-neighbour interchanges,
+ * for as long as that lowers the number of changes the tree needs to explain the character
+ * matrix. The tree is saved through the dot parser as a new undirected stemma, with the
+ * extant witnesses as its leaves and hypothetical witnesses where it branches.
+ *
+ * Jobs run in the background on a bounded pool, and their progress can be looked up by job
+ * ID. The pool size is set with the system property stemmarest.inference.threads, and the
+ * number of jobs that may wait for it with stemmarest.inference.queue.
+ *
+ * @author tla
+ */
+public class StemmaInference {
+
+    public static final String NEIGHBOUR_JOINING = "nj";
+    public static final String PARSIMONY = "parsimony";
+    // The most readings per location that the character matrix can letter without reaching
+    // 'X', which stands for an omission
+    public static final int MAX_VARS = CharacterMatrix.OMISSION - 'A';
+
+    private static final int THREADS = Integer.getInteger("stemmarest.inference.threads", 1);
+    private static final int QUEUE = Integer.getInteger("stemmarest.inference.queue", 16);
+    // How many of the most recent jobs are remembered
+    private static final int HISTORY = 1000;
+
+    private static final ExecutorService pool = new ThreadPoolExecutor(THREADS, THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "stemma-inference-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private static final AtomicInteger lastJob = new AtomicInteger();
+    private static final ConcurrentHashMap<Integer, StemmaJobModel> jobs = new ConcurrentHashMap<>();
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Queues a job to infer a stemma for the given sections of a tradition.
+     *
+     * @param db       - the GraphDatabaseService to use
+     * @param tradId   - the ID of the tradition
+     * @param name     - the name to give the new stemma
+     * @param method   - NEIGHBOUR_JOINING, or PARSIMONY to go on to a parsimony search
+     * @param maxVars  - the most readings that a location of the character matrix may have
+     * @param sections - the section nodes to infer the stemma from
+     * @param conflate - relation types whose readings are treated as identical, or null
+     * @return a Response whose entity is the StemmaJobModel of the new job
+     */
+    static Response submit(GraphDatabaseService db, String tradId, String name, String method, int maxVars,
+                           ArrayList<Node> sections, List<String> conflate) {
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
+            if (StemmaGraph.findStemma(traditionNode, name) != null)
+                return Response.status(Response.Status.CONFLICT)
+                        .entity("A stemma by this name already exists for this tradition.").build();
+            tx.success();
+        }
+        int jobId = lastJob.incrementAndGet();
+        record(jobId, tradId, name, method, "queued", null);
+        try {
+            pool.execute(() -> run(db, jobId, tradId, name, method, maxVars, sections, conflate));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(jobId);
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                    .entity("Too many stemma jobs are waiting; try again later.").build();
+        }
+        jobs.keySet().removeIf(x -> x <= jobId - HISTORY);
+        return Response.status(Response.Status.ACCEPTED).entity(jobs.get(jobId)).build();
+    }
+
+    /**
+     * Looks up a stemma inference job.
+     *
+     * @param tradId - the ID of the tradition that the job belongs to
+     * @param jobId  - the ID of the job
+     * @return the StemmaJobModel, or null if there is no such job for this tradition
+     */
+    public static StemmaJobModel getJob(String tradId, int jobId) {
+        StemmaJobModel job = jobs.get(jobId);
+        return job != null && job.getTradition_id().equals(tradId) ? job : null;
+    }
+
+    private static void record(int jobId, String tradId, String name, String method, String status,
+                               String error) {
+        StemmaJobModel job = new StemmaJobModel();
+        job.setJobid(jobId);
+        job.setTradition_id(tradId);
+        job.setStemma(name);
+        job.setMethod(method);
+        job.setStatus(status);
+        job.setError(error);
+        jobs.put(jobId, job);
+    }
+
+    private static void run(GraphDatabaseService db, int jobId, String tradId, String name, String method,
+                            int maxVars, ArrayList<Node> sections, List<String> conflate) {
+        record(jobId, tradId, name, method, "running", null);
+        try {
+            WitnessDistanceModel distances = WitnessDistances.forSections(db, sections, conflate, true);
+            List<String> sigla = distances.getWitnesses();
+            if (sigla.size() < 2)
+                throw new IllegalArgumentException("A stemma needs at least two witnesses");
+            Tree tree = Tree.neighbourJoin(distanceArray(distances));
+            if (PARSIMONY.equals(method)) {
+                CharacterMatrix matrix = new TabularExporter(db).getCharMatrix(sections, maxVars, conflate);
+                tree.improve(leafStates(sigla, matrix));
+            }
+
+            StemmaModel spec = new StemmaModel();
+            spec.setIdentifier(name);
+            spec.setDot(toDot(db, tradId, sigla, tree));
+            Response result = new DotParser(db).importStemmaFromDot(tradId, spec);
+            if (result.getStatus() != Response.Status.CREATED.getStatusCode())
+                throw new Exception(mapper.readTree(result.getEntity().toString()).path("error").asText());
+            record(jobId, tradId, name, method, "done", null);
+        } catch (Exception e) {
+            e.printStackTrace();
+            record(jobId, tradId, name, method, "failed", e.getMessage());
+        }
+    }
+
+    // The distances as a plain array; witnesses that never overlap are as far apart as can be
+    private static double[][] distanceArray(WitnessDistanceModel distances) {
+        Double[][] given = distances.getDistances();
+        int n = distances.getWitnesses().size();
+        double[][] d = new double[n][n];
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                if (i != j)
+                    d[i][j] = given == null || given[i][j] == null ? 1.0 : given[i][j];
+        return d;
+    }
+
+    // The Fitch state set of each witness at each character: a bit for its reading, with an
+    // omission counting as a reading of its own, or every bit if the witness is lacunose there.
+    private static int[][] leafStates(List<String> sigla, CharacterMatrix matrix) {
+        int[][] states = new int[sigla.size()][matrix.getLength()];
+        for (int w = 0; w < sigla.size(); w++) {
+            char[] row = matrix.getRow(sigla.get(w));
+            for (int c = 0; c < matrix.getLength(); c++) {
+                if (row == null || row[c] == CharacterMatrix.LACUNA)
+                    states[w][c] = ~0;
+                else if (row[c] == CharacterMatrix.OMISSION)
+                    states[w][c] = 1;
+                else
+                    states[w][c] = 1 << (row[c] - 'A' + 1);
+            }
+        }
+        return states;
+    }
+
+    // Writes the tree out as an undirected dot graph. The hypothetical witnesses are numbered,
+    // skipping any number that is already the sigil of a witness in the tradition.
+    private static String toDot(GraphDatabaseService db, String tradId, List<String> sigla, Tree tree) {
+        Set<String> taken = new HashSet<>(sigla);
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
+            DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)
+                    .forEach(x -> taken.add(x.getProperty("sigil").toString()));
+            tx.success();
+        }
+        String[] labels = new String[tree.size()];
+        int next = 0;
+        // The stemma's name is passed to the parser separately
+        StringBuilder dot = new StringBuilder("graph stemma {\n");
+        for (int v = 0; v < labels.length; v++) {
+            boolean extant = v < sigla.size();
+            if (extant)
+                labels[v] = sigla.get(v);
+            else {
+                do next++; while (taken.contains(String.valueOf(next)));
+                labels[v] = String.valueOf(next);
+            }
+            dot.append(String.format("  \"%s\" [ class=%s ];\n", labels[v], extant ? "extant" : "hypothetical"));
+        }
+        for (int[] e : tree.edges())
+            dot.append(String.format("  \"%s\" -- \"%s\";\n", labels[e[0]], labels[e[1]]));
+        dot.append("}\n");
+        return dot.toString();
+    }
+
+    /**
+     * An unrooted tree. Its first nodes are the extant witnesses, which are its leaves, and
+     * the rest are the hypothetical witnesses where it branches, each with three neighbours.
+     */
+    static class Tree {
+        private final int leaves;
+        private final List<List<Integer>> adjacent = new ArrayList<>();
+
+        private Tree(int leaves, int size) {
+            this.leaves = leaves;
+            for (int i = 0; i < size; i++)
+                adjacent.add(new ArrayList<>());
+        }
+
+        /**
+         * Builds a tree from a distance matrix by neighbour-joining.
+         *
+         * @param distance - the distances between at least two witnesses
+         * @return the tree, with a leaf for each row of the matrix
+         */
+        static Tree neighbourJoin(double[][] distance) {
+            int n = distance.length;
+            int size = Math.max(n, 2 * n - 2);
+            Tree tree = new Tree(n, size);
+            double[][] d = new double[size][size];
+            for (int i = 0; i < n; i++)
+                System.arraycopy(distance[i], 0, d[i], 0, n);
+            List<Integer> active = new ArrayList<>();
+            for (int i = 0; i < n; i++)
+                active.add(i);
+
+            int next = n;
+            while (active.size() > 2) {
+                int r = active.size();
+                double[] total = new double[size];
+                for (int i : active)
+                    for (int k : active)
+                        total[i] += d[i][k];
+                // Join the pair that minimises the Q criterion
+                int bestI = -1, bestJ = -1;
+                double best = Double.POSITIVE_INFINITY;
+                for (int a = 0; a < r; a++)
+                    for (int b = a + 1; b < r; b++) {
+                        int i = active.get(a), j = active.get(b);
+                        double q = (r - 2) * d[i][j] - total[i] - total[j];
+                        if (q < best) {
+                            best = q;
+                            bestI = i;
+                            bestJ = j;
+                        }
+                    }
+                int u = next++;
+                tree.connect(bestI, u);
+                tree.connect(bestJ, u);
+                for (int k : active)
+                    if (k != bestI && k != bestJ)
+                        d[u][k] = d[k][u] = (d[bestI][k] + d[bestJ][k] - d[bestI][bestJ]) / 2;
+                active.remove(Integer.valueOf(bestI));
+                active.remove(Integer.valueOf(bestJ));
+                active.add(u);
+            }
+            tree.connect(active.get(0), active.get(1));
+            return tree;
+        }
+
+        int size() { return adjacent.size(); }
+
+        /**
+         * @return each edge of the tree once, as a pair of node numbers
+         */
+        List<int[]> edges() {
+            List<int[]> result = new ArrayList<>();
+            for (int v = 0; v < adjacent.size(); v++)
+                for (int u : adjacent.get(v))
+                    if (v < u)
+                        result.add(new int[] {v, u});
+            return result;
+        }
+
+        /**
+         * Counts the changes that the tree needs, with Fitch's algorithm.
+         *
+         * @param states - the state sets of each leaf at each character
+         * @return the parsimony length of the tree
+         */
+        int length(int[][] states) {
+            int chars = states[0].length;
+            // Hang the tree from the first leaf, listing each node before its children
+            int size = adjacent.size();
+            int[] parent = new int[size];
+            int[] order = new int[size];
+            boolean[] seen = new boolean[size];
+            int count = 0;
+            ArrayDeque<Integer> stack = new ArrayDeque<>();
+            stack.push(0);
+            seen[0] = true;
+            parent[0] = -1;
+            while (!stack.isEmpty()) {
+                int v = stack.pop();
+                order[count++] = v;
+                for (int u : adjacent.get(v))
+                    if (!seen[u]) {
+                        seen[u] = true;
+                        parent[u] = v;
+                        stack.push(u);
+                    }
+            }
+
+            int[][] sets = new int[size][];
+            int changes = 0;
+            for (int x = count - 1; x >= 0; x--) {
+                int v = order[x];
+                // Only the root has both a state of its own and a child
+                int[] set = v == 0 ? states[0].clone() : v < leaves ? states[v] : null;
+                for (int u : adjacent.get(v)) {
+                    if (u == parent[v]) continue;
+                    if (set == null) {
+                        set = sets[u].clone();
+                        continue;
+                    }
+                    int[] other = sets[u];
+                    for (int c = 0; c < chars; c++) {
+                        int both = set[c] & other[c];
+                        if (both == 0) {
+                            set[c] |= other[c];
+                            changes++;
+                        } else
+                            set[c] = both;
+                    }
+                }
+                sets[v] = set;
+            }
+            return changes;
+        }
+
+        /**
+         * Rearranges the tree by nearest-neighbour interchanges, taking the first one that
+         * shortens it each time, until none of them does.
+         *
+         * @param states - the state sets of each leaf at each character
+         */
+        void improve(int[][] states) {
+            int best = length(states);
+            boolean improved;
+            do {
+                improved = false;
+                search:
+                for (int u = leaves; u < adjacent.size(); u++)
+                    for (int v : adjacent.get(u)) {
+                        // Look at each edge between two hypothetical nodes once
+                        if (v < u) continue;
+                        int a = adjacent.get(u).get(0) == v ? adjacent.get(u).get(1) : adjacent.get(u).get(0);
+                        for (int c : adjacent.get(v)) {
+                            if (c == u) continue;
+                            swap(u, a, v, c);
+                            int length = length(states);
+                            if (length < best) {
+                                best = length;
+                                improved = true;
+                                break search;
+                            }
+                            swap(u, c, v, a);
+                        }
+                    }
+            } while (improved);
+        }
+
+        private void connect(int a, int b) {
+            adjacent.get(a).add(b);
+            adjacent.get(b).add(a);
+        }
+
+        // Moves a, a neighbour of u, over to v, and c, a neighbour of v, over to u
+        private void swap(int u, int a, int v, int c) {
+            replace(u, a, c);
+            replace(a, u, v);
+            replace(v, c, a);
+            replace(c, v, u);
+        }
+
+        private void replace(int node, int from, int to) {
+            List<Integer> neighbours = adjacent.get(node);
+            neighbours.set(neighbours.indexOf(from), to);
+        }
+    }
+}
@@ -22,6 +22,7 @@ import net.stemmaweb.rest.ERelations;
 
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessStorage;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -227,8 +228,7 @@ public class StemmawebExporter {
                 if(rel!=null) {
                     edgeCountGraph1++;
                     for (String property : rel.getPropertyKeys()) {
-                        String[] witnesses = (String[]) rel.getProperty(property);
-                        for (String witness : witnesses) {
+                        for (String witness : WitnessStorage.getWitnesses(rel, property)) {
                             writer.writeStartElement("edge");
 
                             writer.writeAttribute("source", rel.getStartNode().getId() + "");
@@ -12,6 +12,7 @@ import net.stemmaweb.rest.Relation;
 import net.stemmaweb.rest.Tradition;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
+import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.model.SectionModel;
 import net.stemmaweb.model.TraditionModel;
 import net.stemmaweb.model.VariantModel;
@@ -34,10 +35,11 @@ import org.neo4j.unsafe.impl.batchimport.cache.idmapping.string.ParallelSort.Com
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Relationship;
 
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.IOException;
-import java.io.StringWriter;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.OutputStreamWriter;
 import java.lang.reflect.Array;
 import java.nio.charset.StandardCharsets;
 
@@ -90,8 +92,8 @@ public class TabularExporter {
                 return Response.status(Response.Status.NOT_FOUND).build();
             }
 
-            return getCriticalApparatus(tradId, traditionSections, significant, excludeType1,
-                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers);
+            return streamXml(writer -> writeCriticalApparatus(writer, tradId, traditionSections, significant, excludeType1,
+                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers));
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
@@ -112,8 +114,8 @@ public class TabularExporter {
                 return Response.status(Response.Status.NOT_FOUND).build();
             }
 
-            return getCriticalApparatusWithRelationships(tradId, traditionSections, significant, excludeType1,
-                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers);
+            return streamXml(writer -> writeCriticalApparatusWithRelationships(writer, tradId, traditionSections, significant, excludeType1,
+                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers));
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
@@ -134,8 +136,8 @@ public class TabularExporter {
                 return Response.status(Response.Status.NOT_FOUND).build();
             }
 
-            return getCriticalApparatusWithHyperrelation(tradId, traditionSections, significant, excludeType1,
-                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers);
+            return streamXml(writer -> writeCriticalApparatusWithHyperrelation(writer, tradId, traditionSections, significant, excludeType1,
+                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers));
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
@@ -156,8 +158,8 @@ public class TabularExporter {
                 return Response.status(Response.Status.NOT_FOUND).build();
             }
 
-            return getCriticalApparatusWithHyperrelationsRecursive(tradId, traditionSections, significant, excludeType1,
-                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers);
+            return streamXml(writer -> writeCriticalApparatusWithHyperrelationsRecursive(writer, tradId, traditionSections, significant, excludeType1,
+                    excludeNonsense, combine, suppressMatching, baseWitness, conflate, excWitnesses, excludeLayers));
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
@@ -169,46 +171,54 @@ public class TabularExporter {
 
     public Response exportAsCSV(String tradId, char separator, List<String> conflate, List<String> sectionList,
             boolean excludeLayers) {
-        AlignmentModel wholeTradition;
+        ArrayList<Node> traditionSections;
+        List<String> sigla;
         try {
-            wholeTradition = returnFullAlignment(tradId, conflate, sectionList, excludeLayers);
+            traditionSections = getSections(tradId, sectionList);
+            if (traditionSections == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+            // Check the normalization types before we start writing anything out
+            checkRelationTypes(tradId, conflate);
+            sigla = getAlignmentSigla(traditionSections, excludeLayers);
         } catch (TabularExporterException e) {
             return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
         } catch (Exception e) {
             return Response.serverError().entity(e.getMessage()).build();
         }
-        if (wholeTradition == null)
-            return Response.status(Response.Status.NOT_FOUND).build();
-
-        // Got this far? Turn it into CSV.
-        // The CSV will go into a string that we can return.
-        StringWriter sw = new StringWriter();
-        ICSVWriter writer = new CSVWriterBuilder(sw)
-                .withSeparator(separator)
-                .build();
-
-        // First write out the witness list
-        writer.writeNext(wholeTradition.getAlignment().stream()
-                .map(WitnessTokensModel::constructSigil).toArray(String[]::new));
-
-        // Now write out the normal_form or text for the reading in each "row"
-        for (int i = 0; i < wholeTradition.getLength(); i++) {
-            AtomicInteger ai = new AtomicInteger(i);
-            writer.writeNext(wholeTradition.getAlignment().stream()
-                    .map(x -> {
-                        ReadingModel rm = x.getTokens().get(ai.get());
-                        return rm == null ? null : rm.normalized();
-                    }).toArray(String[]::new));
-        }
 
-        // Close off the CSV writer and return
-        try {
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
-        }
-        return Response.ok(sw.toString(), MediaType.TEXT_PLAIN_TYPE).build();
+        // Got this far? Turn it into CSV, one section at a time, so that only one section's
+        // alignment needs to be held in memory.
+        StreamingOutput stream = out -> {
+            ICSVWriter writer = new CSVWriterBuilder(new OutputStreamWriter(out, StandardCharsets.UTF_8))
+                    .withSeparator(separator)
+                    .build();
+
+            // First write out the witness list
+            writer.writeNext(sigla.toArray(new String[0]));
+
+            // Now write out the normal_form or text for the reading in each "row"
+            try (SectionPipeline<AlignmentModel> alignments = new SectionPipeline<>(db, traditionSections,
+                    sectionNode -> getSectionAlignment(sectionNode, conflate, excludeLayers))) {
+                while (alignments.hasNext()) {
+                    AlignmentModel aSection = alignments.next();
+                    List<WitnessTokensModel> columns = sigla.stream()
+                            .map(x -> findColumn(aSection, x)).collect(Collectors.toList());
+                    for (int i = 0; i < aSection.getLength(); i++) {
+                        AtomicInteger ai = new AtomicInteger(i);
+                        writer.writeNext(columns.stream()
+                                .map(x -> {
+                                    ReadingModel rm = x == null ? null : x.getTokens().get(ai.get());
+                                    return rm == null ? null : rm.normalized();
+                                }).toArray(String[]::new));
+                    }
+                }
+                writer.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new WebApplicationException(e);
+            }
+        };
+        return Response.ok(stream, MediaType.TEXT_PLAIN_TYPE).build();
     }
 
     public Response exportAsCharMatrix(String tradId, int maxVars, List<String> conflate, List<String> sectionList,
@@ -224,68 +234,67 @@ public class TabularExporter {
             return Response.serverError().entity(e.getMessage()).build();
         }
 
-        // We will count on the order of the witness columns remaining constant.
-        List<String> witnessSigla = wholeTradition.getAlignment().stream()
-                .map(WitnessTokensModel::constructSigil).collect(Collectors.toList());
-        // Collect the character rows as they are built for each witness.
-        HashMap<String, StringBuilder> witnessRows = new HashMap<>();
-        for (String sigil : witnessSigla)
-            witnessRows.put(sigil, new StringBuilder());
-        // Go rank by rank through all the lists of tokens, converting them into chars
-        int totalLength = 0;
-        for (int i = 0; i < wholeTradition.getLength(); i++) {
-            AtomicInteger ai = new AtomicInteger(i);
-            List<ReadingModel> row = wholeTradition.getAlignment().stream()
-                    .map(x -> x.getTokens().get(ai.get())).collect(Collectors.toList());
-            // Make reading-to-character lookup
-            HashMap<String, Character> charMap = new HashMap<>();
-            char curr = 'A';
-            boolean row_has_null = false;
-            boolean row_has_lacuna = false;
-            for (ReadingModel rm : row) {
-                if (rm == null) {
-                    row_has_null = true;
-                    continue;
-                } else if (rm.getIs_lacuna()) {
-                    row_has_lacuna = true;
-                    continue;
-                }
-                if (!charMap.containsKey(rm.getId())) {
-                    charMap.put(rm.getId(), curr);
-                    curr++;
-                }
-            }
-            // Skip rows that don't diverge
-            if (curr == 'B' && !row_has_null && !row_has_lacuna)
-                continue;
-            // Check that we aren't over the max-character limit
-            if (curr > 'A' + maxVars || row_has_null && curr > 'A' + (maxVars - 1))
-                continue;
-
-            // Employ it
-            totalLength++;
-            for (int w = 0; w < witnessSigla.size(); w++) {
-                StringBuilder ourRow = witnessRows.get(witnessSigla.get(w));
-                ReadingModel ourReading = row.get(w);
-                if (ourReading == null) {
-                    ourRow.append('X');
-                    curr++; // Count this in our maximum of eight characters
-                } else if (ourReading.getIs_lacuna())
-                    ourRow.append('?');
-                else
-                    ourRow.append(charMap.get(row.get(w).getId()));
-            }
+        return Response.ok(new CharacterMatrix(wholeTradition, maxVars).toPhylip()).build();
+    }
+
+    public Response exportAsDistanceMatrix(String tradId, List<String> conflate, List<String> sectionList,
+            boolean excludeLayers) {
+        try {
+            ArrayList<Node> traditionSections = getSections(tradId, sectionList);
+            if (traditionSections == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+            checkRelationTypes(tradId, conflate);
+            return Response.ok(WitnessDistances.forSections(db, traditionSections, conflate, excludeLayers))
+                    .build();
+        } catch (TabularExporterException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(e.getMessage()).build();
         }
-        // Now let's build the whole matrix.
-        StringBuilder charMatrix = new StringBuilder();
-        charMatrix.append(String.format("\t%d\t%d\n", wholeTradition.getAlignment().size(), totalLength));
-        for (String sigil : witnessSigla) {
-            charMatrix.append(String.format("%-10s", shortenSigil(sigil)));
-            charMatrix.append(witnessRows.get(sigil));
-            charMatrix.append("\n");
+    }
+
+    public Response inferStemma(String tradId, String name, String method, int maxVars, List<String> conflate,
+            List<String> sectionList) {
+        try {
+            ArrayList<Node> traditionSections = getSections(tradId, sectionList);
+            if (traditionSections == null)
+                return Response.status(Response.Status.NOT_FOUND).build();
+            checkRelationTypes(tradId, conflate);
+            return StemmaInference.submit(db, tradId, name, method, maxVars, traditionSections, conflate);
+        } catch (TabularExporterException e) {
+            return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(e.getMessage()).build();
         }
+    }
 
-        return Response.ok(charMatrix.toString()).build();
+    // The character matrix of the given sections, without witness layers
+    CharacterMatrix getCharMatrix(ArrayList<Node> traditionSections, int maxVars, List<String> conflate)
+            throws Exception {
+        return new CharacterMatrix(getTraditionAlignment(traditionSections, conflate, true), maxVars);
+    }
+
+    // Writes an XML document straight to the response as it is generated, rather than
+    // building it up in memory first.
+    private interface XMLBody {
+        void write(XMLStreamWriter writer) throws Exception;
+    }
+
+    private static Response streamXml(XMLBody body) {
+        StreamingOutput stream = out -> {
+            try {
+                XMLStreamWriter writer = new IndentingXMLStreamWriter(
+                        XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8"));
+                body.write(writer);
+                writer.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+                throw new WebApplicationException(e);
+            }
+        };
+        return Response.ok(stream, MediaType.APPLICATION_XML).build();
     }
 
     private AlignmentModel returnFullAlignment(String tradId, List<String> conflate, List<String> sectionList,
@@ -297,14 +306,6 @@ public class TabularExporter {
         return getTraditionAlignment(traditionSections, conflate, excludeLayers);
     }
 
-    private static String shortenSigil(String sigil) {
-        String shortened = sigil.replaceAll("\\s+", "_")
-                .replaceAll("\\W+", "");
-        if (shortened.length() > 10)
-            shortened = shortened.substring(0, 10);
-        return shortened;
-    }
-
     private ArrayList<Node> getSections(String tradId, List<String> sectionList)
             throws TabularExporterException {
         ArrayList<Node> traditionSections = VariantGraphService.getSectionNodes(tradId, db);
@@ -341,18 +342,17 @@ public class TabularExporter {
         HashSet<String> allWitnesses = new HashSet<>();
         ArrayList<AlignmentModel> tables = new ArrayList<>();
         int length = 0;
-        for (Node sectionNode : traditionSections) {
-            if (collapseRelated != null)
-                VariantGraphService.normalizeGraph(sectionNode, collapseRelated);
-            AlignmentModel asJson = new AlignmentModel(sectionNode, excludeLayers);
-            if (collapseRelated != null)
-                VariantGraphService.clearNormalization(sectionNode);
-            // Save the alignment to our tables list
-            tables.add(asJson);
-            length += asJson.getLength();
-            // Save the witness -> column mapping to our map
-            for (WitnessTokensModel witRecord : asJson.getAlignment()) {
-                allWitnesses.add(witRecord.constructSigil());
+        try (SectionPipeline<AlignmentModel> alignments = new SectionPipeline<>(db, traditionSections,
+                sectionNode -> getSectionAlignment(sectionNode, collapseRelated, excludeLayers))) {
+            while (alignments.hasNext()) {
+                AlignmentModel asJson = alignments.next();
+                // Save the alignment to our tables list
+                tables.add(asJson);
+                length += asJson.getLength();
+                // Save the witness -> column mapping to our map
+                for (WitnessTokensModel witRecord : asJson.getAlignment()) {
+                    allWitnesses.add(witRecord.constructSigil());
+                }
             }
         }
 
@@ -373,17 +373,8 @@ public class TabularExporter {
             wholeWitness.setTokens(new ArrayList<>());
             // Now fill in tokens from each section in turn.
             for (AlignmentModel aSection : tables) {
-                // Find the WitnessTokensModel corresponding to wit, if it exists
-                Optional<WitnessTokensModel> thisWitness = aSection.getAlignment().stream()
-                        .filter(x -> x.constructSigil().equals(sigil)).findFirst();
-                if (!thisWitness.isPresent()) {
-                    // Try again for the base witness
-                    thisWitness = aSection.getAlignment().stream()
-                            .filter(x -> x.getWitness().equals(parsed[0]) && !x.hasLayer()).findFirst();
-                }
-
-                if (thisWitness.isPresent()) {
-                    WitnessTokensModel witcolumn = thisWitness.get();
+                WitnessTokensModel witcolumn = findColumn(aSection, sigil);
+                if (witcolumn != null) {
                     wholeWitness.getTokens().addAll(witcolumn.getTokens());
                     assert (witcolumn.getTokens().size() == aSection.getLength());
                 } else {
@@ -400,26 +391,57 @@ public class TabularExporter {
         return wholeTradition;
     }
 
-    private Response getCriticalApparatus(String tradId, ArrayList<Node> traditionSections, String significant,
+    private AlignmentModel getSectionAlignment(Node sectionNode, List<String> collapseRelated,
+            boolean excludeLayers) throws Exception {
+        return new AlignmentModel(sectionNode, excludeLayers, collapseRelated == null
+                ? null : VariantGraphService.normalizeGraph(sectionNode, collapseRelated));
+    }
+
+    // Find the WitnessTokensModel corresponding to the sigil in the given section, falling back
+    // to the base witness if the layer doesn't appear there. Returns null if the witness is
+    // absent from the section altogether.
+    private static WitnessTokensModel findColumn(AlignmentModel aSection, String sigil) {
+        String[] parsed = WitnessTokensModel.parseSigil(sigil);
+        Optional<WitnessTokensModel> thisWitness = aSection.getAlignment().stream()
+                .filter(x -> x.constructSigil().equals(sigil)).findFirst();
+        if (!thisWitness.isPresent()) {
+            // Try again for the base witness
+            thisWitness = aSection.getAlignment().stream()
+                    .filter(x -> x.getWitness().equals(parsed[0]) && !x.hasLayer()).findFirst();
+        }
+        return thisWitness.orElse(null);
+    }
+
+    // Collect the sigla of all the witness columns that appear in any of the given sections.
+    private static List<String> getAlignmentSigla(ArrayList<Node> traditionSections, boolean excludeLayers) {
+        HashSet<String> allWitnesses = new HashSet<>();
+        for (Node sectionNode : traditionSections)
+            allWitnesses.addAll(AlignmentModel.getRowSigla(sectionNode, excludeLayers));
+        List<String> sortedWits = new ArrayList<>(allWitnesses);
+        Collections.sort(sortedWits);
+        return sortedWits;
+    }
+
+    private void checkRelationTypes(String tradId, List<String> relationTypes) throws Exception {
+        if (relationTypes == null) return;
+        Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
+        for (String rtype : relationTypes)
+            if (new RelationTypeModel(rtype).lookup(traditionNode) == null)
+                throw new Exception("Relation type " + rtype + " does not exist in this tradition");
+    }
+
+    private void writeCriticalApparatus(XMLStreamWriter writer, String tradId, ArrayList<Node> traditionSections, String significant,
             String excludeType1,
             String excludeNonsense, String combine, String suppressMatching, String baseWitness, List<String> conflate,
             List<String> excWitnesses, boolean excludeLayers) throws Exception {
 
-        try (Transaction tx = db.beginTx()) {
-
-            // XML INDENTED WRITER
-            StringWriter result = new StringWriter();
-            XMLOutputFactory output = XMLOutputFactory.newInstance();
-            XMLStreamWriter writer;
-            try {
-                XMLStreamWriter xmlStreamWriter = output.createXMLStreamWriter(result);
-                writer = new IndentingXMLStreamWriter(xmlStreamWriter);
-
-            } catch (XMLStreamException e) {
-                e.printStackTrace();
-                return Response.serverError().build();
-            }
-            writer.writeStartDocument();
+        try (Transaction tx = db.beginTx();
+             SectionPipeline<VariantListModel> variantLists = new SectionPipeline<>(db, traditionSections,
+                     sectionNode -> new VariantListModel(
+                             sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
+                             !excludeNonsense.equals("no"), !excludeType1.equals("no"),
+                             significant, !combine.equals("no")))) {
+            writer.writeStartDocument("UTF-8", "1.0");
 
             // ROOT ELEMENT
             writer.writeStartElement("TEI");
@@ -507,16 +529,11 @@ public class TabularExporter {
                 writer.writeStartElement("div");
                 writer.writeStartElement("p");
 
-                VariantListModel vlm = new VariantListModel(
-                        sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
-                        !excludeNonsense.equals("no"), !excludeType1.equals("no"),
-                        significant, !combine.equals("no"));
+                VariantListModel vlm = variantLists.next();
 
                 for (ReadingModel readingModel : vlm.getBaseChain()) {
 
-                    List<VariantLocationModel> variantLocationFound = vlm.getVariantlist().stream()
-                            .filter(y -> y.getRankIndex().equals(readingModel.getRank()))
-                            .collect(Collectors.toList());
+                    List<VariantLocationModel> variantLocationFound = vlm.getVariantsAtRank(readingModel.getRank());
 
                     if (!variantLocationFound.isEmpty()) {
 
@@ -548,35 +565,22 @@ public class TabularExporter {
             writer.writeEndElement(); // TEI
 
             writer.flush();
-
-            return Response.ok(result.toString(), MediaType.APPLICATION_XML).build();
-            // MediaType.APPLICATION_JSON_TYPE).build()
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
+            tx.success();
         }
     }
 
-    private Response getCriticalApparatusWithRelationships(String tradId, ArrayList<Node> traditionSections,
+    private void writeCriticalApparatusWithRelationships(XMLStreamWriter writer, String tradId, ArrayList<Node> traditionSections,
             String significant,
             String excludeType1,
             String excludeNonsense, String combine, String suppressMatching, String baseWitness, List<String> conflate,
             List<String> excWitnesses, boolean excludeLayers) throws Exception {
 
-        try (Transaction tx = db.beginTx()) {
-
-            // XML INDENTED WRITER
-            StringWriter result = new StringWriter();
-            XMLOutputFactory output = XMLOutputFactory.newInstance();
-            XMLStreamWriter writer;
-            try {
-                XMLStreamWriter xmlStreamWriter = output.createXMLStreamWriter(result);
-                writer = new IndentingXMLStreamWriter(xmlStreamWriter);
-
-            } catch (XMLStreamException e) {
-                e.printStackTrace();
-                return Response.serverError().build();
-            }
+        try (Transaction tx = db.beginTx();
+             SectionPipeline<VariantListModel> variantLists = new SectionPipeline<>(db, traditionSections,
+                     sectionNode -> new VariantListModel(
+                             sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
+                             !excludeNonsense.equals("no"), !excludeType1.equals("no"),
+                             significant, !combine.equals("no")))) {
 
             // ROOT ELEMENT
             writer.writeStartDocument("UTF-8", "1.0");
@@ -717,15 +721,10 @@ public class TabularExporter {
                 writer.writeStartElement("div");
                 writer.writeStartElement("p");
 
-                VariantListModel vlm = new VariantListModel(
-                        sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
-                        !excludeNonsense.equals("no"), !excludeType1.equals("no"),
-                        significant, !combine.equals("no"));
+                VariantListModel vlm = variantLists.next();
 
                 for (ReadingModel readingModel : vlm.getBaseChain()) {
-                    List<VariantLocationModel> variantLocationFound = vlm.getVariantlist().stream()
-                            .filter(y -> y.getRankIndex().equals(readingModel.getRank()))
-                            .collect(Collectors.toList());
+                    List<VariantLocationModel> variantLocationFound = vlm.getVariantsAtRank(readingModel.getRank());
 
                     String readingId = readingModel.getId();
                     Boolean defined_by_manual_relation = false;
@@ -790,38 +789,23 @@ public class TabularExporter {
             writer.writeEndElement(); // TEI
 
             writer.flush();
-
-            return Response.ok(
-                    new String(result.toString().getBytes(), StandardCharsets.UTF_8), MediaType.APPLICATION_XML)
-                    .build();
-            // MediaType.APPLICATION_JSON_TYPE).build()
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
+            tx.success();
         }
 
     }
 
-    private Response getCriticalApparatusWithHyperrelation(String tradId, ArrayList<Node> traditionSections,
+    private void writeCriticalApparatusWithHyperrelation(XMLStreamWriter writer, String tradId, ArrayList<Node> traditionSections,
             String significant,
             String excludeType1,
             String excludeNonsense, String combine, String suppressMatching, String baseWitness, List<String> conflate,
             List<String> excWitnesses, boolean excludeLayers) throws Exception {
 
-        try (Transaction tx = db.beginTx()) {
-
-            // XML INDENTED WRITER
-            StringWriter result = new StringWriter();
-            XMLOutputFactory output = XMLOutputFactory.newInstance();
-            XMLStreamWriter writer;
-            try {
-                XMLStreamWriter xmlStreamWriter = output.createXMLStreamWriter(result);
-                writer = new IndentingXMLStreamWriter(xmlStreamWriter);
-
-            } catch (XMLStreamException e) {
-                e.printStackTrace();
-                return Response.serverError().build();
-            }
+        try (Transaction tx = db.beginTx();
+             SectionPipeline<VariantListModel> variantLists = new SectionPipeline<>(db, traditionSections,
+                     sectionNode -> new VariantListModel(
+                             sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
+                             !excludeNonsense.equals("no"), !excludeType1.equals("no"),
+                             significant, !combine.equals("no")))) {
 
             // ROOT ELEMENT
             writer.writeStartDocument("UTF-8", "1.0");
@@ -1063,15 +1047,10 @@ public class TabularExporter {
                  * 
                  * 
                  */
-                VariantListModel vlm = new VariantListModel(
-                        sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
-                        !excludeNonsense.equals("no"), !excludeType1.equals("no"),
-                        significant, !combine.equals("no"));
+                VariantListModel vlm = variantLists.next();
 
                 for (ReadingModel readingModel : vlm.getBaseChain()) {
-                    List<VariantLocationModel> variantLocationFound = vlm.getVariantlist().stream()
-                            .filter(y -> y.getRankIndex().equals(readingModel.getRank()))
-                            .collect(Collectors.toList());
+                    List<VariantLocationModel> variantLocationFound = vlm.getVariantsAtRank(readingModel.getRank());
 
                     String readingId = readingModel.getId();
                     Boolean defined_by_manual_relation = false;
@@ -1261,38 +1240,23 @@ public class TabularExporter {
             writer.writeEndElement(); // TEI
 
             writer.flush();
-
-            return Response.ok(
-                    new String(result.toString().getBytes(), StandardCharsets.UTF_8), MediaType.APPLICATION_XML)
-                    .build();
-            // MediaType.APPLICATION_JSON_TYPE).build()
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
+            tx.success();
         }
 
     }
 
-    private Response getCriticalApparatusWithHyperrelationsRecursive(String tradId, ArrayList<Node> traditionSections,
+    private void writeCriticalApparatusWithHyperrelationsRecursive(XMLStreamWriter writer, String tradId, ArrayList<Node> traditionSections,
             String significant,
             String excludeType1,
             String excludeNonsense, String combine, String suppressMatching, String baseWitness, List<String> conflate,
             List<String> excWitnesses, boolean excludeLayers) throws Exception {
 
-        try (Transaction tx = db.beginTx()) {
-
-            // XML INDENTED WRITER
-            StringWriter result = new StringWriter();
-            XMLOutputFactory output = XMLOutputFactory.newInstance();
-            XMLStreamWriter writer;
-            try {
-                XMLStreamWriter xmlStreamWriter = output.createXMLStreamWriter(result);
-                writer = new IndentingXMLStreamWriter(xmlStreamWriter);
-
-            } catch (XMLStreamException e) {
-                e.printStackTrace();
-                return Response.serverError().build();
-            }
+        try (Transaction tx = db.beginTx();
+             SectionPipeline<VariantListModel> variantLists = new SectionPipeline<>(db, traditionSections,
+                     sectionNode -> new VariantListModel(
+                             sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
+                             !excludeNonsense.equals("no"), !excludeType1.equals("no"),
+                             significant, !combine.equals("no")))) {
 
             // ROOT ELEMENT
             writer.writeStartDocument("UTF-8", "1.0");
@@ -1478,15 +1442,10 @@ public class TabularExporter {
                  * 
                  * 
                  */
-                VariantListModel vlm = new VariantListModel(
-                        sectionNode, baseWitness, excWitnesses, conflate, suppressMatching,
-                        !excludeNonsense.equals("no"), !excludeType1.equals("no"),
-                        significant, !combine.equals("no"));
+                VariantListModel vlm = variantLists.next();
 
                 for (ReadingModel readingModel : vlm.getBaseChain()) {
-                    List<VariantLocationModel> variantLocationFound = vlm.getVariantlist().stream()
-                            .filter(y -> y.getRankIndex().equals(readingModel.getRank()))
-                            .collect(Collectors.toList());
+                    List<VariantLocationModel> variantLocationFound = vlm.getVariantsAtRank(readingModel.getRank());
 
                     // writer.writeEmptyElement("reading");
                     // writer.writeAttribute("xml:id", readingModel.getId());
@@ -1562,9 +1521,7 @@ public class TabularExporter {
                             for (ComplexReadingModel crm_component : crm_lemma.getComponents()) {
 
                                 ReadingModel rm = crm_component.getReading();
-                                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantlist().stream()
-                                        .filter(y -> y.getRankIndex().equals(rm.getRank()))
-                                        .collect(Collectors.toList());
+                                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantsAtRank(rm.getRank());
 
                                 if (!rm_variantLocationFound.isEmpty()) {
 
@@ -1600,9 +1557,7 @@ public class TabularExporter {
                             for (ComplexReadingModel crm : crm_variant.getComponents()) {
 
                                 ReadingModel rm = crm.getReading();
-                                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantlist().stream()
-                                        .filter(y -> y.getRankIndex().equals(rm.getRank()))
-                                        .collect(Collectors.toList());
+                                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantsAtRank(rm.getRank());
 
                                 if (!rm_variantLocationFound.isEmpty()) {
 
@@ -1727,14 +1682,7 @@ public class TabularExporter {
             writer.writeEndElement(); // TEI
 
             writer.flush();
-
-            return Response.ok(
-                    new String(result.toString().getBytes(), StandardCharsets.UTF_8), MediaType.APPLICATION_XML)
-                    .build();
-            // MediaType.APPLICATION_JSON_TYPE).build()
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().entity(e.getMessage()).build();
+            tx.success();
         }
 
     }
@@ -1829,9 +1777,7 @@ public class TabularExporter {
 
                 ReadingModel rm = crm.getReading();
 
-                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantlist().stream()
-                        .filter(y -> y.getRankIndex().equals(rm.getRank()))
-                        .collect(Collectors.toList());
+                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantsAtRank(rm.getRank());
 
                 if (!rm_variantLocationFound.isEmpty()) {
 
@@ -1852,9 +1798,7 @@ public class TabularExporter {
             for (ComplexReadingModel crm : relStruct.hTarget.getComponents()) {
 
                 ReadingModel rm = crm.getReading();
-                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantlist().stream()
-                        .filter(y -> y.getRankIndex().equals(rm.getRank()))
-                        .collect(Collectors.toList());
+                List<VariantLocationModel> rm_variantLocationFound = vlm.getVariantsAtRank(rm.getRank());
 
                 if (!rm_variantLocationFound.isEmpty()) {
 
@@ -0,0 +1,204 @@
+package net.stemmaweb.exporter;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.WitnessDistanceModel;
+import net.stemmaweb.model.WitnessTokensModel;
+import net.stemmaweb.services.CacheService;
+import net.stemmaweb.services.NormalizedSection;
+import net.stemmaweb.services.VariantGraphService;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Computes how often each pair of witnesses agree across a set of sections. Each section is
+ * swept through once and coded, rank by rank, as a small number per witness column that says
+ * which of the rank's readings the witness has; an omission counts as a reading of its own,
+ * and a lacuna as no reading at all. The codes of each witness are then laid out as bit
+ * planes across all the ranks, so that comparing two witnesses takes a few word-wide
+ * operations per 64 ranks, and the pairs are compared on a shared fork-join pool.
+ *
+ * Both the section codes and the finished matrix are cached against the section versions.
+ * The size of the pool is set with the system property stemmarest.analysis.threads.
+ *
+ * @author tla
+ */
+public class WitnessDistances {
+
+    private static final ForkJoinPool pool = new ForkJoinPool(Integer.getInteger("stemmarest.analysis.threads",
+            Runtime.getRuntime().availableProcessors()));
+
+    // The alignment of one section, as a reading code per rank for each witness column.
+    // A code of -1 means that the witness has no reading there.
+    static class SectionCodes {
+        final int length;
+        final int maxCode;
+        final Map<String, int[]> columns;
+
+        // Codes the section straight from a sweep through its sequences, by the same rules
+        // as the alignment table: the ranks that a witness skips are omitted, unless it skips
+        // them to get to a lacuna, and a witness with no readings has no column. The omission
+        // is code 0 at every rank, and the readings there are numbered from 1 as the sweep
+        // reaches them. For use in a transaction!
+        SectionCodes(Node sectionNode, boolean excludeLayers, NormalizedSection normalized) {
+            Node endNode = VariantGraphService.getEndNode(String.valueOf(sectionNode.getId()),
+                    sectionNode.getGraphDatabase());
+            length = Integer.parseInt(endNode.getProperty("rank").toString()) - 1;
+            columns = new HashMap<>();
+            int[] lastCode = new int[length];
+            Map<Node, Integer> readingCodes = new HashMap<>();
+            Map<String, Integer> reached = new HashMap<>();
+            AlignmentModel.sweep(sectionNode, excludeLayers, normalized, (sigil, layer, reading) -> {
+                String row = layer == null ? sigil : String.format("%s (%s)", sigil, layer);
+                int[] column = columns.computeIfAbsent(row, k -> new int[length]);
+                int i = Integer.parseInt(reading.getProperty("rank").toString()) - 1;
+                if (reading.getProperty("is_lacuna", false).equals(true)) {
+                    for (int j = reached.getOrDefault(row, 0); j <= i; j++)
+                        column[j] = -1;
+                } else
+                    column[i] = readingCodes.computeIfAbsent(reading, x -> ++lastCode[i]);
+                reached.put(row, i + 1);
+            });
+            int max = 0;
+            for (int code : lastCode)
+                max = Math.max(max, code);
+            maxCode = max;
+        }
+
+        // The column for the given sigil, falling back to the base witness if the layer
+        // doesn't appear in the section
+        int[] column(String sigil) {
+            int[] found = columns.get(sigil);
+            if (found == null)
+                found = columns.get(WitnessTokensModel.parseSigil(sigil)[0]);
+            return found;
+        }
+    }
+
+    /**
+     * Returns the pairwise agreement between all the witness columns of the given sections.
+     *
+     * @param db            - the GraphDatabaseService to use
+     * @param sections      - the section nodes to compare, in order
+     * @param conflate      - relation types whose readings should be treated as identical, or null
+     * @param excludeLayers - whether witness layers should be left out
+     * @return a WitnessDistanceModel with the counts and distances
+     * @throws Exception if a section alignment can't be made
+     */
+    public static WitnessDistanceModel forSections(GraphDatabaseService db, List<Node> sections,
+                                                   List<String> conflate, boolean excludeLayers)
+            throws Exception {
+        List<Long> sectionIds = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            sections.forEach(x -> sectionIds.add(x.getId()));
+            tx.success();
+        }
+        String key = cacheKey(conflate, excludeLayers);
+        return CacheService.cached(sectionIds, "distances", key, () -> {
+            List<SectionCodes> blocks = new ArrayList<>();
+            try (SectionPipeline<SectionCodes> codes = new SectionPipeline<>(db, sections,
+                    sectionNode -> sectionCodes(sectionNode, conflate, excludeLayers, key))) {
+                while (codes.hasNext())
+                    blocks.add(codes.next());
+            }
+            return compare(blocks);
+        });
+    }
+
+    // The coded alignment of the given section. For use in a transaction!
+    private static SectionCodes sectionCodes(Node sectionNode, List<String> conflate, boolean excludeLayers,
+                                             String key) throws Exception {
+        return CacheService.cached(sectionNode.getId(), "section codes", key,
+                () -> new SectionCodes(sectionNode, excludeLayers, conflate == null
+                        ? null : VariantGraphService.normalizeGraph(sectionNode, conflate)));
+    }
+
+    private static String cacheKey(List<String> conflate, boolean excludeLayers) {
+        List<String> types = conflate == null ? new ArrayList<>() : new ArrayList<>(conflate);
+        Collections.sort(types);
+        return String.format("%s/%s", conflate == null ? "-" : String.join(",", types), excludeLayers);
+    }
+
+    private static WitnessDistanceModel compare(List<SectionCodes> blocks) throws Exception {
+        // Every witness column that appears in any of the sections
+        TreeSet<String> allSigla = new TreeSet<>();
+        int length = 0;
+        int maxCode = 0;
+        for (SectionCodes b : blocks) {
+            allSigla.addAll(b.columns.keySet());
+            length += b.length;
+            maxCode = Math.max(maxCode, b.maxCode);
+        }
+        List<String> sigla = new ArrayList<>(allSigla);
+        int n = sigla.size();
+        int words = (length + 63) >>> 6;
+        int planes = Math.max(1, 32 - Integer.numberOfLeadingZeros(maxCode));
+
+        // Lay out each witness's codes as bit planes, along with the ranks where it has a reading
+        long[][] known = new long[n][words];
+        long[][][] bits = new long[n][planes][words];
+        for (int w = 0; w < n; w++) {
+            int offset = 0;
+            for (SectionCodes b : blocks) {
+                int[] column = b.column(sigla.get(w));
+                if (column != null) {
+                    for (int i = 0; i < b.length; i++) {
+                        int code = column[i];
+                        if (code < 0) continue;
+                        int rank = offset + i;
+                        long mask = 1L << rank;
+                        known[w][rank >>> 6] |= mask;
+                        for (int p = 0; p < planes; p++)
+                            if ((code >>> p & 1) != 0)
+                                bits[w][p][rank >>> 6] |= mask;
+                    }
+                }
+                offset += b.length;
+            }
+        }
+
+        // Now compare every pair
+        int[][] agreements = new int[n][n];
+        int[][] disagreements = new int[n][n];
+        pool.submit(() -> IntStream.range(0, n).parallel().forEach(a -> {
+            int self = 0;
+            for (long word : known[a])
+                self += Long.bitCount(word);
+            agreements[a][a] = self;
+            for (int b = a + 1; b < n; b++) {
+                int same = 0;
+                int both = 0;
+                for (int k = 0; k < words; k++) {
+                    long common = known[a][k] & known[b][k];
+                    if (common == 0) continue;
+                    long differ = 0;
+                    for (int p = 0; p < planes; p++)
+                        differ |= bits[a][p][k] ^ bits[b][p][k];
+                    both += Long.bitCount(common);
+                    same += Long.bitCount(common & ~differ);
+                }
+                agreements[a][b] = agreements[b][a] = same;
+                disagreements[a][b] = disagreements[b][a] = both - same;
+            }
+        })).get();
+
+        Double[][] distances = new Double[n][n];
+        for (int a = 0; a < n; a++)
+            for (int b = 0; b < n; b++) {
+                int compared = a == b ? agreements[a][a] : agreements[a][b] + disagreements[a][b];
+                distances[a][b] = compared == 0 ? null : (double) disagreements[a][b] / compared;
+            }
+
+        WitnessDistanceModel result = new WitnessDistanceModel();
+        result.setWitnesses(sigla);
+        result.setLength(length);
+        result.setAgreements(agreements);
+        result.setDisagreements(disagreements);
+        result.setDistances(distances);
+        return result;
+    }
+}
@@ -2,14 +2,13 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
-import net.stemmaweb.services.DatabaseService;
-import net.stemmaweb.services.VariantGraphService;
-import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.*;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.*;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * JSON-aware data model for exporting an alignment in tabular format. Uses ReadingModel to
@@ -40,98 +39,44 @@ public class AlignmentModel {
 
     // Get an alignment table
     public AlignmentModel(Node sectionNode, boolean excludeLayers) {
+        this(sectionNode, excludeLayers, null);
+    }
+
+    // Get an alignment table, optionally of the normalized form of the section
+    public AlignmentModel(Node sectionNode, boolean excludeLayers, NormalizedSection normalized) {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
 
         try (Transaction tx = db.beginTx()) {
-            String sectId = String.valueOf(sectionNode.getId());
-            Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
-            Node startNode = VariantGraphService.getStartNode(sectId, db);
-            Node endNode = VariantGraphService.getEndNode(sectId, db);
+            Node endNode = VariantGraphService.getEndNode(String.valueOf(sectionNode.getId()), db);
 
             // First get the length, that's the easy part.
             length = (long) endNode.getProperty("rank") - 1;
 
-            // See if we are computing a normalized table
-            RelationshipType seqType = ERelations.SEQUENCE;
-            if (startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING))
-                seqType = ERelations.NSEQUENCE;
-
-            // Get the traverser for the tradition readings
-            Traverser traversedTradition = db.traversalDescription().depthFirst()
-                    .relationships(seqType, Direction.OUTGOING)
-                    .evaluator(Evaluators.all())
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode);
+            // Sweep through the section, making a reading token for each reading that a witness
+            // has, and putting it at its proper rank
+            HashMap<Node, ReadingModel> readingTokens = new HashMap<>();
+            List<WitnessCursor> cursors = sweepCursors(sectionNode, excludeLayers, normalized, (c, r) -> {
+                ReadingModel readingToken = readingTokens.computeIfAbsent(r, x -> new ReadingModel(x, normalized));
+                c.addToken(readingToken);
+            });
 
             // Now make the alignment.
             alignment = new ArrayList<>();
-            // For each witness, we make a 'tokens' array of the length of the tradition
-            // Get the witnesses in the database
-            ArrayList<Node> witnesses = DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS);
-            for (Node w : witnesses) {
-                String sigil = w.getProperty("sigil").toString();
-                // Find out which witness layers we need to deal with
-                HashSet<String> layers = new HashSet<>();
-                layers.add("base");
-                if (!excludeLayers) {
-                    for (Relationship seq : traversedTradition.relationships()) {
-                        for (String layer : seq.getPropertyKeys()) {
-                            if (!layer.equals("witnesses")) {
-                                ArrayList<String> layerwits = new ArrayList<>(Arrays.asList((String[]) seq.getProperty(layer)));
-                                if (layerwits.contains(sigil)) layers.add(layer);
-                            }
-                        }
-                    }
-                }
+            for (WitnessCursor c : cursors) {
+                // Skip this witness if it is empty
+                if (c.tokens.size() == 0) continue;
 
-                // Now for each layer iteration, produce a set of tokens.
-                for (String layer : layers) {
-                    WitnessTokensModel witnessRow = new WitnessTokensModel();
-                    witnessRow.setWitness(sigil);
-                    if (!layer.equals("base")) {
-                        witnessRow.setLayer(layer);
-                    }
-
-                    // Make the object for the JSON token array
-                    ArrayList<ReadingModel> tokens = new ArrayList<>();
-
-                    // Get the witness readings for the given layer
-                    ArrayList<String> alternatives = new ArrayList<>();
-                    if (!layer.equals("base")) alternatives.add(layer);
-                    Evaluator e = new WitnessPath(sigil, alternatives, seqType).getEvalForWitness();
-                    ReadingModel filler;
-                    for (Node r : db.traversalDescription().depthFirst()
-                            .relationships(seqType, Direction.OUTGOING)
-                            .evaluator(e)
-                            .uniqueness(Uniqueness.NODE_PATH)
-                            .traverse(startNode)
-                            .nodes()) {
-                        if (r.hasProperty("is_end"))
-                            continue;
-
-                        // Make the reading token
-                        ReadingModel readingToken = new ReadingModel(r);
-                        // Check whether it was a lacuna
-                        if (readingToken.getIs_lacuna())
-                            filler = readingToken;
-                        else filler = null;
-
-                        // Put it at its proper rank, filling null bzw. lacuna tokens into the gap
-                        long currRankIndex = (long) r.getProperty("rank") - 1;
-                        for (int i = tokens.size(); i < currRankIndex; i++)
-                            tokens.add(filler);
-                        tokens.add(readingToken);
-                    }
-                    // Skip this witness if it is empty
-                    if (tokens.size() == 0) continue;
-
-                    // Fill in any empty ranks at the end
-                    for (int i = tokens.size(); i < length; i++)
-                        tokens.add(null);
-
-                    // Store the witness row and add it to the alignment
-                    witnessRow.setTokens(tokens);
-                    alignment.add(witnessRow);
-                }
+                // Fill in any empty ranks at the end
+                for (int i = c.tokens.size(); i < length; i++)
+                    c.tokens.add(null);
+
+                // Store the witness row and add it to the alignment
+                WitnessTokensModel witnessRow = new WitnessTokensModel();
+                witnessRow.setWitness(c.sigil);
+                if (c.layer != null)
+                    witnessRow.setLayer(c.layer);
+                witnessRow.setTokens(c.tokens);
+                alignment.add(witnessRow);
             }
             Comparator<WitnessTokensModel> bySigil = Comparator.comparing(WitnessTokensModel::constructSigil);
             alignment.sort(bySigil);
@@ -139,6 +84,173 @@ public class AlignmentModel {
         }
     }
 
+    /**
+     * Receives the readings of each witness row, as a sweep goes through a section.
+     */
+    public interface RowVisitor {
+        /**
+         * @param sigil   - the sigil of the witness
+         * @param layer   - the witness layer, or null for the base text
+         * @param reading - the reading that the row has arrived at
+         */
+        void visit(String sigil, String layer, Node reading);
+    }
+
+    /**
+     * Sweeps through the given section in rank order, following each witness row along its
+     * path, and hands every reading that a row arrives at, apart from the end node, to the
+     * visitor. The rows are those that the alignment table would have, with each row's
+     * readings handed over in order.
+     * NOTE: for use in a transaction!
+     *
+     * @param sectionNode   - the section to sweep through
+     * @param excludeLayers - whether witness layers should be left out
+     * @param normalized    - the normalized form of the section to follow, or null
+     * @param visitor       - what to do with each reading of each row
+     */
+    public static void sweep(Node sectionNode, boolean excludeLayers, NormalizedSection normalized,
+                             RowVisitor visitor) {
+        sweepCursors(sectionNode, excludeLayers, normalized, (c, r) -> visitor.visit(c.sigil, c.layer, r));
+    }
+
+    // Moves a cursor for each witness row through the section, and returns the cursors
+    private static List<WitnessCursor> sweepCursors(Node sectionNode, boolean excludeLayers,
+                                                    NormalizedSection normalized,
+                                                    BiConsumer<WitnessCursor, Node> visitor) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+        Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+
+        // See whether we are following a normalized section
+        Function<Node, List<SequenceEdge>> outgoing = normalized == null
+                ? SequenceEdge::outgoing : normalized::getOutgoing;
+
+        // Read the sequences of the section once, noting which witness layers are in use
+        // for each witness along the way.
+        HashMap<Node, List<SequenceEdge>> sequences = new HashMap<>();
+        Map<String, TreeSet<String>> witnessLayers = scanSequences(startNode, outgoing, excludeLayers, sequences);
+
+        // Set up a cursor for each witness layer; they all start at the start node.
+        List<WitnessCursor> cursors = makeCursors(traditionNode, witnessLayers);
+        HashMap<Node, List<WitnessCursor>> waiting = new HashMap<>();
+        waiting.put(startNode, cursors);
+
+        // Now sweep through the readings in rank order, moving along all the cursors that
+        // have arrived at each one.
+        PriorityQueue<Node> sweep = new PriorityQueue<>(Comparator.comparingLong(
+                (Node x) -> Long.valueOf(x.getProperty("rank").toString())).thenComparingLong(Node::getId));
+        sweep.add(startNode);
+        while (!sweep.isEmpty()) {
+            Node current = sweep.poll();
+            List<SequenceEdge> out = sequences.computeIfAbsent(current, outgoing);
+            for (WitnessCursor c : waiting.remove(current)) {
+                Node r = c.path.next(out);
+                if (r == null) continue;
+                if (!waiting.containsKey(r)) {
+                    waiting.put(r, new ArrayList<>());
+                    sweep.add(r);
+                }
+                waiting.get(r).add(c);
+                if (!r.hasProperty("is_end"))
+                    visitor.accept(c, r);
+            }
+        }
+        return cursors;
+    }
+
+    /**
+     * Returns the sigla of the witness rows that the alignment table of the given section would
+     * have, in the same order, without building the table itself.
+     *
+     * @param sectionNode   - the section in question
+     * @param excludeLayers - whether witness layers are left out of the table
+     * @return the list of row sigla, as given by WitnessTokensModel.constructSigil
+     */
+    public static List<String> getRowSigla(Node sectionNode, boolean excludeLayers) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        List<String> result = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+            Map<String, TreeSet<String>> witnessLayers = scanSequences(startNode, SequenceEdge::outgoing,
+                    excludeLayers, null);
+            // A row is left out if its witness has no readings in the section
+            List<SequenceEdge> first = SequenceEdge.outgoing(startNode);
+            for (WitnessCursor c : makeCursors(traditionNode, witnessLayers)) {
+                Node r = c.path.next(first);
+                if (r != null && !r.hasProperty("is_end"))
+                    result.add(c.layer == null ? c.sigil : String.format("%s (%s)", c.sigil, c.layer));
+            }
+            tx.success();
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    // Reads the sequences of a section breadth-first, storing them in the given map if there is
+    // one, and returns the layers that are used by each witness.
+    private static Map<String, TreeSet<String>> scanSequences(Node startNode,
+                                                              Function<Node, List<SequenceEdge>> outgoing,
+                                                              boolean excludeLayers,
+                                                              Map<Node, List<SequenceEdge>> sequences) {
+        HashMap<String, TreeSet<String>> witnessLayers = new HashMap<>();
+        HashSet<Node> seen = new HashSet<>();
+        ArrayDeque<Node> queue = new ArrayDeque<>();
+        queue.add(startNode);
+        seen.add(startNode);
+        while (!queue.isEmpty()) {
+            Node n = queue.poll();
+            List<SequenceEdge> out = outgoing.apply(n);
+            if (sequences != null)
+                sequences.put(n, out);
+            for (SequenceEdge seq : out) {
+                if (!excludeLayers)
+                    for (String layer : seq.getWitnessClasses())
+                        if (!layer.equals("witnesses"))
+                            seq.getWitnesses(layer).forEach(
+                                    x -> witnessLayers.computeIfAbsent(x, k -> new TreeSet<>()).add(layer));
+                if (seen.add(seq.getEndNode()))
+                    queue.add(seq.getEndNode());
+            }
+        }
+        return witnessLayers;
+    }
+
+    private static List<WitnessCursor> makeCursors(Node traditionNode, Map<String, TreeSet<String>> witnessLayers) {
+        List<WitnessCursor> cursors = new ArrayList<>();
+        for (Node w : DatabaseService.getRelated(traditionNode, ERelations.HAS_WITNESS)) {
+            String sigil = w.getProperty("sigil").toString();
+            cursors.add(new WitnessCursor(sigil, null));
+            for (String layer : witnessLayers.getOrDefault(sigil, new TreeSet<>()))
+                cursors.add(new WitnessCursor(sigil, layer));
+        }
+        return cursors;
+    }
+
+    // Keeps track of how far along the section a witness (layer) has got.
+    private static class WitnessCursor {
+        final String sigil;
+        final String layer;
+        final WitnessPath path;
+        final ArrayList<ReadingModel> tokens = new ArrayList<>();
+
+        WitnessCursor(String sigil, String layer) {
+            this.sigil = sigil;
+            this.layer = layer;
+            this.path = new WitnessPath(sigil, layer == null
+                    ? new ArrayList<>() : Collections.singletonList(layer));
+        }
+
+        void addToken(ReadingModel readingToken) {
+            // Fill the gap with nulls, or with the reading if it was a lacuna
+            ReadingModel filler = readingToken.getIs_lacuna() ? readingToken : null;
+            long currRankIndex = readingToken.getRank() - 1;
+            for (int i = tokens.size(); i < currRankIndex; i++)
+                tokens.add(filler);
+            tokens.add(readingToken);
+        }
+    }
+
     public ArrayList<WitnessTokensModel> getAlignment () {
         return alignment;
     }
@@ -3,6 +3,9 @@ package net.stemmaweb.model;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.NormalizedSection;
+import net.stemmaweb.services.SequenceEdge;
+import net.stemmaweb.services.WitnessStorage;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import javax.xml.bind.annotation.XmlRootElement;
 
@@ -16,10 +19,7 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
+import java.util.*;
 
 /**
  * Provides a model for a reading outside of the database. Can be parsed into a
@@ -134,9 +134,7 @@ public class ReadingModel implements Comparable<ReadingModel> {
                 this.setGrammar_invalid((Boolean) node.getProperty("grammar_invalid"));
             this.setId(String.valueOf(node.getId()));
             this.setSection(node.getProperty("section_id").toString());
-            // If there is an "ncommon" property, use this in preference to "is_common"
-            // because it means we are in normalized mode
-            this.setIs_common(node.getProperty("ncommon", node.getProperty("is_common", false)).equals(true));
+            this.setIs_common(node.getProperty("is_common", false).equals(true));
             if (node.hasProperty("is_end"))
                 this.setIs_end((Boolean) node.getProperty("is_end"));
             if (node.hasProperty("is_lacuna"))
@@ -185,35 +183,55 @@ public class ReadingModel implements Comparable<ReadingModel> {
             }
             // Get the witnesses
             HashSet<String> collectedWits = new HashSet<>();
-            List<Relationship> seq = new ArrayList<>();
-            // If we are operating under normalization, we need to look at the NSEQUENCE links rather than
-            // the SEQUENCE links, but in this case the SEQUENCE links will be redundant so there is no
-            // harm in looking at them anyway.
-            node.getRelationships(ERelations.SEQUENCE, Direction.BOTH).forEach(seq::add);
-            node.getRelationships(ERelations.NSEQUENCE, Direction.BOTH).forEach(seq::add);
-            for (Relationship r : seq) {
-                for (String prop : r.getPropertyKeys()) {
-                    String[] sigla = (String[]) r.getProperty(prop);
-                    if (prop.equals("witnesses")) {
-                        collectedWits.addAll(Arrays.asList(sigla));
-                    } else {
-                        Arrays.stream(sigla).forEach(x -> collectedWits.add(String.format("%s (%s)", x, prop)));
-                    }
-                }
-            }
-            this.witnesses = new ArrayList<>(collectedWits);
-            this.witnesses.sort(String::compareTo);
-            // Get any represented readings
-            for (Relationship r : node.getRelationships(ERelations.REPRESENTS, Direction.OUTGOING)) {
-                this.addRepresented(new ReadingModel(r.getEndNode()));
+            for (Relationship r : node.getRelationships(ERelations.SEQUENCE, Direction.BOTH)) {
+                for (String prop : r.getPropertyKeys())
+                    collectWitnesses(collectedWits, prop, WitnessStorage.getWitnesses(r, prop));
             }
+            this.assignWitnesses(collectedWits);
             tx.success();
         }
     }
 
+    /**
+     * Generates a model from a Neo4j Node as it appears in a normalized section. If the node
+     * is a representative, its witnesses and commonality are taken from the normalized view,
+     * and the readings it represents are included.
+     * @param node - The node with label READING from which the model should take its values
+     * @param normalization - The normalized view of the node's section, or null
+     */
+    public ReadingModel(Node node, NormalizedSection normalization) {
+        this(node);
+        if (normalization == null || !normalization.isRepresentative(node))
+            return;
+        Boolean isCommon = normalization.isCommon(node);
+        if (isCommon != null)
+            this.setIs_common(isCommon);
+        HashSet<String> collectedWits = new HashSet<>(this.witnesses);
+        List<SequenceEdge> seq = normalization.getIncoming(node);
+        seq.addAll(normalization.getOutgoing(node));
+        for (SequenceEdge e : seq)
+            for (String witClass : e.getWitnessClasses())
+                collectWitnesses(collectedWits, witClass, e.getWitnesses(witClass));
+        this.assignWitnesses(collectedWits);
+        for (Node n : normalization.getRepresented(node))
+            this.addRepresented(new ReadingModel(n));
+    }
+
     public ReadingModel() {
     }
 
+    private static void collectWitnesses(Set<String> collected, String witClass, Collection<String> sigla) {
+        if (witClass.equals("witnesses"))
+            collected.addAll(sigla);
+        else
+            sigla.forEach(x -> collected.add(String.format("%s (%s)", x, witClass)));
+    }
+
+    private void assignWitnesses(Collection<String> collectedWits) {
+        this.witnesses = new ArrayList<>(collectedWits);
+        this.witnesses.sort(String::compareTo);
+    }
+
     public Boolean getGrammar_invalid() {
         return grammar_invalid;
     }
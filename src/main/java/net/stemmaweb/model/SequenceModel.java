@@ -1,6 +1,7 @@
 package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
+import net.stemmaweb.services.WitnessStorage;
 import org.neo4j.graphdb.Relationship;
 
 import javax.xml.bind.annotation.XmlRootElement;
@@ -57,12 +58,14 @@ public class SequenceModel {
         id = Long.toString(rel.getId());
 
         for (String p : rel.getPropertyKeys()) {
+            List<String> sigla = new ArrayList<>(WitnessStorage.getWitnesses(rel, p));
+            Collections.sort(sigla);
             if (p.equals("witnesses"))
-                setWitnesses(Arrays.asList((String[]) rel.getProperty("witnesses")));
+                setWitnesses(sigla);
             else {
                 if (layers == null)
                     setLayers(new HashMap<>());
-                layers.put(p, Arrays.asList((String[]) rel.getProperty(p)));
+                layers.put(p, sigla);
             }
         }
     }
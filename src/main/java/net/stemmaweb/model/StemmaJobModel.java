@@ -0,0 +1,62 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * JSON-aware data model for a stemma inference job that runs in the background.
+ *
+ * @author tla
+ */
+
+@XmlRootElement
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class StemmaJobModel {
+
+    /**
+     * the ID of the job
+     */
+    private Integer jobid;
+    /**
+     * the ID of the tradition whose stemma is being inferred
+     */
+    private String tradition_id;
+    /**
+     * the name under which the stemma will be saved
+     */
+    private String stemma;
+    /**
+     * the inference method: 'nj' for neighbour-joining, or 'parsimony' for neighbour-joining
+     * followed by a parsimony search
+     */
+    private String method;
+    /**
+     * one of 'queued', 'running', 'done', or 'failed'
+     */
+    private String status;
+    /**
+     * the reason the job failed, if it did
+     */
+    private String error;
+
+    public StemmaJobModel() {}
+
+    public Integer getJobid() { return jobid; }
+    public void setJobid(Integer jobid) { this.jobid = jobid; }
+
+    public String getTradition_id() { return tradition_id; }
+    public void setTradition_id(String tradition_id) { this.tradition_id = tradition_id; }
+
+    public String getStemma() { return stemma; }
+    public void setStemma(String stemma) { this.stemma = stemma; }
+
+    public String getMethod() { return method; }
+    public void setMethod(String method) { this.method = method; }
+
+    public String getStatus() { return status; }
+    public void setStatus(String status) { this.status = status; }
+
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+}
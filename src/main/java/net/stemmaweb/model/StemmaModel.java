@@ -6,6 +6,7 @@ import com.fasterxml.jackson.annotation.JsonSetter;
 import com.qmino.miredot.annotations.MireDotIgnore;
 import net.stemmaweb.exporter.DotExporter;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.StemmaGraph;
 import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
@@ -50,8 +51,9 @@ public class StemmaModel {
         GraphDatabaseService db = stemmaNode.getGraphDatabase();
         try (Transaction tx = db.beginTx()) {
             identifier = stemmaNode.getProperty("name").toString();
-            is_undirected = !stemmaNode.hasRelationship(ERelations.HAS_ARCHETYPE);
-            is_contaminated = stemmaNode.hasProperty("is_contaminated");
+            StemmaGraph stemma = StemmaGraph.forStemma(stemmaNode);
+            is_undirected = stemma.getArchetype() == null;
+            is_contaminated = stemma.isContaminated();
             if (stemmaNode.hasProperty("from_jobid"))
                 from_jobid = (Integer) stemmaNode.getProperty("from_jobid");
 
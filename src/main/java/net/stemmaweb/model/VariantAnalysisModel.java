@@ -0,0 +1,57 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * JSON-aware data model for the analysis of a single variant location against a stemma.
+ *
+ * @author tla
+ */
+
+@XmlRootElement
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class VariantAnalysisModel {
+
+    /**
+     * the ID of the section that the variant location is in
+     */
+    private String section;
+    /**
+     * the rank of the variant location within its section
+     */
+    private Long rankIndex;
+    /**
+     * the stemma witnesses that have each reading at this location, starting with the base text.
+     * Witnesses that are lacunose here, or otherwise have no reading, are left out.
+     */
+    private List<List<String>> groups;
+    /**
+     * the number of times the text must have changed along the stemma to produce these groups
+     */
+    private int changes;
+    /**
+     * whether each reading could have arisen just once in the stemma, i.e. the location needs one
+     * change fewer than it has readings
+     */
+    private boolean genealogical;
+
+    public VariantAnalysisModel() {}
+
+    public String getSection() { return section; }
+    public void setSection(String section) { this.section = section; }
+
+    public Long getRankIndex() { return rankIndex; }
+    public void setRankIndex(Long rankIndex) { this.rankIndex = rankIndex; }
+
+    public List<List<String>> getGroups() { return groups; }
+    public void setGroups(List<List<String>> groups) { this.groups = groups; }
+
+    public int getChanges() { return changes; }
+    public void setChanges(int changes) { this.changes = changes; }
+
+    public boolean getGenealogical() { return genealogical; }
+    public void setGenealogical(boolean genealogical) { this.genealogical = genealogical; }
+}
@@ -2,16 +2,12 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import net.stemmaweb.rest.ERelations;
-import net.stemmaweb.services.RelationService;
-import net.stemmaweb.services.VariantCrawler;
-import net.stemmaweb.services.VariantGraphService;
-import net.stemmaweb.services.WitnessPath;
+import net.stemmaweb.services.*;
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.TraversalDescription;
-import org.neo4j.graphdb.traversal.Uniqueness;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @XmlRootElement
@@ -58,6 +54,10 @@ public class VariantListModel {
      * the types of relations that are dislocations in this tradition. Not publicly accessible.
      */
     private List<String> dislocationTypes;
+    // The variant locations grouped by rank index, built on first use
+    private Map<Long, List<VariantLocationModel>> variantsByRank;
+    private List<VariantLocationModel> indexedVariantlist;
+    private int indexedSize;
 
     public VariantListModel() {
         variantlist = new ArrayList<>();
@@ -98,11 +98,11 @@ public class VariantListModel {
         this.dislocationCombined = combine;
         GraphDatabaseService db = sectionNode.getGraphDatabase();
         try (Transaction tx = db.beginTx()) {
-            RelationshipType follow = ERelations.SEQUENCE;
-            if (conflate != null && !conflate.isEmpty()) {
-                VariantGraphService.normalizeGraph(sectionNode, conflate);
-                follow = ERelations.NSEQUENCE;
-            }
+            NormalizedSection normalized = null;
+            if (conflate != null && !conflate.isEmpty())
+                normalized = VariantGraphService.normalizeGraph(sectionNode, conflate);
+            Function<Node, List<SequenceEdge>> follow = normalized == null
+                    ? SequenceEdge::outgoing : normalized::getOutgoing;
 
             // Figure out which types are dislocation types in this tradition
             this.dislocationTypes = new ArrayList<>();
@@ -113,42 +113,41 @@ public class VariantListModel {
 
             // See which list of readings will serve as our base text
             Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
-            TraversalDescription baseWalker = db.traversalDescription().depthFirst();
-            List<Relationship> baseText;
+            List<Node> baseText = new ArrayList<>();
+            baseText.add(startNode);
             if (baseWitness != null) {
-                // We use the requested witness text, which is connected via SEQUENCE or NSEQUENCE
-                // links and so unproblematic.
-                baseWalker = baseWalker.evaluator(new WitnessPath(baseWitness, follow).getEvalForWitness());
-                baseText = baseWalker.traverse(startNode).relationships().stream().collect(Collectors.toList());
+                // We use the requested witness text, which is connected via (normalized) sequences
+                // and so unproblematic.
+                baseText.addAll(new WitnessPath(baseWitness).walk(startNode, follow));
                 this.basisText = baseWitness;
             } else {
-                // We collect the readings, but count their SEQUENCE or NSEQUENCE links in the base text.
+                // We collect the readings, but count only those that are linked by sequences in the base text.
                 List<Node> baseReadings;
                 if (startNode.hasRelationship(ERelations.LEMMA_TEXT, Direction.OUTGOING)) {
                     // We traverse the lemma text
-                    baseWalker = baseWalker.relationships(ERelations.LEMMA_TEXT);
-                    baseReadings = baseWalker.traverse(startNode).nodes().stream().collect(Collectors.toList());
+                    baseReadings = db.traversalDescription().depthFirst()
+                            .relationships(ERelations.LEMMA_TEXT)
+                            .traverse(startNode).nodes().stream().collect(Collectors.toList());
                     this.basisText = "lemma";
                 } else {
                     // We calculate and use the majority text
-                    baseReadings = VariantGraphService.calculateMajorityText(sectionNode);
+                    baseReadings = VariantGraphService.calculateMajorityText(sectionNode, normalized);
                     this.basisText = "majority";
                 }
-                baseText = new ArrayList<>();
                 Node prior = baseReadings.remove(0);
                 for (Node curr : baseReadings) {
-                    prior.getRelationships(follow, Direction.OUTGOING).forEach(x -> {
-                        if (x.getEndNode().equals(curr)) baseText.add(x);});
+                    if (follow.apply(prior).stream().anyMatch(x -> x.getEndNode().equals(curr)))
+                        baseText.add(curr);
                     prior = curr;
                 }
             }
 
-            this.findVariants(db, baseText, excludeWitnesses, follow);
+            this.findVariants(db, baseText, excludeWitnesses, normalized);
 
             // Filter readings by regex / nonsense flag as needed. Pass the base text in case
             // any before/after reading settings need to be altered.
-            this.baseChain = baseText.stream().map(x -> new ReadingModel(x.getEndNode())).collect(Collectors.toList());
-            this.baseChain.add(0, new ReadingModel(baseText.get(0).getStartNode()));
+            final NormalizedSection ns = normalized;
+            this.baseChain = baseText.stream().map(x -> new ReadingModel(x, ns)).collect(Collectors.toList());
             this.filterReadings(this.baseChain);
 
             // Filter for type1 variants
@@ -162,36 +161,22 @@ public class VariantListModel {
             // Combine dislocations if we were asked to
             if (combine) this.combineDisplacements();
 
-            // Clean up if we normalised
-            if (conflate != null && !conflate.isEmpty())
-                VariantGraphService.clearNormalization(sectionNode);
-
             tx.success();
         }
     }
 
-    private void findVariants (GraphDatabaseService db, List<Relationship> sequence, List<String> excludeWitnesses,
-                               RelationshipType follow) {
-        // Create the evaluator we need
-        VariantCrawler crawler = new VariantCrawler(sequence, follow, excludeWitnesses);
-        // Set up the traversal for the path segments we want
+    private void findVariants (GraphDatabaseService db, List<Node> baseChain, List<String> excludeWitnesses,
+                               NormalizedSection normalized) {
+        // Create the crawler we need
+        VariantCrawler crawler = new VariantCrawler(baseChain,
+                normalized == null ? SequenceEdge::outgoing : normalized::getOutgoing, excludeWitnesses);
         try (Transaction tx = db.beginTx()) {
-            TraversalDescription traverser = db.traversalDescription().depthFirst()
-                    .uniqueness(Uniqueness.RELATIONSHIP_PATH)
-                    .expand(crawler.variantListExpander())
-                    .evaluator(crawler.variantListEvaluator());
-            // Get our base chain of nodes
-            List<Node> baseChain = sequence.stream().map(Relationship::getEndNode).collect(Collectors.toList());
-            baseChain.add(0, sequence.get(0).getStartNode());
-            // We have to run the traverser from each node in the base chain, to get any variants that start there.
+            // We have to run the crawler from each node in the base chain, to get any variants that start there.
             for (Node n : baseChain) {
-                for (org.neo4j.graphdb.Path v : traverser.traverse(n)) {
-                    VariantModel vm = new VariantModel(v, crawler.getWitnessesForPath(v));
-                    // Sanity check
-                    // if (!baseChain.contains(v.startNode()) || !baseChain.contains(v.endNode()))
-                    //     throw new Exception("Variant chain disconnected from base chain");
+                for (VariantCrawler.VariantPath v : crawler.variantsFrom(n)) {
+                    VariantModel vm = new VariantModel(v.getNodes(), v.getWitnesses(), normalized);
                     if (!vm.isEmpty()) {
-                        VariantLocationModel vloc = this.getVLM(baseChain, v.startNode(), v.endNode());
+                        VariantLocationModel vloc = this.getVLM(baseChain, v.startNode(), v.endNode(), normalized);
                         vloc.addVariant(vm);
                     }
                 }
@@ -209,7 +194,8 @@ public class VariantListModel {
 
     private VariantLocationModel getVLM(List<Node> baseChain,
                                         Node vStart,
-                                        Node vEnd) {
+                                        Node vEnd,
+                                        NormalizedSection normalized) {
         // Retrieve any existing VariantLocationModel, or create a new one
         VariantLocationModel vlm = new VariantLocationModel();
         String key = String.format("%d -- %d", vStart.getId(), vEnd.getId());
@@ -223,7 +209,7 @@ public class VariantListModel {
             // Turn our sub-chain into reading models
             List<ReadingModel> baseReadings = baseChain
                     .subList(baseChain.indexOf(vStart), baseChain.indexOf(vEnd)+1)
-                    .stream().map(ReadingModel::new).collect(Collectors.toList());
+                    .stream().map(x -> new ReadingModel(x, normalized)).collect(Collectors.toList());
             // Set the reading models in place in the VLM
             vlm.setBefore(baseReadings.remove(0));
             vlm.setAfter(baseReadings.remove(baseReadings.size() - 1));
@@ -233,7 +219,7 @@ public class VariantListModel {
                 vlm.setRankIndex(baseReadings.get(0).getRank());
             else
                 vlm.setRankIndex(vlm.getBefore().getRank() + 1);
-            vlm.setNormalised(vStart.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
+            vlm.setNormalised(normalized != null);
             this.variantlist.add(vlm);
         }
         return vlm;
@@ -397,6 +383,26 @@ public class VariantListModel {
         return variantlist;
     }
 
+    /**
+     * Returns the variant locations that start at the given rank, in the order in which
+     * they appear in the variant list. The lookup table is built once, the first time it
+     * is needed, and rebuilt only if the variant list has since been replaced or extended.
+     *
+     * @param rank - the rank index of the reading that precedes the variants
+     * @return an unmodifiable list of variant locations, which may be empty
+     */
+    public List<VariantLocationModel> getVariantsAtRank(Long rank) {
+        if (variantsByRank == null || indexedVariantlist != variantlist || indexedSize != variantlist.size()) {
+            Map<Long, List<VariantLocationModel>> byRank = new HashMap<>();
+            for (VariantLocationModel vloc : variantlist)
+                byRank.computeIfAbsent(vloc.getRankIndex(), k -> new ArrayList<>()).add(vloc);
+            variantsByRank = byRank;
+            indexedVariantlist = variantlist;
+            indexedSize = variantlist.size();
+        }
+        return Collections.unmodifiableList(variantsByRank.getOrDefault(rank, Collections.emptyList()));
+    }
+
     public boolean isDislocationCombined() {
         return dislocationCombined;
     }
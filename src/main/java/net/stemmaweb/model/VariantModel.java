@@ -2,10 +2,9 @@ package net.stemmaweb.model;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
-import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.services.NormalizedSection;
 import net.stemmaweb.services.ReadingService;
-import org.neo4j.graphdb.Direction;
-import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.Node;
 
 import javax.xml.bind.annotation.XmlRootElement;
 import java.util.*;
@@ -32,20 +31,22 @@ public class VariantModel {
     }
 
     /**
-     * Initialize a variant model from a given Neo4J path, assumed to be a valid variant path.
-     * @param p - the Neo4J path to initialize from
+     * Initialize a variant model from a given chain of nodes, assumed to be a valid variant path.
+     * @param nodes - the chain of nodes to initialize from
+     * @param vWits - the witnesses, by layer, that follow the path
+     * @param normalized - the normalized view of the section, if the path runs through one
      */
-    VariantModel (Path p, Map<String,Set<String>> vWits) {
+    VariantModel (List<Node> nodes, Map<String,Set<String>> vWits, NormalizedSection normalized) {
         // Get the readings
         List<ReadingModel> vReadings = new ArrayList<>();
-        p.nodes().forEach(x -> vReadings.add(new ReadingModel(x)));
+        nodes.forEach(x -> vReadings.add(new ReadingModel(x, normalized)));
         // Remove the first and last (common) readings
         vReadings.remove(0);
         vReadings.remove(vReadings.size()-1);
         this.setReadings(vReadings);
 
         // Set the "normal" flag appropriately
-        this.setNormal(p.startNode().hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
+        this.setNormal(normalized != null);
 
         // Now add the witnesses / layers that belong to the path, making sure to keep the sigla sorted.
         Map<String, List<String>> endWitnesses = new HashMap<>();
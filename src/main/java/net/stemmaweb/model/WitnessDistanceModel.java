@@ -0,0 +1,59 @@
+package net.stemmaweb.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import javax.xml.bind.annotation.XmlRootElement;
+import java.util.List;
+
+/**
+ * JSON-aware data model for the pairwise agreement between the witnesses of a tradition or
+ * section. The matrices are indexed in the order of the witness list; the cells on the
+ * diagonal count the ranks at which that witness has a reading at all.
+ *
+ * @author tla
+ */
+
+@XmlRootElement
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class WitnessDistanceModel {
+
+    /**
+     * the sigla of the witnesses and witness layers that were compared
+     */
+    private List<String> witnesses;
+    /**
+     * the number of ranks that were compared
+     */
+    private long length;
+    /**
+     * the number of ranks at which each pair of witnesses have the same reading, or both omit the text
+     */
+    private int[][] agreements;
+    /**
+     * the number of ranks at which each pair of witnesses differ. Ranks at which either of the pair
+     * is lacunose, or absent from the section, are not counted.
+     */
+    private int[][] disagreements;
+    /**
+     * the proportion of compared ranks at which each pair of witnesses differ, or null if the pair
+     * have no ranks in common
+     */
+    private Double[][] distances;
+
+    public WitnessDistanceModel() {}
+
+    public List<String> getWitnesses() { return witnesses; }
+    public void setWitnesses(List<String> witnesses) { this.witnesses = witnesses; }
+
+    public long getLength() { return length; }
+    public void setLength(long length) { this.length = length; }
+
+    public int[][] getAgreements() { return agreements; }
+    public void setAgreements(int[][] agreements) { this.agreements = agreements; }
+
+    public int[][] getDisagreements() { return disagreements; }
+    public void setDisagreements(int[][] disagreements) { this.disagreements = disagreements; }
+
+    public Double[][] getDistances() { return distances; }
+    public void setDistances(Double[][] distances) { this.distances = distances; }
+}
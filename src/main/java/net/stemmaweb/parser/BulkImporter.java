@@ -0,0 +1,173 @@
+package net.stemmaweb.parser;
+
+import net.stemmaweb.model.UserModel;
+import net.stemmaweb.rest.Root;
+import net.stemmaweb.rest.User;
+import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SchemaService;
+import org.json.JSONObject;
+import org.neo4j.graphdb.GraphDatabaseService;
+
+import javax.ws.rs.core.Response;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command-line tool to seed a new Stemmarest store from a collection of tradition files,
+ * without going through the REST server. Each file becomes a tradition owned by the
+ * given user; the files are parsed in parallel with the same parsers that the server
+ * uses. The schema is set up before anything is loaded, since the parsers look up readings
+ * and traditions through its indexes, and rely on its constraints.
+ *
+ * Usage: BulkImporter [-t threads] [-f filetype] &lt;store directory&gt; &lt;user ID&gt; &lt;file&gt;...
+ *
+ * The file type is one of those accepted by POST /tradition; if it is not given, it is
+ * guessed for each file from its extension and, for XML files, from its contents.
+ *
+ * @author tla
+ */
+public class BulkImporter {
+
+    private static final String USAGE =
+            "Usage: BulkImporter [-t threads] [-f filetype] <store directory> <user ID> <file>...";
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String filetype = null;
+        List<String> positional = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-t") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-f") && i + 1 < args.length)
+                filetype = args[++i];
+            else
+                positional.add(args[i]);
+        }
+        if (positional.size() < 3) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        String storeLocation = positional.get(0);
+        String userId = positional.get(1);
+        List<File> files = new ArrayList<>();
+        positional.subList(2, positional.size()).forEach(x -> files.add(new File(x)));
+        if (new File(storeLocation, "data").exists()) {
+            System.err.println("A database already exists at " + storeLocation + "; please give a new location");
+            System.exit(2);
+        }
+
+        GraphDatabaseService db = new GraphDatabaseServiceProvider(storeLocation).getDatabase();
+        int failures;
+        try {
+            failures = new BulkImporter().run(db, userId, files, filetype, threads);
+        } finally {
+            db.shutdown();
+        }
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    /**
+     * Brings the schema of the database up to date, and then imports the given files into it.
+     * The database should have been registered with the GraphDatabaseServiceProvider.
+     *
+     * @param db - the database to import into
+     * @param userId - the ID of the user who should own the imported traditions
+     * @param files - the tradition files to import
+     * @param filetype - the type of all the files, or null if it should be guessed per file
+     * @param threads - the number of files to parse at once
+     * @return the number of files that could not be imported
+     * @throws InterruptedException if the import is interrupted
+     */
+    public int run(GraphDatabaseService db, String userId, List<File> files, String filetype, int threads)
+            throws InterruptedException {
+        DatabaseService.createRootNode(db);
+        SchemaService.bootstrap(db);
+        if (!DatabaseService.userExists(userId, db)) {
+            UserModel um = new UserModel();
+            um.setId(userId);
+            um.setRole("user");
+            um.setActive(true);
+            new User(userId).create(um);
+        }
+
+        AtomicInteger failures = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (File f : files) {
+            pool.submit(() -> {
+                String result = importFile(f, userId, filetype);
+                if (result.startsWith("FAILED"))
+                    failures.incrementAndGet();
+                System.out.println(String.format("[%d/%d] %s: %s", done.incrementAndGet(), files.size(),
+                        f.getPath(), result));
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+        System.out.println(String.format("Imported %d of %d files", files.size() - failures.get(), files.size()));
+        return failures.get();
+    }
+
+    // Import a single file as a new tradition, returning a line of status information.
+    private static String importFile(File f, String userId, String filetype) {
+        try {
+            String ftype = filetype == null ? guessFiletype(f) : filetype;
+            if (ftype == null)
+                return "FAILED - could not determine the file type";
+            String name = f.getName().replaceFirst("\\.[^.]+$", "");
+            Response r;
+            try (InputStream in = new BufferedInputStream(new FileInputStream(f))) {
+                r = new Root().importGraphMl(name, userId, null, null, "LR", null, ftype, in, null);
+            }
+            if (r.getStatus() != Response.Status.CREATED.getStatusCode())
+                return String.format("FAILED - %d %s", r.getStatus(), r.getEntity());
+            return "created tradition " + new JSONObject(r.getEntity().toString()).getString("tradId");
+        } catch (Exception e) {
+            e.printStackTrace();
+            return "FAILED - " + e.getMessage();
+        }
+    }
+
+    // Work out the file type from the name of the file, or for XML from the start of its contents.
+    static String guessFiletype(File f) throws IOException {
+        String name = f.getName().toLowerCase();
+        String extension = name.contains(".") ? name.substring(name.lastIndexOf('.') + 1) : "";
+        switch (extension) {
+            case "csv":
+            case "tsv":
+            case "xls":
+            case "xlsx":
+                return extension;
+            case "json":
+                return "cxjson";
+            case "xml":
+            case "graphml":
+                break;
+            default:
+                return null;
+        }
+
+        char[] head = new char[16384];
+        int len;
+        try (Reader r = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+            len = r.read(head);
+        }
+        String start = len > 0 ? new String(head, 0, len) : "";
+        if (start.contains("<TEI"))
+            return "teips";
+        if (start.contains("attr.name=\"neolabel\""))
+            return "graphml";
+        if (start.contains("attr.name=\"tokens\""))
+            return "collatex";
+        if (start.contains("<graphml"))
+            return "stemmaweb";
+        return null;
+    }
+}
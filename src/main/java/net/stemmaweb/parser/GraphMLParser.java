@@ -9,9 +9,12 @@ import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.Node;
-import org.w3c.dom.*;
 
 import javax.ws.rs.core.Response;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.InputStream;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -24,10 +27,23 @@ import java.util.stream.Collectors;
 public class GraphMLParser {
     private final GraphDatabaseServiceProvider dbServiceProvider = new GraphDatabaseServiceProvider();
     private final GraphDatabaseService db = dbServiceProvider.getDatabase();
+    // The number of nodes and relationships to create before the transaction is committed
+    private final int batchSize;
+
+    public GraphMLParser() {
+        this(Integer.getInteger("stemmarest.import.batch", 10000));
+    }
+
+    public GraphMLParser(int batchSize) {
+        this.batchSize = batchSize;
+    }
 
     /**
      * Parses a GraphML file representing either an entire tradition, or a single tradition
      * section. Returns the ID of the object (either tradition or section) that was created.
+     * The file is read as a stream and the work is committed in batches, so the graph nodes
+     * must appear before the edges that refer to them, as they do in our own exports. If the
+     * import fails, any nodes it has already committed are deleted again.
      *
      * @param filestream - an InputStream with the XML data
      * @param traditionNode - a Node to represent the tradition this data belongs to
@@ -36,296 +52,405 @@ public class GraphMLParser {
 
     public Response parseGraphML(InputStream filestream, Node traditionNode)
     {
-        // We will use a DOM parser for this
-        Document doc = Util.openFileStream(filestream);
-        if (doc == null)
+        XMLStreamReader reader;
+        try {
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(filestream);
+        } catch (XMLStreamException e) {
+            e.printStackTrace();
             return Response.serverError().entity(Util.jsonerror("No document found")).build();
+        }
+
+        // Keep track of XML ID to Neo4J ID mapping for all nodes
+        XmlIdMap entityMap = new XmlIdMap();
+        BatchTransaction tx = new BatchTransaction();
+        Response result;
+        try {
+            result = parseGraphML(reader, traditionNode, entityMap, tx);
+        } catch (IllegalArgumentException e) {
+            result = Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            result = Response.serverError().build();
+        }
 
-        Element rootEl = doc.getDocumentElement();
-        rootEl.normalize();
+        if (result.getStatus() == Response.Status.CREATED.getStatusCode()) {
+            try {
+                tx.success();
+                tx.close();
+                return result;
+            } catch (Exception e) {
+                e.printStackTrace();
+                result = Response.serverError().build();
+            }
+        } else {
+            tx.failure();
+            tx.close();
+        }
+        deleteCreatedNodes(entityMap, traditionNode);
+        return result;
+    }
 
+    private Response parseGraphML(XMLStreamReader reader, Node traditionNode, XmlIdMap entityMap,
+                                  BatchTransaction tx) throws XMLStreamException {
         // Get the data keys and their types; the map entries are e.g.
         // "dn0" -> ["neolabel", "string"]
         HashMap<String, String[]> dataKeys = new HashMap<>();
-        NodeList keyNodes = rootEl.getElementsByTagName("key");
-        for (int i = 0; i < keyNodes.getLength(); i++) {
-            NamedNodeMap keyAttrs = keyNodes.item(i).getAttributes();
-            String[] dataInfo = new String[]{keyAttrs.getNamedItem("attr.name").getNodeValue(),
-                    keyAttrs.getNamedItem("attr.type").getNodeValue()};
-            dataKeys.put(keyAttrs.getNamedItem("id").getNodeValue(), dataInfo);
-        }
 
         String parentId = null;
         String parentLabel = null;
-        ArrayList<Node> sectionNodes = new ArrayList<>();
-        ArrayList<Node> witnessNodes = new ArrayList<>();
-        ArrayList<Node> annoLabelNodes = new ArrayList<>();
+        ArrayList<Long> sectionNodes = new ArrayList<>();
+        ArrayList<Long> witnessNodes = new ArrayList<>();
+        ArrayList<Long> annoLabelNodes = new ArrayList<>();
         HashSet<String> sigla = new HashSet<>();
-        // Keep track of XML ID to Neo4J ID mapping for all nodes
-        HashMap<String, Node> entityMap = new HashMap<>();
-
-        // Now get to work with node and relationship creation.
-        try (Transaction tx = db.beginTx()) {
-            // The UUID of the tradition that was passed in for parsing
-            String tradId = traditionNode.getProperty("id").toString();
-            NodeList entityNodes = rootEl.getElementsByTagName("node");
-            // Hold back nodes that were labeled by the user rather than the system, such as annotations,
-            // so that we can add them to the graph with the existing verification / sanity checks.
-            ArrayList<org.w3c.dom.Node> userLabeledNodes = new ArrayList<>();
-            ArrayList<org.w3c.dom.Node> userLabeledEdges = new ArrayList<>();
-            for (int i = 0; i < entityNodes.getLength(); i++) {
-                org.w3c.dom.Node entityXML = entityNodes.item(i);
-                NamedNodeMap entityAttrs = entityXML.getAttributes();
-                String xmlId = entityAttrs.getNamedItem("id").getNodeValue();
-                NodeList dataNodes = ((Element) entityXML).getElementsByTagName("data");
-                HashMap<String, Object> nodeProperties = returnProperties(dataNodes, dataKeys);
-                if (!nodeProperties.containsKey("neolabel"))
-                    return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror("Node without label found")).build();
-                String neolabel = nodeProperties.remove("neolabel").toString();
-                String[] entityLabel = neolabel.replace("[", "").replace("]", "").split(",\\s+");
-
-                if (neolabel.contains("TRADITION")) {
-                    // We are apparently parsing a whole tradition.
-                    // If there is already a different tradition with this tradition ID, we are making a
-                    // duplicate and the real ID of this one was set in Root.java; if not, fix our tradition
-                    // node to match the one in the GraphML.
-                    if (parentLabel != null) {
-                        // We apparently have two TRADITION nodes. Abort.
-                        return Response.status(Response.Status.BAD_REQUEST)
-                                .entity(Util.jsonerror("Multiple TRADITION nodes in input")).build();
+        HashSet<String> seenRelationTypes = new HashSet<>();
+        // Readings whose section appears only later in the file, so that their section ID
+        // could not yet be resolved
+        ArrayList<Long> unresolvedReadings = new ArrayList<>();
+        // The properties of the TRADITION node in the file, which are only set on our tradition
+        // node once the whole file has been read
+        HashMap<String, Object> traditionProperties = null;
+        // Hold back nodes that were labeled by the user rather than the system, such as annotations,
+        // so that we can add them to the graph with the existing verification / sanity checks.
+        LinkedHashMap<String, HashMap<String, Object>> userLabeledNodes = new LinkedHashMap<>();
+        HashMap<String, List<AnnotationLinkModel>> userLabeledEdges = new HashMap<>();
+
+        // The UUID of the tradition that was passed in for parsing
+        String tradId = traditionNode.getProperty("id").toString();
+        while (reader.hasNext()) {
+            if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                continue;
+            switch (reader.getLocalName()) {
+                case "key":
+                    String[] dataInfo = new String[]{reader.getAttributeValue(null, "attr.name"),
+                            reader.getAttributeValue(null, "attr.type")};
+                    dataKeys.put(reader.getAttributeValue(null, "id"), dataInfo);
+                    break;
+
+                case "node": {
+                    String xmlId = reader.getAttributeValue(null, "id");
+                    HashMap<String, Object> nodeProperties = returnProperties(reader, "node", dataKeys);
+                    if (!nodeProperties.containsKey("neolabel"))
+                        return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror("Node without label found")).build();
+                    String neolabel = nodeProperties.get("neolabel").toString();
+                    String[] entityLabel = neolabel.replace("[", "").replace("]", "").split(",\\s+");
+
+                    if (neolabel.contains("TRADITION")) {
+                        // We are apparently parsing a whole tradition.
+                        // If there is already a different tradition with this tradition ID, we are making a
+                        // duplicate and the real ID of this one was set in Root.java; if not, fix our tradition
+                        // node to match the one in the GraphML once the import has succeeded.
+                        if (parentLabel != null) {
+                            // We apparently have two TRADITION nodes. Abort.
+                            return Response.status(Response.Status.BAD_REQUEST)
+                                    .entity(Util.jsonerror("Multiple TRADITION nodes in input")).build();
+                        }
+                        nodeProperties.remove("neolabel");
+                        traditionProperties = nodeProperties;
+                        parentLabel = "tradition";
+                        entityMap.put(xmlId, traditionNode.getId());
+                        continue;
+                    }
+
+                    // This is an annotation node, which we will deal with in a separate pass.
+                    if (!Arrays.stream(entityLabel).allMatch(GraphMLParser::isSystemLabel)) {
+                        userLabeledNodes.put(xmlId, nodeProperties);
+                        continue;
                     }
 
-                    String fileTraditionId = nodeProperties.get("id").toString();
-                    Node existingTradition = db.findNode(Nodes.TRADITION, "id", fileTraditionId);
-                    if (existingTradition == null) {
-                        // Set the ID of the new tradition node to match the old ID.
-                        traditionNode.setProperty("id", fileTraditionId);
-                        tradId = fileTraditionId;
-                    } // else there is another tradition with the original ID, so this is a duplicate
-                    // and needs its new ID.
-
-                    // This node is already created, but we need to reset its properties according to
-                    // what is in the GraphML file. We also save this ID as the parent ID that was created.
-                    for (String p : nodeProperties.keySet())
-                        if (!p.equals("id"))
-                            traditionNode.setProperty(p, nodeProperties.get(p));
-                    parentId = tradId;
-                    parentLabel = "tradition";
-                    entityMap.put(xmlId, traditionNode);
-                } else {
                     // Now we have the information of the XML, we can create the node.
+                    nodeProperties.remove("neolabel");
                     Node entity = db.createNode();
-                    for (String l : entityLabel) {
-                        try {
-                            entity.addLabel(Nodes.valueOf(l));
-                            nodeProperties.forEach(entity::setProperty);
-                            entityMap.put(xmlId, entity);
-                            // Save section node(s), in case we are uploading individual sections and need to connect
-                            // them to our tradition node
-                            if (neolabel.contains("[SECTION]")) sectionNodes.add(entity);
-                            if (neolabel.contains("[WITNESS]")) witnessNodes.add(entity);
-                            if (neolabel.contains("[ANNOTATIONLABEL]")) annoLabelNodes.add(entity);
-                        } catch (IllegalArgumentException e) {
-                            // This is an annotation node, which we will deal with in a separate pass.
-                            userLabeledNodes.add(entityXML);
-                            entity.delete();
-                        }
+                    for (String l : entityLabel)
+                        entity.addLabel(Nodes.valueOf(l));
+                    nodeProperties.forEach(entity::setProperty);
+                    entityMap.put(xmlId, entity.getId());
+                    // Save section node(s), in case we are uploading individual sections and need to connect
+                    // them to our tradition node
+                    if (neolabel.contains("[SECTION]")) sectionNodes.add(entity.getId());
+                    if (neolabel.contains("[WITNESS]")) witnessNodes.add(entity.getId());
+                    if (neolabel.contains("[ANNOTATIONLABEL]")) annoLabelNodes.add(entity.getId());
+                    // Reset the section ID stored on a reading to the ID of the newly created node
+                    if (neolabel.contains("[READING]")) {
+                        long sectionId = entityMap.get(entity.getProperty("section_id").toString());
+                        if (sectionId < 0)
+                            unresolvedReadings.add(entity.getId());
+                        else
+                            entity.setProperty("section_id", sectionId);
                     }
+                    tx.tick();
+                    break;
                 }
-            }
 
-            // Check the parent type
-            if (parentLabel == null) // i.e. if it hasn't been set to "tradition"
-                if (sectionNodes.size() == 0)
-                    return Response.status(Response.Status.BAD_REQUEST)
-                            .entity(Util.jsonerror("Neither TRADITION nor SECTION found in input")).build();
-                else
-                    parentLabel = "section";
+                case "edge": {
+                    // Create the edges between the nodes, keeping track of the relation types we have seen.
+                    String sourceXmlId = reader.getAttributeValue(null, "source");
+                    String targetXmlId = reader.getAttributeValue(null, "target");
+                    HashMap<String, Object> edgeProperties = returnProperties(reader, "edge", dataKeys);
+                    if (!edgeProperties.containsKey("neolabel"))
+                        return Response.serverError().entity(Util.jsonerror("Node without label found")).build();
+                    String neolabel = edgeProperties.remove("neolabel").toString();
+                    // If this is a SEQUENCE relation, track the sigla so we can be sure the witnesses
+                    // exist (they are not exported for sections.)
+                    if (neolabel.equals("SEQUENCE")) {
+                        for (String layer : edgeProperties.keySet()) {
+                            sigla.addAll(Arrays.asList((String[]) edgeProperties.get(layer)));
+                        }
+                    } else if (neolabel.equals("RELATED")) {
+                        if (!edgeProperties.containsKey("type"))
+                            return Response.status(Response.Status.BAD_REQUEST)
+                                    .entity(Util.jsonerror("Relation defined without a type")).build();
+                        seenRelationTypes.add(edgeProperties.get("type").toString());
+                    }
 
-            // If we have seen multiple sections but no tradition, error out.
-            if (sectionNodes.size() > 1 && parentLabel.equals("section"))
-                return Response.status(Response.Status.BAD_REQUEST)
-                        .entity(Util.jsonerror("Multiple SECTION nodes but no TRADITION in input")).build();
-
-
-            // Next go through all the edges and create them between the nodes. Keep track of the
-            // relation types we have seen.
-            NodeList edgeNodes = rootEl.getElementsByTagName("edge");
-            HashSet<String> seenRelationTypes = new HashSet<>();
-            for (int i = 0; i < edgeNodes.getLength(); i++) {
-                NamedNodeMap edgeAttrs = edgeNodes.item(i).getAttributes();
-                String sourceXmlId = edgeAttrs.getNamedItem("source").getNodeValue();
-                String targetXmlId = edgeAttrs.getNamedItem("target").getNodeValue();
-                Node source = entityMap.get(sourceXmlId);
-                Node target = entityMap.get(targetXmlId);
-                NodeList dataNodes = ((Element) edgeNodes.item(i)).getElementsByTagName("data");
-                HashMap<String, Object> edgeProperties = returnProperties(dataNodes, dataKeys);
-                if (!edgeProperties.containsKey("neolabel"))
-                    return Response.serverError().entity(Util.jsonerror("Node without label found")).build();
-                String neolabel = edgeProperties.remove("neolabel").toString();
-                // If this is a SEQUENCE relation, track the sigla so we can be sure the witnesses
-                // exist (they are not exported for sections.)
-                if (neolabel.equals("SEQUENCE")) {
-                    for (String layer : edgeProperties.keySet()) {
-                        sigla.addAll(Arrays.asList((String[]) edgeProperties.get(layer)));
+                    // If the edge belongs to an annotation, hold it for later.
+                    if (userLabeledNodes.containsKey(sourceXmlId)) {
+                        AnnotationLinkModel alm = new AnnotationLinkModel();
+                        // For now set the XML element ID as the target; this will need to be converted
+                        // progressively into real node IDs.
+                        alm.setTarget(Long.valueOf(targetXmlId));
+                        alm.setType(neolabel);
+                        if (edgeProperties.containsKey("follow")) alm.setFollow(edgeProperties.get("follow").toString());
+                        userLabeledEdges.computeIfAbsent(sourceXmlId, k -> new ArrayList<>()).add(alm);
+                        continue;
                     }
-                } else if (neolabel.equals("RELATED")) {
-                    if (!edgeProperties.containsKey("type"))
+                    // Links from the tradition to its annotations are made when the annotations are added.
+                    if (neolabel.equals("HAS_ANNOTATION") && userLabeledNodes.containsKey(targetXmlId))
+                        continue;
+
+                    long source = entityMap.get(sourceXmlId);
+                    long target = entityMap.get(targetXmlId);
+                    if (source < 0 || target < 0)
                         return Response.status(Response.Status.BAD_REQUEST)
-                                .entity(Util.jsonerror("Relation defined without a type")).build();
-                    seenRelationTypes.add(edgeProperties.get("type").toString());
-                }
-                Relationship newRel;
-                try {
-                    newRel = source.createRelationshipTo(target, ERelations.valueOf(neolabel));
+                                .entity(Util.jsonerror(String.format("Edge %s -> %s refers to a node not yet defined",
+                                        sourceXmlId, targetXmlId))).build();
+                    Relationship newRel = db.getNodeById(source).createRelationshipTo(
+                            db.getNodeById(target), ERelations.valueOf(neolabel));
                     edgeProperties.forEach(newRel::setProperty);
-                } catch (IllegalArgumentException e) {
-                    // We are either here because we tried to link an annotation (which doesn't yet exist)
-                    // to the tradition via a HAS_ANNOTATION link, or because we tried to use a user-defined
-                    // relationship label in the context of an annotation.
-                    // If the former, ignore it (we will add these links later); if the latter, add it to
-                    // our list of user-defined entities that should be dealt with later.
-                    if (!neolabel.equals("HAS_ANNOTATION")) userLabeledEdges.add(edgeNodes.item(i));
+                    tx.tick();
+                    break;
                 }
-            }
 
-            // Connect our new section to an existing tradition node, and to the last existing section,
-            // if this is a section-only upload.
-            if (parentLabel.equals("section")) {
-                Node newSection = sectionNodes.get(0);
-                ArrayList<Node> existingSections = VariantGraphService.getSectionNodes(tradId, db);
-                assert (existingSections != null); // We should have already errored if this will be null.
-                if (existingSections.size() > 0) {
-                    Node lastExisting = existingSections.get(existingSections.size() - 1);
-                    lastExisting.createRelationshipTo(newSection, ERelations.NEXT);
-                }
-                traditionNode.createRelationshipTo(newSection, ERelations.PART);
-                parentId = String.valueOf(newSection.getId());
+                default:
+                    break;
             }
+        }
+        reader.close();
 
-            // Check any witness nodes we created and connect them to the tradition node if they wouldn't
-            // be duplicates
-            for (Node w : witnessNodes) {
-                if (!witnessExists(traditionNode, w) && w.getProperty("hypothetical").equals(false))
-                    traditionNode.createRelationshipTo(w, ERelations.HAS_WITNESS);
+        // Check the parent type
+        if (parentLabel == null) // i.e. if it hasn't been set to "tradition"
+            if (sectionNodes.size() == 0)
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Util.jsonerror("Neither TRADITION nor SECTION found in input")).build();
+            else
+                parentLabel = "section";
+
+        // If we have seen multiple sections but no tradition, error out.
+        if (sectionNodes.size() > 1 && parentLabel.equals("section"))
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(Util.jsonerror("Multiple SECTION nodes but no TRADITION in input")).build();
+
+        if (traditionProperties != null) {
+            // If there is already a different tradition with this tradition ID, we are making a
+            // duplicate and the real ID of this one was set in Root.java; if not, set the ID of the
+            // new tradition node to match the old ID.
+            String fileTraditionId = traditionProperties.remove("id").toString();
+            Node existingTradition = db.findNode(Nodes.TRADITION, "id", fileTraditionId);
+            if (existingTradition == null) {
+                traditionNode.setProperty("id", fileTraditionId);
+                tradId = fileTraditionId;
             }
+            // Reset the rest of the tradition properties according to what is in the GraphML file.
+            traditionProperties.forEach(traditionNode::setProperty);
+            parentId = tradId;
+        }
 
-            // Check any annotation label nodes & associates we created and connect them to the tradition
-            // node if they wouldn't be duplicates
-            for (Node al : annoLabelNodes) {
-                if (!annoLabelExists(traditionNode, al)) {
-                    traditionNode.createRelationshipTo(al, ERelations.HAS_ANNOTATION_TYPE);
-                } else {
-                    // This is a redundant annotation label, so delete it as well as its links and properties.
-                    al.getRelationships(Direction.OUTGOING).forEach(x -> {
-                        x.getEndNode().delete();
-                        x.delete();
-                    });
-                    al.delete();
-                }
+        // Connect our new section to an existing tradition node, and to the last existing section,
+        // if this is a section-only upload.
+        if (parentLabel.equals("section")) {
+            Node newSection = db.getNodeById(sectionNodes.get(0));
+            ArrayList<Node> existingSections = VariantGraphService.getSectionNodes(tradId, db);
+            assert (existingSections != null); // We should have already errored if this will be null.
+            if (existingSections.size() > 0) {
+                Node lastExisting = existingSections.get(existingSections.size() - 1);
+                lastExisting.createRelationshipTo(newSection, ERelations.NEXT);
             }
+            traditionNode.createRelationshipTo(newSection, ERelations.PART);
+            parentId = String.valueOf(newSection.getId());
+        }
 
-            // Reset the section IDs stored on each reading to the ID of the newly created node
-            for (Node r : entityMap.values().stream().filter(x -> x.hasLabel(Nodes.READING)).collect(Collectors.toList())) {
-                String rSectId = r.getProperty("section_id").toString();
-                r.setProperty("section_id", entityMap.get(rSectId).getId());
-            }
+        // Check any witness nodes we created and connect them to the tradition node if they wouldn't
+        // be duplicates
+        for (Long wid : witnessNodes) {
+            Node w = db.getNodeById(wid);
+            if (!witnessExists(traditionNode, w) && w.getProperty("hypothetical").equals(false))
+                traditionNode.createRelationshipTo(w, ERelations.HAS_WITNESS);
+        }
 
-            // Ensure that all witnesses we have encountered actually exist.
-            for (String sigil : sigla) {
-                Util.findOrCreateExtant(traditionNode, sigil);
+        // Check any annotation label nodes & associates we created and connect them to the tradition
+        // node if they wouldn't be duplicates
+        for (Long alid : annoLabelNodes) {
+            Node al = db.getNodeById(alid);
+            if (!annoLabelExists(traditionNode, al)) {
+                traditionNode.createRelationshipTo(al, ERelations.HAS_ANNOTATION_TYPE);
+            } else {
+                // This is a redundant annotation label, so delete it as well as its links and properties.
+                al.getRelationships(Direction.OUTGOING).forEach(x -> {
+                    x.getEndNode().delete();
+                    x.delete();
+                });
+                al.delete();
             }
+        }
 
-            // Ensure that all the relation types we have encountered actually exist.
-            ArrayList<String> existingTypes = new ArrayList<>();
-            traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)
-                    .forEach(x -> existingTypes.add(x.getEndNode().getProperty("name").toString()));
-            for (String rtype : seenRelationTypes) {
-                if (!existingTypes.contains(rtype)) {
-                    Response rtResult = new RelationType(tradId, rtype).makeDefaultType();
-                    if (rtResult.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
-                        return rtResult;
-                }
+        // Resolve the section IDs of any readings that preceded their section in the file
+        for (Long rid : unresolvedReadings) {
+            Node r = db.getNodeById(rid);
+            String rSectId = r.getProperty("section_id").toString();
+            long sectionId = entityMap.get(rSectId);
+            if (sectionId < 0)
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Util.jsonerror("Reading found without a section")).build();
+            r.setProperty("section_id", sectionId);
+        }
+
+        // Ensure that all witnesses we have encountered actually exist.
+        for (String sigil : sigla) {
+            Util.findOrCreateExtant(traditionNode, sigil);
+        }
+
+        // Ensure that all the relation types we have encountered actually exist.
+        ArrayList<String> existingTypes = new ArrayList<>();
+        traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)
+                .forEach(x -> existingTypes.add(x.getEndNode().getProperty("name").toString()));
+        for (String rtype : seenRelationTypes) {
+            if (!existingTypes.contains(rtype)) {
+                Response rtResult = new RelationType(tradId, rtype).makeDefaultType();
+                if (rtResult.getStatus() == Response.Status.INTERNAL_SERVER_ERROR.getStatusCode())
+                    return rtResult;
             }
+        }
 
-            // Now add user-labeled nodes separately, via the existing validation infrastructure.
-            List<AnnotationModel> annotationsToAdd = new ArrayList<>();
-            for (org.w3c.dom.Node xn : userLabeledNodes) {
-                AnnotationModel am = new AnnotationModel();
-                // Get the properties on this annotation node.
-                HashMap<String,Object> props = returnProperties(((Element) xn).getElementsByTagName("data"), dataKeys);
-                // We already know from the first pass that this label exists
-                String annLabel = props.remove("neolabel").toString();
-                annLabel = annLabel.substring(1, annLabel.length() - 1);
-                // Is it marked as a primary annotation?
-                boolean isPrimary = props.containsKey("__primary")
-                        && props.remove("__primary").toString().equals("true");
-                // Fill out the annotation model
-                am.setLabel(annLabel);
-                am.setPrimary(isPrimary);
-                am.setProperties(props);
-                // Add the links, from our collected edges
-                for (org.w3c.dom.Node xe : userLabeledEdges) {
-                    NamedNodeMap edgeAttrs = xe.getAttributes();
-                    String sourceXmlId = edgeAttrs.getNamedItem("source").getNodeValue();
-                    String targetXmlId = edgeAttrs.getNamedItem("target").getNodeValue();
-                    HashMap<String,Object> edgeProps = returnProperties(((Element) xe).getElementsByTagName("data"), dataKeys);
-                    if (sourceXmlId.equals(((Element) xn).getAttribute("id"))) {
-                        // It is a link that belongs to this source. For now set the XML element ID as the
-                        // target; this will need to be converted progressively into real node IDs.
-                        AnnotationLinkModel alm = new AnnotationLinkModel();
-                        alm.setTarget(Long.valueOf(targetXmlId));
-                        alm.setType(edgeProps.get("neolabel").toString());
-                        if (edgeProps.containsKey("follow")) alm.setFollow(edgeProps.get("follow").toString());
-                        am.addLink(alm);
-                    }
+        // Now add user-labeled nodes separately, via the existing validation infrastructure.
+        List<AnnotationModel> annotationsToAdd = new ArrayList<>();
+        for (Map.Entry<String, HashMap<String, Object>> xn : userLabeledNodes.entrySet()) {
+            AnnotationModel am = new AnnotationModel();
+            // Get the properties on this annotation node.
+            HashMap<String,Object> props = xn.getValue();
+            // We already know from the first pass that this label exists
+            String annLabel = props.remove("neolabel").toString();
+            annLabel = annLabel.substring(1, annLabel.length() - 1);
+            // Is it marked as a primary annotation?
+            boolean isPrimary = props.containsKey("__primary")
+                    && props.remove("__primary").toString().equals("true");
+            // Fill out the annotation model
+            am.setLabel(annLabel);
+            am.setPrimary(isPrimary);
+            am.setProperties(props);
+            // Add the links, from our collected edges
+            userLabeledEdges.getOrDefault(xn.getKey(), Collections.emptyList()).forEach(am::addLink);
+            annotationsToAdd.add(am);
+        }
+        while (annotationsToAdd.size() > 0) {
+            Tradition tradService = new Tradition(tradId);
+            List<AnnotationModel> toRemove = new ArrayList<>();
+            for (AnnotationModel am : annotationsToAdd) {
+                // Look at the links and see if the targets exist yet
+                boolean targetsExist = true;
+                for (Long target : am.getLinks().stream().map(AnnotationLinkModel::getTarget).collect(Collectors.toList())) {
+                    targetsExist = targetsExist && entityMap.containsKey(target.toString());
                 }
-                annotationsToAdd.add(am);
-            }
-            while (annotationsToAdd.size() > 0) {
-                Tradition tradService = new Tradition(tradId);
-                List<AnnotationModel> toRemove = new ArrayList<>();
-                for (AnnotationModel am : annotationsToAdd) {
-                    // Look at the links and see if the targets exist yet
-                    boolean targetsExist = true;
-                    for (Long target : am.getLinks().stream().map(AnnotationLinkModel::getTarget).collect(Collectors.toList())) {
-                        targetsExist = targetsExist && entityMap.containsKey(target.toString());
+                if (targetsExist) {
+                    // We can update the links with the "real" nodes and create the annotation.
+                    for (AnnotationLinkModel alm : am.getLinks()) {
+                        alm.setTarget(entityMap.get(alm.getTarget().toString()));
                     }
-                    if (targetsExist) {
-                        // We can update the links with the "real" nodes and create the annotation.
-                        for (AnnotationLinkModel alm : am.getLinks()) {
-                            Node nodeTarget = entityMap.get(alm.getTarget().toString());
-                            alm.setTarget(nodeTarget.getId());
-                        }
-                        Response result = tradService.addAnnotation(am);
-                        if (result.getStatus() != Response.Status.CREATED.getStatusCode()) {
-                            throw new UnsupportedOperationException(String.format(
-                                    "Error on adding user annotation %s/%s: %s",
-                                    am.getId(), am.getLabel(), result.getEntity()));
-                        }
-                        toRemove.add(am);
+                    Response result = tradService.addAnnotation(am);
+                    if (result.getStatus() != Response.Status.CREATED.getStatusCode()) {
+                        throw new UnsupportedOperationException(String.format(
+                                "Error on adding user annotation %s/%s: %s",
+                                am.getId(), am.getLabel(), result.getEntity()));
                     }
+                    toRemove.add(am);
                 }
-                // Guard against infinite loops
-                if (toRemove.isEmpty())
-                    return Response.status(Response.Status.BAD_REQUEST)
-                            .entity(Util.jsonerror("Annotations in XML could not all be resolved")).build();
-                annotationsToAdd.removeAll(toRemove);
             }
+            // Guard against infinite loops
+            if (toRemove.isEmpty())
+                return Response.status(Response.Status.BAD_REQUEST)
+                        .entity(Util.jsonerror("Annotations in XML could not all be resolved")).build();
+            annotationsToAdd.removeAll(toRemove);
+        }
+
+        // Sanity check: if we created any relationship-less nodes, delete them again.
+        entityMap.forEachValue(id -> {
+            try {
+                Node n = db.getNodeById(id);
+                if (!n.hasRelationship()) n.delete();
+            } catch (NotFoundException e) {
+                // It was a redundant annotation label node, and is already gone.
+            }
+        });
 
-            // Sanity check: if we created any relationship-less nodes, delete them again.
-            entityMap.values().stream().filter(n -> !n.hasRelationship()).forEach(Node::delete);
+        String response = String.format("{\"parentId\":\"%s\",\"parentLabel\":\"%s\"}", parentId, parentLabel);
+        return Response.status(Response.Status.CREATED).entity(response).build();
+    }
 
+    // Remove whatever a failed import has already committed, i.e. every node it created along
+    // with its relationships. The tradition node itself is left for the caller to deal with.
+    private void deleteCreatedNodes(XmlIdMap entityMap, Node traditionNode) {
+        try (BatchTransaction tx = new BatchTransaction()) {
+            entityMap.forEachValue(id -> {
+                if (id == traditionNode.getId()) return;
+                try {
+                    Node n = db.getNodeById(id);
+                    n.getRelationships().forEach(Relationship::delete);
+                    n.delete();
+                    tx.tick();
+                } catch (NotFoundException e) {
+                    // It was never committed, or has already been removed.
+                }
+            });
             tx.success();
+        }
+    }
+
+    private static boolean isSystemLabel(String label) {
+        try {
+            Nodes.valueOf(label);
+            return true;
         } catch (IllegalArgumentException e) {
-            return Response.status(Response.Status.BAD_REQUEST).entity(Util.jsonerror(e.getMessage())).build();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().build();
+            return false;
         }
+    }
 
-        String response = String.format("{\"parentId\":\"%s\",\"parentLabel\":\"%s\"}", parentId, parentLabel);
-        return Response.status(Response.Status.CREATED).entity(response).build();
+    // A transaction that commits itself and starts over after every batch of changes, so that
+    // the size of the transaction state stays bounded however large the input is.
+    private class BatchTransaction implements AutoCloseable {
+        private Transaction tx = db.beginTx();
+        private int count = 0;
+
+        void tick() {
+            if (++count < batchSize) return;
+            tx.success();
+            count = 0;
+            try {
+                tx.close();
+            } finally {
+                tx = db.beginTx();
+            }
+        }
+
+        void success() {
+            tx.success();
+        }
+
+        void failure() {
+            tx.failure();
+        }
+
+        @Override
+        public void close() {
+            tx.close();
+        }
     }
 
     // Return true if the tradition already has a witness with the given sigil.
@@ -367,12 +492,19 @@ public class GraphMLParser {
         // If we didn't throw any errors then we can continue.
         return true;
     }
-    private HashMap<String, Object> returnProperties (NodeList dataNodes, HashMap<String, String[]> dataKeys) {
+    // Read the data elements of the current node or edge, up to its closing tag.
+    private HashMap<String, Object> returnProperties (XMLStreamReader reader, String element,
+                                                      HashMap<String, String[]> dataKeys)
+            throws XMLStreamException {
         HashMap<String, Object> nodeProperties = new HashMap<>();
-        for (int j = 0; j < dataNodes.getLength(); j++) {
-            org.w3c.dom.Node datumXML = dataNodes.item(j);
-            String keyCode = datumXML.getAttributes().getNamedItem("key").getNodeValue();
-            String keyVal = datumXML.getTextContent();
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.END_ELEMENT && reader.getLocalName().equals(element))
+                break;
+            if (event != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("data"))
+                continue;
+            String keyCode = reader.getAttributeValue(null, "key");
+            String keyVal = reader.getElementText();
             String[] keyInfo = dataKeys.get(keyCode);
             Object propValue;
             // These datatypes need to be kept in sync with exporter.GraphMLExporter
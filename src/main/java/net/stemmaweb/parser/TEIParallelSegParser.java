@@ -1,10 +1,10 @@
 package net.stemmaweb.parser;
 
-import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.VariantGraphService;
+import net.stemmaweb.services.WitnessStorage;
 import org.neo4j.graphdb.*;
 
 import javax.ws.rs.core.Response;
@@ -13,12 +13,14 @@ import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import java.io.InputStream;
+import java.text.Normalizer;
 import java.util.*;
 import java.util.stream.Collectors;
 
 import static net.stemmaweb.services.ReadingService.addWitnessLink;
 import static net.stemmaweb.services.ReadingService.recalculateRank;
 import static net.stemmaweb.services.ReadingService.removePlaceholder;
+import static net.stemmaweb.services.ReadingService.transferWitnesses;
 
 /**
  * Parse a TEI parallel-segmentation file into a tradition graph.
@@ -51,13 +53,10 @@ public class TEIParallelSegParser {
 
         // Main XML parser loop
         Node traditionNode = DatabaseService.getRelated(parentNode, ERelations.PART).get(0);
-        String tradId;
         String parentId;
         Node startNode;
-        Node endNode = null;
         try (Transaction tx = db.beginTx()) {
             parentId = String.valueOf(parentNode.getId());
-            tradId = traditionNode.getProperty("id").toString();
             // Set up the start node
             startNode = Util.createStartNode(parentNode);
 
@@ -88,7 +87,7 @@ public class TEIParallelSegParser {
 
                             case "text":
                                 // End of the text; add the end node.
-                                endNode = Util.createEndNode(parentNode);
+                                Node endNode = Util.createEndNode(parentNode);
                                 // endNode.setProperty("rank", 0L);
                                 Relationship endLink = documentPrior.createRelationshipTo(endNode, ERelations.SEQUENCE);
                                 setAllWitnesses(endLink);
@@ -179,6 +178,8 @@ public class TEIParallelSegParser {
 
             // Now try re-ranking the nodes.
             recalculateRank(startNode);
+            // Merge all mergeable readings, to get rid of duplicates across apparatus entries.
+            mergeIdenticalReadings(parentNode);
             // Calculate which nodes are common
             VariantGraphService.calculateCommon(parentNode);
             tx.success();
@@ -192,27 +193,6 @@ public class TEIParallelSegParser {
             return Response.serverError().build();
         }
 
-        // Merge all mergeable readings, to get rid of duplicates across apparatus entries.
-        long endRank;
-        try (Transaction tx = db.beginTx()) {
-            assert(endNode != null);
-            endRank = Long.valueOf(endNode.getProperty("rank").toString());
-            tx.success();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return Response.serverError().build();
-        }
-        Section s = new Section(tradId, parentId);
-        for (List<ReadingModel> identSet : s.collectIdenticalReadings(0, endRank)) {
-            ReadingModel first = identSet.remove(0);
-            Reading rd = new Reading(first.getId());
-            for (ReadingModel identical : identSet) {
-                Response done = rd.mergeReadings(Long.valueOf(identical.getId()));
-                if (done.getStatus() != Response.Status.OK.getStatusCode())
-                    return Response.serverError().entity(done.getEntity()).build();
-            }
-        }
-
         return Response.status(Response.Status.CREATED)
                 .entity(String.format("{\"parentId\":\"%s\"}", parentId)).build();
     }
@@ -273,8 +253,7 @@ public class TEIParallelSegParser {
                                         ERelations.SEQUENCE, Direction.OUTGOING);
                                 // Note the witness links that already exist in this app
                                 for (Relationship rel : outgoing)
-                                    if (rel.hasProperty("witnesses"))
-                                        Collections.addAll(hasWitnesses, (String[]) rel.getProperty("witnesses"));
+                                    hasWitnesses.addAll(WitnessStorage.getWitnesses(rel, "witnesses"));
                                 // Add any active wits that are missing in this app
                                 activeWitnesses.keySet().stream().filter(activeWitnesses::get)
                                         .filter(x -> !hasWitnesses.contains(x))
@@ -373,6 +352,30 @@ public class TEIParallelSegParser {
         return contextPrior;
     }
 
+    // Merge the readings that have the same text at the same rank, within the parsing
+    // transaction. Since the merged readings share a rank, no re-ranking is needed.
+    private void mergeIdenticalReadings(Node sectionNode) {
+        HashMap<String, Node> seen = new HashMap<>();
+        List<Node> readings = db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).stream()
+                .sorted(Comparator.comparingLong(Node::getId)).collect(Collectors.toList());
+        for (Node n : readings) {
+            if (!n.hasProperty("rank") || !n.hasProperty("text")) continue;
+            String key = n.getProperty("rank") + "/"
+                    + Normalizer.normalize(n.getProperty("text").toString(), Normalizer.Form.NFC);
+            Node staying = seen.putIfAbsent(key, n);
+            if (staying == null) continue;
+            for (Relationship r : n.getRelationships(ERelations.SEQUENCE, Direction.INCOMING)) {
+                transferWitnesses(r.getStartNode(), staying, r);
+                r.delete();
+            }
+            for (Relationship r : n.getRelationships(ERelations.SEQUENCE, Direction.OUTGOING)) {
+                transferWitnesses(staying, r.getEndNode(), r);
+                r.delete();
+            }
+            n.delete();
+        }
+    }
+
     private ArrayList<Node> makeReadingChain(XMLStreamReader reader, Long sectId,
                                              ArrayList<String> readingWitnesses, String witClass) {
         // Split the character stream into whitespace-separate words
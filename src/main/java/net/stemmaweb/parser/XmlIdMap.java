@@ -0,0 +1,70 @@
+package net.stemmaweb.parser;
+
+import net.stemmaweb.services.LongLongMap;
+
+import java.util.HashMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Maps the element IDs of an XML input file to the database IDs of the nodes created for
+ * them. The numeric IDs that our own exporters write are kept in a LongLongMap, so that
+ * the map costs a few bytes per node rather than an object per entry; any other IDs go
+ * into an ordinary map.
+ *
+ * @author tla
+ */
+class XmlIdMap {
+    private static final long EMPTY = -1;
+
+    private final LongLongMap numeric = new LongLongMap(512);
+    private final HashMap<String, Long> others = new HashMap<>();
+
+    void put(String xmlId, long nodeId) {
+        long key = numericKey(xmlId);
+        if (key == EMPTY)
+            others.put(xmlId, nodeId);
+        else
+            numeric.put(key, nodeId);
+    }
+
+    /**
+     * Returns the node ID stored for the given XML ID, or -1 if there is none.
+     *
+     * @param xmlId - the ID of the XML element
+     * @return the database ID of the node
+     */
+    long get(String xmlId) {
+        long key = numericKey(xmlId);
+        if (key == EMPTY)
+            return others.getOrDefault(xmlId, EMPTY);
+        return numeric.get(key, EMPTY);
+    }
+
+    boolean containsKey(String xmlId) {
+        return get(xmlId) != EMPTY;
+    }
+
+    int size() {
+        return numeric.size() + others.size();
+    }
+
+    void forEachValue(LongConsumer action) {
+        numeric.forEachValue(action);
+        others.values().forEach(action::accept);
+    }
+
+    // Returns the XML ID as a non-negative long if it is a plain number, or EMPTY otherwise.
+    private static long numericKey(String xmlId) {
+        int len = xmlId.length();
+        if (len == 0 || len > 18)
+            return EMPTY;
+        long key = 0;
+        for (int i = 0; i < len; i++) {
+            char c = xmlId.charAt(i);
+            if (c < '0' || c > '9')
+                return EMPTY;
+            key = key * 10 + (c - '0');
+        }
+        return key;
+    }
+}
@@ -0,0 +1,246 @@
+package net.stemmaweb.printer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Renders dot source to SVG with the GraphViz dot program. Renders run on a bounded pool
+ * with a bounded queue, so that only so many dot processes exist at once; each is killed
+ * if it runs past the timeout, or if every request that wanted it has gone away. The
+ * results are kept in an on-disk cache keyed by a hash of the dot source, so that the same
+ * graph is only ever rendered once, and concurrent requests for the same graph share a
+ * single render. Since any edit changes the dot, the least recently used renderings are
+ * deleted whenever the cache grows past its size limit.
+ *
+ * The pool size is set with the system property stemmarest.render.processes, the queue
+ * length with stemmarest.render.queue, how many seconds a request waits for a free process
+ * with stemmarest.render.wait, the render timeout in seconds with stemmarest.render.timeout,
+ * the cache directory with stemmarest.render.cache, and its size limit in bytes with
+ * stemmarest.render.cache.size.
+ *
+ * @author tla
+ */
+public class SvgRenderer {
+
+    private static final int PROCESSES = Integer.getInteger("stemmarest.render.processes",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int TIMEOUT = Integer.getInteger("stemmarest.render.timeout", 30);
+    private static final Path CACHE_DIR = Paths.get(System.getProperty("stemmarest.render.cache",
+            Paths.get(System.getProperty("java.io.tmpdir"), "stemmarest-svg").toString()));
+    private static final int QUEUE = Integer.getInteger("stemmarest.render.queue", 16);
+    private static final int WAIT = Integer.getInteger("stemmarest.render.wait", 60);
+    private static final long CACHE_SIZE = Long.getLong("stemmarest.render.cache.size", 256L << 20);
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(PROCESSES, PROCESSES,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE), new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "svg-render-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    // The renders that are queued or running, by hash
+    private static final ConcurrentHashMap<String, Render> inFlight = new ConcurrentHashMap<>();
+
+    // A render that is queued or running, with the number of requests that are waiting for it
+    private static class Render extends FutureTask<byte[]> {
+        private final String hash;
+        private final CountDownLatch started = new CountDownLatch(1);
+        private int waiters = 1;
+
+        Render(String hash, String dot, Path cached) {
+            super(() -> runDot(dot, cached));
+            this.hash = hash;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            super.run();
+        }
+
+        @Override
+        protected void done() {
+            started.countDown();
+            inFlight.remove(hash, this);
+        }
+
+        // Add a waiting request, unless everyone has already given up on the render
+        synchronized boolean join() {
+            if (waiters == 0)
+                return false;
+            waiters++;
+            return true;
+        }
+
+        // Let go of the render; if nobody else is waiting for it, it isn't worth finishing
+        void leave() {
+            synchronized (this) {
+                if (--waiters > 0)
+                    return;
+            }
+            if (cancel(true))
+                pool.remove(this);
+        }
+
+        void reject(RejectedExecutionException e) {
+            setException(e);
+        }
+    }
+
+    /**
+     * Returns the SVG rendering of the given dot source, from the cache if it has been
+     * rendered before. A request first waits for a free process, for up to the number of
+     * seconds given by stemmarest.render.wait; the render timeout starts once dot does.
+     *
+     * @param dot - the dot source of the graph
+     * @return the SVG document as bytes
+     * @throws RejectedExecutionException if the render queue is full, or no process became free in time
+     * @throws Exception if the render failed or timed out
+     */
+    public static byte[] render(String dot) throws Exception {
+        String hash = hash(dot);
+        Path cached = CACHE_DIR.resolve(hash + ".svg");
+        byte[] svg = readCached(cached);
+        if (svg != null)
+            return svg;
+
+        // Share a render of the same graph that is already under way
+        Render[] created = new Render[1];
+        Render render = inFlight.compute(hash, (k, existing) -> {
+            if (existing != null && existing.join())
+                return existing;
+            created[0] = new Render(hash, dot, cached);
+            return created[0];
+        });
+        if (render == created[0]) {
+            try {
+                pool.execute(render);
+            } catch (RejectedExecutionException e) {
+                render.reject(e);
+            }
+        }
+        try {
+            if (!render.started.await(WAIT, TimeUnit.SECONDS))
+                throw new RejectedExecutionException(
+                        String.format("No renderer became free within %d seconds", WAIT));
+            return render.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } finally {
+            render.leave();
+        }
+    }
+
+    // The cached rendering, or null if there isn't one
+    private static byte[] readCached(Path cached) {
+        if (!Files.exists(cached))
+            return null;
+        try {
+            // Mark it as recently used, so that it is the last to be evicted
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+            return Files.readAllBytes(cached);
+        } catch (IOException e) {
+            // Render it again
+            return null;
+        }
+    }
+
+    // Run the dot program and move its output into the cache
+    private static byte[] runDot(String dot, Path cached) throws Exception {
+        String executable = GraphViz.getDotExecutable();
+        if (executable.equals(""))
+            throw new IOException("The GraphViz dot program could not be found");
+        Files.createDirectories(CACHE_DIR);
+        File source = File.createTempFile("graph_", ".dot.tmp");
+        File output = File.createTempFile("graph_", ".svg.tmp", CACHE_DIR.toFile());
+        File errors = File.createTempFile("graph_", ".err.tmp");
+        try {
+            Files.write(source.toPath(), dot.getBytes(StandardCharsets.UTF_8));
+            Process p = new ProcessBuilder(executable, "-Tsvg", source.getAbsolutePath())
+                    .redirectOutput(output)
+                    .redirectError(errors)
+                    .start();
+            boolean finished;
+            try {
+                finished = p.waitFor(TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // Everyone waiting for the render has given up
+                p.destroyForcibly();
+                throw e;
+            }
+            if (!finished) {
+                p.destroyForcibly();
+                throw new TimeoutException(String.format("dot did not finish within %d seconds", TIMEOUT));
+            }
+            if (p.exitValue() != 0)
+                throw new IOException("dot failed: "
+                        + new String(Files.readAllBytes(errors.toPath()), StandardCharsets.UTF_8).trim());
+            byte[] svg = Files.readAllBytes(output.toPath());
+            Files.move(output.toPath(), cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            evict();
+            return svg;
+        } finally {
+            Files.deleteIfExists(source.toPath());
+            Files.deleteIfExists(output.toPath());
+            Files.deleteIfExists(errors.toPath());
+        }
+    }
+
+    // Delete the least recently used renderings until the cache is within its size limit
+    private static synchronized void evict() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(CACHE_DIR)) {
+            files = listing.filter(x -> x.getFileName().toString().endsWith(".svg")).collect(Collectors.toList());
+        }
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, FileTime> used = new HashMap<>();
+        long total = 0;
+        for (Path f : files) {
+            try {
+                sizes.put(f, Files.size(f));
+                used.put(f, Files.getLastModifiedTime(f));
+                total += sizes.get(f);
+            } catch (NoSuchFileException e) {
+                // Another server sharing the directory got to it first
+            }
+        }
+        List<Path> oldestFirst = new ArrayList<>(used.keySet());
+        oldestFirst.sort(Comparator.comparing(used::get));
+        for (Path f : oldestFirst) {
+            if (total <= CACHE_SIZE) break;
+            Files.deleteIfExists(f);
+            total -= sizes.get(f);
+        }
+    }
+
+    private static String hash(String dot) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest(dot.getBytes(StandardCharsets.UTF_8)))
+                sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
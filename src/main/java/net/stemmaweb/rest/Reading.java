@@ -473,15 +473,13 @@ public class Reading {
             // First get the "normal" witnesses
             Iterable<Relationship> readingSeqs = reading.getRelationships(Direction.BOTH, ERelations.SEQUENCE);
             for (Relationship r : readingSeqs)
-                if (r.hasProperty("witnesses"))
-                    Collections.addAll(normalWitnesses, (String[]) r.getProperty("witnesses"));
+                normalWitnesses.addAll(WitnessStorage.getWitnesses(r, "witnesses"));
             // Now look for the specials, and add them if they are not in the normal witnesses
             for (Relationship r : readingSeqs) {
                 for (String prop : r.getPropertyKeys()) {
                     if (prop.equals("witnesses"))
                         continue;
-                    String[] specialWits = (String[]) r.getProperty(prop);
-                    for (String w : specialWits) {
+                    for (String w : WitnessStorage.getWitnesses(r, prop)) {
                         if (normalWitnesses.contains(w) && !includeAllLayers)
                             continue;
                         normalWitnesses.add(w + " (" + prop + ")");
@@ -533,6 +531,7 @@ public class Reading {
                     return errorResponse(Status.INTERNAL_SERVER_ERROR);
                 }
 
+                CacheService.touch(originalReading);
                 Node newNode = db.createNode();
                 GraphModel localResult = duplicate(newWitnesses, originalReading, newNode);
                 tempDeleted.addAll(localResult.getRelations());
@@ -730,6 +729,7 @@ public class Reading {
             }
 
             // Do the deed
+            CacheService.touch(stayingReading);
             merge(stayingReading, deletingReading);
 
             // TEMPORARY: Check that all affected witnesses still have paths to the end node
@@ -963,6 +963,7 @@ public class Reading {
             if (errorMessage != null)
                 return errorResponse(Status.INTERNAL_SERVER_ERROR);
 
+            CacheService.touch(originalReading);
             readingsAndRelations = split(originalReading, splitIndex, model);
             ReadingService.recalculateRank(originalReading, true);
 
@@ -1193,14 +1194,7 @@ public class Reading {
     // Assumes that we are already in a transaction!
     // Returns true if the sequence contains the given witness layer.
     private Boolean isPathFor(Relationship sequence, String sigil, String layer) {
-        if (sequence.hasProperty(layer)) {
-            String[] wits = (String []) sequence.getProperty(layer);
-            for (String wit : wits) {
-                if (wit.equals(sigil))
-                    return true;
-            }
-        }
-        return false;
+        return WitnessStorage.hasWitness(sequence, sigil, layer);
     }
 
     // Small utility function for parsing witness sigla
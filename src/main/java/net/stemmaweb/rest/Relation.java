@@ -1,7 +1,6 @@
 package net.stemmaweb.rest;
 
 import java.util.*;
-import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import javax.ws.rs.*;
@@ -15,9 +14,12 @@ import net.stemmaweb.model.GraphModel;
 import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
 import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.services.AlignmentClusters;
+import net.stemmaweb.services.CacheService;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 import net.stemmaweb.services.ReadingService;
+import net.stemmaweb.services.ReadingTextIndex;
 
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
@@ -88,59 +90,34 @@ public class Relation {
             assert(orm.isPresent());
             String thisRelId = orm.get().getId();
             if (!scope.equals(SCOPE_LOCAL)) {
-                Boolean use_normal = returnRelationType(tradId, relationModel.getType()).getUse_regular();
+                boolean use_normal = returnRelationType(tradId, relationModel.getType()).getUse_regular();
+                List<RelationModel> propagated = new ArrayList<>();
                 try (Transaction tx = db.beginTx()) {
                     Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
                     Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
-                    Node startingPoint = VariantGraphService.getTraditionNode(tradId, db);
-                    if (scope.equals(SCOPE_SECTION))
-                        startingPoint = db.getNodeById((Long) readingA.getProperty("section_id"));
                     Relationship thisRelation = db.getRelationshipById(Long.valueOf(thisRelId));
-
-                    // Get all the readings that belong to our tradition or section
-                    ResourceIterable<Node> tradReadings = VariantGraphService.returnEntireTradition(startingPoint).nodes();
-                    // Pick out the ones that share the readingA text
-                    Function<Node, Object> nodefilter = (n) -> use_normal && n.hasProperty("normal_form")
-                            ? n.getProperty("normal_form") : (n.hasProperty("text") ? n.getProperty("text"): "");
-                    HashSet<Node> ourA = tradReadings.stream()
-                            .filter(x -> nodefilter.apply(x).equals(nodefilter.apply(readingA)) && !x.equals(readingA))
-                            .collect(Collectors.toCollection(HashSet::new));
-                    HashMap<String, HashSet<Long>> ranks = new HashMap<>();
-                    for (Node cur_node : ourA) {
-                        long node_id = cur_node.getId();
-                        long node_rank = (Long) cur_node.getProperty("rank");
-                        String node_section = cur_node.getProperty("section_id").toString();
-                        String key = node_section + "/" + node_rank;
-                        HashSet<Long> cur_set = ranks.getOrDefault(node_rank, new HashSet<>());
-                        cur_set.add(node_id);
-                        ranks.putIfAbsent(key, cur_set);
-                    }
-
-                    // Pick out the ones that share the readingB text
-                    HashSet<Node> ourB = tradReadings.stream().filter(x -> x.hasProperty("text")
-                            && nodefilter.apply(x).equals(nodefilter.apply(readingB)) && !x.equals(readingB))
-                            .collect(Collectors.toCollection(HashSet::new));
-                    RelationModel userel;
-                    for (Node cur_node : ourB) {
-                        long node_id = cur_node.getId();
-                        long node_rank = (Long) cur_node.getProperty("rank");
-                        String node_section = cur_node.getProperty("section_id").toString();
-                        String key = node_section + "/" + node_rank;
-
-                        HashSet cur_set = ranks.get(key);
-                        if (cur_set != null) {
-                            for (Object id : cur_set) {
-                                userel = new RelationModel(thisRelation);
-                                userel.setSource(Long.toString((Long) id));
-                                userel.setTarget(Long.toString(node_id));
-                                response = this.create_local(userel);
-                                if (Status.NOT_MODIFIED.getStatusCode() != response.getStatus()) {
-                                    if (Status.CREATED.getStatusCode() == response.getStatus()) {
-                                        createResult = (GraphModel) response.getEntity();
-                                        relationChanges.addReadings(createResult.getReadings());
-                                        relationChanges.addRelations(createResult.getRelations());
-                                    }  // This is a best-effort operation, so ignore failures
-                                }
+                    List<Node> sections = scope.equals(SCOPE_SECTION)
+                            ? Collections.singletonList(db.getNodeById((Long) readingA.getProperty("section_id")))
+                            : VariantGraphService.getSectionNodes(tradId, db);
+
+                    // Look up the readings in each section that share the text of readingA and
+                    // readingB respectively, and pair up the ones that share a rank.
+                    String textA = ReadingTextIndex.indexKey(readingA, use_normal);
+                    String textB = ReadingTextIndex.indexKey(readingB, use_normal);
+                    for (Node section : sections) {
+                        ReadingTextIndex index = ReadingTextIndex.forSection(section, use_normal);
+                        HashMap<Object, List<Node>> ourA = new HashMap<>();
+                        for (Node n : index.lookup(textA))
+                            if (!n.equals(readingA) && n.hasProperty("rank"))
+                                ourA.computeIfAbsent(n.getProperty("rank"), k -> new ArrayList<>()).add(n);
+                        for (Node n : index.lookup(textB)) {
+                            if (n.equals(readingB) || !n.hasProperty("rank")) continue;
+                            for (Node a : ourA.getOrDefault(n.getProperty("rank"), Collections.emptyList())) {
+                                if (a.equals(n)) continue;
+                                RelationModel userel = new RelationModel(thisRelation);
+                                userel.setSource(String.valueOf(a.getId()));
+                                userel.setTarget(String.valueOf(n.getId()));
+                                propagated.add(userel);
                             }
                         }
                     }
@@ -149,12 +126,184 @@ public class Relation {
                     e.printStackTrace();
                     return Response.serverError().build();
                 }
+                // This is a best-effort operation, so skip any relations that can't be made
+                if (!propagated.isEmpty()) {
+                    response = this.createRelations(propagated, true);
+                    if (Status.CREATED.getStatusCode() != response.getStatus())
+                        return response;
+                    createResult = (GraphModel) response.getEntity();
+                    relationChanges.addReadings(createResult.getReadings());
+                    relationChanges.addRelations(createResult.getRelations());
+                }
             }
             return Response.status(Status.CREATED).entity(relationChanges).build();
         }
         return Response.status(Status.BAD_REQUEST).entity("Undefined Scope").build();
     }
 
+    /**
+     * Creates a list of new local relations in a single transaction. Either all of the
+     * relations are created, or none of them are; relations that already exist with the
+     * same type are skipped. The readings are re-ranked once per section, after all the
+     * relations have been made.
+     *
+     * @summary Create several relations
+     * @param relationModels - a JSON list of the relations to create
+     * @return The relations created, as well as any readings whose rank changed as a result.
+     * @statuscode 201 - on success
+     * @statuscode 400 - if the list is empty, or if any relation has a non-local scope
+     * @statuscode 409 - if any of the relations cannot legally be created
+     * @statuscode 500 - on failure, with JSON error message
+     */
+    @POST
+    @Path("/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON + "; charset=utf-8")
+    @ReturnType(clazz = GraphModel.class)
+    public Response createBatch(List<RelationModel> relationModels) {
+        if (relationModels == null || relationModels.isEmpty())
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("No relations were given")).build();
+        for (RelationModel rm : relationModels) {
+            if (rm.getScope() == null) rm.setScope(SCOPE_LOCAL);
+            if (!rm.getScope().equals(SCOPE_LOCAL))
+                return Response.status(Status.BAD_REQUEST)
+                        .entity(jsonerror("Only local relations can be created in a batch")).build();
+        }
+        return createRelations(relationModels, false);
+    }
+
+    // Create the given relations in a single transaction, re-ranking each affected section
+    // once at the end. If skipInvalid is set, relations that cannot legally be made are left
+    // out; otherwise they cause the whole operation to fail.
+    private Response createRelations(List<RelationModel> relationModels, boolean skipInvalid) {
+        ArrayList<RelationModel> createdRelations = new ArrayList<>();
+        Set<Node> changedReadings = new HashSet<>();
+        try (Transaction tx = db.beginTx()) {
+            HashMap<String, RelationTypeModel> relationTypes = new HashMap<>();
+            List<Node[]> readingPairs = new ArrayList<>();
+
+            // First check each relation on its own
+            for (RelationModel relationModel : relationModels) {
+                Node readingA = db.getNodeById(Long.parseLong(relationModel.getSource()));
+                Node readingB = db.getNodeById(Long.parseLong(relationModel.getTarget()));
+                Node ourSection = db.getNodeById(Long.valueOf(readingA.getProperty("section_id").toString()));
+                Node ourTradition = ourSection.getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode();
+                String problem = null;
+                if (!ourTradition.getProperty("id").equals(tradId))
+                    problem = "The specified readings do not belong to the specified tradition";
+                else if (!readingA.getProperty("section_id").equals(readingB.getProperty("section_id")))
+                    problem = "Cannot create relation across tradition sections";
+                else if (isMetaReading(readingA) || isMetaReading(readingB))
+                    problem = "Cannot set relation on a meta reading";
+                if (problem != null) {
+                    if (skipInvalid) {
+                        readingPairs.add(null);
+                        continue;
+                    }
+                    return Response.status(Status.CONFLICT).entity(jsonerror(problem)).build();
+                }
+
+                RelationTypeModel rmodel = relationTypes.get(relationModel.getType());
+                if (rmodel == null) {
+                    rmodel = returnRelationType(tradId, relationModel.getType());
+                    relationTypes.put(relationModel.getType(), rmodel);
+                }
+                readingPairs.add(new Node[] {readingA, readingB});
+            }
+
+            // Now check the relations against the alignment, as it grows with each relation,
+            // and write them.
+            HashMap<Long, AlignmentClusters> sectionClusters = new HashMap<>();
+            HashMap<Long, Set<Node>> rerankFrom = new HashMap<>();
+            for (int i = 0; i < relationModels.size(); i++) {
+                RelationModel relationModel = relationModels.get(i);
+                if (readingPairs.get(i) == null) continue;
+                Node readingA = readingPairs.get(i)[0];
+                Node readingB = readingPairs.get(i)[1];
+                Long sectionId = Long.valueOf(readingA.getProperty("section_id").toString());
+                RelationTypeModel rmodel = relationTypes.get(relationModel.getType());
+                Boolean colocation = rmodel.getIs_colocation();
+
+                AlignmentClusters clusters = sectionClusters.get(sectionId);
+                if (clusters == null) {
+                    clusters = new AlignmentClusters(db.getNodeById(sectionId));
+                    sectionClusters.put(sectionId, clusters);
+                }
+                // A colocation displaces any weak relations on its readings, so if those are
+                // what make it cyclic, check it against the alignment as it would be without them.
+                Set<Relationship> displaced = new HashSet<>();
+                if (colocation)
+                    for (Node reading : new Node[] {readingA, readingB})
+                        for (Relationship r : reading.getRelationships(ERelations.RELATED))
+                            if (returnRelationType(tradId, r.getProperty("type").toString()).getIs_weak())
+                                displaced.add(r);
+                String problem = null;
+                boolean isCyclic = clusters.wouldGetCyclic(readingA, readingB);
+                AlignmentClusters withoutDisplaced = null;
+                if (isCyclic && !displaced.isEmpty()) {
+                    withoutDisplaced = new AlignmentClusters(db.getNodeById(sectionId), displaced);
+                    isCyclic = withoutDisplaced.wouldGetCyclic(readingA, readingB);
+                }
+                if (isCyclic && colocation)
+                    problem = String.format("The relation between readings %s and %s would result in a cyclic graph.",
+                            relationModel.getSource(), relationModel.getTarget());
+                else if (!isCyclic && !colocation)
+                    problem = String.format(
+                            "The relation between readings %s and %s is not allowed. The two readings can be co-located.",
+                            relationModel.getSource(), relationModel.getTarget());
+
+                // Skip relations that already exist, and refuse to override strong ones
+                boolean exists = false;
+                for (Relationship relationship : readingA.getRelationships(ERelations.RELATED)) {
+                    if (problem == null && relationship.getOtherNode(readingA).equals(readingB)) {
+                        String existingType = relationship.getProperty("type").toString();
+                        if (existingType.equals(relationModel.getType()))
+                            exists = true;
+                        else if (!returnRelationType(tradId, existingType).getIs_weak())
+                            problem = String.format("Relation of type %s already exists between readings %s and %s",
+                                    existingType, relationModel.getSource(), relationModel.getTarget());
+                    }
+                }
+                if (problem != null && !skipInvalid)
+                    return Response.status(Status.CONFLICT).entity(jsonerror(problem)).build();
+                if (problem != null || exists) continue;
+
+                // Clear away the weak relations that this colocation displaces; the clusters
+                // then have to be taken from the graph as it now stands.
+                if (!displaced.isEmpty()) {
+                    displaced.forEach(Relationship::delete);
+                    CacheService.touch(sectionId);
+                    clusters = withoutDisplaced != null ? withoutDisplaced
+                            : new AlignmentClusters(db.getNodeById(sectionId));
+                    sectionClusters.put(sectionId, clusters);
+                }
+                Relationship relation = writeRelation(readingA, readingB, relationModel, colocation);
+                createdRelations.add(new RelationModel(relation));
+                if (colocation) {
+                    clusters.merge(readingA, readingB);
+                    if (!readingA.getProperty("rank").equals(readingB.getProperty("rank"))) {
+                        Set<Node> starts = rerankFrom.computeIfAbsent(sectionId, k -> new HashSet<>());
+                        starts.add(readingA);
+                        starts.add(readingB);
+                    }
+                }
+            }
+
+            // Re-rank each affected section in one go
+            for (Set<Node> starts : rerankFrom.values())
+                changedReadings.addAll(ReadingService.recalculateRank(starts, false));
+            tx.success();
+        } catch (NotFoundException e) {
+            return Response.status(Status.NOT_FOUND).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        List<ReadingModel> readings = changedReadings.stream().map(ReadingModel::new).collect(Collectors.toList());
+        return Response.status(Status.CREATED)
+                .entity(new GraphModel(readings, createdRelations, new ArrayList<>())).build();
+    }
+
     // Create a relation; return the relation created as well as any reading nodes whose
     // properties (e.g. rank) have changed.
     private Response create_local(RelationModel relationModel) {
@@ -199,18 +348,26 @@ public class Relation {
             // LATER better idea: write a traverser that will disregard weak relations
             Boolean colocation = rmodel.getIs_colocation();
             if (colocation) {
+                // Only a deletion changes the alignment that the cyclicity check below reads
+                boolean deletedWeak = false;
                 Iterable<Relationship> relsA = readingA.getRelationships(ERelations.RELATED);
                 for (Relationship r : relsA) {
                     RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
+                    if (rm.getIs_weak()) {
                         r.delete();
+                        deletedWeak = true;
+                    }
                 }
                 Iterable<Relationship> relsB = readingB.getRelationships(ERelations.RELATED);
                 for (Relationship r : relsB) {
                     RelationTypeModel rm = returnRelationType(tradId, r.getProperty("type").toString());
-                    if (rm.getIs_weak())
+                    if (rm.getIs_weak()) {
                         r.delete();
+                        deletedWeak = true;
+                    }
                 }
+                if (deletedWeak)
+                    CacheService.touch(ourSection.getId());
             }
 
             Boolean isCyclic = ReadingService.wouldGetCyclic(readingA, readingB);
@@ -272,24 +429,7 @@ public class Relation {
         ArrayList<RelationModel> createdRelations = new ArrayList<>();
 
         Boolean colocation = rtm.getIs_colocation();
-        Relationship relationAtoB = readingA.createRelationshipTo(readingB, ERelations.RELATED);
-
-        relationAtoB.setProperty("type", nullToEmptyString(relModel.getType()));
-        relationAtoB.setProperty("scope", nullToEmptyString(relModel.getScope()));
-        relationAtoB.setProperty("annotation", nullToEmptyString(relModel.getAnnotation()));
-        relationAtoB.setProperty("displayform",
-                nullToEmptyString(relModel.getDisplayform()));
-        relationAtoB.setProperty("a_derivable_from_b", relModel.getA_derivable_from_b());
-        relationAtoB.setProperty("b_derivable_from_a", relModel.getB_derivable_from_a());
-        relationAtoB.setProperty("alters_meaning", relModel.getAlters_meaning());
-        relationAtoB.setProperty("is_hyperrelation", relModel.getIs_hyperrelation());
-        relationAtoB.setProperty("hsource", relModel.getHSource());
-        relationAtoB.setProperty("htarget", relModel.getHTarget());
-        relationAtoB.setProperty("is_significant", relModel.getIs_significant());
-        relationAtoB.setProperty("non_independent", relModel.getNon_independent());
-        relationAtoB.setProperty("reading_a", readingA.getProperty("text"));
-        relationAtoB.setProperty("reading_b", readingB.getProperty("text"));
-        if (colocation) relationAtoB.setProperty("colocation", true);
+        Relationship relationAtoB = writeRelation(readingA, readingB, relModel, colocation);
 
         // Recalculate the ranks, if necessary
         Long rankA = (Long) readingA.getProperty("rank");
@@ -311,6 +451,30 @@ public class Relation {
         return new GraphModel(changedReadings, createdRelations, new ArrayList<>());
     }
 
+    // Write the RELATED relationship itself, without any re-ranking.
+    private Relationship writeRelation(Node readingA, Node readingB, RelationModel relModel, Boolean colocation) {
+        Relationship relationAtoB = readingA.createRelationshipTo(readingB, ERelations.RELATED);
+        CacheService.touch(readingA);
+
+        relationAtoB.setProperty("type", nullToEmptyString(relModel.getType()));
+        relationAtoB.setProperty("scope", nullToEmptyString(relModel.getScope()));
+        relationAtoB.setProperty("annotation", nullToEmptyString(relModel.getAnnotation()));
+        relationAtoB.setProperty("displayform",
+                nullToEmptyString(relModel.getDisplayform()));
+        relationAtoB.setProperty("a_derivable_from_b", relModel.getA_derivable_from_b());
+        relationAtoB.setProperty("b_derivable_from_a", relModel.getB_derivable_from_a());
+        relationAtoB.setProperty("alters_meaning", relModel.getAlters_meaning());
+        relationAtoB.setProperty("is_hyperrelation", relModel.getIs_hyperrelation());
+        relationAtoB.setProperty("hsource", relModel.getHSource());
+        relationAtoB.setProperty("htarget", relModel.getHTarget());
+        relationAtoB.setProperty("is_significant", relModel.getIs_significant());
+        relationAtoB.setProperty("non_independent", relModel.getNon_independent());
+        relationAtoB.setProperty("reading_a", readingA.getProperty("text"));
+        relationAtoB.setProperty("reading_b", readingB.getProperty("text"));
+        if (colocation) relationAtoB.setProperty("colocation", true);
+        return relationAtoB;
+    }
+
     /**
      * Checks if a reading is a "Meta"-reading
      *
@@ -430,6 +594,7 @@ public class Relation {
                     } else {
                         Relationship theRel = findRel.get(0);
                         RelationModel relInfo = new RelationModel(theRel);
+                        CacheService.touch(readingA);
                         theRel.delete();
                         deleted.add(relInfo);
                     }
@@ -451,6 +616,7 @@ public class Relation {
                                     && (rel.getStartNode().getProperty("text").equals(rb.getProperty("text"))
                                     || rel.getEndNode().getProperty("text").equals(rb.getProperty("text")))) {
                                 RelationModel relInfo = new RelationModel(rel);
+                                CacheService.touch(rel.getStartNode());
                                 rel.delete();
                                 deleted.add(relInfo);
                             }
@@ -487,6 +653,7 @@ public class Relation {
             Relationship relationship = db.getRelationshipById(Long.parseLong(relationId));
             if(relationship.getType().name().equals("RELATED")) {
                 relationModel = new RelationModel(relationship);
+                CacheService.touch(relationship.getStartNode());
                 relationship.delete();
             } else {
                 return Response.status(Status.FORBIDDEN).entity(jsonerror("This is not a relation link")).build();
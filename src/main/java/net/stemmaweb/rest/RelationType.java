@@ -3,6 +3,7 @@ package net.stemmaweb.rest;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RelationTypeRegistry;
 import net.stemmaweb.services.VariantGraphService;
 import org.neo4j.graphdb.*;
 
@@ -77,6 +78,7 @@ public class RelationType {
         // Find any existing relation type on this tradition
         Node traditionNode = VariantGraphService.getTraditionNode(traditionId, db);
         Node extantRelType = rtModel.lookup(traditionNode);
+        RelationTypeRegistry.invalidate(traditionNode);
 
         if (extantRelType != null) {
             extantRelType = rtModel.update(traditionNode);
@@ -118,6 +120,7 @@ public class RelationType {
                         .entity(jsonerror("Relations of this type still exist; please alter them then try again.")).build();
 
             // Then I guess we can delete it.
+            RelationTypeRegistry.invalidate(tradition);
             foundRelType.getSingleRelationship(ERelations.HAS_RELATION_TYPE, Direction.INCOMING).delete();
             foundRelType.delete();
             tx.success();
@@ -193,6 +196,7 @@ public class RelationType {
                 || useType.equals("other")));
         relType.setUse_regular(!useType.equals("orthographic"));
         // Create the node
+        RelationTypeRegistry.invalidate(tradNode);
         Node result = relType.instantiate(tradNode);
         if (result == null)
             return Response.serverError().entity(jsonerror("Could not instantiate default relation type")).build();
@@ -8,6 +8,7 @@ package net.stemmaweb.rest;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.model.TraditionModel;
 import net.stemmaweb.model.UserModel;
+import net.stemmaweb.services.CacheService;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
 
@@ -269,6 +270,23 @@ public class Root {
         return Response.ok(userList).build();
     }
 
+    /**
+     * Gets the hit and miss counts of the server's caches of derived section data, for
+     * monitoring purposes.
+     *
+     * @summary Get cache statistics
+     *
+     * @return A map of cache name to its hit and miss counts.
+     * @statuscode 200 on success
+     */
+    @GET
+    @Path("/cachestats")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.Map<java.lang.String,java.util.Map<java.lang.String,java.lang.Long>>")
+    public Response getCacheStatistics() {
+        return Response.ok(CacheService.getStatistics()).build();
+    }
+
     private String createTradition(String name, String direction, String language, String isPublic) {
         String tradId = UUID.randomUUID().toString();
         try (Transaction tx = db.beginTx()) {
@@ -213,7 +213,7 @@ public class Section {
         try (Transaction tx = db.beginTx()) {
             for (Relationship relationship : sectionStart.getRelationships(ERelations.SEQUENCE)) {
                 for (String witClass : relationship.getPropertyKeys()) {
-                    for (String sigil : (String[]) relationship.getProperty(witClass)) {
+                    for (String sigil : WitnessStorage.getWitnesses(relationship, witClass)) {
                         for (Node curWitness : traditionWitnesses) {
                             if (sigil.equals(curWitness.getProperty("sigil"))) {
                                 witnessList.add(curWitness);
@@ -486,35 +486,24 @@ public class Section {
         return Response.ok(sectionLemmata).build();
     }
 
-    private List<ReadingModel> collectLemmaReadings(Boolean followFinal, String startFrom, String endAt) {
+    private List<ReadingModel> collectLemmaReadings(Boolean followFinal, String startFrom, String endAt)
+            throws Exception {
         List<ReadingModel> result;
-        Node sectionStart = VariantGraphService.getStartNode(sectId, db);
         Node sectionEnd = VariantGraphService.getEndNode(sectId, db);
         try (Transaction tx = db.beginTx()) {
             long startRank = Long.parseLong(startFrom);
             long endRank = endAt.equals("E")
                     ? Long.parseLong(sectionEnd.getProperty("rank").toString()) - 1
                     : Long.parseLong(endAt);
+            Node sectionNode = db.getNodeById(Long.parseLong(sectId));
+            Stream<Node> inRange = RankIndex.forSection(sectionNode).readingsBetween(startRank, endRank).stream();
             if (followFinal) {
-                ResourceIterable<Node> sectionLemmata = db.traversalDescription().depthFirst()
-                        .relationships(ERelations.LEMMA_TEXT, Direction.OUTGOING)
-                        .evaluator(Evaluators.all())
-                        .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart)
-                        .nodes();
-                // Limit to the requested rank range
-                result = sectionLemmata.stream().map(ReadingModel::new)
-                        .filter(x -> x.getRank() >= startRank && x.getRank() <= endRank)
-                        .collect(Collectors.toList());
+                // The readings in range on the final lemma path, which runs in order of rank
+                result = inRange.filter(x -> x.hasRelationship(ERelations.LEMMA_TEXT))
+                        .map(ReadingModel::new).collect(Collectors.toList());
             } else {
-                result = db.traversalDescription().depthFirst()
-                        .expand(new AlignmentTraverse())
-                        .uniqueness(Uniqueness.NODE_GLOBAL)
-                        .traverse(sectionStart).nodes().stream()
-                        .filter(x -> x.hasLabel(Nodes.READING)
-                                && x.hasProperty("is_lemma")
-                                && x.getProperty("is_lemma").equals(true)
-                                && (Long) x.getProperty("rank") >= startRank
-                                && (Long) x.getProperty("rank") <= endRank)
+                result = inRange.filter(x -> x.hasProperty("is_lemma")
+                                && x.getProperty("is_lemma").equals(true))
                         .map(ReadingModel::new).sorted().collect(Collectors.toList());
             }
             tx.success();
@@ -776,6 +765,7 @@ public class Section {
                         .entity(jsonerror("Rank not found within section")).build();
 
             // Make a new section node and insert it into the sequence
+            CacheService.touch(thisSection.getId());
             Node newSection = db.createNode(Nodes.SECTION);
             VariantGraphService.getTraditionNode(thisSection).createRelationshipTo(newSection, ERelations.PART);
             newSection.setProperty("name", thisSection.getProperty("name") + " split");
@@ -864,22 +854,9 @@ public class Section {
 
 
     @SuppressWarnings("SameParameterValue")
-    private List<Relationship> sequencesCrossingRank(Long rank, Boolean leftfencepost) {
-        Node startNode = VariantGraphService.getStartNode(sectId, db);
-        return db.traversalDescription().depthFirst()
-                .relationships(ERelations.SEQUENCE, Direction.OUTGOING)
-                .evaluator(Evaluators.all())
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(startNode)
-                .relationships().stream().filter(x -> crossesRank(x, rank, leftfencepost))
-                .collect(Collectors.toList());
-    }
-
-    private static boolean crossesRank (Relationship r, Long rank, boolean leftfencepost) {
-        Long startRank = (Long) r.getStartNode().getProperty("rank");
-        Long endRank = (Long) r.getEndNode().getProperty("rank");
-        boolean startsBefore = startRank < rank || (leftfencepost && startRank.equals(rank));
-        boolean endsAfter = endRank > rank || (!leftfencepost && endRank.equals(rank));
-        return startsBefore && endsAfter;
+    private List<Relationship> sequencesCrossingRank(Long rank, Boolean leftfencepost) throws Exception {
+        Node sectionNode = db.getNodeById(Long.parseLong(sectId));
+        return RankIndex.forSection(sectionNode).sequencesCrossing(rank, leftfencepost);
     }
 
     /**
@@ -923,6 +900,9 @@ public class Section {
             } else
                 secondSection = thisSection;
 
+            CacheService.touch(firstSection.getId());
+            CacheService.touch(secondSection.getId());
+
             // Move relationships from the old start & end nodes
             Node oldEnd = VariantGraphService.getEndNode(String.valueOf(firstSection.getId()), db);
             Node oldStart = VariantGraphService.getStartNode(String.valueOf(secondSection.getId()), db);
@@ -955,17 +935,17 @@ public class Section {
             HashSet<String> newWitnesses = new HashSet<>();
             for (Relationship r : oldEnd.getRelationships(ERelations.SEQUENCE))
                 for (String key : r.getPropertyKeys())
-                    oldWitnesses.addAll(Arrays.asList((String[]) r.getProperty(key)));
+                    oldWitnesses.addAll(WitnessStorage.getWitnesses(r, key));
             for (Relationship r : oldStart.getRelationships(ERelations.SEQUENCE))
                 for (String key : r.getPropertyKeys())
-                    newWitnesses.addAll(Arrays.asList((String[]) r.getProperty(key)));
+                    newWitnesses.addAll(WitnessStorage.getWitnesses(r, key));
             newWitnesses.stream().filter(x -> !oldWitnesses.contains(x))
                     .forEach(x -> addWitnessLink(trueStart, oldEnd, x, "witnesses"));
             oldWitnesses.stream().filter(x -> !newWitnesses.contains(x))
                     .forEach(x -> addWitnessLink(oldStart, trueEnd, x, "witnesses"));
             oldWitnesses.addAll(newWitnesses);
             Relationship link = oldEnd.createRelationshipTo(oldStart, ERelations.SEQUENCE);
-            link.setProperty("witnesses", oldWitnesses.toArray(new String[0]));
+            WitnessStorage.setWitnesses(link, "witnesses", oldWitnesses);
 
             // Reconfigure the lemma text link, if there is one
             Relationship plr = oldEnd.getSingleRelationship(ERelations.LEMMA_TEXT, Direction.INCOMING);
@@ -1063,8 +1043,7 @@ public class Section {
 
         List<List<ReadingModel>> couldBeIdenticalReadings;
         try (Transaction tx = db.beginTx()) {
-            List<Node> questionedReadings = getReadingsBetweenRanks(
-                    startRank, endRank, startNode, limitText);
+            List<Node> questionedReadings = getReadingsBetweenRanks(startRank, endRank, limitText);
 
             couldBeIdenticalReadings = getCouldBeIdenticalAsList(questionedReadings, threshold);
             tx.success();
@@ -1076,8 +1055,9 @@ public class Section {
     }
 
     /**
-     * Makes separate lists for every group of readings with identical text and
-     * different ranks and send the list for further test
+     * Groups the readings by their normalised text, and lists every pair within a group
+     * that lies within the rank threshold and could be merged without making the graph
+     * cyclic. The cyclicity checks are answered from the section's reachability index.
      *
      * @param questionedReadings -
      * @return list of lists of identical readings
@@ -1086,30 +1066,34 @@ public class Section {
             List<Node> questionedReadings, long threshold) throws Exception {
 
         List<List<ReadingModel>> couldBeIdenticalReadings = new ArrayList<>();
-        HashSet<Long> processed = new HashSet<>();
-
-        for (Node nodeA : questionedReadings) {
-            if (processed.contains(nodeA.getId()))
-                continue;
-            long aRank = Long.parseLong(nodeA.getProperty("rank").toString());
-            List<Node> sameText = questionedReadings.stream().filter(x -> !x.equals(nodeA)
-                && x.getProperty("text").equals(nodeA.getProperty("text"))
-                && Math.abs(Long.parseLong(x.getProperty("rank").toString()) - aRank) < threshold)
-                    .collect(Collectors.toList());
-            for (Node n : sameText) {
-                if (processed.contains(n.getId()))
-                    continue;
-                if (!wouldGetCyclic(nodeA, n)) {
-                    // Get the reading models
-                    ReadingModel rma = new ReadingModel(nodeA);
-                    ReadingModel rmn = new ReadingModel(n);
-                    // Order them by descending number of witnesses
-                    ArrayList<ReadingModel> pair = new ArrayList<>(Arrays.asList(rma, rmn));
-                    pair.sort((a, b) -> b.getWitnesses().size() - a.getWitnesses().size());
-                    couldBeIdenticalReadings.add(pair);
+        Map<String, List<Node>> byText = new LinkedHashMap<>();
+        for (Node n : questionedReadings)
+            byText.computeIfAbsent(Normalizer.normalize(n.getProperty("text").toString(), Normalizer.Form.NFC),
+                    k -> new ArrayList<>()).add(n);
+        if (byText.values().stream().allMatch(x -> x.size() < 2))
+            return couldBeIdenticalReadings;
+
+        ReachabilityIndex reachability = ReachabilityIndex.forSection(db.getNodeById(Long.parseLong(sectId)));
+        for (List<Node> sameText : byText.values()) {
+            sameText.sort(Comparator.comparingLong(x -> Long.parseLong(x.getProperty("rank").toString())));
+            for (int i = 0; i < sameText.size(); i++) {
+                Node nodeA = sameText.get(i);
+                long aRank = Long.parseLong(nodeA.getProperty("rank").toString());
+                for (int j = i + 1; j < sameText.size(); j++) {
+                    Node n = sameText.get(j);
+                    if (Long.parseLong(n.getProperty("rank").toString()) - aRank >= threshold)
+                        break;
+                    if (!reachability.wouldGetCyclic(nodeA, n)) {
+                        // Get the reading models
+                        ReadingModel rma = new ReadingModel(nodeA);
+                        ReadingModel rmn = new ReadingModel(n);
+                        // Order them by descending number of witnesses
+                        ArrayList<ReadingModel> pair = new ArrayList<>(Arrays.asList(rma, rmn));
+                        pair.sort((a, b) -> b.getWitnesses().size() - a.getWitnesses().size());
+                        couldBeIdenticalReadings.add(pair);
+                    }
                 }
             }
-            processed.add(nodeA.getId());
         }
         return couldBeIdenticalReadings.stream()
                 .sorted(Comparator.comparingLong(this::rankDifference))
@@ -1121,17 +1105,13 @@ public class Section {
         return Math.abs(pair.get(1).getRank() - pair.get(0).getRank());
     }
 
-    // Retrieve all readings of a tradition between two ranks as Nodes
-    @SuppressWarnings("rawtypes")
-    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, Node startNode, String limitText) throws Exception {
+    // Retrieve all readings of a section between two ranks as Nodes
+    private List<Node> getReadingsBetweenRanks(long startRank, long endRank, String limitText) throws Exception {
         List<Node> readings;
-        PathExpander e = new AlignmentTraverse(startNode);
         try (Transaction tx = db.beginTx()) {
-            Stream<Node> readingStream = db.traversalDescription().depthFirst()
-                    .expand(e).uniqueness(Uniqueness.NODE_GLOBAL)
-                    .traverse(startNode).nodes().stream()
-                    .filter(x -> startRank <= Long.parseLong(x.getProperty("rank").toString()) &&
-                            endRank >= Long.parseLong(x.getProperty("rank").toString()));
+            Node sectionNode = db.getNodeById(Long.parseLong(sectId));
+            Stream<Node> readingStream = RankIndex.forSection(sectionNode)
+                    .readingsBetween(startRank, endRank).stream();
             if (!limitText.equals(""))
                 readingStream = readingStream.filter(x -> x.getProperty("text").toString().equals(limitText));
             readings = readingStream.collect(Collectors.toList());
@@ -1191,7 +1171,7 @@ public class Section {
     private ArrayList<ReadingModel> getAllReadingsFromSectionBetweenRanks(
             Node startNode, long startRank, long endRank) throws Exception {
         ArrayList<ReadingModel> readingModels = new ArrayList<>();
-        getReadingsBetweenRanks(startRank, endRank, startNode, "")
+        getReadingsBetweenRanks(startRank, endRank, "")
                 .forEach(x -> readingModels.add(new ReadingModel(x)));
         readingModels.sort(Comparator.comparing(ReadingModel::getRank));
         return readingModels;
@@ -1510,6 +1490,43 @@ public class Section {
         return exporter.writeNeo4J(tradId, sectId, dm);
     }
 
+    /**
+     * Returns an SVG rendering of the GraphViz dot for the specified section. Renderings are
+     * cached, so a section that hasn't changed since it was last drawn with the same options
+     * is not drawn again.
+     *
+     * @summary Download SVG
+     * @param includeRelatedRelationships - Include RELATED edges in the dot, if true
+     * @param showNormalForms - Display normal form of readings alongside "raw" text form, if true
+     * @param showRank - Display the rank of readings, if true
+     * @param displayAllSigla - Avoid the 'majority' contraction of long witness labels, if true
+     * @param normalise - RelationType names to normalise on, if desired
+     * @param excWitnesses - Exclude the given witness from the dot output. Can be specified multiple times
+     * @return SVG image
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such tradition or section exists
+     * @statuscode 500 - on failure, including if the rendering timed out
+     * @statuscode 503 - if too many renderings are already waiting
+     */
+    @GET
+    @Path("/svg")
+    @Produces("image/svg+xml")
+    @ReturnType(clazz = String.class)
+    public Response getSvg(@DefaultValue("false") @QueryParam("include_relations") Boolean includeRelatedRelationships,
+                           @DefaultValue("false") @QueryParam("show_normal") Boolean showNormalForms,
+                           @DefaultValue("false") @QueryParam("show_rank") Boolean showRank,
+                           @DefaultValue("false") @QueryParam("expand_sigla") Boolean displayAllSigla,
+                                                  @QueryParam("normalise") List<String> normalise,
+                                                  @QueryParam("exclude_witness") List<String> excWitnesses) {
+        if (VariantGraphService.getTraditionNode(tradId, db) == null)
+            return Response.status(Response.Status.NOT_FOUND).entity("No such tradition found").build();
+
+        DisplayOptionModel dm = new DisplayOptionModel(
+                includeRelatedRelationships, showNormalForms, showRank, displayAllSigla, normalise, excWitnesses);
+        DotExporter exporter = new DotExporter(db);
+        return exporter.writeNeo4JAsSvg(tradId, sectId, dm);
+    }
+
     /**
      * Returns an alignment table for the section in JSON format.
      *
@@ -1771,6 +1788,30 @@ public class Section {
                 thisSection, "true".equals(excludeLayers));
     }
 
+    /**
+     * Returns the pairwise agreement between the witnesses of the section, counted over every
+     * rank of its alignment. Ranks where either witness of a pair is lacunose are left out of
+     * that pair's counts and distance.
+     *
+     * @summary Get witness distance matrix
+     *
+     * @param toConflate   - Zero or more relationship types whose readings should be treated as identical
+     * @param excludeLayers - If "true", exclude witness layers from the output.
+     * @return the agreement counts and distances for each pair of witnesses
+     * @statuscode 200 - on success
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("/distance")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType(clazz = WitnessDistanceModel.class)
+    public Response getDistanceMatrix(@QueryParam("conflate") List<String> toConflate,
+                                      @QueryParam("exclude_layers") String excludeLayers) {
+        List<String> thisSection = new ArrayList<>(Collections.singletonList(sectId));
+        return new TabularExporter(db).exportAsDistanceMatrix(tradId, toConflate,
+                thisSection, "true".equals(excludeLayers));
+    }
+
     // For use in a transaction!
     private void removeFromSequence (Node thisSection) {
         Node priorSection = null;
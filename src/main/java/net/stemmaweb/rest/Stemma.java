@@ -1,8 +1,10 @@
 package net.stemmaweb.rest;
 
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.ws.rs.*;
 import javax.ws.rs.Path;
@@ -11,10 +13,16 @@ import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
 
 import com.qmino.miredot.annotations.ReturnType;
+import net.stemmaweb.exporter.DotExporter;
+import net.stemmaweb.exporter.GenealogicalAnalysis;
 import net.stemmaweb.model.StemmaModel;
+import net.stemmaweb.model.VariantListModel;
 import net.stemmaweb.parser.DotParser;
 import net.stemmaweb.parser.NewickParser;
+import net.stemmaweb.printer.SvgRenderer;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.StemmaGraph;
+import net.stemmaweb.services.VariantGraphService;
 
 import org.neo4j.graphdb.*;
 
@@ -67,6 +75,105 @@ public class Stemma {
         return Response.status(returncode).entity(result).build();
     }
 
+    /**
+     * Returns an SVG rendering of the specified stemma. Renderings are cached, so a stemma
+     * that hasn't changed since it was last drawn is not drawn again.
+     *
+     * @summary Get stemma as SVG
+     * @return The SVG image of the stemma
+     * @statuscode 200 - on success
+     * @statuscode 404 - if no such stemma exists
+     * @statuscode 500 - on failure, including if the rendering timed out
+     * @statuscode 503 - if too many renderings are already waiting
+     */
+    @GET
+    @Path("svg")
+    @Produces("image/svg+xml")
+    @ReturnType(clazz = String.class)
+    public Response getStemmaAsSvg() {
+        if (getStemmaNode() == null) {
+            return Response.status(Status.NOT_FOUND)
+                    .entity(jsonerror(String.format("No stemma %s found for tradition %s", name, tradId))).build();
+        }
+        Response dotResult = new DotExporter(db).writeNeo4JStemma(tradId, name, false);
+        if (dotResult.getStatus() != Status.OK.getStatusCode())
+            return dotResult;
+        try {
+            return Response.ok(SvgRenderer.render(dotResult.getEntity().toString())).build();
+        } catch (RejectedExecutionException e) {
+            return Response.status(Status.SERVICE_UNAVAILABLE).entity(jsonerror(e.getMessage())).build();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+    }
+
+    /**
+     * Checks each variant location of the tradition against the stemma. For every location this
+     * gives the groups of stemma witnesses that share a reading, the least number of changes of
+     * reading that the stemma needs to explain them, and whether the location is genealogical,
+     * i.e. whether each reading need only have arisen once. The variant locations are found as for
+     * the section 'variants' call, and the parameters have the same meaning.
+     *
+     * @summary Analyse variants against stemma
+     * @param sectionList - Restrict the analysis to the given sections. Can be specified multiple times.
+     * @param significant - Restrict the variant groups to the given significance level or above
+     * @param excludeType1 - If true, exclude type 1 (i.e. singleton) variants from the groupings
+     * @param excludeNonsense - If true, disregard readings marked as nonsense
+     * @param combine - If true, attempt to combine non-colocated variants (e.g. transpositions) into
+     *                the VariantLocationModel of the corresponding base
+     * @param suppressMatching - A regular expression to match readings that should be disregarded in the
+     *                 variant list. Defaults to punctuation-only readings.
+     * @param baseWitness  - Use the path of the given witness as the base path.
+     * @param conflate - The name of relations that should be used for normalization
+     * @param excWitnesses - One or more witnesses that should be excluded from the analysis
+     * @return a list of VariantAnalysisModels, one per variant location
+     * @statuscode 200 - on success
+     * @statuscode 400 - if a requested section is not in this tradition
+     * @statuscode 404 - if no such stemma exists
+     * @statuscode 412 - if the stemma is not a tree, e.g. because it is contaminated
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("analysis")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType("java.util.List<net.stemmaweb.model.VariantAnalysisModel>")
+    public Response analyseVariants(@QueryParam("section") List<String> sectionList,
+                                    @DefaultValue("no") @QueryParam("significant") String significant,
+                                    @DefaultValue("no") @QueryParam("exclude_type1") String excludeType1,
+                                    @DefaultValue("no") @QueryParam("exclude_nonsense") String excludeNonsense,
+                                    @DefaultValue("no") @QueryParam("combine_dislocations") String combine,
+                                    @DefaultValue("punct") @QueryParam("suppress_matching") String suppressMatching,
+                                    @QueryParam("base_witness") String baseWitness,
+                                    @QueryParam("normalize") List<String> conflate,
+                                    @QueryParam("exclude_witness") List<String> excWitnesses) {
+        Node stemmaNode = getStemmaNode();
+        if (stemmaNode == null)
+            return Response.status(Status.NOT_FOUND)
+                    .entity(jsonerror(String.format("No stemma %s found for tradition %s", name, tradId))).build();
+        StemmaGraph stemma;
+        List<Node> sections = new ArrayList<>();
+        try (Transaction tx = db.beginTx()) {
+            stemma = StemmaGraph.forStemma(stemmaNode);
+            for (Node s : VariantGraphService.getSectionNodes(tradId, db))
+                if (sectionList.isEmpty() || sectionList.contains(String.valueOf(s.getId())))
+                    sections.add(s);
+            tx.success();
+        }
+        if (sections.size() < sectionList.size())
+            return Response.status(Status.BAD_REQUEST)
+                    .entity(jsonerror("Not all requested sections belong to this tradition")).build();
+        if (!stemma.isTree())
+            return Response.status(Status.PRECONDITION_FAILED)
+                    .entity(jsonerror("Only a stemma without contamination can be analysed")).build();
+
+        GenealogicalAnalysis analysis = new GenealogicalAnalysis(db, stemma, excWitnesses,
+                sectionNode -> new VariantListModel(sectionNode, baseWitness, excWitnesses, conflate,
+                        suppressMatching, !excludeNonsense.equals("no"), !excludeType1.equals("no"),
+                        significant, !combine.equals("no")));
+        return Response.ok(analysis.stream(sections)).build();
+    }
+
     /**
      * Stores a new or updated stemma under the given name.
      *
@@ -137,6 +244,7 @@ public class Stemma {
         try (Transaction tx = db.beginTx()) {
             Set<Relationship> removableRelations = new HashSet<>();
             Set<Node> removableNodes = new HashSet<>();
+            StemmaGraph.invalidate(stemmaNode);
 
             // The stemma is removable
             removableNodes.add(stemmaNode);
@@ -189,16 +297,11 @@ public class Stemma {
         try (Transaction tx = db.beginTx())
         {
             // Get the stemma and the witness
-            Result foundStemma = db.execute("match (:TRADITION {id:'" + tradId
-                    + "'})-[:HAS_STEMMA]->(s:STEMMA {name:'" + name
-                    + "'})-[:HAS_WITNESS]->(w:WITNESS {sigil:'" + nodeId + "'}) return s, w");
-            if(!foundStemma.hasNext())
+            Node stemma = getStemmaNode();
+            StemmaGraph.Witness found = stemma == null ? null : StemmaGraph.forStemma(stemma).getWitness(nodeId);
+            if (found == null)
                 return Response.status(Status.NOT_FOUND).entity(jsonerror("No such witness found in stemma")).build();
-
-            // Fish the stemma and requested archetype out of the query
-            Map<String, Object> queryRow = foundStemma.next();
-            Node stemma    = (Node) queryRow.get("s");
-            Node archetype = (Node) queryRow.get("w");
+            Node archetype = db.getNodeById(found.getNodeId());
 
             // Check if the stemma has contamination. If so it can't be reoriented!
             if (stemma.hasProperty("is_contaminated"))
@@ -206,6 +309,7 @@ public class Stemma {
                         .entity(jsonerror("Contaminated stemma cannot be reoriented")).build();
 
             // Delete its current HAS_ARCHETYPE, if any
+            StemmaGraph.invalidate(stemma);
             Relationship currentArchetype = stemma.getSingleRelationship(ERelations.HAS_ARCHETYPE, Direction.OUTGOING);
             if (currentArchetype != null)
                 currentArchetype.delete();
@@ -223,14 +327,11 @@ public class Stemma {
 
     private Node getStemmaNode () {
         try (Transaction tx = db.beginTx()) {
-            Result query = db.execute("match (:TRADITION {id:'" + tradId
-                    + "'})-[:HAS_STEMMA]->(s:STEMMA {name:'" + name + "'}) return s");
-            ResourceIterator<Node> foundStemma = query.columnAs("s");
+            Node traditionNode = db.findNode(Nodes.TRADITION, "id", tradId);
+            Node stemmaNode = traditionNode == null ? null : StemmaGraph.findStemma(traditionNode, name);
             tx.success();
-            if (!foundStemma.hasNext())
-                return null;
-            return foundStemma.next();
+            return stemmaNode;
         }
     }
 
-}
\ No newline at end of file
+}
@@ -5,6 +5,7 @@ import com.qmino.miredot.annotations.MireDotIgnore;
 import com.qmino.miredot.annotations.ReturnType;
 import net.stemmaweb.exporter.DotExporter;
 import net.stemmaweb.exporter.GraphMLExporter;
+import net.stemmaweb.exporter.StemmaInference;
 import net.stemmaweb.exporter.StemmawebExporter;
 import net.stemmaweb.exporter.TabularExporter;
 import net.stemmaweb.model.*;
@@ -349,6 +350,34 @@ public class Tradition {
 
     }
 
+    /**
+     * Sets how the witness sigla on the tradition's sequences are stored: either as lists of
+     * sigla, or as bitsets over a dictionary of sigla that is kept with the tradition. The
+     * bitsets take much less space for traditions with many witnesses. Returns the number of
+     * sequences that were rewritten.
+     *
+     * This does not belong to the official API!
+     *
+     * @param bitsets - true if the sigla should be stored as bitsets
+     */
+    @PUT
+    @Path("/witnessstorage")
+    @Produces(MediaType.APPLICATION_JSON)
+    @MireDotIgnore
+    public Response setWitnessStorage(@DefaultValue("true") @QueryParam("bitsets") Boolean bitsets) {
+        Node traditionNode = VariantGraphService.getTraditionNode(traditionId, db);
+        if (traditionNode == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("tradition not found")).build();
+        long converted;
+        try {
+            converted = WitnessStorage.convert(traditionNode, bitsets);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return Response.serverError().entity(jsonerror(e.getMessage())).build();
+        }
+        return Response.ok(jsonresp("converted", converted)).build();
+    }
+
     /*----------------------------*
      * Collection retrieval calls *
      *----------------------------*/
@@ -1006,4 +1035,96 @@ public class Tradition {
                 sectionList, "true".equals(excludeLayers));
     }
 
+    /**
+     * Returns the pairwise agreement between the witnesses of the tradition, counted over every
+     * rank of the alignment. Ranks where either witness of a pair is lacunose, or absent from the
+     * section, are left out of that pair's counts and distance.
+     *
+     * @summary Get witness distance matrix
+     *
+     * @param toConflate   - Zero or more relationship types whose readings should be treated as identical
+     * @param sectionList - Restrict the output to include the given sections. Can be specified multiple times.
+     * @param excludeLayers - If "true", exclude witness layers from the output.
+     * @return the agreement counts and distances for each pair of witnesses
+     * @statuscode 200 - on success
+     * @statuscode 400 - if a requested section is not found
+     * @statuscode 404 - if no such tradition exists
+     * @statuscode 500 - on failure, with an error message
+     */
+    @GET
+    @Path("/distance")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType(clazz = WitnessDistanceModel.class)
+    public Response getDistanceMatrix(@QueryParam("conflate") List<String> toConflate,
+                                      @QueryParam("section") List<String> sectionList,
+                                      @QueryParam("exclude_layers") String excludeLayers) {
+        return new TabularExporter(db).exportAsDistanceMatrix(traditionId, toConflate,
+                sectionList, "true".equals(excludeLayers));
+    }
+
+    /**
+     * Starts a background job that infers a stemma from the collation, by neighbour-joining on
+     * the witness distance matrix and, if requested, a parsimony search over the character
+     * matrix. The result is saved as a new undirected stemma of the tradition, with the
+     * witnesses as its leaves and hypothetical witnesses where it branches. Witness layers are
+     * left out.
+     *
+     * @summary Infer a stemma
+     *
+     * @param name         - The name of the new stemma. Defaults to "Inferred stemma" and the current time.
+     * @param method       - Either 'nj' for neighbour-joining, or 'parsimony' to improve the neighbour-joining
+     *                       tree by parsimony. Default is 'nj'.
+     * @param toConflate   - Zero or more relationship types whose readings should be treated as identical
+     * @param sectionList - Restrict the inference to the given sections. Can be specified multiple times.
+     * @param maxVars      - Maximum number of variants per location, above which that location will be left
+     *                       out of the parsimony search. Default is 8.
+     * @return the job that was started
+     * @statuscode 202 - on success
+     * @statuscode 400 - if the method or maxVars is invalid, or a requested section is not found
+     * @statuscode 404 - if no such tradition exists
+     * @statuscode 409 - if the tradition already has a stemma by this name
+     * @statuscode 500 - on failure, with an error message
+     * @statuscode 503 - if too many jobs are already waiting
+     */
+    @POST
+    @Path("/inferStemma")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType(clazz = StemmaJobModel.class)
+    public Response inferStemma(@QueryParam("name") String name,
+                                @DefaultValue(StemmaInference.NEIGHBOUR_JOINING) @QueryParam("method") String method,
+                                @QueryParam("conflate") List<String> toConflate,
+                                @QueryParam("section") List<String> sectionList,
+                                @DefaultValue("8") @QueryParam("maxVars") int maxVars) {
+        if (!method.equals(StemmaInference.NEIGHBOUR_JOINING) && !method.equals(StemmaInference.PARSIMONY))
+            return Response.status(Status.BAD_REQUEST).entity(jsonerror("Unknown method " + method)).build();
+        if (maxVars < 2 || maxVars > StemmaInference.MAX_VARS)
+            return Response.status(Status.BAD_REQUEST).entity(
+                    jsonerror("maxVars must be between 2 and " + StemmaInference.MAX_VARS)).build();
+        if (name == null || name.equals(""))
+            name = String.format("Inferred stemma %s", now());
+        return new TabularExporter(db).inferStemma(traditionId, name, method, maxVars, toConflate, sectionList);
+    }
+
+    /**
+     * Gets the state of a stemma inference job: 'queued', 'running', 'done', or 'failed'
+     * with an error message.
+     *
+     * @summary Get stemma inference job
+     *
+     * @param jobId - the ID of the job
+     * @return the job
+     * @statuscode 200 - on success
+     * @statuscode 404 - if there is no such job for this tradition
+     */
+    @GET
+    @Path("/inferStemma/{jobId}")
+    @Produces("application/json; charset=utf-8")
+    @ReturnType(clazz = StemmaJobModel.class)
+    public Response getStemmaJob(@PathParam("jobId") int jobId) {
+        StemmaJobModel job = StemmaInference.getJob(traditionId, jobId);
+        if (job == null)
+            return Response.status(Status.NOT_FOUND).entity(jsonerror("No such job for this tradition")).build();
+        return Response.ok(job).build();
+    }
+
 }
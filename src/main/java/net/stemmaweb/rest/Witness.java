@@ -265,14 +265,8 @@ public class Witness {
                 endRank = tempRank;
             }
 
-            Node startNode = VariantGraphService.getStartNode(String.valueOf(currentSection.getId()), db);
             try (Transaction tx = db.beginTx()) {
-                final long sr = startRank;
-                final long er = endRank;
-                witnessReadings.addAll(traverseReadings(startNode, layer).stream()
-                        .filter(x -> Long.valueOf(x.getProperty("rank").toString()) >= sr
-                                && Long.valueOf(x.getProperty("rank").toString()) <= er)
-                        .collect(Collectors.toList()));
+                witnessReadings.addAll(traverseReadings(currentSection, layer, startRank, endRank));
                 tx.success();
             } catch (Exception e) {
                 if (e.getMessage().equals("CONFLICT"))
@@ -364,6 +358,46 @@ public class Witness {
         return result;
     }
 
+    // Return the witness's readings between the given ranks. Rather than following the witness from
+    // the start of the section, use the section's rank index to find where the witness path crosses
+    // the start rank, and stop once the end rank has been passed.
+    // For use within a transaction
+    private ArrayList<Node> traverseReadings(Node sectionNode, List<String> witnessClass,
+                                             long startRank, long endRank) throws Exception {
+        WitnessPath path = new WitnessPath(sigil, witnessClass);
+        Node current = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+        if (startRank > 0) {
+            // The path crosses the rank on one of the requested layers if any of them does so,
+            // and otherwise on the witness's main sequence.
+            Relationship crossing = null;
+            for (Relationship r : RankIndex.forSection(sectionNode).sequencesCrossing(startRank, false)) {
+                if (witnessClass.stream().anyMatch(l -> WitnessStorage.hasWitness(r, sigil, l))) {
+                    crossing = r;
+                    break;
+                }
+                if (WitnessStorage.hasWitness(r, sigil, "witnesses"))
+                    crossing = r;
+            }
+            if (crossing != null)
+                current = crossing.getStartNode();
+        }
+
+        ArrayList<Node> result = new ArrayList<>();
+        Node last = null;
+        for (Node n = path.next(SequenceEdge.outgoing(current)); n != null; n = path.next(SequenceEdge.outgoing(n))) {
+            long rank = Long.parseLong(n.getProperty("rank").toString());
+            if (rank > endRank)
+                return result;
+            if (rank >= startRank)
+                result.add(n);
+            last = n;
+        }
+        // If the path is nonzero but the end node wasn't reached, we had a conflict.
+        if (last != null && !last.hasProperty("is_end"))
+            throw new Exception("CONFLICT");
+        return result;
+    }
+
     private ArrayList<Node> sectionsRequested() {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         if (traditionNode == null) {
@@ -0,0 +1,208 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * An in-memory picture of a section's alignment, i.e. its readings grouped into colocated
+ * clusters and the sequences that connect them, which can be updated as new colocations
+ * are made. It answers the same question as ReachabilityIndex, but can be kept up to
+ * date across several changes made in one transaction, before the ranks are recalculated.
+ * NOTE: for use in a transaction!
+ *
+ * @author tla
+ */
+public class AlignmentClusters {
+    private final LongLongMap index;
+    // Union-find over the readings; each cluster's members also form a circular list
+    private final int[] parent;
+    private final int[] nextMember;
+    // The readings that follow each reading, by SEQUENCE, EMENDED, or LEMMA_TEXT
+    private final int[][] successors;
+
+    /**
+     * Builds the cluster structure for the given section from its current colocations.
+     *
+     * @param sectionNode - the section whose alignment this is
+     * @throws Exception if the existing colocation clusters can't be collected
+     */
+    public AlignmentClusters(Node sectionNode) throws Exception {
+        this(sectionNode, Collections.emptySet());
+    }
+
+    /**
+     * Builds the cluster structure for the given section as it would be without the given
+     * relations, e.g. the weak ones that a new colocation would displace.
+     *
+     * @param sectionNode - the section whose alignment this is
+     * @param without     - the RELATED relationships to leave out
+     * @throws Exception if the existing colocation clusters can't be collected
+     */
+    public AlignmentClusters(Node sectionNode, Set<Relationship> without) throws Exception {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        String sectionId = String.valueOf(sectionNode.getId());
+        String tradId = VariantGraphService.getTraditionNode(sectionNode).getProperty("id").toString();
+
+        List<Node> readings = new ArrayList<>();
+        db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).forEachRemaining(readings::add);
+        index = new LongLongMap(readings.size());
+        for (int i = 0; i < readings.size(); i++)
+            index.put(readings.get(i).getId(), i);
+
+        parent = new int[readings.size()];
+        nextMember = new int[readings.size()];
+        successors = new int[readings.size()][];
+        for (int i = 0; i < readings.size(); i++) {
+            parent[i] = i;
+            nextMember[i] = i;
+            List<Integer> following = new ArrayList<>();
+            for (Relationship r : readings.get(i).getRelationships(Direction.OUTGOING,
+                    ERelations.SEQUENCE, ERelations.EMENDED, ERelations.LEMMA_TEXT)) {
+                long j = index.get(r.getEndNode().getId(), -1);
+                if (j >= 0) following.add((int) j);
+            }
+            successors[i] = following.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        if (without.isEmpty()) {
+            Map<Long, Set<Node>> colocated = RelationService.getColocationLookup(tradId, sectionId, db);
+            for (Set<Node> cluster : colocated.values()) {
+                Node first = null;
+                for (Node n : cluster) {
+                    if (first == null) first = n;
+                    else merge(first, n);
+                }
+            }
+        } else {
+            // The cached clusters can't leave anything out, so join up the relations ourselves
+            Set<String> colocationTypes = new HashSet<>();
+            for (RelationTypeModel rtm : RelationService.ourRelationTypes(sectionNode))
+                if (Boolean.TRUE.equals(rtm.getIs_colocation()))
+                    colocationTypes.add(rtm.getName());
+            for (Node n : readings)
+                for (Relationship r : n.getRelationships(ERelations.RELATED, Direction.OUTGOING))
+                    if (!without.contains(r) && colocationTypes.contains(r.getProperty("type", "").toString())
+                            && index.get(r.getEndNode().getId(), -1) >= 0)
+                        merge(n, r.getEndNode());
+        }
+    }
+
+    /**
+     * Returns whether the two readings are already in the same cluster.
+     *
+     * @param a - a reading in the section
+     * @param b - another reading in the section
+     * @return true if the readings are colocated
+     */
+    public boolean sameCluster(Node a, Node b) {
+        return find(position(a)) == find(position(b));
+    }
+
+    /**
+     * Checks whether colocating the two readings would make the alignment cyclic, i.e.
+     * whether either of their clusters can be reached from the other.
+     *
+     * @param a - a reading in the section
+     * @param b - another reading in the section
+     * @return true if colocating the readings would create a cycle
+     */
+    public boolean wouldGetCyclic(Node a, Node b) {
+        int ca = find(position(a));
+        int cb = find(position(b));
+        if (ca == cb) return false;
+        return reaches(ca, cb) || reaches(cb, ca);
+    }
+
+    /**
+     * Returns an immutable reachability index over the clusters as they now stand.
+     *
+     * @return the ReachabilityIndex
+     */
+    public ReachabilityIndex condense() {
+        // Number the clusters
+        int[] number = new int[parent.length];
+        Arrays.fill(number, -1);
+        int clusters = 0;
+        for (int i = 0; i < parent.length; i++)
+            if (find(i) == i)
+                number[i] = clusters++;
+        LongLongMap clusterOf = new LongLongMap(parent.length);
+        index.forEachKey(id -> clusterOf.put(id, number[find((int) index.get(id, -1))]));
+        // Collect the distinct clusters that follow each cluster
+        int[][] following = new int[clusters][];
+        for (int i = 0; i < parent.length; i++) {
+            if (number[i] < 0) continue;
+            Set<Integer> next = new LinkedHashSet<>();
+            int member = i;
+            do {
+                for (int s : successors[member]) {
+                    int c = number[find(s)];
+                    if (c != number[i]) next.add(c);
+                }
+                member = nextMember[member];
+            } while (member != i);
+            following[number[i]] = next.stream().mapToInt(Integer::intValue).toArray();
+        }
+        return new ReachabilityIndex(clusterOf, following);
+    }
+
+    /**
+     * Records that the two readings are now colocated.
+     *
+     * @param a - a reading in the section
+     * @param b - another reading in the section
+     */
+    public void merge(Node a, Node b) {
+        int ra = find(position(a));
+        int rb = find(position(b));
+        if (ra == rb) return;
+        parent[rb] = ra;
+        // Splice the two member lists together
+        int t = nextMember[ra];
+        nextMember[ra] = nextMember[rb];
+        nextMember[rb] = t;
+    }
+
+    // Breadth-first search across clusters from one cluster root to another
+    private boolean reaches(int from, int to) {
+        boolean[] seen = new boolean[parent.length];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(from);
+        seen[from] = true;
+        while (!queue.isEmpty()) {
+            int root = queue.poll();
+            int member = root;
+            do {
+                for (int s : successors[member]) {
+                    int rs = find(s);
+                    if (rs == to) return true;
+                    if (!seen[rs]) {
+                        seen[rs] = true;
+                        queue.add(rs);
+                    }
+                }
+                member = nextMember[member];
+            } while (member != root);
+        }
+        return false;
+    }
+
+    private int position(Node n) {
+        long i = index.get(n.getId(), -1);
+        if (i < 0)
+            throw new IllegalArgumentException(String.format("Reading %d is not in this section", n.getId()));
+        return (int) i;
+    }
+
+    private int find(int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+}
@@ -46,6 +46,7 @@ public class ApplicationContextListener implements ServletContextListener {
         try {
             GraphDatabaseService db = new GraphDatabaseServiceProvider(DB_PATH).getDatabase();
             DatabaseService.createRootNode(db);
+            SchemaService.bootstrap(db);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,548 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.LabelEntry;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.neo4j.kernel.api.KernelTransaction;
+import org.neo4j.kernel.impl.api.KernelTransactionImplementation;
+import org.neo4j.kernel.impl.core.ThreadToStatementContextBridge;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps a modification version for each section of the graph, and caches data that has
+ * been derived from a section against the version it was derived from. Any committed
+ * change to a section's readings or their relationships bumps the version; code that
+ * edits a section and then reads derived data within the same transaction should call
+ * touch() first, so that it doesn't get a stale answer. Data that is derived from a
+ * tradition node's own properties or its relation types is versioned and cached in the
+ * same way, by tradition, as is data derived from a stemma and its witnesses, by stemma.
+ *
+ * @author tla
+ */
+public class CacheService {
+
+    private static final int MAX_ENTRIES = Integer.getInteger("stemmarest.cache.entries", 1000);
+    // The most characters that the values cached with a size, e.g. whole documents, may hold
+    private static final long MAX_SIZE = Long.getLong("stemmarest.cache.size", 32L << 20);
+
+    private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private static final Map<String, CacheEntry> cache = Collections.synchronizedMap(
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    if (size() <= MAX_ENTRIES)
+                        return false;
+                    cachedSize -= eldest.getValue().size;
+                    return true;
+                }
+            });
+    // The total size of the cached values; guarded by the cache's lock
+    private static long cachedSize = 0;
+    private static final ConcurrentHashMap<String, LongAdder[]> statistics = new ConcurrentHashMap<>();
+    // The sections that have been touched by the current thread's open transaction
+    private static final ThreadLocal<TouchedSections> touchedInTx = new ThreadLocal<>();
+    // Tells us which kernel transaction, if any, is open on the current thread
+    private static volatile ThreadToStatementContextBridge txBridge;
+
+    /**
+     * The kinds of node that cached data can be derived from.
+     */
+    public enum Scope {
+        // A section, with its readings and their relationships
+        SECTION,
+        // A tradition node, its own properties, and its relation types
+        TRADITION,
+        // A stemma node, its witnesses, and the links between them
+        STEMMA;
+
+        String key(long nodeId) {
+            return name() + ":" + nodeId;
+        }
+    }
+
+    /**
+     * A computation whose result is to be cached.
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        T load() throws Exception;
+    }
+
+    private static class CacheEntry {
+        final long[] version;
+        final Object value;
+        final long size;
+
+        CacheEntry(long[] version, Object value, long size) {
+            this.version = version;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * The scopes touched within a single transaction. Neo4j doesn't tell the event
+     * handlers when a transaction without changes ends, or when one fails before it gets
+     * to commit, so the set is tied to the transaction it was made in, and let go as soon
+     * as it is seen from another one.
+     */
+    private static class TouchedSections {
+        final KernelTransaction tx;
+        // Kernel transactions are pooled, so the object alone doesn't identify a transaction
+        final long reuseCount;
+        final Set<String> scopes = new HashSet<>();
+
+        TouchedSections(KernelTransaction tx) {
+            this.tx = tx;
+            this.reuseCount = reuseCount(tx);
+        }
+
+        boolean belongsTo(KernelTransaction other) {
+            return tx == other && reuseCount == reuseCount(other);
+        }
+
+        private static long reuseCount(KernelTransaction tx) {
+            return tx instanceof KernelTransactionImplementation
+                    ? ((KernelTransactionImplementation) tx).getReuseCount() : 0;
+        }
+    }
+
+    /**
+     * Returns the current modification version of the given section.
+     *
+     * @param sectionId - the node ID of the section
+     * @return the version number
+     */
+    public static long getVersion(Long sectionId) {
+        return getVersion(Scope.SECTION, sectionId);
+    }
+
+    /**
+     * Returns the current modification version of the given node.
+     *
+     * @param scope  - the kind of node
+     * @param nodeId - the node ID
+     * @return the version number
+     */
+    public static long getVersion(Scope scope, long nodeId) {
+        return versions.computeIfAbsent(scope.key(nodeId), k -> new AtomicLong()).get();
+    }
+
+    /**
+     * Marks the given section as modified. Cached data for the section will be recomputed,
+     * and within the current transaction it will not be cached again until the
+     * transaction has finished.
+     *
+     * @param sectionId - the node ID of the section
+     */
+    public static void touch(Long sectionId) {
+        touch(Scope.SECTION, sectionId);
+    }
+
+    /**
+     * Marks the given node as modified, as for a section.
+     *
+     * @param scope  - the kind of node
+     * @param nodeId - the node ID
+     */
+    public static void touch(Scope scope, long nodeId) {
+        String key = scope.key(nodeId);
+        touchedScopes(true).add(key);
+        bump(key);
+    }
+
+    /**
+     * Marks the section to which the given node belongs as modified. The node may be
+     * a section node or a reading.
+     *
+     * @param node - a section or reading node
+     */
+    public static void touch(Node node) {
+        Long sectionId = sectionOf(node);
+        if (sectionId != null)
+            touch(sectionId);
+    }
+
+    /**
+     * Returns the cached value for the given section and key if it is still current, or
+     * else computes, caches, and returns it.
+     *
+     * @param sectionId - the node ID of the section from which the value is derived
+     * @param kind      - the kind of data being cached, used for the statistics
+     * @param key       - anything else that the value depends on
+     * @param loader    - the computation that derives the value
+     * @param <T>       - the type of the value
+     * @return the value
+     * @throws Exception if the computation fails
+     */
+    public static <T> T cached(Long sectionId, String kind, String key, Loader<T> loader) throws Exception {
+        return cached(Collections.singletonList(sectionId), kind, key, loader);
+    }
+
+    /**
+     * Returns the cached value for the given sections and key if none of the sections has
+     * changed since it was computed, or else computes, caches, and returns it.
+     *
+     * @param sectionIds - the node IDs of the sections from which the value is derived
+     * @param kind       - the kind of data being cached, used for the statistics
+     * @param key        - anything else that the value depends on
+     * @param loader     - the computation that derives the value
+     * @param <T>        - the type of the value
+     * @return the value
+     * @throws Exception if the computation fails
+     */
+    public static <T> T cached(List<Long> sectionIds, String kind, String key, Loader<T> loader) throws Exception {
+        return cached(Scope.SECTION, sectionIds, kind, key, loader);
+    }
+
+    /**
+     * Returns the cached value for the given node and key if the node hasn't changed since
+     * it was computed, or else computes, caches, and returns it.
+     *
+     * @param scope  - the kind of node from which the value is derived
+     * @param nodeId - the node ID
+     * @param kind   - the kind of data being cached, used for the statistics
+     * @param key    - anything else that the value depends on
+     * @param loader - the computation that derives the value
+     * @param <T>    - the type of the value
+     * @return the value
+     * @throws Exception if the computation fails
+     */
+    public static <T> T cached(Scope scope, long nodeId, String kind, String key, Loader<T> loader)
+            throws Exception {
+        return cached(scope, Collections.singletonList(nodeId), kind, key, loader);
+    }
+
+    private static <T> T cached(Scope scope, List<Long> nodeIds, String kind, String key, Loader<T> loader)
+            throws Exception {
+        Slot<T> slot = new Slot<>(scope, nodeIds, kind, key);
+        if (slot.isCached())
+            return slot.get();
+        T value = loader.load();
+        slot.put(value);
+        return value;
+    }
+
+    /**
+     * Returns the place in the cache for a value derived from the given sections, for
+     * callers that can't hand the computation to cached(), e.g. because they stream the
+     * value out as they make it.
+     *
+     * @param sectionIds - the node IDs of the sections from which the value is derived
+     * @param kind       - the kind of data being cached, used for the statistics
+     * @param key        - anything else that the value depends on
+     * @param <T>        - the type of the value
+     * @return the Slot
+     */
+    public static <T> Slot<T> slot(List<Long> sectionIds, String kind, String key) {
+        return new Slot<>(Scope.SECTION, sectionIds, kind, key);
+    }
+
+    /**
+     * A value's place in the cache. The versions of the nodes it is derived from are read
+     * when the slot is taken, so that a change made while the value is being computed
+     * leaves it stale.
+     *
+     * @param <T> the type of the value
+     */
+    public static class Slot<T> {
+        // Null if the value mustn't be cached
+        private final String cacheKey;
+        private final long[] version;
+        private final CacheEntry entry;
+
+        private Slot(Scope scope, List<Long> nodeIds, String kind, String key) {
+            LongAdder[] counts = statistics.computeIfAbsent(kind,
+                    k -> new LongAdder[] {new LongAdder(), new LongAdder()});
+            List<String> scopes = new ArrayList<>(nodeIds.size());
+            nodeIds.forEach(x -> scopes.add(scope.key(x)));
+            // Don't cache anything that might reflect uncommitted changes
+            Set<String> touched = touchedScopes(false);
+            if (scopes.stream().anyMatch(touched::contains)) {
+                cacheKey = null;
+                version = null;
+                entry = null;
+            } else {
+                cacheKey = String.format("%s/%s/%s", String.join(",", scopes), kind, key);
+                version = new long[scopes.size()];
+                for (int i = 0; i < version.length; i++)
+                    version[i] = versions.computeIfAbsent(scopes.get(i), k -> new AtomicLong()).get();
+                CacheEntry found = cache.get(cacheKey);
+                entry = found != null && Arrays.equals(found.version, version) ? found : null;
+            }
+            counts[entry != null ? 0 : 1].increment();
+        }
+
+        /**
+         * @return true if the cache holds a current value
+         */
+        public boolean isCached() {
+            return entry != null;
+        }
+
+        /**
+         * @return the cached value, or null if there is no current one
+         */
+        @SuppressWarnings("unchecked")
+        public T get() {
+            return entry == null ? null : (T) entry.value;
+        }
+
+        /**
+         * Caches the value, as of the versions that were read when the slot was taken.
+         *
+         * @param value - the value that was computed
+         */
+        public void put(T value) {
+            put(value, 0);
+        }
+
+        /**
+         * Caches a value that takes up a lot of memory, e.g. a whole document. The least
+         * recently used of these are dropped whenever their sizes add up to more than the
+         * system property stemmarest.cache.size allows.
+         *
+         * @param value - the value that was computed
+         * @param size  - the size of the value, in characters
+         */
+        public void put(T value, long size) {
+            if (cacheKey == null || size > MAX_SIZE)
+                return;
+            synchronized (cache) {
+                CacheEntry old = cache.put(cacheKey, new CacheEntry(version, value, size));
+                cachedSize += size - (old == null ? 0 : old.size);
+                Iterator<CacheEntry> it = cache.values().iterator();
+                while (cachedSize > MAX_SIZE && it.hasNext()) {
+                    CacheEntry e = it.next();
+                    if (e.size == 0) continue;
+                    cachedSize -= e.size;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the hit and miss counts for each kind of cached data.
+     *
+     * @return a map of data kind to a map with keys 'hits' and 'misses'
+     */
+    public static Map<String, Map<String, Long>> getStatistics() {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        statistics.forEach((kind, counts) -> {
+            Map<String, Long> kindStats = new HashMap<>();
+            kindStats.put("hits", counts[0].sum());
+            kindStats.put("misses", counts[1].sum());
+            result.put(kind, kindStats);
+        });
+        return result;
+    }
+
+    /**
+     * Forgets all cached data and versions, and follows the transactions of the given
+     * database from now on.
+     *
+     * @param db - the database that is now in use
+     */
+    static void useDatabase(GraphDatabaseService db) {
+        synchronized (cache) {
+            cache.clear();
+            cachedSize = 0;
+        }
+        versions.clear();
+        statistics.clear();
+        txBridge = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(
+                ThreadToStatementContextBridge.class, DependencyResolver.SelectionStrategy.ONLY);
+    }
+
+    // Returns the scopes touched by the transaction that is open on this thread. Those
+    // touched by an earlier transaction on the thread are let go, however it ended.
+    private static Set<String> touchedScopes(boolean forTouching) {
+        KernelTransaction tx = txBridge == null ? null : txBridge.getKernelTransactionBoundToThisThread(false);
+        TouchedSections touched = touchedInTx.get();
+        if (touched != null && (tx == null || !touched.belongsTo(tx))) {
+            finishTransaction();
+            touched = null;
+        }
+        if (touched == null) {
+            if (!forTouching)
+                return Collections.emptySet();
+            if (tx == null)
+                return new HashSet<>();
+            touched = new TouchedSections(tx);
+            touchedInTx.set(touched);
+        }
+        return touched.scopes;
+    }
+
+    // Anything computed during the transaction from its own changes is now stale
+    private static void finishTransaction() {
+        TouchedSections touched = touchedInTx.get();
+        if (touched != null)
+            touched.scopes.forEach(CacheService::bump);
+        touchedInTx.remove();
+    }
+
+    private static void bump(String scope) {
+        versions.computeIfAbsent(scope, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static Long sectionOf(Node n) {
+        try {
+            if (n.hasProperty("section_id"))
+                return Long.valueOf(n.getProperty("section_id").toString());
+            if (n.hasLabel(Nodes.SECTION))
+                return n.getId();
+        } catch (RuntimeException e) {
+            // The node was deleted in this transaction; we should see its section elsewhere.
+        }
+        return null;
+    }
+
+    /**
+     * Watches committed transactions for changes to section data, tradition nodes,
+     * relation types, and stemmata, and bumps the version of everything that was affected.
+     */
+    static class ChangeListener implements TransactionEventHandler<Set<String>> {
+
+        @Override
+        public Set<String> beforeCommit(TransactionData data) {
+            Set<String> affected = new HashSet<>();
+            for (Node n : data.createdNodes())
+                addSection(affected, sectionOf(n));
+            for (Relationship r : data.createdRelationships()) {
+                addSection(affected, sectionOf(r.getStartNode()));
+                addSection(affected, sectionOf(r.getEndNode()));
+                addTypeOwner(affected, r);
+                addStemmata(data, affected, r);
+            }
+            for (Relationship r : data.deletedRelationships()) {
+                addTypeOwner(affected, r);
+                addStemmata(data, affected, r);
+                try {
+                    addSection(affected, sectionOf(r.getStartNode()));
+                    addSection(affected, sectionOf(r.getEndNode()));
+                } catch (RuntimeException ignored) {}
+            }
+            for (PropertyEntry<Node> pe : data.assignedNodeProperties()) {
+                addSection(affected, sectionOf(pe.entity()));
+                if (pe.key().equals("section_id") && pe.previouslyCommitedValue() != null)
+                    addSection(affected, Long.valueOf(pe.previouslyCommitedValue().toString()));
+                addTradition(data, affected, pe.entity());
+                addTypeOwner(data, affected, pe.entity());
+                addStemma(data, affected, pe.entity());
+                addWitnessOwners(data, affected, pe.entity());
+            }
+            for (PropertyEntry<Node> pe : data.removedNodeProperties()) {
+                if (pe.key().equals("section_id") && pe.previouslyCommitedValue() != null)
+                    addSection(affected, Long.valueOf(pe.previouslyCommitedValue().toString()));
+                else
+                    addSection(affected, sectionOf(pe.entity()));
+                addTradition(data, affected, pe.entity());
+                addTypeOwner(data, affected, pe.entity());
+                addStemma(data, affected, pe.entity());
+                addWitnessOwners(data, affected, pe.entity());
+            }
+            for (PropertyEntry<Relationship> pe : data.assignedRelationshipProperties()) {
+                addSection(affected, sectionOf(pe.entity().getStartNode()));
+                addStemmata(data, affected, pe.entity());
+            }
+            for (PropertyEntry<Relationship> pe : data.removedRelationshipProperties()) {
+                try {
+                    addSection(affected, sectionOf(pe.entity().getStartNode()));
+                } catch (RuntimeException ignored) {}
+                // A deleted relationship is dealt with above
+                if (!data.isDeleted(pe.entity()))
+                    addStemmata(data, affected, pe.entity());
+            }
+            // A new section, tradition, or stemma node may have the ID of one that was deleted
+            for (LabelEntry le : data.assignedLabels())
+                addLabelled(affected, le);
+            for (LabelEntry le : data.removedLabels())
+                addLabelled(affected, le);
+            return affected;
+        }
+
+        @Override
+        public void afterCommit(TransactionData data, Set<String> state) {
+            if (state != null)
+                state.forEach(CacheService::bump);
+            finishTransaction();
+        }
+
+        @Override
+        public void afterRollback(TransactionData data, Set<String> state) {
+            finishTransaction();
+        }
+
+        private static void addSection(Set<String> affected, Long sectionId) {
+            if (sectionId != null)
+                affected.add(Scope.SECTION.key(sectionId));
+        }
+
+        private static void addTradition(TransactionData data, Set<String> affected, Node n) {
+            if (!data.isDeleted(n) && n.hasLabel(Nodes.TRADITION))
+                affected.add(Scope.TRADITION.key(n.getId()));
+        }
+
+        // The relation types of a tradition hang off it, so they are versioned with it
+        private static void addTypeOwner(Set<String> affected, Relationship r) {
+            if (r.isType(ERelations.HAS_RELATION_TYPE))
+                affected.add(Scope.TRADITION.key(r.getStartNode().getId()));
+        }
+
+        private static void addTypeOwner(TransactionData data, Set<String> affected, Node n) {
+            if (data.isDeleted(n) || !n.hasLabel(Nodes.RELATION_TYPE))
+                return;
+            // A type that is being unhooked is caught by its deleted relationship
+            Relationship owner = n.getSingleRelationship(ERelations.HAS_RELATION_TYPE, Direction.INCOMING);
+            if (owner != null)
+                affected.add(Scope.TRADITION.key(owner.getStartNode().getId()));
+        }
+
+        // A stemma is read through its own HAS_WITNESS and HAS_ARCHETYPE links, and the
+        // TRANSMITTED links between its witnesses
+        private static void addStemmata(TransactionData data, Set<String> affected, Relationship r) {
+            if (r.isType(ERelations.HAS_WITNESS) || r.isType(ERelations.HAS_ARCHETYPE))
+                addStemma(data, affected, r.getStartNode());
+            else if (r.isType(ERelations.TRANSMITTED)) {
+                addWitnessOwners(data, affected, r.getStartNode());
+                addWitnessOwners(data, affected, r.getEndNode());
+            }
+        }
+
+        private static void addStemma(TransactionData data, Set<String> affected, Node n) {
+            if (!data.isDeleted(n) && n.hasLabel(Nodes.STEMMA))
+                affected.add(Scope.STEMMA.key(n.getId()));
+        }
+
+        // A deleted witness has lost its HAS_WITNESS links too, and they are dealt with above
+        private static void addWitnessOwners(TransactionData data, Set<String> affected, Node n) {
+            if (data.isDeleted(n) || !n.hasLabel(Nodes.WITNESS))
+                return;
+            for (Relationship r : n.getRelationships(ERelations.HAS_WITNESS, Direction.INCOMING))
+                addStemma(data, affected, r.getStartNode());
+        }
+
+        private static void addLabelled(Set<String> affected, LabelEntry le) {
+            String label = le.label().name();
+            if (label.equals(Nodes.SECTION.name()))
+                affected.add(Scope.SECTION.key(le.node().getId()));
+            else if (label.equals(Nodes.TRADITION.name()))
+                affected.add(Scope.TRADITION.key(le.node().getId()));
+            else if (label.equals(Nodes.STEMMA.name()))
+                affected.add(Scope.STEMMA.key(le.node().getId()));
+        }
+    }
+}
@@ -57,6 +57,9 @@ public class GraphDatabaseServiceProvider {
         api.getDependencyResolver()
                 .resolveDependency(Procedures.class, DependencyResolver.SelectionStrategy.ONLY)
                 .registerProcedure(UnionFindProc.class, true);
+        // Keep our caches in step with changes to this database
+        CacheService.useDatabase(db);
+        db.registerTransactionEventHandler(new CacheService.ChangeListener());
     }
 
 }
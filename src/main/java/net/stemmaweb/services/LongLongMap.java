@@ -0,0 +1,117 @@
+package net.stemmaweb.services;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/**
+ * A map from non-negative long keys, such as node IDs, to long values, kept in an
+ * open-addressed table of primitives so that it costs a few bytes per entry rather than
+ * a pair of boxed objects.
+ *
+ * @author tla
+ */
+public class LongLongMap {
+    private static final long EMPTY = -1;
+
+    private long[] keys;
+    private long[] values;
+    private int size;
+
+    public LongLongMap() {
+        this(512);
+    }
+
+    public LongLongMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Stores a value for the given key, replacing any value already there.
+     *
+     * @param key   - a non-negative key
+     * @param value - the value to store
+     */
+    public void put(long key, long value) {
+        if (key < 0)
+            throw new IllegalArgumentException("Negative key " + key);
+        if ((size + 1) * 2 > keys.length)
+            grow();
+        insert(key, value);
+    }
+
+    /**
+     * Returns the value stored for the given key, or the given default if there is none.
+     *
+     * @param key          - the key to look up
+     * @param defaultValue - the value to return if the key is absent
+     * @return the stored value or the default
+     */
+    public long get(long key, long defaultValue) {
+        if (key < 0)
+            return defaultValue;
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return values[i];
+        return defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        if (key < 0)
+            return false;
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); keys[i] != EMPTY; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return true;
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEachKey(LongConsumer action) {
+        for (long key : keys)
+            if (key != EMPTY)
+                action.accept(key);
+    }
+
+    public void forEachValue(LongConsumer action) {
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i] != EMPTY)
+                action.accept(values[i]);
+    }
+
+    private void insert(long key, long value) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (keys[i] != EMPTY && keys[i] != key)
+            i = (i + 1) & mask;
+        if (keys[i] == EMPTY)
+            size++;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new long[oldValues.length * 2];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != EMPTY)
+                insert(oldKeys[i], oldValues[i]);
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
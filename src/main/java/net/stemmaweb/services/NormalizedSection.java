@@ -0,0 +1,175 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.traversal.Uniqueness;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A normalized view of a section, in which each cluster of closely related readings is
+ * collapsed onto a single representative reading and the witness sequences are carried
+ * over to run between the representatives. The view is held entirely in memory; nothing
+ * is written to the database, so it is only good for as long as the section is unchanged.
+ *
+ * @author tla
+ */
+public class NormalizedSection {
+    private final Node sectionNode;
+    private final Map<Node, Node> representatives = new HashMap<>();
+    private final Map<Node, List<Node>> represented = new HashMap<>();
+    private final Map<Node, Map<Node, SequenceEdge>> outgoing = new HashMap<>();
+    private final Map<Node, Map<Node, SequenceEdge>> incoming = new HashMap<>();
+    private Map<Long, Boolean> common;
+    private boolean findingCommon;
+
+    /**
+     * Normalizes the given section according to the given relation types.
+     *
+     * @param sectionNode       - the section to be normalized
+     * @param normalizeTypeList - the (string) name list of the types on which we are normalizing
+     * @throws Exception if clusters cannot be got, or if the requested relation type doesn't exist
+     */
+    NormalizedSection(Node sectionNode, List<String> normalizeTypeList) throws Exception {
+        this.sectionNode = sectionNode;
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        // Make sure the relation type exists
+        Node tradition = VariantGraphService.getTraditionNode(sectionNode);
+        for (String normalizeType : normalizeTypeList) {
+            Node relType = new RelationTypeModel(normalizeType).lookup(tradition);
+            if (relType == null)
+                throw new Exception("Relation type " + normalizeType + " does not exist in this tradition");
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            Node sectionStart = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
+            // Get the list of all readings in this section
+            Set<Node> sectionNodes = VariantGraphService.returnTraditionSection(sectionNode).nodes().stream()
+                    .filter(x -> x.hasLabel(Label.label("READING")))
+                    .filter(x -> ! x.hasLabel(Label.label("HYPERREADING")))
+                    .collect(Collectors.toSet());
+
+            // Find the normalisation clusters and nominate a representative for each
+            String tradId = tradition.getProperty("id").toString();
+            String sectionId = String.valueOf(sectionNode.getId());
+            for (Set<Node> cluster : RelationService.getCloselyRelatedClusters(
+                    tradId, sectionId, db, normalizeTypeList)) {
+                if (cluster.size() == 0) continue;
+                Node representative = RelationService.findRepresentative(cluster);
+                if (representative == null)
+                    throw new Exception("No representative found for cluster");
+                // Set the representative for all cluster members.
+                for (Node n : cluster) {
+                    representatives.put(n, representative);
+                    if (!n.equals(representative))
+                        represented.computeIfAbsent(representative, k -> new ArrayList<>()).add(n);
+                    if (!sectionNodes.remove(n))
+                        throw new Exception("Tried to make equivalence for node (" + n.getId()
+                                + ": " + n.getAllProperties().toString()
+                                + ") that was not in sectionNodes");
+                }
+            }
+
+            // All remaining un-clustered readings are represented by themselves
+            sectionNodes.forEach(x -> representatives.put(x, x));
+
+            // Make sure we didn't have any accidental recursion in representation
+            for (Node n : representatives.values()) {
+                if (!representatives.getOrDefault(n, n).equals(n))
+                    throw new Exception("Recursive representation was created on node " + n.getId() + ": " + n.getAllProperties().toString());
+            }
+
+            // Now that we have done this, make the normalized sequences. A sequence between two
+            // members of the same cluster has nowhere to go and is dropped.
+            for (Relationship r : db.traversalDescription().breadthFirst()
+                    .relationships(ERelations.SEQUENCE,Direction.OUTGOING)
+                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart).relationships()) {
+                Node repstart = getRepresentative(r.getStartNode());
+                Node repend = getRepresentative(r.getEndNode());
+                if (repstart.equals(repend)) continue;
+                SequenceEdge edge = outgoing.computeIfAbsent(repstart, k -> new LinkedHashMap<>())
+                        .computeIfAbsent(repend, k -> new SequenceEdge(repstart, repend));
+                incoming.computeIfAbsent(repend, k -> new LinkedHashMap<>()).put(repstart, edge);
+                for (String witClass : r.getPropertyKeys())
+                    for (String w : WitnessStorage.getWitnesses(r, witClass))
+                        edge.addWitness(w, witClass);
+            }
+            tx.success();
+        }
+    }
+
+    public Node getSectionNode() {
+        return sectionNode;
+    }
+
+    /**
+     * @return a map of each reading in the section to its representative
+     */
+    public Map<Node, Node> getRepresentatives() {
+        return Collections.unmodifiableMap(representatives);
+    }
+
+    /**
+     * @param n - a reading in the section
+     * @return the reading that represents it in the normalized view
+     */
+    public Node getRepresentative(Node n) {
+        return representatives.getOrDefault(n, n);
+    }
+
+    /**
+     * @param n - a reading in the section
+     * @return true if the reading appears in the normalized view
+     */
+    public boolean isRepresentative(Node n) {
+        return n.equals(representatives.get(n));
+    }
+
+    /**
+     * @param n - a representative reading
+     * @return the other readings that it represents
+     */
+    public List<Node> getRepresented(Node n) {
+        return Collections.unmodifiableList(represented.getOrDefault(n, Collections.emptyList()));
+    }
+
+    /**
+     * @param n - a representative reading
+     * @return the normalized sequences that leave it
+     */
+    public List<SequenceEdge> getOutgoing(Node n) {
+        return outgoing.containsKey(n) ? new ArrayList<>(outgoing.get(n).values()) : new ArrayList<>();
+    }
+
+    /**
+     * @param n - a representative reading
+     * @return the normalized sequences that arrive at it
+     */
+    public List<SequenceEdge> getIncoming(Node n) {
+        return incoming.containsKey(n) ? new ArrayList<>(incoming.get(n).values()) : new ArrayList<>();
+    }
+
+    /**
+     * Works out the common readings of the normalized view the first time it is asked, since
+     * that takes an alignment table, which not every user of the view needs.
+     *
+     * @param n - a representative reading
+     * @return whether the reading is common to all witnesses in the normalized view, or null
+     *         if this is still being worked out
+     */
+    public synchronized Boolean isCommon(Node n) {
+        if (common == null && !findingCommon) {
+            // The alignment table asks about its own readings, which it can't know yet
+            findingCommon = true;
+            try {
+                common = VariantGraphService.findCommon(new AlignmentModel(sectionNode, false, this));
+            } finally {
+                findingCommon = false;
+            }
+        }
+        return common == null ? null : common.get(n.getId());
+    }
+}
@@ -0,0 +1,123 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An index of the readings in a section by rank, so that the readings in a given range of
+ * ranks can be found without crawling the whole section. The index is built from the
+ * section_id schema index and cached against the section version; since any change to
+ * the section, including the rank changes made by ReadingService.recalculateRank, bumps
+ * that version, the index is rebuilt on the next lookup after a change.
+ *
+ * @author tla
+ */
+public class RankIndex {
+    private final GraphDatabaseService db;
+    // Reading ranks in ascending order, and the node IDs of the corresponding readings
+    private final long[] ranks;
+    private final long[] readings;
+    // The largest difference in rank spanned by any one SEQUENCE relationship
+    private final long maxSequenceSpan;
+
+    private RankIndex(GraphDatabaseService db, long[] ranks, long[] readings, long maxSequenceSpan) {
+        this.db = db;
+        this.ranks = ranks;
+        this.readings = readings;
+        this.maxSequenceSpan = maxSequenceSpan;
+    }
+
+    /**
+     * Returns the rank index for the given section.
+     * NOTE: for use in a transaction!
+     *
+     * @param sectionNode - the section node
+     * @return the RankIndex
+     * @throws Exception if the index could not be built
+     */
+    public static RankIndex forSection(Node sectionNode) throws Exception {
+        return CacheService.cached(sectionNode.getId(), "rankindex", "", () -> build(sectionNode));
+    }
+
+    private static RankIndex build(Node sectionNode) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        List<long[]> entries = new ArrayList<>();
+        long maxSpan = 0;
+        ResourceIterator<Node> sectionReadings = db.findNodes(Nodes.READING, "section_id", sectionNode.getId());
+        while (sectionReadings.hasNext()) {
+            Node n = sectionReadings.next();
+            if (!n.hasProperty("rank")) continue;
+            long rank = rankOf(n);
+            entries.add(new long[] {rank, n.getId()});
+            for (Relationship r : n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE))
+                maxSpan = Math.max(maxSpan, rankOf(r.getEndNode()) - rank);
+        }
+        entries.sort(Comparator.<long[]>comparingLong(x -> x[0]).thenComparingLong(x -> x[1]));
+        long[] ranks = new long[entries.size()];
+        long[] readings = new long[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            ranks[i] = entries.get(i)[0];
+            readings[i] = entries.get(i)[1];
+        }
+        return new RankIndex(db, ranks, readings, maxSpan);
+    }
+
+    /**
+     * Returns the readings whose rank lies within the given range, in order of rank.
+     * NOTE: for use in a transaction!
+     *
+     * @param startRank - the lowest rank to include
+     * @param endRank   - the highest rank to include
+     * @return a list of reading nodes
+     */
+    public List<Node> readingsBetween(long startRank, long endRank) {
+        List<Node> result = new ArrayList<>();
+        if (endRank < startRank) return result;
+        int from = firstAtOrAbove(startRank);
+        for (int i = from; i < ranks.length && ranks[i] <= endRank; i++)
+            result.add(db.getNodeById(readings[i]));
+        return result;
+    }
+
+    /**
+     * Returns the SEQUENCE relationships that cross the given rank, i.e. that start before it
+     * and end at or after it. If leftfencepost is set, a relationship that starts at the rank
+     * also counts, and one that ends there doesn't.
+     * NOTE: for use in a transaction!
+     *
+     * @param rank          - the rank in question
+     * @param leftfencepost - whether the rank should be treated as the left side of a fencepost
+     * @return a list of SEQUENCE relationships
+     */
+    public List<Relationship> sequencesCrossing(long rank, boolean leftfencepost) {
+        List<Relationship> result = new ArrayList<>();
+        // Only readings within the longest sequence span of the rank can start a crossing sequence.
+        for (Node n : readingsBetween(rank - maxSequenceSpan, leftfencepost ? rank : rank - 1)) {
+            for (Relationship r : n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)) {
+                long endRank = rankOf(r.getEndNode());
+                if (leftfencepost ? endRank > rank : endRank >= rank)
+                    result.add(r);
+            }
+        }
+        return result;
+    }
+
+    // Binary search for the position of the first entry with at least the given rank
+    private int firstAtOrAbove(long rank) {
+        int i = Arrays.binarySearch(ranks, rank);
+        if (i < 0) return -(i + 1);
+        // Several readings may share the rank; go back to the first of them.
+        while (i > 0 && ranks[i - 1] == rank) i--;
+        return i;
+    }
+
+    private static long rankOf(Node n) {
+        return Long.parseLong(n.getProperty("rank").toString());
+    }
+}
@@ -0,0 +1,181 @@
+package net.stemmaweb.services;
+
+import org.neo4j.graphdb.Node;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * A reachability index over a section's alignment, condensed so that each colocated
+ * cluster of readings is a single vertex. Each vertex carries a few interval labels, one
+ * per randomised depth-first traversal, in the manner of GRAIL: if one vertex can reach
+ * another then each of its intervals contains the other's, so most negative queries are
+ * answered by comparing the labels, and positive ones by a search that the labels keep
+ * to the right part of the graph. The index is immutable and is cached against the
+ * section version, so that it is rebuilt after any change to the section's sequences or
+ * colocations.
+ *
+ * @author tla
+ */
+public class ReachabilityIndex {
+    private static final int TRAVERSALS = 3;
+
+    private final LongLongMap clusterOf;
+    private final int[][] successors;
+    // For each traversal, the lowest post-order number reachable from each vertex, and its own
+    private final int[][] low;
+    private final int[][] post;
+    // False if the alignment turned out to be cyclic already, in which case the labels can't be trusted
+    private final boolean labelled;
+
+    /**
+     * Returns the reachability index for the given section.
+     * NOTE: for use in a transaction!
+     *
+     * @param sectionNode - the section node
+     * @return the ReachabilityIndex
+     * @throws Exception if the section's alignment can't be read
+     */
+    public static ReachabilityIndex forSection(Node sectionNode) throws Exception {
+        return CacheService.cached(sectionNode.getId(), "reachability", "",
+                () -> new AlignmentClusters(sectionNode).condense());
+    }
+
+    ReachabilityIndex(LongLongMap clusterOf, int[][] successors) {
+        this.clusterOf = clusterOf;
+        this.successors = successors;
+        int n = successors.length;
+        low = new int[TRAVERSALS][n];
+        post = new int[TRAVERSALS][n];
+        boolean acyclic = true;
+        Random random = new Random(n);
+        for (int t = 0; t < TRAVERSALS; t++)
+            acyclic &= label(t, t == 0 ? null : random);
+        labelled = acyclic;
+    }
+
+    /**
+     * Checks whether colocating the two readings would make the alignment cyclic, i.e.
+     * whether either of their clusters can be reached from the other.
+     *
+     * @param a - a reading in the section
+     * @param b - another reading in the section
+     * @return true if colocating the readings would create a cycle
+     */
+    public boolean wouldGetCyclic(Node a, Node b) {
+        int ca = cluster(a);
+        int cb = cluster(b);
+        if (ca == cb) return false;
+        return reaches(ca, cb) || reaches(cb, ca);
+    }
+
+    /**
+     * Returns whether the cluster of the second reading can be reached from that of the first.
+     *
+     * @param a - a reading in the section
+     * @param b - another reading in the section
+     * @return true if there is a path from a's cluster to b's
+     */
+    public boolean reaches(Node a, Node b) {
+        return reaches(cluster(a), cluster(b));
+    }
+
+    private boolean reaches(int from, int to) {
+        if (from == to) return true;
+        if (!mayReach(from, to)) return false;
+        BitSet seen = new BitSet(successors.length);
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        stack.push(from);
+        seen.set(from);
+        while (!stack.isEmpty()) {
+            int v = stack.pop();
+            for (int s : successors[v]) {
+                if (s == to) return true;
+                if (!seen.get(s) && mayReach(s, to)) {
+                    seen.set(s);
+                    stack.push(s);
+                }
+            }
+        }
+        return false;
+    }
+
+    // False only if the labels show that 'to' can't be reached from 'from'
+    private boolean mayReach(int from, int to) {
+        if (!labelled) return true;
+        for (int t = 0; t < TRAVERSALS; t++)
+            if (low[t][to] < low[t][from] || post[t][to] > post[t][from])
+                return false;
+        return true;
+    }
+
+    // Assign the post-order intervals for one traversal, visiting children in random order
+    // if a Random is given. Returns false if a cycle was found.
+    private boolean label(int t, Random random) {
+        int n = successors.length;
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        if (random != null) shuffle(order, random);
+        // 0 = unvisited, 1 = on the stack, 2 = finished
+        byte[] state = new byte[n];
+        int[] nextChild = new int[n];
+        int[][] children = successors;
+        if (random != null) {
+            children = new int[n][];
+            for (int i = 0; i < n; i++) {
+                children[i] = successors[i].clone();
+                shuffle(children[i], random);
+            }
+        }
+        boolean acyclic = true;
+        int counter = 0;
+        ArrayDeque<Integer> stack = new ArrayDeque<>();
+        for (int root : order) {
+            if (state[root] != 0) continue;
+            stack.push(root);
+            state[root] = 1;
+            low[t][root] = Integer.MAX_VALUE;
+            while (!stack.isEmpty()) {
+                int v = stack.peek();
+                if (nextChild[v] < children[v].length) {
+                    int c = children[v][nextChild[v]++];
+                    if (state[c] == 0) {
+                        state[c] = 1;
+                        low[t][c] = Integer.MAX_VALUE;
+                        stack.push(c);
+                    } else {
+                        if (state[c] == 1) acyclic = false;
+                        else low[t][v] = Math.min(low[t][v], low[t][c]);
+                    }
+                } else {
+                    stack.pop();
+                    state[v] = 2;
+                    post[t][v] = counter++;
+                    low[t][v] = Math.min(low[t][v], post[t][v]);
+                    if (!stack.isEmpty()) {
+                        int p = stack.peek();
+                        low[t][p] = Math.min(low[t][p], low[t][v]);
+                    }
+                }
+            }
+        }
+        return acyclic;
+    }
+
+    private static void shuffle(int[] a, Random random) {
+        for (int i = a.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int x = a[i];
+            a[i] = a[j];
+            a[j] = x;
+        }
+    }
+
+    private int cluster(Node n) {
+        long c = clusterOf.get(n.getId(), -1);
+        if (c < 0)
+            throw new IllegalArgumentException(String.format("Reading %d is not in this section", n.getId()));
+        return (int) c;
+    }
+}
@@ -45,11 +45,7 @@ public class ReadingService {
      */
     @SuppressWarnings("WeakerAccess")
     public static boolean hasWitness(Relationship link, String sigil, String witClass) {
-        if (link.hasProperty(witClass)) {
-            String[] wits = (String[]) link.getProperty(witClass);
-            return Arrays.asList(wits).contains(sigil);
-        }
-        return false;
+        return WitnessStorage.hasWitness(link, sigil, witClass);
     }
 
     /**
@@ -73,15 +69,9 @@ public class ReadingService {
         // First see if we need to add this one
         if (witClass.equals("witnesses") || !hasWitness(link, sigil, "witnesses")) {
             // This is either a main witness or a layer witness where the main witness isn't.
-            if (link.hasProperty(witClass)) {
-                String[] witList = (String[]) link.getProperty(witClass);
-                HashSet<String> currentWits = new HashSet<>(Arrays.asList(witList));
-                currentWits.add(sigil);
-                link.setProperty(witClass, currentWits.toArray(new String[0]));
-            } else {
-                String[] witList = {sigil};
-                link.setProperty(witClass, witList);
-            }
+            Set<String> currentWits = WitnessStorage.getWitnesses(link, witClass);
+            currentWits.add(sigil);
+            WitnessStorage.setWitnesses(link, witClass, currentWits);
         }
         // Then see if we need to remove a layer
         if (witClass.equals("witnesses")) {
@@ -147,12 +137,11 @@ public class ReadingService {
         if (link == null) return;
         // Look for the given witness in the given layer
         if (link.hasProperty(witClass)) {
-            String[] witList = (String[]) link.getProperty(witClass);
-            HashSet<String> currentWits = new HashSet<>(Arrays.asList(witList));
+            Set<String> currentWits = WitnessStorage.getWitnesses(link, witClass);
             currentWits.remove(sigil);
             // Un-orphan any otherwise orphaned sigil layers.
             for (String layer : orphans) {
-                link.setProperty(layer, new String[] {sigil});
+                WitnessStorage.setWitnesses(link, layer, Collections.singleton(sigil));
             }
             // Was this the last witness for the given class?
             if (currentWits.isEmpty()) {
@@ -162,7 +151,7 @@ public class ReadingService {
                     link.delete();
             }
             else
-                link.setProperty(witClass, currentWits.toArray(new String[0]));
+                WitnessStorage.setWitnesses(link, witClass, currentWits);
         }
     }
 
@@ -170,7 +159,7 @@ public class ReadingService {
         ArrayList<String> sigLayers = new ArrayList<>();
         for (String layer : r.getPropertyKeys()) {
             if (layer.equals("witnesses")) continue;
-            if (Arrays.asList((String[]) r.getProperty(layer)).contains(sigil))
+            if (WitnessStorage.hasWitness(r, sigil, layer))
                 sigLayers.add(layer);
         }
         return sigLayers;
@@ -186,7 +175,7 @@ public class ReadingService {
      */
     public static void transferWitnesses (Node start, Node end, Relationship copyFrom, RelationshipType seqType) {
         for (String witclass : copyFrom.getPropertyKeys())
-            for (String w : (String[]) copyFrom.getProperty(witclass))
+            for (String w : WitnessStorage.getWitnesses(copyFrom, witclass))
                 addWitnessLink(start, end, w, witclass, seqType);
     }
 
@@ -212,7 +201,7 @@ public class ReadingService {
         HashMap<String, HashMap<String, Node>> readingWitnessExtraMap = new HashMap<>();
         for (Relationship r : placeholderNode.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE)) {
             for (String prop : r.getPropertyKeys()) {
-                String[] relWits = (String[]) r.getProperty(prop);
+                Set<String> relWits = WitnessStorage.getWitnesses(r, prop);
                 for (String w : relWits)
                     if (prop.equals("witnesses"))
                         readingWitnessToMap.put(w, r.getEndNode());
@@ -233,7 +222,7 @@ public class ReadingService {
         for (Relationship r : placeholderNode.getRelationships(Direction.INCOMING, ERelations.SEQUENCE)) {
             Node priorReading = r.getStartNode();
             for (String prop : r.getPropertyKeys()) {
-                String[] relWits = (String[]) r.getProperty(prop);
+                Set<String> relWits = WitnessStorage.getWitnesses(r, prop);
                 for (String w : relWits) {
                     if (prop.equals("witnesses")) {
                         addWitnessLink(priorReading, readingWitnessToMap.get(w), w, prop);
@@ -297,147 +286,164 @@ public class ReadingService {
         return witnessAsText.toString().trim();
     }
 
-    /* Custom evaluator and traverser that modifies reading rank as it goes */
-
-    private static class RankCalcEvaluate implements Evaluator {
-
-        Map<Long, Set<Node>> colocatedNodes;
-        boolean recalculateAll;
-
-        // Constructor - we need to know where we are starting so we can build our list of
-        // equivalences and find our starting point. Throws an exception if we can't get
-        // the related-reading clusters.
-        RankCalcEvaluate(Node startNode, Boolean recalculateAll) throws Exception {
-            // Get the list of colocated nodes in this section.
-            GraphDatabaseService db = startNode.getGraphDatabase();
-            String sectionId = String.valueOf(startNode.getProperty("section_id"));
-            String tradId = db.getNodeById(Long.valueOf(sectionId))
-                    .getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode()
-                    .getProperty("id").toString();
-            this.colocatedNodes = buildColocationLookup(tradId, sectionId, startNode.getGraphDatabase());
-            this.recalculateAll = recalculateAll;
-        }
-
-        @Override
-        public Evaluation evaluate(Path path) {
-            // Get the last node on the path, check if its parents are ranked yet, and
-            // delete its rank if it is wrong
-            Node thisNode = path.endNode();
-            thisNode.setProperty("touched", true);
-            Long maxParentRank = maxParentRank(thisNode);
-            // If this is the first node in the sequence, then maxParentRank had better not
-            // be null. This should also work for the #START# node.
-            assert path.lastRelationship() != null || (maxParentRank != null);
-
-            // If maxParentRank is null, we remove our rank and stop calculating from here
-            if (maxParentRank == null) {
-                // thisNode.removeProperty("rank");
-                return Evaluation.EXCLUDE_AND_PRUNE;
-            }
-
-            // Otherwise we set the rank and continue.
-            thisNode.setProperty("newrank", maxParentRank + 1);
-            return Evaluation.INCLUDE_AND_CONTINUE;
-        }
-
-        private Long maxParentRank (Node candidate) {
-            // Returns true if the parents of this node, and of all its colocated nodes,
-            // already have a rank.
-            Set<Node> toCheck;
-            Long maxRankFound = -1L;
-            if (colocatedNodes.containsKey(candidate.getId())) {
-                toCheck = colocatedNodes.get(candidate.getId());
-            } else {
-                toCheck = new HashSet<>();
-                toCheck.add(candidate);
-            }
-            for (Node n : toCheck) {
-                ArrayList<Node> parents = new ArrayList<>();
-                n.getRelationships(ERelations.SEQUENCE, Direction.INCOMING)
-                        .forEach(x -> parents.add(x.getStartNode()));
-                n.getRelationships(ERelations.EMENDED, Direction.INCOMING)
-                        .forEach(x -> parents.add(x.getStartNode()));
-                for (Node p: parents) {
-                    String rankprop = p.hasProperty("touched") ? "newrank" : "rank";
-                    if (!p.hasProperty(rankprop))
-                        return null;
-                    Long thisRank = (Long) p.getProperty(rankprop);
-                    maxRankFound = thisRank > maxRankFound ? thisRank : maxRankFound;
-                }
-            }
-            return maxRankFound;
-        }
-    }
+    /* Incremental rank calculation */
 
     /**
      * Recalculates ranks, starting from startNode, until the ranks stop changing. Note that
-     * the rank on startNode needs to be correct before this is run.
+     * the ranks of the parents of startNode need to be correct before this is run.
+     *
+     * The readings to re-rank are kept on a worklist, ordered by their existing rank. A
+     * reading, together with the readings colocated with it, gets the rank that follows the
+     * highest rank of their parents; if that changes anything, their children are put on
+     * the worklist in turn. New ranks are kept in memory until the work is done, and only
+     * the readings whose rank has actually changed are written.
      *
      * @param startNode - the reading from which to begin the recalculation
+     * @param recalculateAll - if true, visit every reading that follows startNode, even where
+     *                       the ranks have not changed; this is needed to give ranks to
+     *                       readings that have none.
      * @return list of nodes whose ranks were changed
-     * @throws Exception, if the RankCalcEvaluate initialisation fails
+     * @throws Exception if the colocation clusters cannot be found, or if the section
+     *                   turns out to be cyclic
      */
 
     public static Set<Node> recalculateRank (Node startNode, boolean recalculateAll) throws Exception {
-        RankCalcEvaluate e = new RankCalcEvaluate(startNode, recalculateAll);
-        AlignmentTraverse a = new AlignmentTraverse(startNode);
+        return recalculateRank(Collections.singletonList(startNode), recalculateAll);
+    }
+
+    /**
+     * Recalculates ranks as above, starting from several readings in the same section at
+     * once, so that readings downstream of more than one of them are only re-ranked once.
+     *
+     * @param startNodes - the readings from which to begin the recalculation
+     * @param recalculateAll - if true, visit every reading that follows the start nodes
+     * @return list of nodes whose ranks were changed
+     * @throws Exception if the colocation clusters cannot be found, or if the section
+     *                   turns out to be cyclic
+     */
+    public static Set<Node> recalculateRank (Collection<Node> startNodes, boolean recalculateAll) throws Exception {
+        if (startNodes.isEmpty())
+            return new HashSet<>();
+        Node startNode = startNodes.iterator().next();
+        // Whatever brought us here has changed the section
+        CacheService.touch(startNode);
         GraphDatabaseService db = startNode.getGraphDatabase();
+        String sectionId = startNode.getProperty("section_id").toString();
+        Node sectionNode = db.getNodeById(Long.valueOf(sectionId));
+        String tradId = VariantGraphService.getTraditionNode(sectionNode).getProperty("id").toString();
+        Map<Long, Set<Node>> colocated = buildColocationLookup(tradId, sectionId, db);
+
+        LongLongMap newRanks = new LongLongMap();
+        LongLongMap visited = new LongLongMap();
+        PriorityQueue<Node> worklist = new PriorityQueue<>(
+                Comparator.<Node>comparingLong(n -> storedRank(n, Long.MAX_VALUE)).thenComparingLong(Node::getId));
+        worklist.addAll(startNodes);
+        // The start nodes always pass the recalculation on, whether or not their own rank changes
+        Set<Long> unexpandedStarts = new HashSet<>();
+        startNodes.forEach(x -> unexpandedStarts.add(x.getId()));
+        // Ranks in an acyclic section can't run beyond the number of readings in it; we
+        // only need to count them if the ranks grow past the current end of the section.
+        long endRank = storedRank(VariantGraphService.getEndNode(sectionId, db), 0);
+        long rankLimit = -1;
+
+        while (!worklist.isEmpty()) {
+            Node node = worklist.poll();
+            Set<Node> cluster = colocated.getOrDefault(node.getId(), Collections.singleton(node));
+
+            // Find the highest parent rank, giving up for now if any parent is unranked;
+            // we will come back here when it gets its rank.
+            long maxParentRank = -1;
+            boolean ready = true;
+            for (Node n : cluster) {
+                for (Relationship r : n.getRelationships(Direction.INCOMING, ERelations.SEQUENCE, ERelations.EMENDED)) {
+                    long parentRank = currentRank(r.getStartNode(), newRanks);
+                    if (parentRank < 0) {
+                        ready = false;
+                        break;
+                    }
+                    maxParentRank = Math.max(maxParentRank, parentRank);
+                }
+                if (!ready) break;
+            }
+            if (!ready) continue;
+
+            long rank = maxParentRank + 1;
+            if (rank > endRank) {
+                if (rankLimit < 0)
+                    rankLimit = db.findNodes(Nodes.READING, "section_id", sectionNode.getId()).stream().count();
+                if (rank > rankLimit)
+                    throw new Exception(String.format("Reading %d (%s) is part of a cycle; cannot rank it",
+                            node.getId(), node.getProperty("text", "")));
+            }
+            boolean changed = false;
+            boolean unvisited = false;
+            for (Node n : cluster) {
+                if (currentRank(n, newRanks) != rank) {
+                    newRanks.put(n.getId(), rank);
+                    changed = true;
+                }
+                if (!visited.containsKey(n.getId())) {
+                    visited.put(n.getId(), 1);
+                    unvisited = true;
+                }
+            }
+
+            // Pass any change on to the children
+            if (unexpandedStarts.remove(node.getId()) || changed || (recalculateAll && unvisited))
+                for (Node n : cluster)
+                    for (Relationship r : n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE, ERelations.EMENDED))
+                        worklist.add(r.getEndNode());
+        }
 
-        // Traverse the sequence graph from our start node, putting a mark on
-        // all the nodes we expect to visit
-        db.traversalDescription().depthFirst()
-                .expand(a)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes().stream().forEach(x -> x.setProperty("touched", true));
-
-        // At this point we can start to reassign ranks
-        ResourceIterable<Node> touched = db.traversalDescription().depthFirst()
-                .expand(a)
-                .evaluator(e)
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                .traverse(startNode).nodes();
-        // Run the traverser and commit the updated ranks
+        // Now write out the ranks that have changed
         Set<Node> changed = new HashSet<>();
-        for (Node n : touched.stream().collect(Collectors.toSet())) {
-            n.removeProperty("touched");
-            if (!n.hasProperty("newrank"))
-                throw new Exception (String.format("Node %d (%s) traversed but not re-ranked!",
-                        n.getId(), n.getProperty("text")));
-            Long nr = (Long) n.removeProperty("newrank");
-            if (!n.hasProperty("rank") || !n.getProperty("rank").equals(nr)) {
+        newRanks.forEachKey(id -> {
+            Node n = db.getNodeById(id);
+            long rank = newRanks.get(id, -1);
+            if (storedRank(n, -1) != rank) {
+                n.setProperty("rank", rank);
                 changed.add(n);
-                n.setProperty("rank", nr);
             }
-        }
+        });
+
+        // Set stemmarest.rank.validate to check the whole section after every recalculation.
+        if (Boolean.getBoolean("stemmarest.rank.validate"))
+            validateRanks(sectionNode, colocated);
+        return changed;
+    }
 
-        // TEMPORARY: Make sure that we did visit all expected nodes
-        Node sectionStart = VariantGraphService.getStartNode(startNode.getProperty("section_id").toString(), db);
+    // Checks that every reading in the section follows its parents, and that colocated readings
+    // share a rank.
+    private static void validateRanks(Node sectionNode, Map<Long, Set<Node>> colocated) throws Exception {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Node sectionStart = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
         for (Node n : db.traversalDescription().depthFirst()
                 .expand(new AlignmentTraverse())
-                .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
+                .uniqueness(Uniqueness.NODE_GLOBAL)
                 .traverse(sectionStart).nodes()) {
-            if (n.hasProperty("touched"))
-                throw new Exception ("End node not reached during recalculation!");
+            long rank = storedRank(n, -1);
+            if (rank < 0)
+                throw new Exception(String.format("Reading %d (%s) has no rank", n.getId(), n.getProperty("text")));
+            long expected = 0;
+            for (Node c : colocated.getOrDefault(n.getId(), Collections.singleton(n))) {
+                if (storedRank(c, -1) != rank)
+                    throw new Exception("Ranks diverge in cluster around rank " + rank);
+                for (Relationship r : c.getRelationships(Direction.INCOMING, ERelations.SEQUENCE, ERelations.EMENDED))
+                    expected = Math.max(expected, storedRank(r.getStartNode(), -1) + 1);
+            }
+            if (rank != expected)
+                throw new Exception(String.format("Reading %d (%s) has rank %d but should have rank %d",
+                        n.getId(), n.getProperty("text"), rank, expected));
         }
+    }
 
+    private static long currentRank(Node n, LongLongMap newRanks) {
+        return newRanks.containsKey(n.getId()) ? newRanks.get(n.getId(), -1) : storedRank(n, -1);
+    }
 
-        // TEMPORARY: Test that our colocated groups are actually colocated
-        Node ourSection = db.getNodeById((Long) startNode.getProperty("section_id"));
-        String tradId = VariantGraphService.getTraditionNode(ourSection).getProperty("id").toString();
-        List<Set<Node>> clusters = RelationService.getClusters(tradId, String.valueOf(ourSection.getId()), db, true);
-        for (Set<Node> cluster : clusters) {
-            Long clusterRank = null;
-            for (Node n : cluster) {
-                if (clusterRank == null)
-                    clusterRank = (Long) n.getProperty("rank");
-                else
-                    assert(clusterRank.equals(n.getProperty("rank")));
-                // else if (!clusterRank.equals(n.getProperty("rank")))
-                //     throw new Exception("Ranks diverge in cluster around rank " + clusterRank);
-            }
-        }
-        // END TEMPORARY
-        return changed;
+    private static long storedRank(Node n, long defaultRank) {
+        Object rank = n.getProperty("rank", null);
+        return rank == null ? defaultRank : ((Number) rank).longValue();
     }
 
     public static Set<Node> recalculateRank (Node startNode) throws Exception {
@@ -504,31 +510,11 @@ public class ReadingService {
 
     /* Custom evaluation and expander for checking alignment traversals */
 
-    private static class RankEvaluate implements Evaluator {
-
-        private Long rank;
-
-        RankEvaluate(Long stoprank) {
-            rank = stoprank;
-        }
-
-        @Override
-        public Evaluation evaluate(Path path) {
-            if (path.endNode().equals(path.startNode()))
-                return Evaluation.INCLUDE_AND_CONTINUE;
-            Node testNode = path.lastRelationship().getStartNode();
-            if (testNode.hasProperty("rank")
-                    && (Long) testNode.getProperty("rank") >= rank) {
-                return Evaluation.INCLUDE_AND_PRUNE;
-            } else {
-                return Evaluation.INCLUDE_AND_CONTINUE;
-            }
-        }
-    }
-
     /**
      * Checks if both readings can be found in the same path through the
      * tradition. If yes when merging these nodes the graph would get cyclic.
+     * The answer comes from the section's reachability index, which is rebuilt
+     * whenever the section has changed.
      * NOTE: For use within a transaction@
      *
      * @param firstReading - a node to merge
@@ -537,60 +523,13 @@ public class ReadingService {
      */
     public static boolean wouldGetCyclic(Node firstReading, Node secondReading) throws Exception {
         GraphDatabaseService db = firstReading.getGraphDatabase();
-        // Get our list of colocations
         Node sectionNode = db.getNodeById(Long.valueOf(firstReading.getProperty("section_id").toString()));
-        Node traditionNode = VariantGraphService.getTraditionNode(sectionNode);
-        Map<Long, Set<Node>> colocatedLookup = buildColocationLookup(
-                traditionNode.getProperty("id").toString(), String.valueOf(sectionNode.getId()), db);
-
-        // Get the relevant cluster sets
-        Set<Node> firstCluster = colocatedLookup.containsKey(firstReading.getId()) ?
-                colocatedLookup.get(firstReading.getId()) : new HashSet<>();
-        Set<Node> secondCluster = colocatedLookup.containsKey(secondReading.getId()) ?
-                colocatedLookup.get(secondReading.getId()) : new HashSet<>();
-        firstCluster.add(firstReading);    // in case there was no existing cluster
-        secondCluster.add(secondReading);  // in case there was no existing cluster
-        // Is it the same cluster set? Then they won't get cyclic
-        if (firstCluster.equals(secondCluster)) return false;
-
-        // Find our max rank, as well as whether we need to reverse the search
-        boolean reverse = false;
-        Long maxRank = (Long) firstReading.getProperty("rank");
-        if ( maxRank > (Long) secondReading.getProperty("rank"))
-            reverse = true;
-        else
-            maxRank = (Long) secondReading.getProperty("rank");
-
-        // For each node in the lower cluster, see if we can reach any node in the
-        // higher cluster.
-        AlignmentTraverse alignmentEvaluator = new AlignmentTraverse(firstReading);
-        RankEvaluate rankEvaluator = new RankEvaluate(maxRank);
-        for (Node lower : reverse ? secondCluster : firstCluster) {
-            boolean followed_sequence = false;
-            for (Relationship r : db.traversalDescription()
-                    .depthFirst()
-                    .evaluator(rankEvaluator)
-                    .expand(alignmentEvaluator).traverse(lower).relationships()) {
-                // TODO does this need to include EMENDED links?
-                if (r.getType().name().equals(ERelations.SEQUENCE.name()))
-                    followed_sequence = true;
-                if ((reverse ? firstCluster : secondCluster).contains(r.getEndNode()) && followed_sequence)
-                    return true;
-            }
-        }
-
-        return false;
+        return ReachabilityIndex.forSection(sectionNode).wouldGetCyclic(firstReading, secondReading);
     }
 
     private static Map<Long, Set<Node>> buildColocationLookup (String tradId, String sectionId, GraphDatabaseService db)
             throws Exception {
-        Map<Long, Set<Node>> result = new HashMap<>();
-        List<Set<Node>> clusters = RelationService.getClusters(tradId, sectionId, db, true);
-        for (Set<Node> cluster : clusters)
-            for (Node n : cluster)
-                result.put(n.getId(), cluster);
-
-        return result;
+        return RelationService.getColocationLookup(tradId, sectionId, db);
     }
 
 }
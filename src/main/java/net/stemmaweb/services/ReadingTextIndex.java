@@ -0,0 +1,80 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+
+import java.util.*;
+
+/**
+ * An inverted index from reading text, or normal form, to the readings in a section that
+ * have it. The index is cached against the section version, so any reading that is
+ * created, changed or deleted in the section causes it to be rebuilt on the next lookup.
+ *
+ * @author tla
+ */
+public class ReadingTextIndex {
+    private final GraphDatabaseService db;
+    private final Map<String, long[]> readings;
+
+    private ReadingTextIndex(GraphDatabaseService db, Map<String, long[]> readings) {
+        this.db = db;
+        this.readings = readings;
+    }
+
+    /**
+     * Returns the text index for the given section.
+     * NOTE: for use in a transaction!
+     *
+     * @param sectionNode - the section node
+     * @param useNormal   - whether readings should be indexed by their normal form, where
+     *                    they have one, rather than by their text
+     * @return the ReadingTextIndex
+     * @throws Exception if the index could not be built
+     */
+    public static ReadingTextIndex forSection(Node sectionNode, boolean useNormal) throws Exception {
+        return CacheService.cached(sectionNode.getId(), "textindex", useNormal ? "normal_form" : "text",
+                () -> build(sectionNode, useNormal));
+    }
+
+    /**
+     * Returns the string by which the given reading is indexed.
+     *
+     * @param reading   - the reading node
+     * @param useNormal - whether the normal form should be used where there is one
+     * @return the normal form or text of the reading, or an empty string if it has neither
+     */
+    public static String indexKey(Node reading, boolean useNormal) {
+        if (useNormal && reading.hasProperty("normal_form"))
+            return reading.getProperty("normal_form").toString();
+        return reading.getProperty("text", "").toString();
+    }
+
+    private static ReadingTextIndex build(Node sectionNode, boolean useNormal) {
+        GraphDatabaseService db = sectionNode.getGraphDatabase();
+        Map<String, List<Long>> collected = new HashMap<>();
+        ResourceIterator<Node> sectionReadings = db.findNodes(Nodes.READING, "section_id", sectionNode.getId());
+        while (sectionReadings.hasNext()) {
+            Node n = sectionReadings.next();
+            collected.computeIfAbsent(indexKey(n, useNormal), k -> new ArrayList<>()).add(n.getId());
+        }
+        Map<String, long[]> readings = new HashMap<>();
+        collected.forEach((k, v) -> readings.put(k, v.stream().mapToLong(Long::longValue).toArray()));
+        return new ReadingTextIndex(db, readings);
+    }
+
+    /**
+     * Returns the readings in the section that are indexed under the given string.
+     * NOTE: for use in a transaction!
+     *
+     * @param key - the text or normal form to look up
+     * @return a list of reading nodes, which may be empty
+     */
+    public List<Node> lookup(String key) {
+        List<Node> result = new ArrayList<>();
+        for (long id : readings.getOrDefault(key, new long[0]))
+            result.add(db.getNodeById(id));
+        return result;
+    }
+}
@@ -48,6 +48,10 @@ public class RelationService {
      * @return A RelationTypeModel with the relation type information.
      */
     public static RelationTypeModel returnRelationType(String traditionId, String relType) {
+        GraphDatabaseService db = new GraphDatabaseServiceProvider().getDatabase();
+        RelationTypeModel known = RelationTypeRegistry.get(traditionId, relType, db);
+        if (known != null)
+            return known;
         RelationType rtRest = new RelationType(traditionId, relType);
         Response rtResult = rtRest.getRelationType();
         if (rtResult.getStatus() == Response.Status.NO_CONTENT.getStatusCode())
@@ -79,9 +83,7 @@ public class RelationService {
             }
             assert(traditionNode != null);
             // ...and query its relation types.
-            traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING).forEach(
-                    x -> result.add(new RelationTypeModel(x.getEndNode()))
-            );
+            result.addAll(RelationTypeRegistry.forTradition(traditionNode).values());
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
@@ -123,7 +125,7 @@ public class RelationService {
         Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
         for (RelationTypeModel rtm : ourRelationTypes(traditionNode))
             if (rtm.getIs_colocation() == colocations)
-                useRelationTypes.add(String.format("\"%s\"", rtm.getName()));
+                useRelationTypes.add(rtm.getName());
 
         // Now run the unionFind algorithm on the relevant subset of relation types
         return collectSpecifiedClusters(sectionId, db, useRelationTypes);
@@ -150,7 +152,7 @@ public class RelationService {
         List<RelationTypeModel> rtmlist = ourRelationTypes(traditionNode);
 
         for (String thresholdName : thresholdNameList) {
-            closeRelations.add(String.format("\"%s\"", thresholdName));
+            closeRelations.add(thresholdName);
             // int bindlevel = 0;
             // Optional<RelationTypeModel> thresholdModel = rtmlist.stream().filter(x -> x.getName().equals(thresholdName)).findFirst();
             // if (thresholdModel.isPresent())
@@ -163,38 +165,127 @@ public class RelationService {
         return collectSpecifiedClusters(sectionId, db, closeRelations);
     }
 
+    /**
+     * Returns a lookup table of reading ID to colocated cluster, for all readings in the
+     * section that belong to a non-trivial cluster.
+     *
+     * @param tradId    - the tradition to query
+     * @param sectionId - the section to query
+     * @param db        - the GraphDatabaseService to use
+     * @return a map of reading ID to the set of readings colocated with it
+     * @throws Exception if the clusters could not be collected
+     */
+    static Map<Long, Set<Node>> getColocationLookup(String tradId, String sectionId, GraphDatabaseService db)
+            throws Exception {
+        HashSet<String> useRelationTypes = new HashSet<>();
+        Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
+        for (RelationTypeModel rtm : ourRelationTypes(traditionNode))
+            if (Boolean.TRUE.equals(rtm.getIs_colocation()))
+                useRelationTypes.add(rtm.getName());
+        return CacheService.cached(Long.valueOf(sectionId), "colocation lookup", typeKey(useRelationTypes), () -> {
+            Map<Long, Set<Node>> result = new HashMap<>();
+            for (Set<Node> cluster : collectSpecifiedClusters(sectionId, db, useRelationTypes))
+                for (Node n : cluster)
+                    result.put(n.getId(), cluster);
+            return Collections.unmodifiableMap(result);
+        });
+    }
+
     private static List<Set<Node>> collectSpecifiedClusters(
             String sectionId, GraphDatabaseService db, Set<String> relatedTypes)
             throws Exception {
-        // Now run the unionFind algorithm on the relevant subset of relation types
+        return CacheService.cached(Long.valueOf(sectionId), "clusters", typeKey(relatedTypes),
+                () -> findClusters(sectionId, db, relatedTypes));
+    }
+
+    private static String typeKey(Set<String> relatedTypes) {
+        return relatedTypes.stream().sorted().collect(Collectors.joining(","));
+    }
+
+    private static List<Set<Node>> findClusters(
+            String sectionId, GraphDatabaseService db, Set<String> relatedTypes)
+            throws Exception {
+        // Run a union-find over the section's readings and the relations of the given types
+        // between them. Relations that leave the section are ignored.
         List<Set<Node>> result = new ArrayList<>();
         try (Transaction tx = db.beginTx()) {
-            // Make the arguments
-            String cypherNodes = String.format("MATCH (n:READING {section_id:%s}) RETURN id(n) AS id", sectionId);
-            String cypherRels = String.format("MATCH (n:READING)-[r:RELATED]-(m) WHERE r.type IN [%s] RETURN id(n) AS source, id(m) AS target",
-                    String.join(",", relatedTypes));
-            // A struct to store the results
-            Map<Long, Set<Long>> clusters = new HashMap<>();
-            // Stream the results and collect the clusters
-            Result r = db.execute(String.format("CALL algo.unionFind.stream('%s', '%s', {graph:'cypher'}) YIELD nodeId, setId", cypherNodes, cypherRels));
-            while(r.hasNext()) {
-                Map<String, Object> row = r.next();
-                Long setId = (Long) row.get("setId");
-                Set<Long> cl = clusters.getOrDefault(setId, new HashSet<>());
-                Long nodeId = (Long) row.get("nodeId");
-                cl.add(nodeId);
-                clusters.put(setId, cl);
+            // Collect the section readings in ID order, so that a reading's position in the
+            // array can be found by binary search
+            List<Node> readings = new ArrayList<>();
+            db.findNodes(Nodes.READING, "section_id", Long.valueOf(sectionId)).forEachRemaining(readings::add);
+            readings.sort(Comparator.comparingLong(Node::getId));
+            long[] readingIds = readings.stream().mapToLong(Node::getId).toArray();
+
+            // Join up the related readings. Each relation is seen from both ends, so we only
+            // need to follow the outgoing ones.
+            UnionFind clusters = new UnionFind(readingIds.length);
+            if (!relatedTypes.isEmpty()) {
+                for (int i = 0; i < readingIds.length; i++) {
+                    for (Relationship r : readings.get(i).getRelationships(Direction.OUTGOING, ERelations.RELATED)) {
+                        if (!relatedTypes.contains(r.getProperty("type", "").toString()))
+                            continue;
+                        int j = Arrays.binarySearch(readingIds, r.getEndNodeId());
+                        if (j >= 0)
+                            clusters.union(i, j);
+                    }
+                }
             }
 
-            // Convert the map of setID -> set of nodeIDs into a list of nodesets
-            clusters.keySet().stream().filter(x -> clusters.get(x).size() > 1)
-                    .forEach(x -> result.add(clusters.get(x).stream().map(db::getNodeById).collect(Collectors.toSet())));
+            // Convert the sets with more than one member into sets of nodes
+            Map<Integer, Set<Node>> collected = new HashMap<>();
+            for (int i = 0; i < readingIds.length; i++) {
+                int setId = clusters.find(i);
+                if (clusters.sizeOf(setId) > 1)
+                    collected.computeIfAbsent(setId, k -> new HashSet<>()).add(readings.get(i));
+            }
+            // The result may be cached, so it shouldn't be altered by the caller
+            collected.values().forEach(x -> result.add(Collections.unmodifiableSet(x)));
             tx.success();
         } catch (Exception e) {
             e.printStackTrace();
             throw new Exception("Could not detect colocation clusters", e);
         }
-        return result;
+        return Collections.unmodifiableList(result);
+    }
+
+    // A disjoint-set structure over array positions, with union by size and path halving
+    private static class UnionFind {
+        private final int[] parent;
+        private final int[] size;
+
+        UnionFind(int count) {
+            parent = new int[count];
+            size = new int[count];
+            for (int i = 0; i < count; i++) {
+                parent[i] = i;
+                size[i] = 1;
+            }
+        }
+
+        int find(int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        void union(int i, int j) {
+            int ri = find(i);
+            int rj = find(j);
+            if (ri == rj) return;
+            if (size[ri] < size[rj]) {
+                int t = ri;
+                ri = rj;
+                rj = t;
+            }
+            parent[rj] = ri;
+            size[ri] += size[rj];
+        }
+
+        int sizeOf(int root) {
+            return size[root];
+        }
     }
 
     static Node findRepresentative(Set<Node> alternatives) {
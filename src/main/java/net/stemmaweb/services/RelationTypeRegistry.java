@@ -0,0 +1,75 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.model.RelationTypeModel;
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Holds the relation types of each tradition in memory, so that the hot paths that need
+ * to know whether a type is colocated, weak, transitive and so on can look it up by name
+ * instead of walking the tradition's relation type nodes each time. The types are cached
+ * by CacheService against the tradition node, whose version is bumped whenever a
+ * transaction that changes them is committed; code that changes relation types should
+ * call invalidate(), so that the cache is bypassed for that tradition until its
+ * transaction has finished.
+ *
+ * @author tla
+ */
+public class RelationTypeRegistry {
+
+    /**
+     * Returns the relation types of the given tradition, keyed by name.
+     * NOTE: for use in a transaction!
+     *
+     * @param traditionNode - the tradition node
+     * @return an unmodifiable map of type name to RelationTypeModel
+     */
+    public static Map<String, RelationTypeModel> forTradition(Node traditionNode) {
+        try {
+            return CacheService.cached(CacheService.Scope.TRADITION, traditionNode.getId(), "relation types",
+                    "", () -> load(traditionNode));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the relation type of the given name in the given tradition.
+     *
+     * @param tradId - the ID of the tradition
+     * @param name   - the name of the relation type
+     * @param db     - the GraphDatabaseService to use
+     * @return the RelationTypeModel, or null if the tradition has no such type
+     */
+    public static RelationTypeModel get(String tradId, String name, GraphDatabaseService db) {
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = VariantGraphService.getTraditionNode(tradId, db);
+            RelationTypeModel result = traditionNode == null ? null : forTradition(traditionNode).get(name);
+            tx.success();
+            return result;
+        }
+    }
+
+    /**
+     * Forgets the relation types of the given tradition, and reads them from the graph
+     * for the rest of the current transaction.
+     *
+     * @param traditionNode - the tradition whose relation types have changed
+     */
+    public static void invalidate(Node traditionNode) {
+        CacheService.touch(CacheService.Scope.TRADITION, traditionNode.getId());
+    }
+
+    private static Map<String, RelationTypeModel> load(Node traditionNode) {
+        Map<String, RelationTypeModel> types = new LinkedHashMap<>();
+        for (Relationship r : traditionNode.getRelationships(ERelations.HAS_RELATION_TYPE, Direction.OUTGOING)) {
+            RelationTypeModel rtm = new RelationTypeModel(r.getEndNode());
+            types.put(rtm.getName(), rtm);
+        }
+        return Collections.unmodifiableMap(types);
+    }
+}
@@ -0,0 +1,164 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.Nodes;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.schema.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates and maintains the schema indexes and constraints that our lookups depend on.
+ * The schema version that has been applied is recorded on the root node, so that
+ * existing stores are migrated on their next startup.
+ *
+ * @author tla
+ */
+public class SchemaService {
+
+    private static final Logger logger = Logger.getLogger(SchemaService.class.getName());
+
+    // Increment this whenever a new index or constraint is added below.
+    public static final long SCHEMA_VERSION = 1;
+    private static final String VERSION_KEY = "schema_version";
+    private static final long POPULATION_POLL_MS = 2000;
+    private static final long POPULATION_TIMEOUT_MIN = 60;
+
+    // Label / property pairs that should carry a uniqueness constraint
+    private static final List<String[]> UNIQUE = new ArrayList<>();
+    // Label / property pairs that should carry an ordinary index
+    private static final List<String[]> INDEXED = new ArrayList<>();
+    static {
+        UNIQUE.add(new String[] {Nodes.TRADITION.name(), "id"});
+        UNIQUE.add(new String[] {Nodes.USER.name(), "id"});
+        INDEXED.add(new String[] {Nodes.READING.name(), "section_id"});
+        INDEXED.add(new String[] {Nodes.WITNESS.name(), "sigil"});
+        INDEXED.add(new String[] {Nodes.STEMMA.name(), "name"});
+        INDEXED.add(new String[] {Nodes.RELATION_TYPE.name(), "name"});
+    }
+
+    /**
+     * Brings the database schema up to the current version, creating any missing
+     * indexes and constraints and waiting for them to come online. Assumes that the
+     * root node already exists.
+     *
+     * @param db - the GraphDatabaseService to initialize
+     */
+    public static void bootstrap(GraphDatabaseService db) {
+        long current = getSchemaVersion(db);
+        if (current < SCHEMA_VERSION) {
+            for (String[] spec : UNIQUE)
+                ensureUnique(db, Label.label(spec[0]), spec[1]);
+            for (String[] spec : INDEXED)
+                ensureIndex(db, Label.label(spec[0]), spec[1]);
+        }
+        awaitPopulation(db);
+        if (current < SCHEMA_VERSION)
+            setSchemaVersion(db, SCHEMA_VERSION);
+    }
+
+    /**
+     * Returns the schema version that has been applied to this database, or 0 if
+     * the schema has never been initialized.
+     *
+     * @param db - the GraphDatabaseService to query
+     * @return the recorded schema version
+     */
+    public static long getSchemaVersion(GraphDatabaseService db) {
+        long version = 0;
+        try (Transaction tx = db.beginTx()) {
+            Node rootNode = db.findNode(Nodes.ROOT, "name", "Root node");
+            if (rootNode != null)
+                version = Long.valueOf(rootNode.getProperty(VERSION_KEY, 0L).toString());
+            tx.success();
+        }
+        return version;
+    }
+
+    private static void setSchemaVersion(GraphDatabaseService db, long version) {
+        try (Transaction tx = db.beginTx()) {
+            Node rootNode = db.findNode(Nodes.ROOT, "name", "Root node");
+            if (rootNode != null)
+                rootNode.setProperty(VERSION_KEY, version);
+            tx.success();
+        }
+    }
+
+    private static void ensureUnique(GraphDatabaseService db, Label label, String key) {
+        try (Transaction tx = db.beginTx()) {
+            Schema schema = db.schema();
+            for (ConstraintDefinition cd : schema.getConstraints(label))
+                if (cd.isConstraintType(ConstraintType.UNIQUENESS) && hasSingleKey(cd.getPropertyKeys(), key))
+                    return;
+            // A plain index left over from an earlier attempt would block the constraint
+            for (IndexDefinition id : schema.getIndexes(label))
+                if (!id.isConstraintIndex() && hasSingleKey(id.getPropertyKeys(), key))
+                    id.drop();
+            schema.constraintFor(label).assertPropertyIsUnique(key).create();
+            tx.success();
+        } catch (RuntimeException e) {
+            // Most likely the existing data has duplicate values; settle for an ordinary index.
+            logger.log(Level.WARNING, String.format("Could not create uniqueness constraint on %s.%s; using an index instead",
+                    label.name(), key), e);
+            ensureIndex(db, label, key);
+        }
+    }
+
+    private static void ensureIndex(GraphDatabaseService db, Label label, String key) {
+        try (Transaction tx = db.beginTx()) {
+            Schema schema = db.schema();
+            for (IndexDefinition id : schema.getIndexes(label))
+                if (hasSingleKey(id.getPropertyKeys(), key))
+                    return;
+            schema.indexFor(label).on(key).create();
+            tx.success();
+        }
+    }
+
+    private static boolean hasSingleKey(Iterable<String> keys, String key) {
+        List<String> keyList = new ArrayList<>();
+        keys.forEach(keyList::add);
+        return keyList.equals(Collections.singletonList(key));
+    }
+
+    // Wait for all indexes to come online, reporting progress on any that are still populating.
+    private static void awaitPopulation(GraphDatabaseService db) {
+        long deadline = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(POPULATION_TIMEOUT_MIN);
+        while (true) {
+            try (Transaction tx = db.beginTx()) {
+                Schema schema = db.schema();
+                try {
+                    schema.awaitIndexesOnline(POPULATION_POLL_MS, TimeUnit.MILLISECONDS);
+                    tx.success();
+                    return;
+                } catch (IllegalStateException e) {
+                    // Either still populating, or something failed; find out which.
+                    for (IndexDefinition id : schema.getIndexes()) {
+                        Schema.IndexState state = schema.getIndexState(id);
+                        if (state.equals(Schema.IndexState.FAILED))
+                            throw new IllegalStateException(String.format("Index %s failed: %s",
+                                    describe(id), schema.getIndexFailure(id)));
+                        if (state.equals(Schema.IndexState.POPULATING))
+                            logger.info(String.format("Populating index %s: %.1f%%",
+                                    describe(id), schema.getIndexPopulationProgress(id).getCompletedPercentage()));
+                    }
+                    if (System.currentTimeMillis() > deadline)
+                        throw e;
+                }
+                tx.success();
+            }
+        }
+    }
+
+    private static String describe(IndexDefinition id) {
+        List<String> keys = new ArrayList<>();
+        id.getPropertyKeys().forEach(keys::add);
+        StringBuilder labels = new StringBuilder();
+        id.getLabels().forEach(x -> labels.append(":").append(x.name()));
+        return String.format("%s(%s)", labels, String.join(",", keys));
+    }
+}
@@ -0,0 +1,112 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+
+import java.util.*;
+
+/**
+ * A witness-bearing link from one reading to the next, either as it is stored in a
+ * SEQUENCE relationship or as it has been collapsed in a NormalizedSection. The witnesses
+ * are kept by witness class, i.e. "witnesses" for the base text or the name of a layer.
+ *
+ * @author tla
+ */
+public class SequenceEdge {
+    private final Node startNode;
+    private final Node endNode;
+    private final Map<String, Set<String>> witnesses;
+
+    SequenceEdge(Node startNode, Node endNode) {
+        this.startNode = startNode;
+        this.endNode = endNode;
+        this.witnesses = new HashMap<>();
+    }
+
+    /**
+     * Makes an edge from a stored SEQUENCE relationship.
+     * NOTE: for use in a transaction!
+     *
+     * @param r - the SEQUENCE relationship
+     */
+    public SequenceEdge(Relationship r) {
+        this(r.getStartNode(), r.getEndNode());
+        witnesses.putAll(WitnessStorage.getAllWitnesses(r));
+    }
+
+    /**
+     * Returns the stored sequences that leave the given reading.
+     * NOTE: for use in a transaction!
+     *
+     * @param n - the reading
+     * @return a list of SequenceEdges
+     */
+    public static List<SequenceEdge> outgoing(Node n) {
+        List<SequenceEdge> result = new ArrayList<>();
+        n.getRelationships(Direction.OUTGOING, ERelations.SEQUENCE).forEach(x -> result.add(new SequenceEdge(x)));
+        return result;
+    }
+
+    /**
+     * Returns the stored sequences that arrive at the given reading.
+     * NOTE: for use in a transaction!
+     *
+     * @param n - the reading
+     * @return a list of SequenceEdges
+     */
+    public static List<SequenceEdge> incoming(Node n) {
+        List<SequenceEdge> result = new ArrayList<>();
+        n.getRelationships(Direction.INCOMING, ERelations.SEQUENCE).forEach(x -> result.add(new SequenceEdge(x)));
+        return result;
+    }
+
+    public Node getStartNode() {
+        return startNode;
+    }
+
+    public Node getEndNode() {
+        return endNode;
+    }
+
+    public Set<String> getWitnessClasses() {
+        return Collections.unmodifiableSet(witnesses.keySet());
+    }
+
+    public Set<String> getWitnesses(String witClass) {
+        return Collections.unmodifiableSet(witnesses.getOrDefault(witClass, Collections.emptySet()));
+    }
+
+    public boolean hasWitness(String sigil, String witClass) {
+        return witnesses.containsKey(witClass) && witnesses.get(witClass).contains(sigil);
+    }
+
+    /**
+     * Returns the witnesses in the form that they would be stored on a relationship.
+     *
+     * @return a map of witness class to sigla
+     */
+    public Map<String, String[]> getProperties() {
+        Map<String, String[]> result = new HashMap<>();
+        witnesses.forEach((k, v) -> result.put(k, v.toArray(new String[0])));
+        return result;
+    }
+
+    // Adds a witness according to the same rules as ReadingService.addWitnessLink: a layer
+    // witness is only recorded where the base witness isn't.
+    void addWitness(String sigil, String witClass) {
+        if (witClass.equals("witnesses") || !hasWitness(sigil, "witnesses"))
+            witnesses.computeIfAbsent(witClass, k -> new HashSet<>()).add(sigil);
+        if (witClass.equals("witnesses")) {
+            Iterator<Map.Entry<String, Set<String>>> it = witnesses.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Set<String>> layer = it.next();
+                if (layer.getKey().equals(witClass)) continue;
+                layer.getValue().remove(sigil);
+                if (layer.getValue().isEmpty())
+                    it.remove();
+            }
+        }
+    }
+}
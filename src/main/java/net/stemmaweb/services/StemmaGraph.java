@@ -0,0 +1,219 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * An in-memory copy of a single stemma: its witnesses, read through the stemma's own
+ * HAS_WITNESS links, and the TRANSMITTED links between them that belong to this stemma's
+ * hypothesis. Since the graph is reached from the STEMMA node, stemmata of the same name
+ * in other traditions never leak into it. Graphs are cached by CacheService against the
+ * stemma node, whose version is bumped whenever a transaction that changes the stemma is
+ * committed; code that changes a stemma should call invalidate(), so that the cache is
+ * bypassed for that stemma until its transaction has finished.
+ *
+ * @author tla
+ */
+public class StemmaGraph {
+
+    /**
+     * A witness as it appears in a stemma.
+     */
+    public static class Witness {
+        private final long nodeId;
+        private final String sigil;
+        private final boolean hypothetical;
+        private final boolean quoteSigil;
+        private final String label;
+
+        private Witness(Node witnessNode) {
+            nodeId = witnessNode.getId();
+            sigil = witnessNode.getProperty("sigil").toString();
+            hypothetical = (Boolean) witnessNode.getProperty("hypothetical", false);
+            quoteSigil = witnessNode.getProperty("quotesigil", false).equals(true);
+            label = witnessNode.hasProperty("label") ? witnessNode.getProperty("label").toString() : null;
+        }
+
+        public long getNodeId() { return nodeId; }
+        public String getSigil() { return sigil; }
+        public boolean isHypothetical() { return hypothetical; }
+        public String getLabel() { return label; }
+
+        /**
+         * @return the sigil, quoted if it needs to be for the dot format
+         */
+        public String dotSigil() {
+            return quoteSigil ? String.format("\"%s\"", sigil) : sigil;
+        }
+    }
+
+    private final long stemmaId;
+    private final String name;
+    private final boolean directed;
+    private final boolean contaminated;
+    private final Witness archetype;
+    private final Map<Long, Witness> witnesses;
+    // Each edge is a source and target witness, in the direction of the TRANSMITTED link
+    private final List<Witness[]> edges;
+
+    /**
+     * Returns the graph of the given stemma.
+     * NOTE: for use in a transaction!
+     *
+     * @param stemmaNode - the stemma node
+     * @return the StemmaGraph
+     */
+    public static StemmaGraph forStemma(Node stemmaNode) {
+        try {
+            return CacheService.cached(CacheService.Scope.STEMMA, stemmaNode.getId(), "stemma graph", "",
+                    () -> new StemmaGraph(stemmaNode));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Finds the stemma of the given name that belongs to the given tradition.
+     * NOTE: for use in a transaction!
+     *
+     * @param traditionNode - the tradition node
+     * @param name          - the name of the stemma
+     * @return the stemma node, or null if the tradition has no such stemma
+     */
+    public static Node findStemma(Node traditionNode, String name) {
+        for (Relationship r : traditionNode.getRelationships(ERelations.HAS_STEMMA, Direction.OUTGOING)) {
+            Node stemmaNode = r.getEndNode();
+            if (stemmaNode.getProperty("name").equals(name))
+                return stemmaNode;
+        }
+        return null;
+    }
+
+    /**
+     * Forgets the graph of the given stemma, and reads it from the database for the rest
+     * of the current transaction.
+     *
+     * @param stemmaNode - the stemma that has changed
+     */
+    public static void invalidate(Node stemmaNode) {
+        CacheService.touch(CacheService.Scope.STEMMA, stemmaNode.getId());
+    }
+
+    private StemmaGraph(Node stemmaNode) {
+        stemmaId = stemmaNode.getId();
+        name = stemmaNode.getProperty("name").toString();
+        directed = (Boolean) stemmaNode.getProperty("directed", false);
+        contaminated = stemmaNode.hasProperty("is_contaminated");
+
+        Map<Long, Witness> found = new LinkedHashMap<>();
+        for (Relationship r : stemmaNode.getRelationships(ERelations.HAS_WITNESS, Direction.OUTGOING))
+            found.put(r.getEndNode().getId(), new Witness(r.getEndNode()));
+        witnesses = Collections.unmodifiableMap(found);
+
+        List<Witness[]> links = new ArrayList<>();
+        for (Witness w : found.values()) {
+            Node witnessNode = stemmaNode.getGraphDatabase().getNodeById(w.getNodeId());
+            for (Relationship r : witnessNode.getRelationships(ERelations.TRANSMITTED, Direction.OUTGOING)) {
+                Witness target = found.get(r.getEndNode().getId());
+                if (target != null && name.equals(r.getProperty("hypothesis", null)))
+                    links.add(new Witness[] {w, target});
+            }
+        }
+        edges = Collections.unmodifiableList(links);
+
+        Relationship root = stemmaNode.getSingleRelationship(ERelations.HAS_ARCHETYPE, Direction.OUTGOING);
+        archetype = root == null ? null : found.get(root.getEndNode().getId());
+    }
+
+    public long getStemmaId() { return stemmaId; }
+    public String getName() { return name; }
+    public boolean isDirected() { return directed; }
+    public boolean isContaminated() { return contaminated; }
+
+    /**
+     * @return the archetype of the stemma, or null if it has none
+     */
+    public Witness getArchetype() { return archetype; }
+
+    /**
+     * @return the witnesses of the stemma, in the order they were linked to it
+     */
+    public Collection<Witness> getWitnesses() { return witnesses.values(); }
+
+    /**
+     * Returns the witness in this stemma with the given sigil.
+     *
+     * @param sigil - the sigil to look for
+     * @return the Witness, or null if the stemma has none by that sigil
+     */
+    public Witness getWitness(String sigil) {
+        for (Witness w : witnesses.values())
+            if (w.getSigil().equals(sigil))
+                return w;
+        return null;
+    }
+
+    /**
+     * @return true if the stemma is a tree, i.e. its witnesses are all connected and without
+     *         any cycles, regardless of the direction of its edges
+     */
+    public boolean isTree() {
+        if (witnesses.isEmpty() || edges.size() != witnesses.size() - 1) return false;
+        Map<Witness, List<Witness>> neighbours = new HashMap<>();
+        for (Witness[] e : edges) {
+            neighbours.computeIfAbsent(e[0], k -> new ArrayList<>()).add(e[1]);
+            neighbours.computeIfAbsent(e[1], k -> new ArrayList<>()).add(e[0]);
+        }
+        Set<Witness> seen = new HashSet<>();
+        ArrayDeque<Witness> queue = new ArrayDeque<>();
+        Witness first = witnesses.values().iterator().next();
+        queue.add(first);
+        seen.add(first);
+        while (!queue.isEmpty())
+            for (Witness w : neighbours.getOrDefault(queue.poll(), Collections.emptyList()))
+                if (seen.add(w))
+                    queue.add(w);
+        return seen.size() == witnesses.size();
+    }
+
+    /**
+     * Returns the edges of the stemma. If the stemma has an archetype, these are the edges
+     * that can be reached from it, breadth-first and each oriented away from it; contaminated
+     * stemmata are only followed in the direction of transmission, since the orientation of
+     * a contamination link can't be inferred from the archetype. Otherwise they are all the
+     * edges of the stemma, in the direction of transmission.
+     *
+     * @return a list of source / target pairs
+     */
+    public List<Witness[]> getEdges() {
+        if (archetype == null) return edges;
+
+        Map<Witness, List<Witness[]>> incident = new HashMap<>();
+        for (Witness[] e : edges) {
+            incident.computeIfAbsent(e[0], k -> new ArrayList<>()).add(e);
+            if (!contaminated)
+                incident.computeIfAbsent(e[1], k -> new ArrayList<>()).add(e);
+        }
+        List<Witness[]> result = new ArrayList<>();
+        Set<Witness[]> used = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Witness> queued = new HashSet<>();
+        ArrayDeque<Witness> queue = new ArrayDeque<>();
+        queue.add(archetype);
+        queued.add(archetype);
+        while (!queue.isEmpty()) {
+            Witness source = queue.poll();
+            for (Witness[] e : incident.getOrDefault(source, Collections.emptyList())) {
+                if (!used.add(e)) continue;
+                Witness target = e[0] == source ? e[1] : e[0];
+                result.add(new Witness[] {source, target});
+                if (queued.add(target))
+                    queue.add(target);
+            }
+        }
+        return result;
+    }
+}
@@ -1,155 +1,149 @@
 package net.stemmaweb.services;
 
 import org.neo4j.graphdb.*;
-import org.neo4j.graphdb.traversal.BranchState;
-import org.neo4j.graphdb.traversal.Evaluation;
-import org.neo4j.graphdb.traversal.Evaluator;
 
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.util.function.Function;
 
 public class VariantCrawler {
     private final Set<String> lemmaLinks;
     private final Set<Long> lemmaNodes;
-    private final RelationshipType followType;
+    private final Function<Node, List<SequenceEdge>> outgoing;
     private final Set<String> excludeWitnesses;
-    // Hash by path string rather than path itself, in case the objects aren't equal
-    private final Map<String, Map<String,Set<String>>> pathWitnesses;
 
-    public VariantCrawler(List<Relationship> lp, RelationshipType rt, List<String> excludeWitnesses) {
-        this.lemmaLinks = lp.stream().map(Relationship::toString).collect(Collectors.toSet());
-        this.lemmaNodes = lp.stream().map(x -> x.getEndNode().getId()).collect(Collectors.toSet());
+    /**
+     * A path that diverges from the base chain and rejoins it, along with the witnesses that
+     * follow it all the way through.
+     */
+    public static class VariantPath {
+        private final List<Node> nodes;
+        private final Map<String, Set<String>> witnesses;
+
+        VariantPath(List<Node> nodes, Map<String, Set<String>> witnesses) {
+            this.nodes = nodes;
+            this.witnesses = witnesses;
+        }
+
+        public List<Node> getNodes() {
+            return nodes;
+        }
+
+        public Node startNode() {
+            return nodes.get(0);
+        }
+
+        public Node endNode() {
+            return nodes.get(nodes.size() - 1);
+        }
+
+        public Map<String, Set<String>> getWitnesses() {
+            return witnesses;
+        }
+    }
+
+    /**
+     * @param baseChain        - the chain of nodes in the base text
+     * @param outgoing         - a function that returns the sequence edges leaving a given node
+     * @param excludeWitnesses - the witnesses to leave out of the variants
+     */
+    public VariantCrawler(List<Node> baseChain, Function<Node, List<SequenceEdge>> outgoing,
+                          List<String> excludeWitnesses) {
+        this.lemmaLinks = new HashSet<>();
+        this.lemmaNodes = new HashSet<>();
+        for (int i = 1; i < baseChain.size(); i++) {
+            lemmaLinks.add(linkKey(baseChain.get(i - 1), baseChain.get(i)));
+            lemmaNodes.add(baseChain.get(i).getId());
+        }
         this.excludeWitnesses = new HashSet<>(excludeWitnesses);
-        this.followType = rt;
-        this.pathWitnesses = new HashMap<>();
+        this.outgoing = outgoing;
     }
 
-    public Evaluator variantListEvaluator() {
-        return path -> {
-            // We don't want to return zero-length paths
-            if (path.length() == 0)
-                return Evaluation.EXCLUDE_AND_CONTINUE;
-            // Are we on the lemma path? If so, truncate before.
-            if (this.lemmaLinks.contains(path.lastRelationship().toString()))
-                return Evaluation.EXCLUDE_AND_PRUNE;
-            // Have we hit a lemma node again? If so, truncate after.
-            if (this.lemmaNodes.contains(path.endNode().getId()))
-                return Evaluation.INCLUDE_AND_PRUNE;
-            // Otherwise keep going, but don't return the path yet.
-            return Evaluation.EXCLUDE_AND_CONTINUE;
-        };
+    private static String linkKey(Node start, Node end) {
+        return String.format("%d-%d", start.getId(), end.getId());
     }
 
-    private static String pathKey(Iterable<Relationship> pathRels, Relationship extraRel) {
-        String result = StreamSupport.stream(pathRels.spliterator(), false).map(Relationship::toString)
-                .collect(Collectors.joining(":"));
-        if (extraRel != null)
-            result = String.format("%s:%s", result, extraRel);
+    /**
+     * Finds all the variant paths that leave the base chain at the given node.
+     * NOTE: for use in a transaction!
+     *
+     * @param n - a node in the base chain
+     * @return the list of variant paths
+     */
+    public List<VariantPath> variantsFrom(Node n) {
+        List<VariantPath> result = new ArrayList<>();
+        List<Node> path = new ArrayList<>();
+        path.add(n);
+        // Try all continuing paths and record their witnesses
+        for (SequenceEdge e : outgoing.apply(n)) {
+            Map<String,Set<String>> pathWits = new HashMap<>();
+            for (String layer : e.getWitnessClasses()) {
+                Set<String> followWits = new HashSet<>(e.getWitnesses(layer));
+                followWits.removeAll(excludeWitnesses);
+                if (!followWits.isEmpty())
+                    pathWits.put(layer, followWits);
+            }
+            crawl(path, e, pathWits, result);
+        }
         return result;
     }
 
-    public PathExpander variantListExpander () {
-        return new PathExpander() {
-            @Override
-            public Iterable<Relationship> expand(Path path, BranchState branchState) {
-                // If the path is zero-length, try all continuing paths and record their witnesses
-                if (path.length() == 0) {
-                    Iterable<Relationship> result = path.endNode().getRelationships(Direction.OUTGOING, followType);
-                    for (Relationship r: result) {
-                        Map<String,Set<String>> pathWits = new HashMap<>();
-                        for (String layer : r.getPropertyKeys()) {
-                            List<String> followWits = Arrays.stream((String[]) r.getProperty(layer)).filter(
-                                    x -> !excludeWitnesses.contains(x)).collect(Collectors.toList());
-                            if (!followWits.isEmpty())
-                                pathWits.put(layer, new HashSet<>(followWits));
-                        }
-                        pathWitnesses.put(r.toString(), pathWits);
-                    }
-                    return result;
-                }
-
-                // If not, we have some work to do
-                String key = pathKey(path.relationships(), null);
-                Map<String,Set<String>> witsSoFar = pathWitnesses.getOrDefault(key, null);
-                if (witsSoFar == null || witsSoFar.isEmpty())
-                    // We have no "through" witnesses for this path, so don't go any farther.
-                    return new ArrayList<>();
+    private void crawl(List<Node> path, SequenceEdge e, Map<String,Set<String>> witsSoFar, List<VariantPath> result) {
+        // Are we on the lemma path? If so, truncate before.
+        if (lemmaLinks.contains(linkKey(e.getStartNode(), e.getEndNode())))
+            return;
+        List<Node> extended = new ArrayList<>(path);
+        extended.add(e.getEndNode());
+        // Have we hit a lemma node again? If so, truncate after.
+        if (lemmaNodes.contains(e.getEndNode().getId())) {
+            result.add(new VariantPath(extended, witsSoFar));
+            return;
+        }
+        // We have no "through" witnesses for this path, so don't go any farther.
+        if (witsSoFar.isEmpty())
+            return;
 
-                // Now for each witness sigil in witsSoFar, find the relationship that continues it.
-                Map<String, Relationship> continuations = new HashMap<>();
-                Set<String> baseWits = witsSoFar.getOrDefault("witnesses", new HashSet<>());
-                for (Relationship r : path.endNode().getRelationships(Direction.OUTGOING, followType)) {
-                    // Do the base layer first.
-                    Set<String> relBaseWits = new HashSet<>(Arrays.asList(
-                            (String[]) r.getProperty("witnesses", new String[0])));
-                    for (String sig : baseWits.stream().filter(relBaseWits::contains).collect(Collectors.toList())) {
-                        continuations.put(sig, r);
-                    }
-                    // Now check whether this relationship continues any non-base witness paths.
-                    for (String layer : witsSoFar.keySet()) {
-                        if (layer.equals("witnesses")) continue;
-                        if (r.hasProperty(layer)) {
-                            // Get any layer witnesses that are directly continued
-                            Set<String> relLayerWits = new HashSet<>(Arrays.asList((String[]) r.getProperty(layer)));
-                            for (String sig : witsSoFar.get(layer).stream().filter(relLayerWits::contains)
-                                    .collect(Collectors.toList())) {
-                                continuations.put(String.format("%s|%s", sig, layer), r);
-                            }
-                        }
-                        // Get any layer witnesses that have reverted to the base witness, assuming a direct layer
-                        // continuation has not been found
-                        for (String sig : witsSoFar.get(layer).stream().filter(relBaseWits::contains)
-                                .collect(Collectors.toList())) {
-                            String contKey = String.format("%s|%s", sig, layer);
-                            if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
-                        }
-                    }
-
-                    // Now get any witnesses that have diverged into some layer from a base witness
-                    for (String layer : r.getPropertyKeys()) {
-                        if (layer.equals("witnesses")) continue;
-                        Set<String> relLayerWits = new HashSet<>(Arrays.asList((String[]) r.getProperty(layer)));
-                        for (String sig : relLayerWits.stream().filter(baseWits::contains).collect(Collectors.toList())) {
-                            String contKey = String.format("%s|%s", sig, layer);
-                            if (!continuations.containsKey(contKey)) continuations.put(contKey, r);
-                        }
-                    }
-                }
-                // We now have all our path continuations; note them in the state variable and return the
-                // relevant relationships.
-                for (String contKey : continuations.keySet()) {
-                    String[] parts = contKey.split("\\|"); // witness, layer
-                    String sigil = parts[0];
-                    String layer = parts.length == 1 ? "witnesses" : parts[1];
-                    String pKey = pathKey(path.relationships(), continuations.get(contKey));
-                    Map<String,Set<String>> m;
-                    if (pathWitnesses.containsKey(pKey)) {
-                        m = pathWitnesses.get(pKey);
-                    } else {
-                        m = new HashMap<>();
-                        pathWitnesses.put(pKey, m);
-                    }
-                    if (m.containsKey(layer)) {
-                        m.get(layer).add(sigil);
-                    } else {
-                        Set<String> w = new HashSet<>();
-                        w.add(sigil);
-                        m.put(layer, w);
-                    }
-                }
-                return continuations.values();
+        // Now for each witness sigil in witsSoFar, find the edge that continues it.
+        Map<String, SequenceEdge> continuations = new HashMap<>();
+        Set<String> baseWits = witsSoFar.getOrDefault("witnesses", new HashSet<>());
+        for (SequenceEdge r : outgoing.apply(e.getEndNode())) {
+            // Do the base layer first.
+            Set<String> relBaseWits = r.getWitnesses("witnesses");
+            for (String sig : baseWits)
+                if (relBaseWits.contains(sig))
+                    continuations.put(sig, r);
+            // Now check whether this edge continues any non-base witness paths.
+            for (String layer : witsSoFar.keySet()) {
+                if (layer.equals("witnesses")) continue;
+                // Get any layer witnesses that are directly continued
+                Set<String> relLayerWits = r.getWitnesses(layer);
+                for (String sig : witsSoFar.get(layer))
+                    if (relLayerWits.contains(sig))
+                        continuations.put(String.format("%s|%s", sig, layer), r);
+                // Get any layer witnesses that have reverted to the base witness, assuming a direct layer
+                // continuation has not been found
+                for (String sig : witsSoFar.get(layer))
+                    if (relBaseWits.contains(sig))
+                        continuations.putIfAbsent(String.format("%s|%s", sig, layer), r);
             }
 
-            @Override
-            public PathExpander reverse() {
-                return null;
+            // Now get any witnesses that have diverged into some layer from a base witness
+            for (String layer : r.getWitnessClasses()) {
+                if (layer.equals("witnesses")) continue;
+                for (String sig : r.getWitnesses(layer))
+                    if (baseWits.contains(sig))
+                        continuations.putIfAbsent(String.format("%s|%s", sig, layer), r);
             }
-        };
-    }
-
-    public Map<String, Set<String>> getWitnessesForPath (Path p) {
-        String pKey = pathKey(p.relationships(), null);
-        return pathWitnesses.get(pKey);
+        }
+        // We now have all our path continuations; gather the witnesses that go along each edge
+        // and carry on down it.
+        Map<SequenceEdge, Map<String,Set<String>>> nextWits = new LinkedHashMap<>();
+        for (String contKey : continuations.keySet()) {
+            String[] parts = contKey.split("\\|"); // witness, layer
+            String sigil = parts[0];
+            String layer = parts.length == 1 ? "witnesses" : parts[1];
+            nextWits.computeIfAbsent(continuations.get(contKey), k -> new HashMap<>())
+                    .computeIfAbsent(layer, k -> new HashSet<>()).add(sigil);
+        }
+        nextWits.forEach((r, wits) -> crawl(extended, r, wits, result));
     }
 }
@@ -2,7 +2,6 @@ package net.stemmaweb.services;
 
 import net.stemmaweb.model.AlignmentModel;
 import net.stemmaweb.model.ReadingModel;
-import net.stemmaweb.model.RelationTypeModel;
 import net.stemmaweb.model.WitnessTokensModel;
 import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
@@ -163,7 +162,7 @@ public class VariantGraphService {
     }
 
     /**
-     * Calculate the common readings within a section, either in normalized view or not
+     * Calculate the common readings within a section, and set the is_common flag accordingly
      *
      * @param sectionNode - The section for which to perform the calculation
      */
@@ -171,152 +170,80 @@ public class VariantGraphService {
         GraphDatabaseService db = sectionNode.getGraphDatabase();
         // Get an AlignmentModel for the given section, and go rank by rank to find
         // the common nodes.
-        AlignmentModel am = new AlignmentModel(sectionNode);
-        Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+        Map<Long, Boolean> common = findCommon(new AlignmentModel(sectionNode));
         try (Transaction tx = db.beginTx()) {
-            // See which kind of flag we are setting
-            String propName = startNode.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING) ? "ncommon" : "is_common";
-            // Go through the table rank by rank - if a given rank has only a single reading
-            // apart from lacunae, and no gaps, it is common
-            for (AtomicInteger i = new AtomicInteger(0); i.get() < am.getLength(); i.getAndIncrement()) {
-                List<ReadingModel> readingsAtRank = am.getAlignment().stream()
-                        .map(x -> x.getTokens().get(i.get())).collect(Collectors.toList());
-                HashSet<Long> distinct = new HashSet<>();
-                for (ReadingModel rm : readingsAtRank) {
-                    if (rm == null) distinct.add(0L);
-                    else if (!rm.getIs_lacuna()) distinct.add(Long.valueOf(rm.getId()));
-                }
-                // Set the commonality property. It is true if the size of the 'distinct' set is 1.
-                distinct.stream().filter(x -> x > 0)
-                        .forEach(x -> db.getNodeById(x).setProperty(propName, distinct.size() == 1));
-            }
+            common.forEach((x, c) -> db.getNodeById(x).setProperty("is_common", c));
             tx.success();
         }
     }
 
+    /**
+     * Work out from an alignment table which of its readings are common to all witnesses.
+     *
+     * @param am - The alignment of the section in question
+     * @return a map of reading ID to whether the reading is common
+     */
+    public static Map<Long, Boolean> findCommon(AlignmentModel am) {
+        Map<Long, Boolean> result = new HashMap<>();
+        // Go through the table rank by rank - if a given rank has only a single reading
+        // apart from lacunae, and no gaps, it is common
+        for (AtomicInteger i = new AtomicInteger(0); i.get() < am.getLength(); i.getAndIncrement()) {
+            List<ReadingModel> readingsAtRank = am.getAlignment().stream()
+                    .map(x -> x.getTokens().get(i.get())).collect(Collectors.toList());
+            HashSet<Long> distinct = new HashSet<>();
+            for (ReadingModel rm : readingsAtRank) {
+                if (rm == null) distinct.add(0L);
+                else if (!rm.getIs_lacuna()) distinct.add(Long.valueOf(rm.getId()));
+            }
+            // Set the commonality property. It is true if the size of the 'distinct' set is 1.
+            distinct.stream().filter(x -> x > 0).forEach(x -> result.put(x, distinct.size() == 1));
+        }
+        return result;
+    }
+
 
     /*
-     * Methods for calcuating and removing shadow graphs - normalization and majority text
+     * Methods for calcuating shadow graphs - normalization and majority text
      */
 
     /**
-     * Make a graph normalization sequence on the given section according to the given relation type,
-     * creating NSEQUENCE and REPRESENTS relationships between readings where appropriate, and return
-     * a map of each section node to its representative node.
+     * Make a normalized view of the given section according to the given relation types, in which
+     * each cluster of related readings is represented by a single reading. The view is built in
+     * memory and leaves the database untouched.
      *
      * @param sectionNode     The section to be normalized
      * @param normalizeTypeList   The (string) name list of the types on which we are normalizing
-     * @return                A HashMap of nodes to their representatives
+     * @return                The normalized section
      *
      * @throws                Exception, if clusters cannot be got, if the requested relation type doesn't
      *                        exist, or if something goes wrong with the transaction
      */
 
-    public static HashMap<Node,Node> normalizeGraph(Node sectionNode, List<String> normalizeTypeList) throws Exception {
-        HashMap<Node,Node> representatives = new HashMap<>();
-        GraphDatabaseService db = sectionNode.getGraphDatabase();
-        // Make sure the relation type exists
-        Node tradition = getTraditionNode(sectionNode);
-        for (String normalizeType : normalizeTypeList) {
-            Node relType = new RelationTypeModel(normalizeType).lookup(tradition);
-            if (relType == null)
-                throw new Exception("Relation type " + normalizeType + " does not exist in this tradition");
-        }
-
-        try (Transaction tx = db.beginTx()) {
-            Node sectionStart = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
-            // Get the list of all readings in this section
-            Set<Node> sectionNodes = returnTraditionSection(sectionNode).nodes().stream()
-                    .filter(x -> x.hasLabel(Label.label("READING")))
-                    .filter(x -> ! x.hasLabel(Label.label("HYPERREADING")))
-                    .collect(Collectors.toSet());
-
-            // Find the normalisation clusters and nominate a representative for each
-            String tradId = tradition.getProperty("id").toString();
-            String sectionId = String.valueOf(sectionNode.getId());
-            for (Set<Node> cluster : RelationService.getCloselyRelatedClusters(
-                    tradId, sectionId, db, normalizeTypeList)) {
-                if (cluster.size() == 0) continue;
-                Node representative = RelationService.findRepresentative(cluster);
-                if (representative == null)
-                    throw new Exception("No representative found for cluster");
-                // Set the representative for all cluster members.
-                for (Node n : cluster) {
-                    representatives.put(n, representative);
-                    if (!n.equals(representative))
-                        representative.createRelationshipTo(n, ERelations.REPRESENTS);
-                    if (!sectionNodes.remove(n))
-                        throw new Exception("Tried to make equivalence for node (" + n.getId()
-                                + ": " + n.getAllProperties().toString()
-                                + ") that was not in sectionNodes");
-                }
-            }
-
-            // All remaining un-clustered readings are represented by themselves
-            sectionNodes.forEach(x -> representatives.put(x, x));
-
-            // Make sure we didn't have any accidental recursion in representation
-            for (Node n : representatives.values()) {
-                if (n.hasRelationship(ERelations.REPRESENTS, Direction.INCOMING))
-                    throw new Exception("Recursive representation was created on node " + n.getId() + ": " + n.getAllProperties().toString());
-            }
-
-            // Now that we have done this, make the shadow sequence
-            for (Relationship r : db.traversalDescription().breadthFirst()
-                    .relationships(ERelations.SEQUENCE,Direction.OUTGOING)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL).traverse(sectionStart).relationships()) {
-                Node repstart = representatives.getOrDefault(r.getStartNode(), r.getStartNode());
-                Node repend = representatives.getOrDefault(r.getEndNode(), r.getEndNode());
-                ReadingService.transferWitnesses(repstart, repend, r, ERelations.NSEQUENCE);
-            }
-            // and calculate the common readings.
-            calculateCommon(sectionNode);
-            tx.success();
-        }
-
-        return representatives;
-
+    public static NormalizedSection normalizeGraph(Node sectionNode, List<String> normalizeTypeList) throws Exception {
+        return new NormalizedSection(sectionNode, normalizeTypeList);
     }
 
     /**
-     * Clean up after performing normalizeGraph. Removes all NSEQUENCE and REPRESENTS relationships within a section.
+     * Return a list of nodes which constitutes the majority text for a section.
      *
-     * @param sectionNode  the section to clean up
-     * @throws             Exception, if anything was missed
+     * @param  sectionNode - The section to calculate
+     * @return an ordered List of READING nodes that make up the majority text
      */
-
-    public static void clearNormalization(Node sectionNode) throws Exception {
-        GraphDatabaseService db = sectionNode.getGraphDatabase();
-        try (Transaction tx = db.beginTx()) {
-            Node sectionStartNode = sectionNode.getSingleRelationship(ERelations.COLLATION, Direction.OUTGOING).getEndNode();
-            sectionStartNode.removeProperty("ncommon");
-            db.traversalDescription().breadthFirst()
-                    .relationships(ERelations.NSEQUENCE,Direction.OUTGOING)
-                    .relationships(ERelations.REPRESENTS, Direction.OUTGOING)
-                    .uniqueness(Uniqueness.RELATIONSHIP_GLOBAL)
-                    .traverse(sectionStartNode).relationships()
-                    .forEach(x -> {
-                        x.getEndNode().removeProperty("ncommon");
-                        x.delete();
-                    });
-
-            // TEMPORARY: Check that we aren't polluting the graph DB
-            if (VariantGraphService.returnTraditionSection(sectionNode).relationships()
-                    .stream().anyMatch(x -> x.isType(ERelations.NSEQUENCE) || x.isType(ERelations.REPRESENTS)))
-                throw new Exception("Data consistency error on normalization cleanup of section " + sectionNode.getId());
-            tx.success();
-        }
+    public static List<Node> calculateMajorityText(Node sectionNode) {
+        return calculateMajorityText(sectionNode, null);
     }
 
     /**
-     * Return a list of nodes which constitutes the majority text for a section.
+     * Return a list of nodes which constitutes the majority text for a section, optionally
+     * in its normalized form.
      *
      * @param  sectionNode - The section to calculate
+     * @param  normalized  - The normalized view of the section, or null
      * @return an ordered List of READING nodes that make up the majority text
      */
-    public static List<Node> calculateMajorityText(Node sectionNode) {
+    public static List<Node> calculateMajorityText(Node sectionNode, NormalizedSection normalized) {
         // Get the IDs of our majority readings by going through the alignment table rank by rank
-        AlignmentModel am = new AlignmentModel(sectionNode);
+        AlignmentModel am = new AlignmentModel(sectionNode, false, normalized);
         ArrayList<Long> majorityReadings = new ArrayList<>();
         for (int rank = 1; rank <= am.getLength(); rank++) {
             int numNulls = 0;
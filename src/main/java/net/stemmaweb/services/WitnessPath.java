@@ -10,6 +10,7 @@ import org.neo4j.graphdb.traversal.Evaluator;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Function;
 
 /**
  * Generalized path evaluator for traversing a witness.
@@ -54,7 +55,7 @@ public class WitnessPath {
             for (String layer : alternative) {
                 Node priorNode = path.lastRelationship().getStartNode();
                 for (Relationship r : priorNode.getRelationships(Direction.OUTGOING, seqType))
-                    if (r.hasProperty(layer) && witnessIn(r.getProperty(layer)))
+                    if (WitnessStorage.hasWitness(r, sigil, layer))
                         if (correct != null) // There is more than one relevant path; cut the tree off.
                             return Evaluation.EXCLUDE_AND_PRUNE;
                         else
@@ -66,21 +67,53 @@ public class WitnessPath {
                         ? Evaluation.INCLUDE_AND_CONTINUE : Evaluation.EXCLUDE_AND_PRUNE;
 
             // Follow the main path in the absence of an alternative
-            if (path.lastRelationship().hasProperty("witnesses")
-                    && witnessIn(path.lastRelationship().getProperty("witnesses")))
+            if (WitnessStorage.hasWitness(path.lastRelationship(), sigil, "witnesses"))
                 return Evaluation.INCLUDE_AND_CONTINUE;
 
             return Evaluation.EXCLUDE_AND_PRUNE;
         };
     }
 
-    private Boolean witnessIn (Object property) {
-        String[] arr = (String []) property;
-        for (String str : arr) {
-            if (str.equals(sigil)) {
-                return true;
-            }
+    /**
+     * Follows the witness through a set of sequence edges, by the same rules as the evaluator.
+     * The start node is not included in the result.
+     *
+     * @param startNode - the node to start from
+     * @param outgoing  - a function that returns the sequence edges leaving a given node
+     * @return the list of nodes in the witness path
+     */
+    public List<Node> walk (Node startNode, Function<Node, List<SequenceEdge>> outgoing) {
+        List<Node> result = new ArrayList<>();
+        Node current = next(outgoing.apply(startNode));
+        while (current != null) {
+            result.add(current);
+            current = next(outgoing.apply(current));
         }
-        return false;
+        return result;
+    }
+
+    /**
+     * Chooses which of the given sequence edges the witness takes, by the same rules as the evaluator.
+     *
+     * @param edges - the sequence edges that leave the witness's current node
+     * @return the node that the witness goes to next, or null if the path stops here
+     */
+    public Node next (List<SequenceEdge> edges) {
+        // Find the relevant alternative path; if there is more than one, the path stops here.
+        Node correct = null;
+        for (String layer : alternative)
+            for (SequenceEdge e : edges)
+                if (e.hasWitness(sigil, layer)) {
+                    if (correct != null)
+                        return null;
+                    correct = e.getEndNode();
+                }
+        if (correct != null)
+            return correct;
+        // Follow the main path in the absence of an alternative
+        for (SequenceEdge e : edges)
+            if (e.hasWitness(sigil, "witnesses"))
+                return e.getEndNode();
+        return null;
     }
 }
@@ -0,0 +1,278 @@
+package net.stemmaweb.services;
+
+import net.stemmaweb.rest.ERelations;
+import org.neo4j.graphdb.*;
+
+import java.util.*;
+
+/**
+ * Reads and writes the witness sigla that are stored on SEQUENCE relationships, one property
+ * per witness class ("witnesses" for the base text, or the name of a layer).
+ *
+ * A tradition can store these sigla either as string arrays, which is the default, or as
+ * bitsets (long arrays) over a dictionary of sigla that is kept on the tradition node. The
+ * conversion between the two is done by convert(). Since both kinds of value can be read,
+ * a tradition that has only been partly converted is still usable; new values are written
+ * in whichever form the tradition is set to use.
+ *
+ * @author tla
+ */
+public class WitnessStorage {
+
+    // Tradition node property that switches on bitset storage
+    public static final String BITSET_FLAG = "witness_bitsets";
+    // Tradition node property that holds the sigla, in ordinal order
+    private static final String DICTIONARY_KEY = "sigil_ordinals";
+
+    private static final Dictionary NO_SECTION = new Dictionary();
+
+    // Dictionaries are cached in CacheService by tradition, since that is where they are stored
+    private static class Dictionary {
+        final long traditionId;
+        final boolean bitsets;
+        final String[] sigla;
+        final Map<String, Integer> ordinals = new HashMap<>();
+
+        // A dictionary for readings that don't (yet) belong to a section
+        Dictionary() {
+            this.traditionId = -1;
+            this.bitsets = false;
+            this.sigla = new String[0];
+        }
+
+        Dictionary(Node traditionNode) {
+            this.traditionId = traditionNode.getId();
+            this.bitsets = traditionNode.getProperty(BITSET_FLAG, false).equals(true);
+            this.sigla = (String[]) traditionNode.getProperty(DICTIONARY_KEY, new String[0]);
+            for (int i = 0; i < sigla.length; i++)
+                ordinals.put(sigla[i], i);
+        }
+    }
+
+    /*
+     * Reading
+     */
+
+    /**
+     * @param seq - a SEQUENCE relationship
+     * @return the witness classes that appear on it
+     */
+    public static Set<String> getWitnessClasses(Relationship seq) {
+        Set<String> result = new HashSet<>();
+        seq.getPropertyKeys().forEach(result::add);
+        return result;
+    }
+
+    /**
+     * @param seq      - a SEQUENCE relationship
+     * @param witClass - the witness class
+     * @return the sigla of the witnesses of that class which follow the sequence
+     */
+    public static Set<String> getWitnesses(Relationship seq, String witClass) {
+        Object value = seq.getProperty(witClass, null);
+        if (value == null)
+            return new HashSet<>();
+        if (value instanceof String[])
+            return new HashSet<>(Arrays.asList((String[]) value));
+        return decode(seq, (long[]) value);
+    }
+
+    /**
+     * @param seq - a SEQUENCE relationship
+     * @return a map of witness class to the sigla that follow the sequence
+     */
+    public static Map<String, Set<String>> getAllWitnesses(Relationship seq) {
+        Map<String, Set<String>> result = new HashMap<>();
+        for (String witClass : seq.getPropertyKeys())
+            result.put(witClass, getWitnesses(seq, witClass));
+        return result;
+    }
+
+    /**
+     * @param seq      - a SEQUENCE relationship
+     * @param sigil    - the witness sigil
+     * @param witClass - the witness class
+     * @return true if the witness follows the sequence in that class
+     */
+    public static boolean hasWitness(Relationship seq, String sigil, String witClass) {
+        Object value = seq.getProperty(witClass, null);
+        if (value == null)
+            return false;
+        if (value instanceof String[]) {
+            for (String s : (String[]) value)
+                if (s.equals(sigil)) return true;
+            return false;
+        }
+        Integer ordinal = dictionaryFor(seq).ordinals.get(sigil);
+        if (ordinal == null)
+            // The sigil may have been added since we cached the dictionary
+            ordinal = loadDictionary(seq).ordinals.get(sigil);
+        return ordinal != null && isSet((long[]) value, ordinal);
+    }
+
+    /*
+     * Writing
+     */
+
+    /**
+     * Sets the witnesses of the given class on a SEQUENCE relationship, removing the property
+     * if there are none. The sigla are stored in the form that the tradition uses.
+     * NOTE: for use in a transaction!
+     *
+     * @param seq      - a SEQUENCE relationship
+     * @param witClass - the witness class
+     * @param sigla    - the witness sigla
+     */
+    public static void setWitnesses(Relationship seq, String witClass, Collection<String> sigla) {
+        if (sigla.isEmpty())
+            seq.removeProperty(witClass);
+        else if (dictionaryFor(seq).bitsets)
+            seq.setProperty(witClass, encode(seq, sigla));
+        else
+            seq.setProperty(witClass, sigla.toArray(new String[0]));
+    }
+
+    /*
+     * Conversion
+     */
+
+    /**
+     * @param traditionNode - the tradition to check
+     * @return true if the tradition stores its witness sigla as bitsets
+     */
+    public static boolean usesBitsets(Node traditionNode) {
+        try (Transaction tx = traditionNode.getGraphDatabase().beginTx()) {
+            boolean result = traditionNode.getProperty(BITSET_FLAG, false).equals(true);
+            tx.success();
+            return result;
+        }
+    }
+
+    /**
+     * Converts the witness sigla on all the sequences of a tradition to bitsets, or back to
+     * string arrays.
+     *
+     * @param traditionNode - the tradition to convert
+     * @param toBitsets     - true to convert to bitsets, false to convert to string arrays
+     * @return the number of sequence relationships that were rewritten
+     */
+    public static long convert(Node traditionNode, boolean toBitsets) {
+        GraphDatabaseService db = traditionNode.getGraphDatabase();
+        long converted = 0;
+        try (Transaction tx = db.beginTx()) {
+            // Note the new storage form first, so that the values below are written accordingly
+            traditionNode.setProperty(BITSET_FLAG, toBitsets);
+            CacheService.touch(CacheService.Scope.TRADITION, traditionNode.getId());
+            for (Node sectionNode : DatabaseService.getRelated(traditionNode, ERelations.PART)) {
+                for (Relationship seq : VariantGraphService.returnTraditionSection(sectionNode).relationships()) {
+                    if (!seq.isType(ERelations.SEQUENCE)) continue;
+                    boolean changed = false;
+                    for (String witClass : getWitnessClasses(seq)) {
+                        Object value = seq.getProperty(witClass);
+                        if (toBitsets != value instanceof long[]) {
+                            setWitnesses(seq, witClass, getWitnesses(seq, witClass));
+                            changed = true;
+                        }
+                    }
+                    if (changed) converted++;
+                }
+                CacheService.touch(sectionNode.getId());
+            }
+            tx.success();
+        }
+        return converted;
+    }
+
+    /*
+     * Bitset handling
+     */
+
+    private static boolean isSet(long[] bits, int ordinal) {
+        int word = ordinal >>> 6;
+        return word < bits.length && (bits[word] & (1L << ordinal)) != 0;
+    }
+
+    private static Set<String> decode(Relationship seq, long[] bits) {
+        Dictionary dict = dictionaryFor(seq);
+        Set<String> result = new HashSet<>();
+        for (int word = 0; word < bits.length; word++) {
+            long w = bits[word];
+            while (w != 0) {
+                int ordinal = (word << 6) + Long.numberOfTrailingZeros(w);
+                if (ordinal >= dict.sigla.length) {
+                    // The dictionary has grown since we cached it
+                    dict = loadDictionary(seq);
+                    if (ordinal >= dict.sigla.length)
+                        throw new IllegalStateException(String.format(
+                                "Unknown witness ordinal %d on sequence %d", ordinal, seq.getId()));
+                }
+                result.add(dict.sigla[ordinal]);
+                w &= w - 1;
+            }
+        }
+        return result;
+    }
+
+    // Encode the sigla, adding any that are new to the tradition's dictionary.
+    private static long[] encode(Relationship seq, Collection<String> sigla) {
+        Dictionary dict = dictionaryFor(seq);
+        if (!dict.ordinals.keySet().containsAll(sigla)) {
+            GraphDatabaseService db = seq.getGraphDatabase();
+            Node traditionNode = db.getNodeById(dict.traditionId);
+            try (Transaction tx = db.beginTx()) {
+                // Hold the tradition until we commit, so that no other transaction can hand out
+                // the same ordinals, and work from what is stored now rather than from the cache
+                tx.acquireWriteLock(traditionNode);
+                Dictionary stored = new Dictionary(traditionNode);
+                List<String> extended = new ArrayList<>(Arrays.asList(stored.sigla));
+                sigla.stream().filter(x -> !stored.ordinals.containsKey(x)).distinct().sorted().forEach(extended::add);
+                dict = stored;
+                if (extended.size() > stored.sigla.length) {
+                    traditionNode.setProperty(DICTIONARY_KEY, extended.toArray(new String[0]));
+                    // Don't let the extended dictionary be cached until the transaction has finished
+                    CacheService.touch(CacheService.Scope.TRADITION, traditionNode.getId());
+                    dict = new Dictionary(traditionNode);
+                }
+                tx.success();
+            }
+        }
+        Map<String, Integer> ordinals = dict.ordinals;
+        int maxOrdinal = sigla.stream().mapToInt(ordinals::get).max().orElse(0);
+        long[] bits = new long[(maxOrdinal >>> 6) + 1];
+        for (String s : sigla) {
+            int ordinal = ordinals.get(s);
+            bits[ordinal >>> 6] |= 1L << ordinal;
+        }
+        return bits;
+    }
+
+    // Returns null if the reading hasn't been assigned to a section, e.g. during a parse
+    private static Long sectionOf(Relationship seq) {
+        Object sectionId = seq.getStartNode().getProperty("section_id", null);
+        return sectionId == null ? null : Long.valueOf(sectionId.toString());
+    }
+
+    private static Node traditionOf(Relationship seq) {
+        Node sectionNode = seq.getGraphDatabase().getNodeById(sectionOf(seq));
+        return sectionNode.getSingleRelationship(ERelations.PART, Direction.INCOMING).getStartNode();
+    }
+
+    private static Dictionary dictionaryFor(Relationship seq) {
+        if (sectionOf(seq) == null)
+            return NO_SECTION;
+        Node traditionNode = traditionOf(seq);
+        try {
+            return CacheService.cached(CacheService.Scope.TRADITION, traditionNode.getId(), "witness dictionary",
+                    "", () -> new Dictionary(traditionNode));
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Reads the dictionary as it is stored, bypassing the cache
+    private static Dictionary loadDictionary(Relationship seq) {
+        return sectionOf(seq) == null ? NO_SECTION : new Dictionary(traditionOf(seq));
+    }
+}
@@ -10,6 +10,7 @@ import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.DatabaseService;
+import net.stemmaweb.services.SchemaService;
 import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.client.ClientResponse;
 import org.glassfish.jersey.media.multipart.FormDataBodyPart;
@@ -181,6 +182,7 @@ public class Util {
     public static void setupTestDB(GraphDatabaseService db, String userId) {
         // Populate the test database with the root node and a user with id 1
         DatabaseService.createRootNode(db);
+        SchemaService.bootstrap(db);
         try(Transaction tx = db.beginTx()) {
             Node rootNode = db.findNode(Nodes.ROOT, "name", "Root node");
             Node node = db.createNode(Nodes.USER);
@@ -0,0 +1,139 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.*;
+
+import net.stemmaweb.model.AlignmentModel;
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReadingService;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.carrotsearch.junitbenchmarks.annotation.AxisRange;
+import com.carrotsearch.junitbenchmarks.annotation.BenchmarkMethodChart;
+
+/**
+ * Measures how the construction of an alignment table scales with the number of witnesses.
+ * Each section has three readings at every rank, which the witnesses share out between
+ * them, and every fifth witness has a correction layer that departs from the base text now
+ * and again. The number of ranks can be set with -Dbenchmark.ranks=N.
+ *
+ * @author tla
+ */
+@AxisRange(min = 0, max = 5)
+@BenchmarkMethodChart(filePrefix = "benchmark/benchmark-alignment")
+public class BenchmarkAlignment {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static final int RANKS = Integer.getInteger("benchmark.ranks", 500);
+    private static GraphDatabaseService db;
+    private static final Map<Integer, Node> sections = new HashMap<>();
+
+    @BeforeClass
+    public static void prepareTheDatabase() {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        for (int witnesses : Arrays.asList(10, 50, 200))
+            sections.put(witnesses, makeSection(witnesses));
+    }
+
+    private static Node makeSection(int numWitnesses) {
+        Node sectionNode;
+        try (Transaction tx = db.beginTx()) {
+            Node traditionNode = db.createNode(Nodes.TRADITION);
+            traditionNode.setProperty("id", UUID.randomUUID().toString());
+            traditionNode.setProperty("name", "Alignment benchmark " + numWitnesses);
+            sectionNode = db.createNode(Nodes.SECTION);
+            traditionNode.createRelationshipTo(sectionNode, ERelations.PART);
+            for (int i = 0; i < numWitnesses; i++) {
+                Node witness = db.createNode(Nodes.WITNESS);
+                witness.setProperty("sigil", "W" + i);
+                traditionNode.createRelationshipTo(witness, ERelations.HAS_WITNESS);
+            }
+
+            Node startNode = makeReading(sectionNode, 0, "#START#");
+            startNode.setProperty("is_start", true);
+            sectionNode.createRelationshipTo(startNode, ERelations.COLLATION);
+            List<Node[]> ranks = new ArrayList<>();
+            for (int r = 1; r <= RANKS; r++) {
+                Node[] atRank = new Node[3];
+                for (int v = 0; v < 3; v++)
+                    atRank[v] = makeReading(sectionNode, r, "r" + r + "v" + v);
+                ranks.add(atRank);
+            }
+            Node endNode = makeReading(sectionNode, RANKS + 1, "#END#");
+            endNode.setProperty("is_end", true);
+            sectionNode.createRelationshipTo(endNode, ERelations.HAS_END);
+
+            for (int i = 0; i < numWitnesses; i++) {
+                String sigil = "W" + i;
+                Node prior = startNode;
+                Node priorLayer = startNode;
+                for (int r = 1; r <= RANKS; r++) {
+                    Node next = ranks.get(r - 1)[(i + r) % 3];
+                    ReadingService.addWitnessLink(prior, next, sigil, "witnesses");
+                    if (i % 5 == 0) {
+                        Node nextLayer = r % 50 == 25 ? ranks.get(r - 1)[(i + r + 1) % 3] : next;
+                        ReadingService.addWitnessLink(priorLayer, nextLayer, sigil, "a.c.");
+                        priorLayer = nextLayer;
+                    }
+                    prior = next;
+                }
+                ReadingService.addWitnessLink(prior, endNode, sigil, "witnesses");
+                if (i % 5 == 0)
+                    ReadingService.addWitnessLink(priorLayer, endNode, sigil, "a.c.");
+            }
+            tx.success();
+        }
+        return sectionNode;
+    }
+
+    private static Node makeReading(Node sectionNode, long rank, String text) {
+        Node reading = db.createNode(Nodes.READING);
+        reading.setProperty("section_id", sectionNode.getId());
+        reading.setProperty("rank", rank);
+        reading.setProperty("text", text);
+        return reading;
+    }
+
+    private static void checkAlignment(int witnesses) {
+        AlignmentModel am = new AlignmentModel(sections.get(witnesses));
+        assertEquals(RANKS, am.getLength());
+        assertEquals(witnesses + witnesses / 5, am.getAlignment().size());
+    }
+
+    @BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 3)
+    @Test
+    public void alignment10Witnesses() {
+        checkAlignment(10);
+    }
+
+    @BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 3)
+    @Test
+    public void alignment50Witnesses() {
+        checkAlignment(50);
+    }
+
+    @BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 3)
+    @Test
+    public void alignment200Witnesses() {
+        checkAlignment(200);
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        db.shutdown();
+    }
+}
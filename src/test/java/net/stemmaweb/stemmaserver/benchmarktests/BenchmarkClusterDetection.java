@@ -0,0 +1,122 @@
+package net.stemmaweb.stemmaserver.benchmarktests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.*;
+
+import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.rest.RelationType;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RelationService;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.neo4j.graphdb.*;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import com.carrotsearch.junitbenchmarks.BenchmarkOptions;
+import com.carrotsearch.junitbenchmarks.BenchmarkRule;
+import com.carrotsearch.junitbenchmarks.annotation.AxisRange;
+import com.carrotsearch.junitbenchmarks.annotation.BenchmarkMethodChart;
+
+/**
+ * Compares the in-process cluster detection of RelationService against the
+ * algo.unionFind procedure that it replaced, on a single large section. Another
+ * section full of related readings is in the store so that the procedure's
+ * unrestricted relation query has something to wade through.
+ * The section size can be set with -Dbenchmark.readings=N.
+ *
+ * @author tla
+ */
+@AxisRange(min = 0, max = 5)
+@BenchmarkMethodChart(filePrefix = "benchmark/benchmark-clusterDetection")
+public class BenchmarkClusterDetection {
+
+    @Rule
+    public TestRule benchmarkRun = new BenchmarkRule();
+
+    private static final int READINGS = Integer.getInteger("benchmark.readings", 100000);
+    private static GraphDatabaseService db;
+    private static String tradId;
+    private static String sectId;
+    private static String colocatedTypes;
+
+    @BeforeClass
+    public static void prepareTheDatabase() throws Exception {
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        tradId = UUID.randomUUID().toString();
+        Node traditionNode;
+        try (Transaction tx = db.beginTx()) {
+            traditionNode = db.createNode(Nodes.TRADITION);
+            traditionNode.setProperty("id", tradId);
+            traditionNode.setProperty("name", "Cluster benchmark");
+            tx.success();
+        }
+        for (String rtype : Arrays.asList("spelling", "grammatical", "transposition"))
+            new RelationType(tradId, rtype).makeDefaultType();
+        colocatedTypes = "\"spelling\",\"grammatical\"";
+
+        sectId = makeSection(traditionNode, READINGS);
+        makeSection(traditionNode, READINGS);
+    }
+
+    // Make a section whose readings fall into colocated clusters of three, each of which
+    // is joined to the next by a non-colocated relation.
+    private static String makeSection(Node traditionNode, int size) {
+        String sectionId;
+        try (Transaction tx = db.beginTx()) {
+            Node sectionNode = db.createNode(Nodes.SECTION);
+            traditionNode.createRelationshipTo(sectionNode, ERelations.PART);
+            sectionId = String.valueOf(sectionNode.getId());
+            Node prior = null;
+            for (int i = 0; i < size; i++) {
+                Node reading = db.createNode(Nodes.READING);
+                reading.setProperty("section_id", sectionNode.getId());
+                reading.setProperty("rank", (long) i / 3);
+                reading.setProperty("text", "r" + i);
+                if (prior != null) {
+                    Relationship r = prior.createRelationshipTo(reading, ERelations.RELATED);
+                    r.setProperty("type", i % 3 == 0 ? "transposition" : (i % 2 == 0 ? "spelling" : "grammatical"));
+                }
+                prior = reading;
+            }
+            tx.success();
+        }
+        return sectionId;
+    }
+
+    @BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 3)
+    @Test
+    public void nativeUnionFind() throws Exception {
+        List<Set<Node>> clusters = RelationService.getClusters(tradId, sectId, db, true);
+        assertEquals(READINGS / 3, clusters.size());
+    }
+
+    @BenchmarkOptions(benchmarkRounds = 10, warmupRounds = 3)
+    @Test
+    public void procedureUnionFind() {
+        Map<Long, Integer> clusterSizes = new HashMap<>();
+        try (Transaction tx = db.beginTx()) {
+            String cypherNodes = String.format("MATCH (n:READING {section_id:%s}) RETURN id(n) AS id", sectId);
+            String cypherRels = String.format("MATCH (n:READING)-[r:RELATED]-(m) WHERE r.type IN [%s] RETURN id(n) AS source, id(m) AS target",
+                    colocatedTypes);
+            Result r = db.execute(String.format("CALL algo.unionFind.stream('%s', '%s', {graph:'cypher'}) YIELD nodeId, setId",
+                    cypherNodes, cypherRels));
+            while (r.hasNext()) {
+                Long setId = (Long) r.next().get("setId");
+                clusterSizes.put(setId, clusterSizes.getOrDefault(setId, 0) + 1);
+            }
+            tx.success();
+        }
+        assertEquals(READINGS / 3, clusterSizes.values().stream().filter(x -> x > 1).count());
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        db.shutdown();
+    }
+}
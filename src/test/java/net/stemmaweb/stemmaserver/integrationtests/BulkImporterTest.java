@@ -0,0 +1,90 @@
+package net.stemmaweb.stemmaserver.integrationtests;
+
+import junit.framework.TestCase;
+import net.stemmaweb.model.TraditionModel;
+import net.stemmaweb.model.WitnessModel;
+import net.stemmaweb.parser.BulkImporter;
+import net.stemmaweb.rest.Nodes;
+import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SchemaService;
+import net.stemmaweb.stemmaserver.Util;
+
+import org.glassfish.jersey.test.JerseyTest;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.Response;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Tests for the offline bulk importer.
+ */
+public class BulkImporterTest extends TestCase {
+
+    private GraphDatabaseService db;
+    private JerseyTest jerseyTest;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        // Start from an empty store, as the importer would
+        db = new GraphDatabaseServiceProvider(new TestGraphDatabaseFactory().newImpermanentDatabase()).getDatabase();
+        jerseyTest = Util.setupJersey();
+    }
+
+    public void testBulkImport() throws Exception {
+        List<File> files = Arrays.asList(
+                new File("src/TestFiles/testTradition.xml"),
+                new File("src/TestFiles/florilegium_graphml.xml"),
+                new File("src/TestFiles/quick_brown_fox.xml"),
+                new File("src/TestFiles/florilegium_tei_ps.xml"),
+                new File("src/TestFiles/florilegium_w.csv"),
+                new File("src/TestFiles/Matthew-401.json"));
+        int failures = new BulkImporter().run(db, "me@example.org", files, null, 3);
+        assertEquals(0, failures);
+        assertEquals(SchemaService.SCHEMA_VERSION, SchemaService.getSchemaVersion(db));
+
+        List<TraditionModel> traditions = jerseyTest.target("/user/me@example.org/traditions")
+                .request().get(new GenericType<List<TraditionModel>>() {});
+        assertEquals(files.size(), traditions.size());
+        Map<String, String> byName = traditions.stream()
+                .collect(Collectors.toMap(TraditionModel::getName, TraditionModel::getId));
+        assertTrue(byName.containsKey("testTradition"));
+        assertTrue(byName.containsKey("quick_brown_fox"));
+
+        // Spot-check one of the imported traditions
+        List<WitnessModel> wits = jerseyTest.target("/tradition/" + byName.get("testTradition") + "/witnesses")
+                .request().get(new GenericType<List<WitnessModel>>() {});
+        assertEquals(3, wits.size());
+        String textA = "when april with his showers sweet with fruit the drought of march has pierced unto the root";
+        Response r = jerseyTest.target("/tradition/" + byName.get("testTradition") + "/witness/A/text")
+                .request().get();
+        assertEquals(textA, Util.getValueFromJson(r, "text"));
+    }
+
+    public void testBulkImportFailures() throws Exception {
+        List<File> files = Arrays.asList(
+                new File("src/TestFiles/testTradition.xml"),
+                new File("src/TestFiles/SapientiaWithError.xml"),
+                new File("src/TestFiles/simple.txt"));
+        int failures = new BulkImporter().run(db, "me@example.org", files, null, 2);
+        assertEquals(2, failures);
+
+        // The failed imports should have left nothing behind
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(1, db.findNodes(Nodes.TRADITION).stream().count());
+            tx.success();
+        }
+    }
+
+    public void tearDown() throws Exception {
+        db.shutdown();
+        jerseyTest.tearDown();
+        super.tearDown();
+    }
+}
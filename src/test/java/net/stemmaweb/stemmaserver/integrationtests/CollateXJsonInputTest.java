@@ -251,6 +251,55 @@ public class CollateXJsonInputTest extends TestCase {
         assertEquals("AM 407", ourSections.get(1).getName());
     }
 
+    public void testDotIsReadOnly() {
+        long relCount;
+        try (Transaction tx = db.beginTx()) {
+            relCount = db.getAllRelationships().stream().count();
+            tx.success();
+        }
+        // Get the dot twice with relations shown; it should be the same both times, and
+        // the graph should not have changed.
+        String[] dots = new String[2];
+        for (int i = 0; i < 2; i++) {
+            Response resp = jerseyTest
+                    .target("/tradition/" + tradId + "/section/" + sectId + "/dot")
+                    .queryParam("include_relations", "true")
+                    .request()
+                    .get();
+            assertEquals(Response.Status.OK.getStatusCode(), resp.getStatus());
+            dots[i] = resp.readEntity(String.class);
+        }
+        assertEquals(dots[0], dots[1]);
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(relCount, db.getAllRelationships().stream().count());
+            assertTrue(db.getAllRelationships().stream().anyMatch(x -> x.isType(ERelations.COLLATED)));
+            assertFalse(db.getAllRelationships().stream().anyMatch(x -> x.isType(ERelations.RELATED)
+                    && x.getProperty("type").equals("token-normal-form")));
+            tx.success();
+        }
+
+        // Now change a reading, and check that the change shows up
+        List<ReadingModel> sectionReadings = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + sectId + "/readings")
+                .request()
+                .get(new GenericType<List<ReadingModel>>() {});
+        ReadingModel changed = sectionReadings.stream()
+                .filter(x -> !x.getIs_start() && !x.getIs_end() && !Boolean.TRUE.equals(x.getIs_lacuna())
+                        && x.getDisplay() == null)
+                .findFirst().orElse(null);
+        assertNotNull(changed);
+        try (Transaction tx = db.beginTx()) {
+            db.getNodeById(Long.valueOf(changed.getId())).setProperty("text", "xyzzy");
+            tx.success();
+        }
+        String changedDot = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + sectId + "/dot")
+                .queryParam("include_relations", "true")
+                .request()
+                .get(String.class);
+        assertTrue(changedDot.contains("label=\"xyzzy\""));
+    }
+
     /** For diagnostic use when parsing a section fails
     public void testSomething() throws Exception {
         String newSectId = Util.getValueFromJson(Util.addSectionToTradition(jerseyTest, tradId,
@@ -3,8 +3,10 @@ package net.stemmaweb.stemmaserver.integrationtests;
 import java.util.ArrayList;
 
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.SchemaService;
 
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
@@ -14,6 +16,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.schema.ConstraintDefinition;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.graphdb.schema.Schema;
 import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.Response;
@@ -62,6 +68,29 @@ public class DatabaseServiceTest {
         assertTrue(DatabaseService.userExists(userId, db));
     }
 
+    @Test
+    public void schemaBootstrapTest() {
+        assertEquals(SchemaService.SCHEMA_VERSION, SchemaService.getSchemaVersion(db));
+        try (Transaction tx = db.beginTx()) {
+            boolean found = false;
+            for (ConstraintDefinition cd : db.schema().getConstraints(Nodes.TRADITION))
+                if (cd.getPropertyKeys().iterator().next().equals("id"))
+                    found = true;
+            assertTrue(found);
+            found = false;
+            for (IndexDefinition id : db.schema().getIndexes(Nodes.READING))
+                if (id.getPropertyKeys().iterator().next().equals("section_id"))
+                    found = true;
+            assertTrue(found);
+            assertEquals(Schema.IndexState.ONLINE,
+                    db.schema().getIndexState(db.schema().getIndexes(Nodes.WITNESS).iterator().next()));
+            tx.success();
+        }
+        // Running it again should be harmless
+        SchemaService.bootstrap(db);
+        assertEquals(SchemaService.SCHEMA_VERSION, SchemaService.getSchemaVersion(db));
+    }
+
     /*
      * Shut down the database
      */
@@ -353,6 +353,78 @@ public class GraphMLInputOutputTest extends TestCase {
         assertEquals(expected, actual);
     }
 
+    public void testXMLInputSmallBatches() {
+        Response r = jerseyTest.target("/tradition/" + multiTradId + "/graphml")
+                .request(MediaType.APPLICATION_XML_TYPE).get();
+        String graphML = r.readEntity(String.class);
+
+        // Import the tradition again, committing every few entities along the way
+        System.setProperty("stemmarest.import.batch", "5");
+        try {
+            r = Util.createTraditionFromFileOrString(jerseyTest, "Batched tradition", "LR",
+                    "me@example.org", graphML, "graphml");
+        } finally {
+            System.clearProperty("stemmarest.import.batch");
+        }
+        assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
+        String newTradId = Util.getValueFromJson(r, "tradId");
+        assertNotEquals(multiTradId, newTradId);
+
+        ArrayList<ReadingModel> origReadings = jerseyTest.target("/tradition/" + multiTradId + "/readings")
+                .request().get(new GenericType<ArrayList<ReadingModel>>() {});
+        ArrayList<ReadingModel> newReadings = jerseyTest.target("/tradition/" + newTradId + "/readings")
+                .request().get(new GenericType<ArrayList<ReadingModel>>() {});
+        assertEquals(origReadings.size(), newReadings.size());
+
+        List<SectionModel> sections = jerseyTest.target("/tradition/" + newTradId + "/sections")
+                .request().get(new GenericType<List<SectionModel>>() {});
+        assertEquals(2, sections.size());
+        Set<String> sectionIds = sections.stream().map(SectionModel::getId).collect(Collectors.toSet());
+        for (ReadingModel rm : newReadings)
+            assertTrue(sectionIds.contains(rm.getSection()));
+
+        ArrayList<WitnessModel> wits = jerseyTest.target("/tradition/" + multiTradId + "/witnesses")
+                .request().get(new GenericType<ArrayList<WitnessModel>>() {});
+        String restPath = "/tradition/%s/witness/%s/text";
+        for (WitnessModel w : wits)
+            assertEquals(
+                    Util.getValueFromJson(jerseyTest.target(String.format(restPath, multiTradId, w.getSigil()))
+                            .request().get(), "text"),
+                    Util.getValueFromJson(jerseyTest.target(String.format(restPath, newTradId, w.getSigil()))
+                            .request().get(), "text"));
+    }
+
+    public void testXMLInputFailureCleanup() {
+        Response r = jerseyTest.target("/tradition/" + multiTradId + "/graphml")
+                .request(MediaType.APPLICATION_XML_TYPE).get();
+        String graphML = r.readEntity(String.class);
+        long nodeCount;
+        try (Transaction tx = db.beginTx()) {
+            nodeCount = db.getAllNodes().stream().count();
+            tx.success();
+        }
+
+        // Cut the file off partway through, after several batches have been committed
+        String truncated = graphML.substring(0, graphML.length() * 3 / 4);
+        System.setProperty("stemmarest.import.batch", "5");
+        try {
+            r = Util.createTraditionFromFileOrString(jerseyTest, "Broken tradition", "LR",
+                    "me@example.org", truncated, "graphml");
+        } finally {
+            System.clearProperty("stemmarest.import.batch");
+        }
+        assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), r.getStatus());
+
+        // Nothing of the partial import should remain
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(nodeCount, db.getAllNodes().stream().count());
+            tx.success();
+        }
+        List<TraditionModel> traditions = jerseyTest.target("/traditions")
+                .request().get(new GenericType<List<TraditionModel>>() {});
+        assertEquals(2, traditions.size());
+    }
+
     // testXMLUserNodes
 
     // testXMLDataTypes
@@ -13,8 +13,10 @@ import javax.ws.rs.core.Response.Status;
 
 import net.stemmaweb.model.*;
 import net.stemmaweb.rest.*;
+import net.stemmaweb.services.AlignmentClusters;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReachabilityIndex;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
@@ -2112,6 +2114,55 @@ public class ReadingTest {
         assertEquals(0, result.size());
     }
 
+    // the reachability index should agree with a fresh search for every pair
+    @Test
+    public void reachabilityIndexTest() throws Exception {
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Legend", "LR", "1",
+                "src/TestFiles/legendfrag.xml", "stemmaweb");
+        String newTradId = Util.getValueFromJson(response, "tradId");
+        try (Transaction tx = db.beginTx()) {
+            Node sectionNode = VariantGraphService.getSectionNodes(newTradId, db).get(0);
+            List<Node> readings = db.findNodes(Nodes.READING, "section_id", sectionNode.getId())
+                    .stream().collect(Collectors.toList());
+            AlignmentClusters searched = new AlignmentClusters(sectionNode);
+            ReachabilityIndex indexed = ReachabilityIndex.forSection(sectionNode);
+            int cyclic = 0;
+            for (Node a : readings) {
+                for (Node b : readings) {
+                    boolean expected = searched.wouldGetCyclic(a, b);
+                    assertEquals(expected, indexed.wouldGetCyclic(a, b));
+                    if (expected) cyclic++;
+                }
+            }
+            assertTrue(cyclic > 0);
+
+            // The start node reaches everything, and nothing reaches it
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+            for (Node n : readings) {
+                assertTrue(indexed.reaches(startNode, n));
+                if (!n.equals(startNode))
+                    assertFalse(indexed.reaches(n, startNode));
+            }
+            tx.success();
+        }
+
+        // The index is kept until the section changes
+        ReachabilityIndex before;
+        try (Transaction tx = db.beginTx()) {
+            Node sectionNode = VariantGraphService.getSectionNodes(newTradId, db).get(0);
+            before = ReachabilityIndex.forSection(sectionNode);
+            assertSame(before, ReachabilityIndex.forSection(sectionNode));
+            Node startNode = VariantGraphService.getStartNode(String.valueOf(sectionNode.getId()), db);
+            startNode.setProperty("touched", true);
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            Node sectionNode = VariantGraphService.getSectionNodes(newTradId, db).get(0);
+            assertNotSame(before, ReachabilityIndex.forSection(sectionNode));
+            tx.success();
+        }
+    }
+
     // compress with separate set to 1, but the empty string between words TODO what do we want here?
     @Ignore
     @Test
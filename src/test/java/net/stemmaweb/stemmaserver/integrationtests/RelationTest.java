@@ -15,6 +15,7 @@ import net.stemmaweb.model.RelationModel;
 import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReadingTextIndex;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
@@ -78,6 +79,41 @@ public class RelationTest {
         readingLookup = Util.makeReadingLookup(jerseyTest, tradId);
     }
 
+    @Test
+    public void colocatedClusterCacheTest() {
+        String sectId = Util.getSingleSection(jerseyTest, tradId).getId();
+        String colocatedPath = "/tradition/" + tradId + "/section/" + sectId + "/colocated";
+        List<List<ReadingModel>> clusters = jerseyTest.target(colocatedPath).request()
+                .get(new GenericType<List<List<ReadingModel>>>() {});
+        int clusterCount = clusters.size();
+        // The second request should be answered from the cache
+        clusters = jerseyTest.target(colocatedPath).request()
+                .get(new GenericType<List<List<ReadingModel>>>() {});
+        assertEquals(clusterCount, clusters.size());
+        Map<String, Map<String, Long>> stats = jerseyTest.target("/cachestats").request()
+                .get(new GenericType<Map<String, Map<String, Long>>>() {});
+        assertTrue(stats.containsKey("clusters"));
+        assertTrue(stats.get("clusters").get("hits") > 0);
+
+        // A new colocation should show up in the next request
+        String source = readingLookup.get("teh/10");
+        String target = readingLookup.get("the/10");
+        RelationModel relationship = new RelationModel();
+        relationship.setSource(source);
+        relationship.setTarget(target);
+        relationship.setType("spelling");
+        relationship.setScope("local");
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(relationship));
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        clusters = jerseyTest.target(colocatedPath).request()
+                .get(new GenericType<List<List<ReadingModel>>>() {});
+        assertTrue(clusters.stream().anyMatch(x -> x.stream().map(ReadingModel::getId)
+                .collect(Collectors.toList()).containsAll(Arrays.asList(source, target))));
+    }
+
     /**
      * Test if a relation is created properly
      */
@@ -319,6 +355,31 @@ public class RelationTest {
         assertEquals(existingRels, secondRels.size());
     }
 
+    @Test
+    public void readingTextIndexTest() throws Exception {
+        Node teh = getReading("teh", null);
+        Node the = getReading("the", null);
+        Node section;
+        int tehCount, theCount;
+        try (Transaction tx = db.beginTx()) {
+            section = db.getNodeById((Long) teh.getProperty("section_id"));
+            tehCount = ReadingTextIndex.forSection(section, false).lookup("teh").size();
+            theCount = ReadingTextIndex.forSection(section, false).lookup("the").size();
+            assertTrue(ReadingTextIndex.forSection(section, false).lookup("teh").contains(teh));
+            assertTrue(ReadingTextIndex.forSection(section, false).lookup("nonesuch").isEmpty());
+            // Change a reading
+            the.setProperty("text", "teh");
+            tx.success();
+        }
+
+        // Check that the index follows the change
+        try (Transaction tx = db.beginTx()) {
+            assertEquals(tehCount + 1, ReadingTextIndex.forSection(section, false).lookup("teh").size());
+            assertEquals(theCount - 1, ReadingTextIndex.forSection(section, false).lookup("the").size());
+            tx.success();
+        }
+    }
+
     @Test(expected=NotFoundException.class)
     public void deleteRelationshipDocumentWideTest() {
         /*
@@ -439,6 +500,182 @@ public class RelationTest {
         }
     }
 
+    @Test
+    public void createRelationshipRerankValidatedTest() {
+        // Check the whole section after the re-ranking that this relation causes
+        System.setProperty("stemmarest.rank.validate", "true");
+        try {
+            RelationModel relationship = new RelationModel();
+            relationship.setSource(readingLookup.getOrDefault("root/18", "17"));
+            relationship.setTarget(readingLookup.getOrDefault("teh/16", "25"));
+            relationship.setType("grammatical");
+            relationship.setAlters_meaning(0L);
+            relationship.setIs_significant("yes");
+            Response actualResponse = jerseyTest
+                    .target("/tradition/" + tradId + "/relation")
+                    .request(MediaType.APPLICATION_JSON)
+                    .post(Entity.json(relationship));
+            assertEquals(Response.Status.CREATED.getStatusCode(), actualResponse.getStatus());
+            GraphModel result = actualResponse.readEntity(new GenericType<GraphModel>(){});
+            assertEquals(3, result.getReadings().size());
+        } finally {
+            System.clearProperty("stemmarest.rank.validate");
+        }
+
+        // The re-ranking should not leave any working state on the readings
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(db.getAllNodes().stream()
+                    .noneMatch(x -> x.hasProperty("touched") || x.hasProperty("newrank")));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void createRelationshipBatchTest() {
+        RelationModel colocated = new RelationModel();
+        colocated.setSource(readingLookup.getOrDefault("root/18", "17"));
+        colocated.setTarget(readingLookup.getOrDefault("teh/16", "25"));
+        colocated.setType("grammatical");
+        colocated.setAlters_meaning(0L);
+        colocated.setIs_significant("yes");
+        RelationModel cyclic = new RelationModel();
+        cyclic.setSource(readingLookup.getOrDefault("root/18", "17"));
+        cyclic.setTarget(readingLookup.getOrDefault("the/17", "25"));
+        cyclic.setType("grammatical");
+        RelationModel repetition = new RelationModel();
+        repetition.setSource(readingLookup.getOrDefault("april/2", "17"));
+        repetition.setTarget(readingLookup.getOrDefault("showers/5", "25"));
+        repetition.setType("repetition");
+
+        // The second relation is only cyclic once the first has been made; nothing should be written
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(colocated, cyclic)));
+        assertEquals(Status.CONFLICT.getStatusCode(), response.getStatus());
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(db.getNodeById(Long.valueOf(colocated.getTarget())).hasRelationship(ERelations.RELATED));
+            tx.success();
+        }
+
+        // Non-local relations can't be batched
+        repetition.setScope("section");
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(colocated, repetition)));
+        assertEquals(Status.BAD_REQUEST.getStatusCode(), response.getStatus());
+
+        // Now make the good ones, once with a duplicate
+        repetition.setScope("local");
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(colocated, repetition, colocated)));
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        GraphModel result = response.readEntity(new GenericType<GraphModel>(){});
+        assertEquals(2, result.getRelations().size());
+        HashMap<String, Long> rankChange = new HashMap<>();
+        rankChange.put("teh", 18L);
+        rankChange.put("rood", 19L);
+        rankChange.put("#END#", 20L);
+        assertEquals(3, result.getReadings().size());
+        for (ReadingModel r : result.getReadings())
+            assertEquals(rankChange.get(r.getText()), r.getRank());
+    }
+
+    @Test
+    public void createRelationshipBatchWeakColocationTest() {
+        // Collate two readings whose witnesses then go on to 'rood' and 'root' respectively
+        RelationModel weak = new RelationModel();
+        weak.setSource(readingLookup.getOrDefault("root/18", "17"));
+        weak.setTarget(readingLookup.getOrDefault("teh/16", "25"));
+        weak.setType("collated");
+        weak.setScope("local");
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(weak));
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        String weakId = response.readEntity(new GenericType<GraphModel>(){}).getRelations().iterator().next().getId();
+
+        // Neither of these readings has a weak relation, but the one elsewhere makes this cyclic
+        RelationModel cyclic = new RelationModel();
+        cyclic.setSource(readingLookup.getOrDefault("rood/17", "17"));
+        cyclic.setTarget(readingLookup.getOrDefault("the/17", "25"));
+        cyclic.setType("grammatical");
+        cyclic.setScope("local");
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(cyclic));
+        assertEquals(Status.CONFLICT.getStatusCode(), response.getStatus());
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Collections.singletonList(cyclic)));
+        assertEquals(Status.CONFLICT.getStatusCode(), response.getStatus());
+        try (Transaction tx = db.beginTx()) {
+            assertEquals("collated", db.getRelationshipById(Long.valueOf(weakId)).getProperty("type"));
+            assertFalse(db.getNodeById(Long.valueOf(cyclic.getSource())).hasRelationship(ERelations.RELATED));
+            tx.success();
+        }
+
+        // A colocation on one of the collated readings displaces the weak relation instead
+        RelationModel displacing = new RelationModel();
+        displacing.setSource(readingLookup.getOrDefault("rood/17", "17"));
+        displacing.setTarget(readingLookup.getOrDefault("root/18", "25"));
+        displacing.setType("grammatical");
+        displacing.setScope("local");
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Arrays.asList(displacing, cyclic)));
+        assertEquals(Status.CONFLICT.getStatusCode(), response.getStatus());
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation/batch")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(Collections.singletonList(displacing)));
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(db.getAllRelationships().stream().noneMatch(x -> x.getProperty("type", "").equals("collated")));
+            tx.success();
+        }
+    }
+
+    @Test
+    public void propagateRelationshipWithWeakColocationTest() {
+        RelationModel weak = new RelationModel();
+        weak.setSource(readingLookup.getOrDefault("root/18", "17"));
+        weak.setTarget(readingLookup.getOrDefault("teh/16", "25"));
+        weak.setType("collated");
+        weak.setScope("local");
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(weak));
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+
+        // The propagated relation has nothing to do with the collated readings, which should stay as they are
+        RelationModel lexical = new RelationModel();
+        lexical.setSource(readingLookup.getOrDefault("march/11", "17"));
+        lexical.setTarget(readingLookup.getOrDefault("drought/11", "25"));
+        lexical.setType("lexical");
+        lexical.setScope("section");
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/relation")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(lexical));
+        assertEquals(Status.CREATED.getStatusCode(), response.getStatus());
+        GraphModel result = response.readEntity(new GenericType<GraphModel>(){});
+        assertEquals(2, result.getRelations().size());
+        try (Transaction tx = db.beginTx()) {
+            Node root = db.getNodeById(Long.valueOf(weak.getSource()));
+            assertEquals("collated", root.getSingleRelationship(ERelations.RELATED, Direction.BOTH).getProperty("type"));
+            tx.success();
+        }
+    }
+
     @Test
     public void createRelationshipTestWithCrossRelationConstraintNotDirectlyCloseToEachOther() {
         RelationModel relationship = new RelationModel();
@@ -3,6 +3,8 @@ package net.stemmaweb.stemmaserver.integrationtests;
 import junit.framework.TestCase;
 import net.stemmaweb.model.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.RelationService;
+import net.stemmaweb.services.RelationTypeRegistry;
 import net.stemmaweb.stemmaserver.Util;
 
 import org.glassfish.jersey.test.JerseyTest;
@@ -475,6 +477,48 @@ public class RelationTypeTest extends TestCase {
         assertEquals(Response.Status.NOT_FOUND.getStatusCode(), jerseyResult.getStatus());
     }
 
+    public void testRegistryFollowsChanges() {
+        // Make a relationship type of our own
+        RelationTypeModel rtm = new RelationTypeModel();
+        rtm.setName("accents");
+        rtm.setDescription("Readings are the same but for diacriticals");
+        rtm.setIs_colocation(true);
+        Response jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relationtype/accents")
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(rtm));
+        assertEquals(Response.Status.CREATED.getStatusCode(), jerseyResult.getStatus());
+
+        // Look it up twice; the second time should come from the registry
+        RelationTypeModel found = RelationService.returnRelationType(tradId, "accents");
+        assertEquals(rtm.getDescription(), found.getDescription());
+        assertTrue(found.getIs_colocation());
+        assertSame(found, RelationService.returnRelationType(tradId, "accents"));
+
+        // Change the type and check that the change is seen
+        rtm.setIs_colocation(false);
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relationtype/accents")
+                .request(MediaType.APPLICATION_JSON)
+                .put(Entity.json(rtm));
+        assertEquals(Response.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        found = RelationService.returnRelationType(tradId, "accents");
+        assertFalse(found.getIs_colocation());
+
+        // A default type made on demand should also be seen
+        RelationTypeModel spelling = RelationService.returnRelationType(tradId, "spelling");
+        assertEquals(1, spelling.getBindlevel());
+        List<RelationTypeModel> allRelTypes = jerseyTest.target("/tradition/" + tradId + "/relationtypes")
+                .request()
+                .get(new GenericType<List<RelationTypeModel>>() {});
+        assertEquals(2, allRelTypes.size());
+
+        // Delete the type and check that it is gone
+        jerseyResult = jerseyTest.target("/tradition/" + tradId + "/relationtype/accents")
+                .request().delete();
+        assertEquals(Response.Status.OK.getStatusCode(), jerseyResult.getStatus());
+        assertNull(RelationTypeRegistry.get(tradId, "accents", db));
+        assertNotNull(RelationTypeRegistry.get(tradId, "spelling", db));
+    }
+
     public void tearDown() throws Exception {
         db.shutdown();
         jerseyTest.tearDown();
@@ -548,6 +548,13 @@ public class SectionTest extends TestCase {
         assertEquals(1, countOccurrences(dotText, "__END__"));
         assertEquals(1, countOccurrences(dotText, "__START__"));
 
+        // ...and rendered as SVG
+        jerseyResponse = jerseyTest
+                .target("/tradition/" + florId + "/section/" + newSectionId + "/svg")
+                .request("image/svg+xml")
+                .get();
+        assertEquals(Response.Status.OK.getStatusCode(), jerseyResponse.getStatus());
+        assertTrue(jerseyResponse.readEntity(String.class).contains("<svg"));
 
         // Check that the second half has readings on rank 1
         List<ReadingModel> part2rdgs = jerseyTest
@@ -11,12 +11,18 @@ import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import net.stemmaweb.model.SectionModel;
+import net.stemmaweb.model.StemmaJobModel;
 import net.stemmaweb.model.StemmaModel;
+import net.stemmaweb.model.VariantAnalysisModel;
+import net.stemmaweb.model.VariantListModel;
 import net.stemmaweb.rest.ERelations;
+import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Root;
 import net.stemmaweb.services.DatabaseService;
 import net.stemmaweb.parser.DotParser;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.StemmaGraph;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 import net.stemmaweb.stemmaserver.Util;
@@ -167,6 +173,202 @@ public class StemmaTest {
         assertEquals(Response.Status.NOT_FOUND.getStatusCode(), getStemmaResponse.getStatus());
     }
 
+    @Test
+    public void getStemmaSvgTest() {
+        Response response = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/stemma/svg")
+                .request("image/svg+xml")
+                .get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        String svg = response.readEntity(String.class);
+        assertTrue(svg.contains("<svg"));
+        assertTrue(svg.contains("<title>stemma</title>"));
+
+        // The second request should be answered from the cache, with the same result
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/stemma/svg")
+                .request("image/svg+xml")
+                .get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        assertEquals(svg, response.readEntity(String.class));
+
+        response = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/gugus/svg")
+                .request()
+                .get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+    }
+
+    @Test
+    public void sameNameStemmaInOtherTraditionTest() {
+        String stemmaTitle = "Semstem 1402333041_0";
+        String otherId = createTraditionFromFile("Other", "src/TestFiles/testTradition.xml");
+
+        // The undirected stemma should only have its own edges, not those of its namesake
+        StemmaModel original = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/" + stemmaTitle)
+                .request(MediaType.APPLICATION_JSON)
+                .get(StemmaModel.class);
+        StemmaModel namesake = jerseyTest
+                .target("/tradition/" + otherId + "/stemma/" + stemmaTitle)
+                .request(MediaType.APPLICATION_JSON)
+                .get(StemmaModel.class);
+        assertTrue(original.getIs_undirected());
+        assertEquals(3, original.getDot().split(" -- ").length - 1);
+        assertEquals(original.getDot(), namesake.getDot());
+
+        // Reorienting one of them should leave the other alone
+        StemmaModel reoriented = jerseyTest
+                .target("/tradition/" + otherId + "/stemma/" + stemmaTitle + "/reorient/C")
+                .request(MediaType.APPLICATION_JSON)
+                .post(null, StemmaModel.class);
+        assertFalse(reoriented.getIs_undirected());
+        Util.assertStemmasEquivalent("digraph \"Semstem 1402333041_0\" {  0 [ class=hypothetical ];  A [ class=extant ];  B [ class=extant ];  C [ class=extant ]; C -> B;  B -> A;  A -> 0;}",
+                reoriented.getDot());
+        StemmaModel unchanged = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/" + stemmaTitle)
+                .request(MediaType.APPLICATION_JSON)
+                .get(StemmaModel.class);
+        assertTrue(unchanged.getIs_undirected());
+        assertEquals(original.getDot(), unchanged.getDot());
+    }
+
+    @Test
+    public void analyseVariantsTest() {
+        List<VariantAnalysisModel> chain = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/Semstem 1402333041_0/analysis")
+                .request(MediaType.APPLICATION_JSON)
+                .get(new GenericType<List<VariantAnalysisModel>>() {});
+        // There should be a result for every variant location
+        List<SectionModel> sections = jerseyTest
+                .target("/tradition/" + tradId + "/sections")
+                .request()
+                .get(new GenericType<List<SectionModel>>() {});
+        VariantListModel vlm = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + sections.get(0).getId() + "/variants")
+                .request(MediaType.APPLICATION_JSON)
+                .get(VariantListModel.class);
+        assertEquals(vlm.getVariantlist().size(), chain.size());
+        for (VariantAnalysisModel vam : chain) {
+            assertEquals(sections.get(0).getId(), vam.getSection());
+            assertTrue(vam.getChanges() >= vam.getGroups().size() - 1);
+            assertEquals(vam.getChanges() == vam.getGroups().size() - 1, vam.getGenealogical());
+        }
+
+        // On a star-shaped stemma every location is genealogical
+        StemmaModel star = new StemmaModel();
+        star.setDot("digraph \"star\" {  0 [ class=hypothetical ];  A [ class=extant ];  "
+                + "B [ class=extant ];  C [ class=extant ]; 0 -> A;  0 -> B;  0 -> C;}");
+        Response result = jerseyTest
+                .target("/tradition/" + tradId + "/stemma")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(star));
+        assertEquals(Response.Status.CREATED.getStatusCode(), result.getStatus());
+        List<VariantAnalysisModel> starResult = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/star/analysis")
+                .request(MediaType.APPLICATION_JSON)
+                .get(new GenericType<List<VariantAnalysisModel>>() {});
+        assertEquals(chain.size(), starResult.size());
+        for (VariantAnalysisModel vam : starResult) {
+            assertTrue(vam.getGenealogical());
+            assertEquals(vam.getGroups().size() - 1, vam.getChanges());
+        }
+
+        // A contaminated stemma can't be analysed
+        StemmaModel loop = new StemmaModel();
+        loop.setDot("digraph \"loop\" {  0 [ class=hypothetical ];  A [ class=extant ];  B [ class=extant ];  "
+                + "C [ class=extant ]; 0 -> A; A -> B;  A -> C; 0 -> C;}");
+        result = jerseyTest
+                .target("/tradition/" + tradId + "/stemma")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(loop));
+        assertEquals(Response.Status.CREATED.getStatusCode(), result.getStatus());
+        result = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/loop/analysis")
+                .request(MediaType.APPLICATION_JSON)
+                .get();
+        assertEquals(Response.Status.PRECONDITION_FAILED.getStatusCode(), result.getStatus());
+    }
+
+    // Starts an inference job and waits for it to finish
+    private StemmaJobModel inferStemma(String tradId, String name, String method) throws InterruptedException {
+        Response result = jerseyTest
+                .target("/tradition/" + tradId + "/inferStemma")
+                .queryParam("name", name)
+                .queryParam("method", method)
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.text(""));
+        assertEquals(Response.Status.ACCEPTED.getStatusCode(), result.getStatus());
+        StemmaJobModel job = result.readEntity(StemmaJobModel.class);
+        assertEquals(name, job.getStemma());
+        for (int i = 0; i < 600; i++) {
+            if (job.getStatus().equals("done") || job.getStatus().equals("failed"))
+                break;
+            Thread.sleep(100);
+            job = jerseyTest
+                    .target("/tradition/" + tradId + "/inferStemma/" + job.getJobid())
+                    .request(MediaType.APPLICATION_JSON)
+                    .get(StemmaJobModel.class);
+        }
+        assertEquals("done", job.getStatus());
+        return job;
+    }
+
+    @Test
+    public void inferStemmaTest() throws InterruptedException {
+        inferStemma(tradId, "joined", "nj");
+        StemmaModel joined = jerseyTest
+                .target("/tradition/" + tradId + "/stemma/joined")
+                .request(MediaType.APPLICATION_JSON)
+                .get(StemmaModel.class);
+        assertTrue(joined.getIs_undirected());
+        assertFalse(joined.getIs_contaminated());
+        // Three witnesses should hang from a single hypothetical node
+        try (Transaction tx = db.beginTx()) {
+            Node stemmaNode = StemmaGraph.findStemma(db.findNode(Nodes.TRADITION, "id", tradId), "joined");
+            StemmaGraph stemma = StemmaGraph.forStemma(stemmaNode);
+            assertTrue(stemma.isTree());
+            assertEquals(4, stemma.getWitnesses().size());
+            for (String sigil : Arrays.asList("A", "B", "C"))
+                assertFalse(stemma.getWitness(sigil).isHypothetical());
+            assertEquals(3, stemma.getWitnesses().stream().filter(x -> !x.isHypothetical()).count());
+            tx.success();
+        }
+
+        // The name is now taken, and a bad method is refused
+        Response result = jerseyTest
+                .target("/tradition/" + tradId + "/inferStemma")
+                .queryParam("name", "joined")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.text(""));
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), result.getStatus());
+        result = jerseyTest
+                .target("/tradition/" + tradId + "/inferStemma")
+                .queryParam("method", "guesswork")
+                .request(MediaType.APPLICATION_JSON)
+                .post(Entity.text(""));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), result.getStatus());
+        result = jerseyTest
+                .target("/tradition/" + tradId + "/inferStemma/0")
+                .request(MediaType.APPLICATION_JSON)
+                .get();
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), result.getStatus());
+
+        // A parsimony search over a larger tradition gives a binary tree on the base witnesses
+        String florId = createTraditionFromFile("Florilegium", "src/TestFiles/florilegium_graphml.xml");
+        inferStemma(florId, "parsimony", "parsimony");
+        try (Transaction tx = db.beginTx()) {
+            Node stemmaNode = StemmaGraph.findStemma(db.findNode(Nodes.TRADITION, "id", florId), "parsimony");
+            StemmaGraph stemma = StemmaGraph.forStemma(stemmaNode);
+            assertTrue(stemma.isTree());
+            long extant = stemma.getWitnesses().stream().filter(x -> !x.isHypothetical()).count();
+            assertEquals(13, extant);
+            assertEquals(2 * extant - 2, stemma.getWitnesses().size());
+            assertNull(stemma.getWitness("E (a.c.)"));
+            tx.success();
+        }
+    }
+
     @Test
     public void setStemmaTest() {
 
@@ -17,6 +17,7 @@ import org.neo4j.test.TestGraphDatabaseFactory;
 
 import javax.ws.rs.core.Response;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -105,6 +106,10 @@ public class TEIParallelSegInputTest {
         @SuppressWarnings("unchecked")
         ArrayList<ReadingModel> allReadings = (ArrayList<ReadingModel>) result.getEntity();
         assertEquals(317, allReadings.size());
+        // Identical readings at the same rank should have been merged during the parse
+        HashSet<String> rankAndText = new HashSet<>();
+        for (ReadingModel r : allReadings)
+            assertTrue(rankAndText.add(r.getRank() + "/" + r.getText()));
         boolean foundReading = false;
         for (ReadingModel r : allReadings)
             if (r.getText().equals("βλασφημίας"))
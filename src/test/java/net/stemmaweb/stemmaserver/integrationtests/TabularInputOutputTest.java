@@ -276,6 +276,36 @@ public class TabularInputOutputTest extends TestCase {
         assertEquals(155, table.getInt("length"));
         assertEquals(13, table.getJSONArray("alignment").length());
 
+        // The whole-tradition table should be the section tables joined up in order
+        JSONObject whole = new JSONObject(jerseyTest.target("/tradition/" + tradId + "/json")
+                .request(MediaType.APPLICATION_JSON).get(String.class));
+        int offset = 0;
+        for (String sectId : tradSections) {
+            JSONObject part = new JSONObject(jerseyTest.target("/tradition/" + tradId + "/json")
+                    .queryParam("section", sectId)
+                    .request(MediaType.APPLICATION_JSON).get(String.class));
+            Map<String, JSONArray> partColumns = new HashMap<>();
+            for (Object o : part.getJSONArray("alignment")) {
+                JSONObject column = (JSONObject) o;
+                if (column.has("layer")) continue;
+                partColumns.put(column.getString("witness"), column.getJSONArray("tokens"));
+            }
+            for (Object o : whole.getJSONArray("alignment")) {
+                JSONObject column = (JSONObject) o;
+                if (column.has("layer")) continue;
+                JSONArray partTokens = partColumns.get(column.getString("witness"));
+                for (int j = 0; j < part.getInt("length"); j++) {
+                    Object token = column.getJSONArray("tokens").get(offset + j);
+                    if (partTokens == null || partTokens.isNull(j))
+                        assertEquals(JSONObject.NULL, token);
+                    else
+                        assertEquals(partTokens.getJSONObject(j).get("id"), ((JSONObject) token).get("id"));
+                }
+            }
+            offset += part.getInt("length");
+        }
+        assertEquals(whole.getInt("length"), offset);
+
         // Request section 3
         response = jerseyTest
                 .target("/tradition/" + tradId + "/json")
@@ -887,6 +917,49 @@ public class TabularInputOutputTest extends TestCase {
         assertEquals("C         XXXABAABX", matrixLines[3]);
     }
 
+    public void testDistanceMatrixOutput () {
+        Response response = Util.createTraditionFromFileOrString(jerseyTest, "Tradition", "LR", "1",
+                "src/TestFiles/testTradition.xml", "stemmaweb");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String traditionId = Util.getValueFromJson(response, "tradId");
+
+        Response result = jerseyTest
+                .target("/tradition/" + traditionId + "/distance")
+                .request(MediaType.APPLICATION_JSON)
+                .get();
+        assertEquals(Response.Status.OK.getStatusCode(), result.getStatus());
+        WitnessDistanceModel distances = result.readEntity(WitnessDistanceModel.class);
+        assertEquals(Arrays.asList("A", "B", "C"), distances.getWitnesses());
+        // The witnesses differ at the same places as in the character matrix, and agree everywhere else
+        int[][] disagree = distances.getDisagreements();
+        int[][] agree = distances.getAgreements();
+        assertEquals(7, disagree[0][1]);
+        assertEquals(8, disagree[0][2]);
+        assertEquals(6, disagree[1][2]);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(distances.getLength(), agree[i][i]);
+            assertEquals(0, disagree[i][i]);
+            for (int j = 0; j < 3; j++) {
+                assertEquals(agree[i][j], agree[j][i]);
+                assertEquals(disagree[i][j], disagree[j][i]);
+                if (i != j)
+                    assertEquals(distances.getLength(), agree[i][j] + disagree[i][j]);
+            }
+        }
+        assertEquals(7.0 / distances.getLength(), distances.getDistances()[0][1], 0.0001);
+
+        // The section endpoint should give the same answer for a single-section tradition
+        List<SectionModel> sections = jerseyTest
+                .target("/tradition/" + traditionId + "/sections")
+                .request()
+                .get(new GenericType<List<SectionModel>>() {});
+        WitnessDistanceModel sectionDistances = jerseyTest
+                .target("/tradition/" + traditionId + "/section/" + sections.get(0).getId() + "/distance")
+                .request(MediaType.APPLICATION_JSON)
+                .get(WitnessDistanceModel.class);
+        assertTrue(Arrays.deepEquals(distances.getDistances(), sectionDistances.getDistances()));
+    }
+
     public void tearDown() throws Exception {
         db.shutdown();
         jerseyTest.tearDown();
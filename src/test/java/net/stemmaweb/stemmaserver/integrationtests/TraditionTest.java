@@ -207,6 +207,23 @@ public class TraditionTest {
         assertEquals(Response.status(Status.NOT_FOUND).build().getStatus(), resp.getStatus());
     }
 
+    @Test
+    public void getDotOfTraditionAndSectionTest() {
+        // With a single section, the two graphs have the same content but not the same name
+        SectionModel section = Util.getSingleSection(jerseyTest, tradId);
+        String traditionDot = jerseyTest
+                .target("/tradition/" + tradId + "/dot")
+                .request()
+                .get(String.class);
+        String sectionDot = jerseyTest
+                .target("/tradition/" + tradId + "/section/" + section.getId() + "/dot")
+                .request()
+                .get(String.class);
+        assertTrue(traditionDot.startsWith("digraph \"Tradition\""));
+        assertTrue(sectionDot.startsWith("digraph \"" + section.getName() + "\""));
+        assertNotEquals(traditionDot, sectionDot);
+    }
+
     @Test
     public void getDotTest() {
         String str = jerseyTest
@@ -651,6 +668,66 @@ public class TraditionTest {
         }
     }
 
+    private Map<String, String> getWitnessTexts(String traditionId) {
+        Map<String, String> texts = new HashMap<>();
+        for (String sigil : Arrays.asList("A", "B", "C"))
+            texts.put(sigil, Util.getValueFromJson(jerseyTest
+                    .target("/tradition/" + traditionId + "/witness/" + sigil + "/text")
+                    .request()
+                    .get(), "text"));
+        return texts;
+    }
+
+    private void checkWitnessStorage(Class<?> expected) {
+        try (Transaction tx = db.beginTx()) {
+            int seen = 0;
+            for (Relationship r : VariantGraphService.returnEntireTradition(tradId, db).relationships()) {
+                if (!r.isType(ERelations.SEQUENCE)) continue;
+                for (String witClass : r.getPropertyKeys()) {
+                    assertEquals(expected, r.getProperty(witClass).getClass());
+                    seen++;
+                }
+            }
+            assertTrue(seen > 0);
+            tx.success();
+        }
+    }
+
+    @Test
+    public void witnessStorageTest() {
+        Map<String, String> texts = getWitnessTexts(tradId);
+        checkWitnessStorage(String[].class);
+
+        // Switch to bitsets
+        Response response = jerseyTest.target("/tradition/" + tradId + "/witnessstorage")
+                .queryParam("bitsets", "true")
+                .request()
+                .put(Entity.json(""));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        checkWitnessStorage(long[].class);
+        assertEquals(texts, getWitnessTexts(tradId));
+
+        // The GraphML export should still have the sigla, and be readable as a new tradition
+        String graphML = jerseyTest.target("/tradition/" + tradId + "/graphml")
+                .request(MediaType.APPLICATION_XML_TYPE)
+                .get(String.class);
+        assertTrue(graphML.contains("attr.name=\"witnesses\" attr.type=\"stringarray\""));
+        response = Util.createTraditionFromFileOrString(jerseyTest, "Bitset tradition", "LR",
+                "1", graphML, "graphml");
+        assertEquals(Response.Status.CREATED.getStatusCode(), response.getStatus());
+        String copyId = Util.getValueFromJson(response, "tradId");
+        assertEquals(texts, getWitnessTexts(copyId));
+
+        // Switch back again
+        response = jerseyTest.target("/tradition/" + tradId + "/witnessstorage")
+                .queryParam("bitsets", "false")
+                .request()
+                .put(Entity.json(""));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        checkWitnessStorage(String[].class);
+        assertEquals(texts, getWitnessTexts(tradId));
+    }
+
     /*
      * Shut down the jersey server
      *
@@ -1,10 +1,11 @@
 package net.stemmaweb.stemmaserver.integrationtests;
 
+import net.stemmaweb.model.ReadingModel;
 import net.stemmaweb.model.RelationModel;
-import net.stemmaweb.rest.ERelations;
 import net.stemmaweb.rest.Nodes;
 import net.stemmaweb.rest.Relation;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.NormalizedSection;
 import net.stemmaweb.services.VariantGraphService;
 import net.stemmaweb.stemmaserver.Util;
 import org.junit.After;
@@ -16,8 +17,9 @@ import org.neo4j.test.TestGraphDatabaseFactory;
 import javax.ws.rs.core.Response;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -101,36 +103,51 @@ public class VariantGraphServiceTest {
         );
         ArrayList<Node> sections = VariantGraphService.getSectionNodes(newTradId, db);
         assertNotNull(sections);
+        long relationshipCount;
         try (Transaction tx = db.beginTx()) {
-            HashMap<Node,Node> representatives = VariantGraphService.normalizeGraph(sections.get(0), Arrays.asList("collated"));
+            relationshipCount = db.getAllRelationships().stream().count();
+            tx.success();
+        }
+        try (Transaction tx = db.beginTx()) {
+            NormalizedSection normalized = VariantGraphService.normalizeGraph(sections.get(0), Arrays.asList("collated"));
+            Map<Node,Node> representatives = normalized.getRepresentatives();
             for (Node n : representatives.keySet()) {
-                // If it is represented by itself, it should have an NSEQUENCE both in and out; if not, not.
+                // If it is represented by itself, it should have a normalized sequence both in and out; if not, not.
                 if (!n.hasProperty("is_end"))
-                    assertEquals(n.equals(representatives.get(n)), n.hasRelationship(ERelations.NSEQUENCE, Direction.OUTGOING));
+                    assertEquals(n.equals(representatives.get(n)), !normalized.getOutgoing(n).isEmpty());
                 if (!n.hasProperty("is_start"))
-                    assertEquals(n.equals(representatives.get(n)), n.hasRelationship(ERelations.NSEQUENCE, Direction.INCOMING));
-                // If it's at rank 6, it should have a REPRESENTS link
+                    assertEquals(n.equals(representatives.get(n)), !normalized.getIncoming(n).isEmpty());
+                // If it's at rank 6, it should be part of a cluster
                 if (n.getProperty("rank").equals(6L)) {
-                    Direction d = n.getProperty("text").equals("weljellensä") ? Direction.OUTGOING : Direction.INCOMING;
-                    assertTrue(n.hasRelationship(ERelations.REPRESENTS, d));
+                    if (n.getProperty("text").equals("weljellensä"))
+                        assertFalse(normalized.getRepresented(n).isEmpty());
+                    else
+                        assertNotEquals(n, normalized.getRepresentative(n));
                 } else if (n.getProperty("rank").equals(9L)) {
-                    Direction d = n.getProperty("text").equals("Hämehen") ? Direction.OUTGOING : Direction.INCOMING;
-                    assertTrue(n.hasRelationship(ERelations.REPRESENTS, d));
+                    if (n.getProperty("text").equals("Hämehen"))
+                        assertFalse(normalized.getRepresented(n).isEmpty());
+                    else
+                        assertNotEquals(n, normalized.getRepresentative(n));
                 }
             }
+            // The witnesses of the represented readings should have been carried over
+            for (Node n : representatives.keySet()) {
+                Node rep = representatives.get(n);
+                ReadingModel rm = new ReadingModel(rep, normalized);
+                new ReadingModel(n).getWitnesses().stream().filter(x -> !x.contains(" "))
+                        .forEach(x -> assertTrue(rm.getWitnesses().contains(x)));
+                if (!n.equals(rep))
+                    assertTrue(rm.getRepresented().stream().anyMatch(x -> x.getId().equals(String.valueOf(n.getId()))));
+            }
             tx.success();
         } catch (Exception e) {
             fail();
         }
 
-        // Now clear the normalization and make sure we didn't fail.
+        // Make sure that nothing was written to the graph.
         try (Transaction tx = db.beginTx()) {
-            VariantGraphService.clearNormalization(sections.get(0));
-            assertTrue(db.getAllRelationships().stream().noneMatch(x -> x.isType(ERelations.NSEQUENCE)));
-            assertTrue(db.getAllRelationships().stream().noneMatch(x -> x.isType(ERelations.REPRESENTS)));
+            assertEquals(relationshipCount, db.getAllRelationships().stream().count());
             tx.success();
-        } catch (Exception e) {
-            fail();
         }
 
     }
@@ -175,8 +192,8 @@ public class VariantGraphServiceTest {
             Relation relRest = new Relation(newTradId);
             Response r = relRest.create(rm);
             assertEquals(Response.Status.CREATED.getStatusCode(), r.getStatus());
-            VariantGraphService.normalizeGraph(sections.get(0), Arrays.asList("collated")); // TODO not sure this has an effect??
-            List<Node> majorityReadings = VariantGraphService.calculateMajorityText(sections.get(0));
+            NormalizedSection normalized = VariantGraphService.normalizeGraph(sections.get(0), Arrays.asList("collated"));
+            List<Node> majorityReadings = VariantGraphService.calculateMajorityText(sections.get(0), normalized);
             List<String> words = majorityReadings.stream()
                     .filter(x -> !x.hasProperty("is_start") && !x.hasProperty("is_end"))
                     .map(x -> x.getProperty("text").toString())
@@ -182,6 +182,14 @@ public class VariantLocationTest extends TestCase {
         assertEquals(1, vlist.getDislocationTypes().size());
         assertTrue(vlist.getDislocationTypes().contains("transposition"));
 
+        // Check that the locations can be looked up by rank
+        final VariantListModel byRank = vlist;
+        for (VariantLocationModel vloc : vlocs)
+            assertTrue(byRank.getVariantsAtRank(vloc.getRankIndex()).contains(vloc));
+        assertEquals(vlocs.size(), vlocs.stream().map(VariantLocationModel::getRankIndex).distinct()
+                .mapToInt(x -> byRank.getVariantsAtRank(x).size()).sum());
+        assertTrue(byRank.getVariantsAtRank(-1L).isEmpty());
+
         rsp = jerseyTest.target(restPath + "variants")
                 .queryParam("normalize", "spelling").request().get();
         assertEquals(Response.Status.OK.getStatusCode(), rsp.getStatus());
@@ -13,6 +13,7 @@ import net.stemmaweb.model.TextSequenceModel;
 import net.stemmaweb.model.WitnessModel;
 import net.stemmaweb.rest.*;
 import net.stemmaweb.services.GraphDatabaseServiceProvider;
+import net.stemmaweb.services.ReadingService;
 import net.stemmaweb.stemmaserver.JerseyTestServerFactory;
 
 import net.stemmaweb.stemmaserver.Util;
@@ -457,6 +458,48 @@ public class WitnessTest {
 
     }
 
+    /**
+     * test that the text between ranks matches the corresponding slice of the whole witness,
+     * with and without a correction layer
+     */
+    @Test
+    public void witnessRankWindowsTest() {
+        String newId = createTraditionFromFile("Florilegium", "src/TestFiles/florilegium_graphml.xml");
+        for (String sigil : new String[] {"Q", "E", "T"}) {
+            for (String layer : new String[] {"", "a.c."}) {
+                List<ReadingModel> readings = jerseyTest
+                        .target("/tradition/" + newId + "/witness/" + sigil + "/readings")
+                        .queryParam("layer", layer)
+                        .request()
+                        .get(new GenericType<List<ReadingModel>>() {});
+                long lastRank = readings.get(readings.size() - 1).getRank();
+                for (long start = 1; start < lastRank; start += 7) {
+                    final long s = start;
+                    final long e = Math.min(start + 12, lastRank);
+                    List<ReadingModel> inWindow = readings.stream()
+                            .filter(x -> x.getRank() >= s && x.getRank() <= e)
+                            .collect(Collectors.toList());
+                    Response response = jerseyTest
+                            .target("/tradition/" + newId + "/witness/" + sigil + "/text")
+                            .queryParam("layer", layer)
+                            .queryParam("start", String.valueOf(s))
+                            .queryParam("end", String.valueOf(e))
+                            .request()
+                            .get();
+                    String window = String.format("%s %s %d-%d", sigil, layer, s, e);
+                    if (inWindow.isEmpty()) {
+                        // The witness skips the whole window
+                        assertEquals(window, Response.Status.NOT_FOUND.getStatusCode(), response.getStatus());
+                        continue;
+                    }
+                    assertEquals(window, Response.Status.OK.getStatusCode(), response.getStatus());
+                    assertEquals(window, ReadingService.textOfReadings(inWindow, false, false),
+                            response.readEntity(TextSequenceModel.class).getText());
+                }
+            }
+        }
+    }
+
     private String constructResult (String text) {
         return String.format("{\"text\":\"%s\"}", text);
     }